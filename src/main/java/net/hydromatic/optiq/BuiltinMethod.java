@@ -65,6 +65,66 @@ public enum BuiltinMethod {
         Function1.class),
     ORDER_BY(
         ExtendedEnumerable.class, "orderBy", Function1.class, Comparator.class),
+    SKIP(
+        ExtendedEnumerable.class, "skip", int.class),
+    LIMIT(
+        Utilities.class, "limit", Enumerable.class, int.class, int.class),
+    LIMITABLE_TABLE_LIMIT(
+        LimitableTable.class, "limit", int.class),
+    RANGE_FILTERABLE_TABLE_RANGE(
+        RangeFilterableTable.class, "range", int.class, JoinFilter.class),
+    PARTITIONABLE_TABLE_PARTITION(
+        PartitionableTable.class, "partition", int.class, int.class),
+    GATHER(
+        ParallelEnumerables.class, "gather", Function1.class, int.class),
+    UNION_ALL(
+        ParallelEnumerables.class, "unionAll", DataContext.class,
+        Enumerable[].class),
+    TOP_N(
+        TopN.class, "orderBy", Enumerable.class, Function1.class,
+        Comparator.class, int.class, int.class),
+    LONG_HASH_JOIN(
+        LongHashTables.class, "join", Enumerable.class, Enumerable.class,
+        LongFunction1.class, LongFunction1.class, Function2.class,
+        boolean.class, boolean.class),
+    LONG_HASH_GROUP_BY(
+        LongHashTables.class, "groupBy", Enumerable.class,
+        LongFunction1.class, Function1.class, Function0.class,
+        Function2.class, Function2.class),
+    SORTED_GROUP_BY(
+        SortedEnumerables.class, "groupBy", Enumerable.class, Function1.class,
+        Function0.class, Function2.class, Function2.class),
+    SORTED_MERGE_JOIN(
+        SortedEnumerables.class, "mergeJoin", Enumerable.class,
+        Enumerable.class, Function1.class, Function1.class, Function2.class,
+        boolean.class, boolean.class),
+    HASH_JOIN(
+        JoinEnumerables.class, "hashJoin", Enumerable.class, Enumerable.class,
+        Function1.class, Function1.class, Function2.class, boolean.class,
+        boolean.class),
+    JOIN_FILTER_BUILD(
+        JoinFilter.class, "build", Enumerable.class, Function1.class),
+    JOIN_FILTER_PROBE(
+        JoinFilter.class, "probe", Enumerable.class, Function1.class),
+    SEMI_JOIN(
+        JoinEnumerables.class, "semiJoin", Enumerable.class, Enumerable.class,
+        Function1.class, Function1.class, boolean.class),
+    NESTED_LOOP_JOIN(
+        JoinEnumerables.class, "nestedLoopJoin", Enumerable.class,
+        Enumerable.class, Predicate2.class, Function2.class, boolean.class,
+        boolean.class),
+    BAND_JOIN(
+        JoinEnumerables.class, "bandJoin", Enumerable.class, Enumerable.class,
+        Function1.class, boolean.class, Function1.class, boolean.class,
+        Function1.class, Predicate2.class, Function2.class),
+    LONG_HASH_PACK(
+        LongHashTables.class, "pack", int.class, int.class),
+    LONG_HASH_DOUBLE_KEY(
+        LongHashTables.class, "doubleKey", double.class),
+    WINDOW(
+        WindowEnumerables.class, "window", Enumerable.class, Function1.class,
+        int[].class, int[].class, boolean[].class, boolean.class, long.class,
+        long.class, String[].class, int[].class, String[].class),
     UNION(
         ExtendedEnumerable.class, "union", Enumerable.class),
     CONCAT(
@@ -79,6 +139,8 @@ public enum BuiltinMethod {
         Functions.class, "nullsComparator", boolean.class, boolean.class),
     ARRAY_COMPARER(
         Functions.class, "arrayComparer"),
+    COMPARABLE_COMPARATOR(
+        ComparableComparator.class, "instance"),
     ARRAYS_AS_LIST(
         FlatLists.class, "of", Object[].class),
     LIST2(
@@ -99,6 +161,10 @@ public enum BuiltinMethod {
         Enumerator.class, "moveNext"),
     ENUMERATOR_RESET(
         Enumerator.class, "reset"),
+    CLOSEABLE_ENUMERATOR_CLOSE(
+        Utilities.CloseableEnumerator.class, "close"),
+    CLOSE(
+        Utilities.class, "close", Enumerator.class),
     ENUMERABLE_ENUMERATOR(
         Enumerable.class, "enumerator"),
     TYPED_GET_ELEMENT_TYPE(
@@ -169,7 +235,28 @@ public enum BuiltinMethod {
     ROUND_LONG(
         SqlFunctions.class, "round", long.class, long.class),
     ROUND_INT(
-        SqlFunctions.class, "round", int.class, int.class);
+        SqlFunctions.class, "round", int.class, int.class),
+    CHECK_CANCEL(
+        Utilities.class, "checkCancel", DataContext.class),
+    SPILLING_JOIN(
+        SpillingEnumerables.class, "join", DataContext.class, Enumerable.class,
+        Enumerable.class, Function1.class, Function1.class,
+        LongFunction1.class, LongFunction1.class, Function2.class,
+        RowSerializer.class, RowSerializer.class),
+    SPILLING_GROUP_BY(
+        SpillingEnumerables.class, "groupBy", DataContext.class,
+        Enumerable.class, Function1.class, LongFunction1.class,
+        Function0.class, Function2.class, Function2.class,
+        RowSerializer.class),
+    SPILLING_ORDER_BY(
+        SpillingEnumerables.class, "orderBy", DataContext.class,
+        Enumerable.class, Function1.class, Comparator.class,
+        RowSerializer.class, NormalizedKeySorter.Normalizer.class),
+    NORMALIZER(
+        NormalizedKeySorter.class, "normalizer", Function1.class,
+        boolean.class, boolean.class),
+    CANCELLABLE(
+        Utilities.class, "cancellable", DataContext.class, Enumerable.class);
 
     public final Method method;
 
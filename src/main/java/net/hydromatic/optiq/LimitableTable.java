@@ -0,0 +1,41 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq;
+
+import net.hydromatic.linq4j.Enumerable;
+
+/**
+ * Extension to {@link Table} that can return just the first few of its rows,
+ * more efficiently than by reading all rows and discarding the rest.
+ *
+ * <p>For example, a table backed by a JDBC data source can add a
+ * {@code FETCH FIRST n ROWS ONLY} clause to the query it sends, so that the
+ * remote database stops after {@code n} rows.</p>
+ *
+ * <p>The planner pushes a limit down to the scan of a table that implements
+ * this interface; see
+ * {@link net.hydromatic.optiq.rules.java.JavaRules#ENUMERABLE_LIMIT_TABLE_RULE}.
+ * </p>
+ */
+public interface LimitableTable<T> extends Table<T> {
+    /** Returns an enumerable over at most {@code fetch} rows of this table.
+     * Which rows are returned is unspecified. */
+    Enumerable<T> limit(int fetch);
+}
+
+// End LimitableTable.java
@@ -0,0 +1,47 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq;
+
+import net.hydromatic.linq4j.Enumerable;
+
+/**
+ * Extension to {@link Table} whose rows can be divided into disjoint
+ * partitions that can be read in parallel.
+ *
+ * <p>For example, a table stored in arrays can return a range of row
+ * numbers.</p>
+ *
+ * <p>If the {@code parallelism} connection property is greater than 1, the
+ * planner may read a large table that implements this interface in several
+ * threads; see {@link net.hydromatic.optiq.rules.java.Parallelizer}.</p>
+ */
+public interface PartitionableTable<T> extends Table<T> {
+    /** Returns an enumerable over one partition of the rows of this table.
+     * Each row belongs to exactly one of the {@code partitionCount}
+     * partitions. If the partitions are enumerated in order and their rows
+     * concatenated, the rows are in the same order as those of the whole
+     * table.
+     *
+     * @param partition Ordinal of partition, 0 &le; partition &lt;
+     *     partitionCount
+     * @param partitionCount Number of partitions
+     */
+    Enumerable<T> partition(int partition, int partitionCount);
+}
+
+// End PartitionableTable.java
@@ -0,0 +1,45 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq;
+
+import net.hydromatic.optiq.runtime.JoinFilter;
+
+import net.hydromatic.linq4j.Enumerable;
+
+/**
+ * Extension to {@link Table} that can return just the rows whose value of a
+ * column lies in a range, more efficiently than by reading all rows and
+ * discarding the rest.
+ *
+ * <p>The range comes from the keys on the build side of a hash join, and is
+ * not known until the query runs; see {@link JoinFilter}. For example, a
+ * table backed by a JDBC data source can add
+ * {@code WHERE c BETWEEN min AND max} to the query it sends, and an
+ * in-memory table that is sorted on the column can find the range by binary
+ * search.</p>
+ */
+public interface RangeFilterableTable<T> extends Table<T> {
+    /** Returns an enumerable over the rows of this table, omitting some or
+     * all of the rows whose value of column {@code field} is outside the
+     * range of {@code filter}. The filter is read when the enumerable is
+     * enumerated, not when this method is called; if it is not complete by
+     * then, all rows are returned. */
+    Enumerable<T> range(int field, JoinFilter filter);
+}
+
+// End RangeFilterableTable.java
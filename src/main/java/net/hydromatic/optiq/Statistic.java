@@ -17,7 +17,10 @@
 */
 package net.hydromatic.optiq;
 
+import org.eigenbase.rel.RelCollation;
+
 import java.util.BitSet;
+import java.util.List;
 
 /**
  * Statistics about a {@link Table}.
@@ -34,6 +37,10 @@ public interface Statistic {
      * of a unique key, of the table.
      */
     boolean isKey(BitSet columns);
+
+    /** Returns the collations in which the rows of the table are returned
+     * by a scan; empty if the order is not known. */
+    List<RelCollation> getCollations();
 }
 
 // End Statistic.java
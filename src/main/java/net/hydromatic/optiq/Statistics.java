@@ -17,6 +17,7 @@
 */
 package net.hydromatic.optiq;
 
+import org.eigenbase.rel.RelCollation;
 import org.eigenbase.util.Util;
 
 import java.util.*;
@@ -35,10 +36,24 @@ public class Statistics {
             public boolean isKey(BitSet columns) {
                 return false;
             }
+
+            public List<RelCollation> getCollations() {
+                return Collections.emptyList();
+            }
         };
 
     /** Returns a statistic with a given row count and set of unique keys. */
-    public static Statistic of(final double rowCount, final List<BitSet> keys) {
+    public static Statistic of(double rowCount, List<BitSet> keys) {
+        return of(rowCount, keys, Collections.<RelCollation>emptyList());
+    }
+
+    /** Returns a statistic with a given row count, set of unique keys, and
+     * set of collations. */
+    public static Statistic of(
+        final double rowCount,
+        final List<BitSet> keys,
+        final List<RelCollation> collations)
+    {
         return new Statistic() {
             public Double getRowCount() {
                 return rowCount;
@@ -52,6 +67,10 @@ public class Statistics {
                 }
                 return false;
             }
+
+            public List<RelCollation> getCollations() {
+                return collations;
+            }
         };
     }
 }
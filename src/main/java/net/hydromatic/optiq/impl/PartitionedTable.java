@@ -0,0 +1,340 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl;
+
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+
+import net.hydromatic.optiq.*;
+
+import org.eigenbase.rel.RelNode;
+import org.eigenbase.relopt.RelOptTable;
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.rex.*;
+import org.eigenbase.sarg.*;
+import org.eigenbase.util.NlsString;
+import org.eigenbase.util.Util;
+
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Table whose rows are stored in several other tables, called partitions.
+ *
+ * <p>Each partition is a table in the same schema, with the same row type,
+ * and holds the rows whose value of the partition column lies in given
+ * ranges or belongs to a given list. A query reads the union of the
+ * partitions; but if it filters on the partition column, the planner reads
+ * only the partitions that may contain matching rows. See
+ * {@link PartitionedTableAccessRel}.</p>
+ *
+ * <p>Rows whose partition column is null, or lies outside the bounds of
+ * their partition, may be skipped by a query that filters on that
+ * column.</p>
+ */
+public class PartitionedTable<T>
+    extends AbstractTable<T>
+    implements TranslatableTable<T>
+{
+    /** Ordinal of the partition column. */
+    public final int column;
+    public final List<Partition> partitions;
+
+    public PartitionedTable(
+        Schema schema,
+        Type elementType,
+        RelDataType relDataType,
+        String tableName,
+        int column,
+        List<Partition> partitions)
+    {
+        super(schema, elementType, relDataType, tableName);
+        assert column >= 0 && column < relDataType.getFieldCount();
+        assert !partitions.isEmpty();
+        this.column = column;
+        this.partitions = partitions;
+    }
+
+    @Override
+    public Statistic getStatistic() {
+        double rowCount = 0;
+        for (Partition partition : partitions) {
+            final Double partitionRowCount =
+                partition.table.getStatistic().getRowCount();
+            if (partitionRowCount == null) {
+                return Statistics.UNKNOWN;
+            }
+            rowCount += partitionRowCount;
+        }
+        return Statistics.of(rowCount, Collections.<BitSet>emptyList());
+    }
+
+    @SuppressWarnings("unchecked")
+    public Enumerator<T> enumerator() {
+        Enumerable<T> enumerable = partitions.get(0).table;
+        for (Partition partition : partitions.subList(1, partitions.size())) {
+            enumerable = enumerable.concat(partition.table);
+        }
+        return enumerable.enumerator();
+    }
+
+    public RelNode toRel(
+        RelOptTable.ToRelContext context,
+        RelOptTable relOptTable)
+    {
+        return new PartitionedTableAccessRel(
+            context.getCluster(),
+            relOptTable,
+            context,
+            Util.bitSetBetween(0, partitions.size()));
+    }
+
+    /**
+     * Returns the partitions, among a given set, that may contain rows that
+     * satisfy a condition.
+     *
+     * <p>Uses a {@link SargRexAnalyzer} to find the conjuncts of the
+     * condition that restrict the partition column to a set of intervals. A
+     * partition is pruned if its bounds overlap none of the intervals of
+     * some conjunct. Bounds that are not literals, or cannot be compared
+     * with the partition bounds, prune nothing.</p>
+     *
+     * @param condition Condition on the rows of this table
+     * @param rexBuilder Expression builder
+     * @param partitions Ordinals of candidate partitions
+     * @return Ordinals of partitions that may contain matching rows
+     */
+    public BitSet prune(
+        RexNode condition,
+        RexBuilder rexBuilder,
+        BitSet partitions)
+    {
+        final SargRexAnalyzer analyzer =
+            new SargFactory(rexBuilder).newRexAnalyzer();
+        final BitSet result = (BitSet) partitions.clone();
+        for (SargBinding binding : analyzer.analyzeAll(condition)) {
+            if (binding.getInputRef().getIndex() != column) {
+                continue;
+            }
+            final List<SargInterval> intervals =
+                binding.getExpr().evaluate().getList();
+            for (int i : Util.toIter(partitions)) {
+                if (!this.partitions.get(i).overlaps(intervals)) {
+                    result.clear(i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Converts a partition bound or a literal value to a form in which it
+     * can be compared with others; numbers become {@link BigDecimal}, and
+     * character strings become {@link String}. */
+    private static Object normalize(Object o) {
+        if (o instanceof NlsString) {
+            return ((NlsString) o).getValue();
+        }
+        if (o instanceof BigDecimal) {
+            return o;
+        }
+        if (o instanceof Double || o instanceof Float) {
+            return BigDecimal.valueOf(((Number) o).doubleValue());
+        }
+        if (o instanceof Number) {
+            return BigDecimal.valueOf(((Number) o).longValue());
+        }
+        return o;
+    }
+
+    /** Compares two values, or returns null if they are not comparable. */
+    @SuppressWarnings("unchecked")
+    private static Integer compare(Object v0, Object v1) {
+        final Object o0 = normalize(v0);
+        final Object o1 = normalize(v1);
+        if (o0 instanceof Comparable && o0.getClass() == o1.getClass()) {
+            return ((Comparable) o0).compareTo(o1);
+        }
+        return null;
+    }
+
+    /** Returns whether a lower bound is below an upper bound, so that an
+     * interval may be non-empty. A null bound is unbounded. If the bounds
+     * cannot be compared, returns true. */
+    private static boolean below(
+        Object lower, boolean lowerClosed, Object upper, boolean upperClosed)
+    {
+        if (lower == null || upper == null) {
+            return true;
+        }
+        final Integer c = compare(lower, upper);
+        return c == null
+            || c < 0
+            || c == 0 && lowerClosed && upperClosed;
+    }
+
+    /** Returns the value of an endpoint of a search argument, or null if it
+     * is infinite, null, or not a literal. */
+    private static Object value(SargEndpoint endpoint) {
+        if (!endpoint.isFinite()) {
+            return null;
+        }
+        final RexNode coordinate = endpoint.getCoordinate();
+        if (coordinate instanceof RexLiteral) {
+            return ((RexLiteral) coordinate).getValue();
+        }
+        return null;
+    }
+
+    /** Partition of a {@link PartitionedTable}. */
+    public static class Partition {
+        /** Name of the table that holds the rows of this partition, in the
+         * same schema as the partitioned table. */
+        public final String name;
+        public final Table table;
+        private final List<Range> ranges;
+
+        private Partition(String name, Table table, List<Range> ranges) {
+            this.name = name;
+            this.table = table;
+            this.ranges = ranges;
+        }
+
+        /** Creates a partition that holds the rows whose partition column is
+         * at least {@code lower} and less than {@code upper}. A null bound
+         * means unbounded. */
+        public static Partition range(
+            String name, Table table, Object lower, Object upper)
+        {
+            return new Partition(
+                name,
+                table,
+                Collections.singletonList(
+                    new Range(lower, true, upper, false)));
+        }
+
+        /** Creates a partition that holds the rows whose partition column
+         * is one of a list of values. */
+        public static Partition values(
+            String name, Table table, List<?> values)
+        {
+            final List<Range> ranges = new ArrayList<Range>();
+            for (Object value : values) {
+                ranges.add(new Range(value, true, value, true));
+            }
+            return new Partition(name, table, ranges);
+        }
+
+        /** Returns whether this partition may contain a row whose partition
+         * column lies in one of the given intervals. */
+        boolean overlaps(List<SargInterval> intervals) {
+            for (SargInterval interval : intervals) {
+                final SargEndpoint lower = interval.getLowerBound();
+                final SargEndpoint upper = interval.getUpperBound();
+                for (Range range : ranges) {
+                    if (below(
+                            range.lower, range.lowerClosed,
+                            value(upper), upper.isClosed())
+                        && below(
+                            value(lower), lower.isClosed(),
+                            range.upper, range.upperClosed))
+                    {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Interval of values of the partition column. */
+    private static class Range {
+        final Object lower;
+        final boolean lowerClosed;
+        final Object upper;
+        final boolean upperClosed;
+
+        Range(
+            Object lower, boolean lowerClosed,
+            Object upper, boolean upperClosed)
+        {
+            this.lower = lower;
+            this.lowerClosed = lowerClosed;
+            this.upper = upper;
+            this.upperClosed = upperClosed;
+        }
+    }
+
+    /** Implementation of {@link TableFactory} that allows a
+     * {@link PartitionedTable} to be included as a custom table in an Optiq
+     * model file.
+     *
+     * <p>The operand has a "column" property, the name of the partition
+     * column, and a "partitions" property, a list of partitions. Each
+     * partition has a "table" property, and either "lower" and "upper"
+     * properties, for the range [lower, upper), or a "values" property.</p>
+     */
+    public static class Factory implements TableFactory<PartitionedTable> {
+        @SuppressWarnings("unchecked")
+        public PartitionedTable create(
+            Schema schema,
+            String name,
+            Map<String, Object> operand,
+            RelDataType rowType)
+        {
+            final List<Partition> partitions = new ArrayList<Partition>();
+            for (Map<String, Object> map
+                : (List<Map<String, Object>>) operand.get("partitions"))
+            {
+                final String tableName = (String) map.get("table");
+                final Table<Object> table =
+                    schema.getTable(tableName, Object.class);
+                if (table == null) {
+                    throw new RuntimeException(
+                        "Partition table '" + tableName + "' not found");
+                }
+                partitions.add(
+                    map.containsKey("values")
+                        ? Partition.values(
+                            tableName, table, (List) map.get("values"))
+                        : Partition.range(
+                            tableName, table, map.get("lower"),
+                            map.get("upper")));
+            }
+            if (partitions.isEmpty()) {
+                throw new RuntimeException(
+                    "Partitioned table '" + name + "' has no partitions");
+            }
+            final Table table = partitions.get(0).table;
+            if (rowType == null) {
+                rowType = table.getRowType();
+            }
+            final String columnName = (String) operand.get("column");
+            final int column = rowType.getFieldOrdinal(columnName);
+            if (column < 0) {
+                throw new RuntimeException(
+                    "Partition column '" + columnName + "' not found");
+            }
+            return new PartitionedTable<Object>(
+                schema, table.getElementType(), rowType, name, column,
+                partitions);
+        }
+    }
+}
+
+// End PartitionedTable.java
@@ -0,0 +1,174 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.rex.RexLiteral;
+import org.eigenbase.util.Util;
+
+import java.util.*;
+
+/**
+ * Relational expression that reads some or all of the partitions of a
+ * {@link PartitionedTable}.
+ *
+ * <p>It has no implementation of its own. {@link #PRUNE_RULE} removes
+ * partitions that cannot satisfy a filter above it, and {@link #EXPAND_RULE}
+ * converts it to a {@link UnionRel} of the remaining partitions.</p>
+ */
+public class PartitionedTableAccessRel extends TableAccessRelBase {
+    public static final RelOptRule PRUNE_RULE = new PruneRule();
+    public static final RelOptRule EXPAND_RULE = new ExpandRule();
+
+    /** Ordinals of the partitions to read. */
+    public final BitSet partitions;
+
+    /** Context in which the partitioned table was converted to a relational
+     * expression; {@link #EXPAND_RULE} converts the partitions in the same
+     * context, so that a partition that is a view can be expanded. */
+    final RelOptTable.ToRelContext context;
+
+    public PartitionedTableAccessRel(
+        RelOptCluster cluster,
+        RelOptTable table,
+        RelOptTable.ToRelContext context,
+        BitSet partitions)
+    {
+        super(cluster, cluster.traitSetOf(Convention.NONE), table);
+        this.context = context;
+        this.partitions = partitions;
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        assert traitSet.contains(Convention.NONE);
+        assert inputs.isEmpty();
+        return this;
+    }
+
+    @Override
+    public void register(RelOptPlanner planner) {
+        planner.addRule(PRUNE_RULE);
+        planner.addRule(EXPAND_RULE);
+    }
+
+    @Override
+    public double getRows() {
+        return super.getRows()
+            * partitions.cardinality()
+            / partitionedTable().partitions.size();
+    }
+
+    @Override
+    public RelOptPlanWriter explainTerms(RelOptPlanWriter pw) {
+        final List<String> names = new ArrayList<String>();
+        for (int i : Util.toIter(partitions)) {
+            names.add(partitionedTable().partitions.get(i).name);
+        }
+        return super.explainTerms(pw)
+            .item("partitions", names);
+    }
+
+    PartitionedTable<?> partitionedTable() {
+        return table.unwrap(PartitionedTable.class);
+    }
+
+    /** Rule that removes from a {@link PartitionedTableAccessRel} the
+     * partitions that cannot satisfy the condition of a {@link FilterRel}
+     * on top of it. */
+    private static class PruneRule extends RelOptRule {
+        PruneRule() {
+            super(
+                new RelOptRuleOperand(
+                    FilterRel.class,
+                    new RelOptRuleOperand(
+                        PartitionedTableAccessRel.class, ANY)),
+                "PartitionedTableAccessRel:prune");
+        }
+
+        public void onMatch(RelOptRuleCall call) {
+            final FilterRel filter = (FilterRel) call.rels[0];
+            final PartitionedTableAccessRel scan =
+                (PartitionedTableAccessRel) call.rels[1];
+            final BitSet partitions =
+                scan.partitionedTable().prune(
+                    filter.getCondition(),
+                    filter.getCluster().getRexBuilder(),
+                    scan.partitions);
+            if (partitions.equals(scan.partitions)) {
+                return;
+            }
+            call.transformTo(
+                new FilterRel(
+                    filter.getCluster(),
+                    new PartitionedTableAccessRel(
+                        scan.getCluster(), scan.getTable(), scan.context,
+                        partitions),
+                    filter.getCondition()));
+        }
+    }
+
+    /** Rule that converts a {@link PartitionedTableAccessRel} to a
+     * {@link UnionRel} of its partitions. */
+    private static class ExpandRule extends RelOptRule {
+        ExpandRule() {
+            super(
+                new RelOptRuleOperand(PartitionedTableAccessRel.class, ANY),
+                "PartitionedTableAccessRel:expand");
+        }
+
+        public void onMatch(RelOptRuleCall call) {
+            final PartitionedTableAccessRel scan =
+                (PartitionedTableAccessRel) call.rels[0];
+            final RelOptCluster cluster = scan.getCluster();
+            final List<RelNode> inputs = new ArrayList<RelNode>();
+            for (int i : Util.toIter(scan.partitions)) {
+                final String[] names =
+                    scan.getTable().getQualifiedName().clone();
+                names[names.length - 1] =
+                    scan.partitionedTable().partitions.get(i).name;
+                final RelOptTable table =
+                    scan.getTable().getRelOptSchema().getTableForMember(names);
+                if (table == null) {
+                    throw Util.newInternal(
+                        "partition not found: " + Arrays.asList(names));
+                }
+                inputs.add(
+                    RelOptUtil.createCastRel(
+                        table.toRel(scan.context), scan.getRowType(), true));
+            }
+            switch (inputs.size()) {
+            case 0:
+                call.transformTo(
+                    new ValuesRel(
+                        cluster,
+                        scan.getRowType(),
+                        Collections.<List<RexLiteral>>emptyList()));
+                break;
+            case 1:
+                call.transformTo(inputs.get(0));
+                break;
+            default:
+                call.transformTo(new UnionRel(cluster, inputs, true));
+            }
+        }
+    }
+}
+
+// End PartitionedTableAccessRel.java
@@ -29,6 +29,7 @@ import org.eigenbase.rel.RelNode;
 import org.eigenbase.relopt.RelOptTable;
 import org.eigenbase.relopt.RelOptUtil;
 import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.util.CancelFlag;
 import org.eigenbase.util.Util;
 
 import java.lang.reflect.Type;
@@ -143,6 +144,18 @@ public class ViewTable<T>
                         public List<String> getDefaultSchemaPath() {
                             return schemaPath;
                         }
+
+                        public CancelFlag getCancelFlag() {
+                            return new CancelFlag();
+                        }
+
+                        public long getMemoryBudget() {
+                            return 0;
+                        }
+
+                        public int getParallelism() {
+                            return 1;
+                        }
                     },
                     viewSql);
             return new ViewTable<T>(
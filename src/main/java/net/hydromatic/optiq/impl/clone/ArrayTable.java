@@ -21,7 +21,10 @@ import net.hydromatic.linq4j.*;
 import net.hydromatic.linq4j.expressions.Expression;
 import net.hydromatic.linq4j.expressions.Primitive;
 import net.hydromatic.optiq.*;
+import net.hydromatic.optiq.runtime.JoinFilter;
 
+import org.eigenbase.rel.RelCollation;
+import org.eigenbase.rel.RelCollationImpl;
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.util.Pair;
 import org.eigenbase.util.Util;
@@ -38,7 +41,7 @@ import java.util.*;
  */
 class ArrayTable<T>
     extends BaseQueryable<T>
-    implements Table<T>
+    implements PartitionableTable<T>, RangeFilterableTable<T>
 {
     private final Schema schema;
     private final RelDataType relDataType;
@@ -81,16 +84,90 @@ class ArrayTable<T>
                 keys.add(Util.bitSetOf(ord.i));
             }
         }
-        return Statistics.of(size, keys);
+        // Rows are stored in ascending order of the sort field, if any, so a
+        // scan delivers them in that order.
+        final List<RelCollation> collations =
+            sortField >= 0
+                ? RelCollationImpl.createSingleton(sortField)
+                : Collections.<RelCollation>emptyList();
+        return Statistics.of(size, keys, collations);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public Enumerator<T> enumerator() {
+        return enumerator(0, size);
+    }
+
+    /** Returns the rows in a contiguous range of row numbers, so that if
+     * the partitions are read in order, rows are in the same order as a
+     * scan. */
+    public Enumerable<T> partition(int partition, int partitionCount) {
+        final int start = (int) ((long) size * partition / partitionCount);
+        final int end =
+            (int) ((long) size * (partition + 1) / partitionCount);
+        return new AbstractEnumerable<T>() {
+            public Enumerator<T> enumerator() {
+                return ArrayTable.this.enumerator(start, end);
+            }
+        };
+    }
+
+    /** If {@code field} is the sort field, returns only the rows whose
+     * value is between the minimum and maximum of the filter, found by
+     * binary search; otherwise returns all rows. */
+    public Enumerable<T> range(final int field, final JoinFilter filter) {
+        return new AbstractEnumerable<T>() {
+            public Enumerator<T> enumerator() {
+                // The filter is complete only after the build side of the
+                // join has been read, so the range is computed now.
+                final Comparable min = filter.getMin();
+                final Comparable max = filter.getMax();
+                if (field != sortField
+                    || size == 0
+                    || min == null
+                    || max == null
+                    || min.getClass() != sortValue(0).getClass())
+                {
+                    return ArrayTable.this.enumerator(0, size);
+                }
+                return ArrayTable.this.enumerator(
+                    search(min, false), search(max, true));
+            }
+        };
+    }
+
+    /** Returns the value of the sort field in a given row. */
+    private Object sortValue(int i) {
+        final Column column = columns.get(sortField);
+        return column.representation.getObject(column.dataSet, i);
+    }
+
+    /** Returns the number of rows whose value of the sort field is less
+     * than {@code value}, or if {@code inclusive}, less than or equal to
+     * it. Values of the sort field are unique, not null, and ascending. */
+    @SuppressWarnings("unchecked")
+    private int search(Comparable value, boolean inclusive) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int c = value.compareTo(sortValue(mid));
+            if (c > 0 || inclusive && c == 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns an enumerator over the rows whose row number is at least
+     * {@code start} and less than {@code end}. */
+    @SuppressWarnings("unchecked")
+    private Enumerator<T> enumerator(final int start, final int end) {
         return new Enumerator() {
-            final int rowCount = size;
             final int columnCount = columns.size();
-            int i = -1;
+            int i = start - 1;
 
             public Object[] current() {
                 Object[] objects = new Object[columnCount];
@@ -102,11 +179,11 @@ class ArrayTable<T>
             }
 
             public boolean moveNext() {
-                return (++i < rowCount);
+                return (++i < end);
             }
 
             public void reset() {
-                i = -1;
+                i = start - 1;
             }
         };
     }
@@ -22,6 +22,7 @@ import net.hydromatic.linq4j.expressions.*;
 
 import net.hydromatic.linq4j.function.*;
 import net.hydromatic.optiq.*;
+import net.hydromatic.optiq.runtime.JoinFilter;
 
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.sql.SqlWriter;
@@ -42,7 +43,10 @@ import java.util.*;
  *
  * @author jhyde
  */
-class JdbcTable extends AbstractQueryable<Object[]> implements Table<Object[]> {
+class JdbcTable
+    extends AbstractQueryable<Object[]>
+    implements LimitableTable<Object[]>, RangeFilterableTable<Object[]>
+{
     private final JdbcSchema schema;
     private final String tableName;
     private final RelDataType rowType;
@@ -94,6 +98,39 @@ class JdbcTable extends AbstractQueryable<Object[]> implements Table<Object[]> {
     }
 
     public Enumerator<Object[]> enumerator() {
+        return enumerator(-1, -1, null);
+    }
+
+    public Enumerable<Object[]> limit(final int fetch) {
+        return new AbstractEnumerable<Object[]>() {
+            public Enumerator<Object[]> enumerator() {
+                return JdbcTable.this.enumerator(fetch, -1, null);
+            }
+        };
+    }
+
+    public Enumerable<Object[]> range(
+        final int field,
+        final JoinFilter filter)
+    {
+        return new AbstractEnumerable<Object[]>() {
+            public Enumerator<Object[]> enumerator() {
+                // The filter is complete only after the build side of the
+                // join has been read, so the query is generated now.
+                return JdbcTable.this.enumerator(-1, field, filter);
+            }
+        };
+    }
+
+    /** Returns an enumerator over the rows of this table; if {@code fetch}
+     * is not negative, over at most that many rows; if {@code filter} is
+     * complete and has a numeric range, over only rows whose value of
+     * {@code field} is in that range. */
+    private Enumerator<Object[]> enumerator(
+        int fetch,
+        int field,
+        JoinFilter filter)
+    {
         SqlWriter writer = new SqlPrettyWriter(schema.dialect);
         writer.keyword("select");
         writer.literal("*");
@@ -101,13 +138,46 @@ class JdbcTable extends AbstractQueryable<Object[]> implements Table<Object[]> {
         writer.identifier("foodmart");
         writer.literal(".");
         writer.identifier(tableName);
+        if (filter != null
+            && isIntegral(filter.getMin())
+            && isIntegral(filter.getMax()))
+        {
+            // Only integral ranges are pushed down; strings and approximate
+            // numbers may compare differently in the database than in Java.
+            writer.keyword("where");
+            writer.identifier(rowType.getFieldList().get(field).getName());
+            writer.keyword("between");
+            writer.literal(filter.getMin().toString());
+            writer.keyword("and");
+            writer.literal(filter.getMax().toString());
+        }
+        if (fetch >= 0) {
+            // Ask the database to stop early. If the dialect has no syntax
+            // for it, the JDBC statement's max rows does the same job.
+            if (schema.dialect.supportsFetchFirst()) {
+                writer.keyword("fetch first");
+                writer.literal(Integer.toString(fetch));
+                writer.keyword("rows only");
+            } else if (schema.dialect.supportsLimit()) {
+                writer.keyword("limit");
+                writer.literal(Integer.toString(fetch));
+            }
+        }
         final String sql = writer.toString();
 
         Function1<ResultSet, Function0<Object[]>> rowBuilderFactory =
-            JdbcUtils.ObjectArrayRowBuilder.factory(
-                JdbcUtils.getPrimitives(
-                    schema.typeFactory, rowType));
-        return JdbcUtils.sqlEnumerator(sql, schema, rowBuilderFactory);
+            JdbcUtils.rowBuilderFactory(schema.typeFactory, rowType);
+        return JdbcUtils.sqlEnumerator(sql, schema, rowBuilderFactory, fetch);
+    }
+
+    /** Returns whether a value is of an integral type. A
+     * {@link java.math.BigDecimal} is not, because it may have a
+     * fraction. */
+    private static boolean isIntegral(Object o) {
+        return o instanceof Integer
+            || o instanceof Long
+            || o instanceof Short
+            || o instanceof Byte;
     }
 
     public RelDataType getRowType() {
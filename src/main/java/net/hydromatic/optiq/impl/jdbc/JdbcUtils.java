@@ -18,16 +18,29 @@
 package net.hydromatic.optiq.impl.jdbc;
 
 import net.hydromatic.linq4j.Enumerator;
-import net.hydromatic.linq4j.expressions.Primitive;
+import net.hydromatic.linq4j.Ord;
+import net.hydromatic.linq4j.expressions.*;
 import net.hydromatic.linq4j.function.*;
 
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.jdbc.Helper;
+import net.hydromatic.optiq.runtime.Hook;
+import net.hydromatic.optiq.runtime.ResultSetGetters;
+import net.hydromatic.optiq.runtime.SqlFunctions;
 
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeField;
 import org.eigenbase.sql.SqlDialect;
 
+import org.codehaus.janino.ClassBodyEvaluator;
+import org.codehaus.janino.Scanner;
+
+import java.io.StringReader;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
 import java.sql.*;
+import java.sql.Statement;
 import java.util.*;
 import javax.sql.DataSource;
 
@@ -43,43 +56,128 @@ final class JdbcUtils {
 
     /** Executes a SQL query and returns the results as an enumerator. The
      * parameterization not withstanding, the result type must be an array of
-     * objects. */
+     * objects.
+     *
+     * <p>If {@code fetch} is not negative, the statement returns at most that
+     * many rows. The connection is released as soon as the last row has been
+     * read, or when the enumerator is closed. */
     static <T> Enumerator<T> sqlEnumerator(
         String sql,
         JdbcSchema dataContext,
-        Function1<ResultSet, Function0<T>> rowBuilderFactory)
+        Function1<ResultSet, Function0<T>> rowBuilderFactory,
+        int fetch)
     {
-        Connection connection;
-        Statement statement;
+        Hook.JDBC_SQL.run(sql);
+        Connection connection = null;
+        Statement statement = null;
         try {
             connection = dataContext.dataSource.getConnection();
             statement = connection.createStatement();
-            final ResultSet resultSet;
-            resultSet = statement.executeQuery(sql);
+            if (fetch >= 0) {
+                // In JDBC, 0 means "no limit"; we still ask for 1 row, and
+                // the enumerator returns none.
+                statement.setMaxRows(Math.max(fetch, 1));
+            }
+            final ResultSet resultSet = statement.executeQuery(sql);
             final Function0<T> rowBuilder = rowBuilderFactory.apply(resultSet);
-            return new Enumerator<T>() {
-                public T current() {
-                    return rowBuilder.apply();
-                }
+            return new ResultSetEnumerator<T>(
+                connection, statement, resultSet, rowBuilder,
+                fetch < 0 ? Integer.MAX_VALUE : fetch);
+        } catch (SQLException e) {
+            closeQuietly(statement, connection);
+            throw new RuntimeException(e);
+        }
+    }
 
-                public boolean moveNext() {
-                    try {
-                        return resultSet.next();
-                    } catch (SQLException e) {
-                        throw new RuntimeException(e);
-                    }
+    private static void closeQuietly(Statement statement, Connection connection)
+    {
+        if (statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // ignore
+            }
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // ignore
+            }
+        }
+    }
+
+    /** Enumerator over the rows of a JDBC result set.
+     *
+     * <p>It closes the result set, statement and connection when it has
+     * returned its last row (or {@code fetch} rows, whichever is sooner) or
+     * when {@link #close()} is called, so that a query that stops reading
+     * early does not hold the connection open. */
+    private static class ResultSetEnumerator<T>
+        implements Enumerator<T>, java.io.Closeable
+    {
+        private final Connection connection;
+        private final Statement statement;
+        private final ResultSet resultSet;
+        private final Function0<T> rowBuilder;
+        private final int fetch;
+        private int count;
+        private boolean closed;
+
+        ResultSetEnumerator(
+            Connection connection,
+            Statement statement,
+            ResultSet resultSet,
+            Function0<T> rowBuilder,
+            int fetch)
+        {
+            this.connection = connection;
+            this.statement = statement;
+            this.resultSet = resultSet;
+            this.rowBuilder = rowBuilder;
+            this.fetch = fetch;
+        }
+
+        public T current() {
+            return rowBuilder.apply();
+        }
+
+        public boolean moveNext() {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (count < fetch && resultSet.next()) {
+                    ++count;
+                    return true;
                 }
+            } catch (SQLException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+            close();
+            return false;
+        }
 
-                public void reset() {
-                    try {
-                        resultSet.first();
-                    } catch (SQLException e) {
-                        throw new RuntimeException(e);
-                    }
+        public void reset() {
+            try {
+                resultSet.beforeFirst();
+                count = 0;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void close() {
+            if (!closed) {
+                closed = true;
+                try {
+                    resultSet.close();
+                } catch (SQLException e) {
+                    // ignore
                 }
-            };
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+                closeQuietly(statement, connection);
+            }
         }
     }
 
@@ -98,6 +196,214 @@ final class JdbcUtils {
         return primitiveList;
     }
 
+    /** Returns a factory of row builders for the given row type.
+     *
+     * <p>The row builders call a type-specific {@code getXxx} method (followed
+     * by {@link ResultSet#wasNull()} if the column is nullable) for each
+     * column, rather than {@link ResultSet#getObject(int)}. The code is
+     * generated and compiled the first time that a row type is seen; see
+     * {@link #generateRowReader(java.util.List)}. */
+    static Function1<ResultSet, Function0<Object[]>> rowBuilderFactory(
+        JavaTypeFactory typeFactory, RelDataType rowType)
+    {
+        final List<Type> types = new ArrayList<Type>();
+        for (RelDataTypeField field : rowType.getFieldList()) {
+            final RelDataType type = field.getType();
+            if (type.isNullable() && isDatetime(type)) {
+                // As ObjectArrayRowBuilder does, read as java.sql.Date (say)
+                // using getObject; getInt would return 0 for null.
+                types.add(Object.class);
+            } else {
+                types.add(typeFactory.getJavaClass(type));
+            }
+        }
+        final Function1<ResultSet, Object[]> rowReader =
+            RowReaderCache.INSTANCE.get(types);
+        return new Function1<ResultSet, Function0<Object[]>>() {
+            public Function0<Object[]> apply(final ResultSet resultSet) {
+                return new Function0<Object[]>() {
+                    public Object[] apply() {
+                        return rowReader.apply(resultSet);
+                    }
+                };
+            }
+        };
+    }
+
+    private static boolean isDatetime(RelDataType type) {
+        switch (type.getSqlTypeName()) {
+        case DATE:
+        case TIME:
+        case TIMESTAMP:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /** Generates and compiles a function that reads the current row of a
+     * result set into an array of objects.
+     *
+     * <p>For example, given column types {@code (int, Integer, String)},
+     * generates</p>
+     *
+     * <pre>{@code
+     * public Object apply(Object o) {
+     *     final ResultSet resultSet = (ResultSet) o;
+     *     final int v0 = ResultSetGetters.getInt(resultSet, 1);
+     *     final int v1 = ResultSetGetters.getInt(resultSet, 2);
+     *     final Integer b1 = ResultSetGetters.wasNull(resultSet)
+     *         ? null
+     *         : Integer.valueOf(v1);
+     *     final String v2 = ResultSetGetters.getString(resultSet, 3);
+     *     return new Object[] {v0, b1, v2};
+     * }
+     * }</pre>
+     */
+    static Function1<ResultSet, Object[]> generateRowReader(List<Type> types) {
+        final ParameterExpression o_ =
+            Expressions.parameter(Object.class, "o");
+        final ParameterExpression resultSet_ =
+            Expressions.parameter(ResultSet.class, "resultSet");
+        final BlockBuilder builder = new BlockBuilder();
+        builder.add(
+            Expressions.declare(
+                Modifier.FINAL,
+                resultSet_,
+                Expressions.convert_(o_, ResultSet.class)));
+        final List<Expression> values = new ArrayList<Expression>();
+        for (Ord<Type> type : Ord.zip(types)) {
+            values.add(getter(builder, resultSet_, type.i, type.e));
+        }
+        builder.add(
+            Expressions.return_(
+                null,
+                Expressions.newArrayInit(Object.class, values)));
+        final MethodDeclaration methodDecl =
+            Expressions.methodDecl(
+                Modifier.PUBLIC,
+                Object.class,
+                "apply",
+                Collections.singletonList(o_),
+                builder.toBlock());
+        final String s =
+            Expressions.toString(
+                Collections.singletonList(methodDecl), "\n", false);
+        try {
+            //noinspection unchecked
+            return (Function1<ResultSet, Object[]>)
+                ClassBodyEvaluator.createFastClassBodyEvaluator(
+                    new Scanner(null, new StringReader(s)),
+                    "JdbcRowReader",
+                    Object.class,
+                    new Class[]{Function1.class},
+                    JdbcUtils.class.getClassLoader());
+        } catch (Exception e) {
+            throw Helper.INSTANCE.wrap(
+                "Error while compiling generated Java code:\n" + s, e);
+        }
+    }
+
+    /** Generates code to read column {@code i} of a result set, and returns
+     * an expression for the value (boxed, or null, if the column is
+     * nullable). */
+    private static Expression getter(
+        BlockBuilder builder,
+        ParameterExpression resultSet_,
+        int i,
+        Type type)
+    {
+        final ConstantExpression column = Expressions.constant(i + 1);
+        final Primitive primitive = Primitive.ofBoxOr(type);
+        if (primitive == null
+            || primitive == Primitive.CHAR
+            || primitive == Primitive.OTHER)
+        {
+            final String methodName;
+            final Class clazz;
+            if (type == String.class) {
+                methodName = "getString";
+                clazz = String.class;
+            } else if (type == BigDecimal.class) {
+                methodName = "getBigDecimal";
+                clazz = BigDecimal.class;
+            } else {
+                methodName = "getObject";
+                clazz = Object.class;
+            }
+            final ParameterExpression v_ =
+                Expressions.parameter(clazz, "v" + i);
+            builder.add(
+                Expressions.declare(
+                    Modifier.FINAL,
+                    v_,
+                    Expressions.call(
+                        ResultSetGetters.class,
+                        methodName,
+                        resultSet_,
+                        column)));
+            return v_;
+        }
+        final ParameterExpression v_ =
+            Expressions.parameter(primitive.primitiveClass, "v" + i);
+        builder.add(
+            Expressions.declare(
+                Modifier.FINAL,
+                v_,
+                Expressions.call(
+                    ResultSetGetters.class,
+                    "get" + SqlFunctions.initcap(primitive.primitiveName),
+                    resultSet_,
+                    column)));
+        if (type == primitive.primitiveClass) {
+            // Column is NOT NULL; no need to call wasNull.
+            return v_;
+        }
+        final ParameterExpression b_ =
+            Expressions.parameter(primitive.boxClass, "b" + i);
+        builder.add(
+            Expressions.declare(
+                Modifier.FINAL,
+                b_,
+                Expressions.condition(
+                    Expressions.call(
+                        ResultSetGetters.class,
+                        "wasNull",
+                        resultSet_),
+                    Expressions.constant(null, primitive.boxClass),
+                    Expressions.box(v_))));
+        return b_;
+    }
+
+    /** Cache of generated row readers, keyed by the Java types of the
+     * columns. Holds at most {@link #CAPACITY} readers, discarding the least
+     * recently used. */
+    private static class RowReaderCache {
+        static final RowReaderCache INSTANCE = new RowReaderCache();
+
+        private static final int CAPACITY = 256;
+
+        private final Map<List<Type>, Function1<ResultSet, Object[]>> map =
+            new LinkedHashMap<List<Type>, Function1<ResultSet, Object[]>>(
+                16, 0.75f, true)
+            {
+                protected boolean removeEldestEntry(
+                    Map.Entry<List<Type>, Function1<ResultSet, Object[]>> e)
+                {
+                    return size() > CAPACITY;
+                }
+            };
+
+        synchronized Function1<ResultSet, Object[]> get(List<Type> types) {
+            Function1<ResultSet, Object[]> rowReader = map.get(types);
+            if (rowReader == null) {
+                rowReader = generateRowReader(types);
+                map.put(types, rowReader);
+            }
+            return rowReader;
+        }
+    }
+
     public static class DialectPool {
         final Map<List, SqlDialect> map = new HashMap<List, SqlDialect>();
 
@@ -139,7 +445,12 @@ final class JdbcUtils {
 
     /** Builder that calls {@link ResultSet#getObject(int)} for every column,
      * or {@code getXxx} if the result type is a primitive {@code xxx},
-     * and returns an array of objects for each row. */
+     * and returns an array of objects for each row.
+     *
+     * <p>Unlike the row builders created by
+     * {@link JdbcUtils#rowBuilderFactory}, this builder does not need to
+     * generate and compile code, but it dispatches on the type of each
+     * value.</p> */
     public static class ObjectArrayRowBuilder implements Function0<Object[]> {
         private final ResultSet resultSet;
         private final int columnCount;
@@ -23,12 +23,26 @@ import java.util.*;
  * Properties that may be specified on the JDBC connect string.
  */
 enum ConnectionProperty {
+    /** Whether to compute query results in a separate thread, buffering
+     * rows until the client fetches them. */
+    ASYNC_FETCH("asyncFetch", Type.BOOLEAN, "false"),
+
     /** Whether to store query results in temporary tables. */
     AUTO_TEMP("autoTemp", Type.BOOLEAN, "false"),
 
+    /** Maximum number of bytes of memory that the hash joins and
+     * aggregations of one query may use before they write rows to temporary
+     * files. Zero, the default, means no limit. */
+    MEMORY_BUDGET("memoryBudget", Type.NUMBER, "0"),
+
     /** URI of the model. */
     MODEL("model", Type.STRING, null),
 
+    /** Maximum number of threads that may read partitions of one large
+     * table in parallel. One, the default, means read each table in the
+     * thread that executes the statement. */
+    PARALLELISM("parallelism", Type.NUMBER, "1"),
+
     /** Name of initial schema. */
     SCHEMA("schema", Type.STRING, null);
 
@@ -80,6 +94,18 @@ enum ConnectionProperty {
         return Boolean.parseBoolean(s);
     }
 
+    /** Returns the numeric value of this property. Throws if not set and no
+     * default. */
+    public long getLong(Properties properties) {
+        assert type == Type.NUMBER;
+        String s = _get(properties);
+        if (s == null) {
+            throw new RuntimeException(
+                "Required property '" + camelName + "' not specified");
+        }
+        return Long.parseLong(s);
+    }
+
     /** Converts a {@link Properties} object containing (name, value) pairs
      * into a map whose keys are {@link ConnectionProperty} objects.
      *
@@ -107,6 +133,7 @@ enum ConnectionProperty {
 
     enum Type {
         BOOLEAN,
+        NUMBER,
         STRING
     }
 }
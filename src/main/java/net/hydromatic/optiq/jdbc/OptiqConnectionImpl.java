@@ -27,7 +27,6 @@ import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
 import net.hydromatic.optiq.impl.java.MapSchema;
 import net.hydromatic.optiq.server.OptiqServer;
-import net.hydromatic.optiq.server.OptiqServerStatement;
 
 import java.lang.reflect.Type;
 import java.sql.*;
@@ -64,18 +63,7 @@ abstract class OptiqConnectionImpl implements OptiqConnection, QueryProvider {
     private final OptiqDatabaseMetaData metaData;
     final Helper helper = Helper.INSTANCE;
 
-    final OptiqServer server = new OptiqServer() {
-        final List<OptiqServerStatement> statementList =
-            new ArrayList<OptiqServerStatement>();
-
-        public void removeStatement(OptiqServerStatement optiqServerStatement) {
-            statementList.add(optiqServerStatement);
-        }
-
-        public void addStatement(OptiqServerStatement statement) {
-            statementList.add(statement);
-        }
-    };
+    final OptiqServer server;
     private final Schema informationSchema;
 
     /**
@@ -97,6 +85,7 @@ abstract class OptiqConnectionImpl implements OptiqConnection, QueryProvider {
         Properties info)
     {
         this.driver = driver;
+        this.server = driver.server;
         this.factory = factory;
         this.prepareFactory = prepareFactory;
         this.url = url;
@@ -29,6 +29,7 @@ import net.hydromatic.optiq.runtime.ColumnMetaData;
 
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.sql.SqlNode;
+import org.eigenbase.util.CancelFlag;
 
 import java.io.InputStream;
 import java.io.Reader;
@@ -73,6 +74,20 @@ public interface OptiqPrepare {
         Schema getRootSchema();
 
         List<String> getDefaultSchemaPath();
+
+        /** Returns the flag that is set if the statement is canceled or its
+         * query timeout elapses. The planner and generated code check it
+         * periodically. */
+        CancelFlag getCancelFlag();
+
+        /** Returns the maximum number of bytes that hash joins and
+         * aggregations in each execution of the statement may use before
+         * they spill to disk, or zero if there is no limit. */
+        long getMemoryBudget();
+
+        /** Returns the maximum number of partitions of a table that the
+         * statement may read in parallel; 1 means read serially. */
+        int getParallelism();
     }
 
     public static class ParseResult {
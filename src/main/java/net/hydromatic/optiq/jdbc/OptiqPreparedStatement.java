@@ -70,6 +70,7 @@ abstract class OptiqPreparedStatement
     // implement PreparedStatement
 
     public ResultSet executeQuery() throws SQLException {
+        startExecution(prepareResult.sql);
         return executeQueryInternal(prepareResult);
     }
 
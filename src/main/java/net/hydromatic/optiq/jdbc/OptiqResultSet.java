@@ -86,6 +86,11 @@ public class OptiqResultSet implements ResultSet {
 
     public void close() {
         closed = true;
+        statement.onExecutionEnd(this);
+        if (cursor != null) {
+            // If rows are being computed in another thread, stops it.
+            cursor.close();
+        }
         // TODO: for timeout, see IteratorResultSet.close
 /*
         if (timeoutCursor != null) {
@@ -118,6 +123,11 @@ public class OptiqResultSet implements ResultSet {
 */
     }
 
+    /** Returns the number of rows returned so far. (Not a JDBC method.) */
+    long getRowCount() {
+        return row + 1;
+    }
+
     // not JDBC
     void cancel() {
         // TODO:
@@ -155,12 +165,32 @@ public class OptiqResultSet implements ResultSet {
     }
 
     public boolean next() throws SQLException {
-        // TODO: for timeout, see IteratorResultSet.next
-        if (cursor.next()) {
+        final boolean hasNext;
+        if (statement.cancelFlag.isCancelRequested()) {
+            // Don't wait for the generated code (possibly running in another
+            // thread, with rows already buffered) to notice.
+            statement.onExecutionEnd(this);
+            cursor.close();
+            throw statement.createCancelException(
+                new QueryCanceledException());
+        }
+        try {
+            hasNext = cursor.next();
+        } catch (RuntimeException e) {
+            statement.onExecutionEnd(this);
+            if (statement.cancelFlag.isCancelRequested()) {
+                // The statement was canceled, or its query timeout elapsed,
+                // and the generated code noticed.
+                throw statement.createCancelException(e);
+            }
+            throw e;
+        }
+        if (hasNext) {
             ++row;
             return true;
         } else {
             afterLast = true;
+            statement.onExecutionEnd(this);
             return false;
         }
     }
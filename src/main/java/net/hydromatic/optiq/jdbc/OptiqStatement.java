@@ -26,9 +26,11 @@ import net.hydromatic.optiq.impl.java.JavaTypeFactory;
 import net.hydromatic.optiq.runtime.*;
 import net.hydromatic.optiq.server.OptiqServerStatement;
 
+import org.eigenbase.util.CancelFlag;
+
 import java.sql.*;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Implementation of {@link java.sql.Statement}
@@ -37,6 +39,32 @@ import java.util.List;
 public abstract class OptiqStatement
     implements Statement, OptiqServerStatement
 {
+    /** Timer that cancels statements whose query timeout has elapsed. Its
+     * thread is a daemon, so it does not prevent the JVM from exiting. */
+    private static final Timer TIMEOUT_TIMER =
+        new Timer("optiq-query-timeout", true);
+
+    /** Executor that runs queries whose connection has the
+     * {@link ConnectionProperty#ASYNC_FETCH asyncFetch} property. Its threads
+     * are daemons, and are discarded after a minute of inactivity. */
+    private static final ExecutorService ASYNC_EXECUTOR =
+        Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "optiq-async-fetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Number of rows in each batch passed from the producer thread to the
+     * result set, if the fetch size has not been set. */
+    private static final int DEFAULT_ASYNC_BATCH_SIZE = 100;
+
+    /** Maximum number of batches that the producer thread may compute ahead
+     * of the result set. */
+    private static final int ASYNC_BATCH_COUNT = 4;
+
     final OptiqConnectionImpl connection;
     private boolean closed;
 
@@ -60,6 +88,25 @@ public abstract class OptiqStatement
     private int fetchDirection;
     private int maxRowCount;
 
+    /**
+     * Flag that is set when this statement is canceled or its query timeout
+     * elapses. The planner and the generated code check it periodically.
+     */
+    final CancelFlag cancelFlag = new CancelFlag();
+
+    /**
+     * Whether the current execution was canceled because its query timeout
+     * elapsed.
+     */
+    private volatile boolean timedOut;
+
+    /**
+     * Task that will cancel the current execution when its query timeout
+     * elapses, or null. Any method which modifies this member must
+     * synchronize on the OptiqStatement.
+     */
+    private TimerTask timeoutTask;
+
     OptiqStatement(
         OptiqConnectionImpl connection,
         int resultSetType,
@@ -77,7 +124,8 @@ public abstract class OptiqStatement
     // implement Statement
 
     public ResultSet executeQuery(String sql) throws SQLException {
-        OptiqPrepare.PrepareResult x = parseQuery(sql);
+        startExecution(sql);
+        OptiqPrepare.PrepareResult x = parseQueryChecked(sql);
         return executeQueryInternal(x);
     }
 
@@ -100,6 +148,7 @@ public abstract class OptiqStatement
     public synchronized void close() {
         if (!closed) {
             closed = true;
+            stopTimeout();
             connection.server.removeStatement(this);
             if (openResultSet != null) {
                 OptiqResultSet c = openResultSet;
@@ -162,6 +211,10 @@ public abstract class OptiqStatement
     }
 
     public synchronized void cancel() throws SQLException {
+        cancelFlag.requestCancel();
+        // If the statement is waiting for admission, stop waiting. If it is
+        // running, it keeps its slot until it stops and calls endExecution.
+        connection.server.cancelExecution(this);
         if (openResultSet != null) {
             openResultSet.cancel();
         }
@@ -180,7 +233,8 @@ public abstract class OptiqStatement
     }
 
     public boolean execute(String sql) throws SQLException {
-        OptiqPrepare.PrepareResult x = parseQuery(sql);
+        startExecution(sql);
+        OptiqPrepare.PrepareResult x = parseQueryChecked(sql);
         return executeInternal(x);
     }
 
@@ -242,6 +296,14 @@ public abstract class OptiqStatement
         return connection;
     }
 
+    // implement OptiqServerStatement
+
+    public long getRowCount() {
+        // Not synchronized; may be called by a monitoring thread.
+        final OptiqResultSet resultSet = openResultSet;
+        return resultSet == null ? 0 : resultSet.getRowCount();
+    }
+
     public boolean getMoreResults(int current) throws SQLException {
         throw new UnsupportedOperationException();
     }
@@ -362,18 +424,151 @@ public abstract class OptiqStatement
         try {
             openResultSet.execute();
         } catch (Exception e) {
+            endExecution();
+            if (cancelFlag.isCancelRequested()) {
+                throw createCancelException(e);
+            }
             throw connection.helper.createException(
                 "exception while executing query", e);
         }
         return openResultSet;
     }
 
-    private static Function0<Cursor> getCursorFactory(
+    /**
+     * Prepares for a new execution, and waits until the server admits it.
+     *
+     * <p>Clears any previous cancellation request and, if a query timeout is
+     * set, schedules a task that will cancel the execution when the timeout
+     * elapses. The timeout covers waiting for admission, preparation,
+     * execution and fetching rows. It is stopped when the result set is
+     * closed or all of its rows have been fetched.</p>
+     *
+     * <p>Does not hold the lock on this statement while it waits, so that
+     * another thread can call {@link #cancel()}.</p>
+     *
+     * @param sql SQL text, for monitoring purposes
+     * @throws SQLException if the server rejects the statement, or the
+     *     statement is canceled or times out while waiting
+     */
+    void startExecution(String sql) throws SQLException {
+        startTimeout();
+        try {
+            connection.server.startExecution(
+                this, connection.getProperties().getProperty("user"), sql);
+        } catch (SQLException e) {
+            stopTimeout();
+            if (cancelFlag.isCancelRequested()) {
+                throw createCancelException(e);
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void startTimeout() {
+        stopTimeout();
+        cancelFlag.clearCancel();
+        timedOut = false;
+        final int timeoutMillis = getQueryTimeoutMillis();
+        if (timeoutMillis > 0) {
+            timeoutTask = new TimerTask() {
+                public void run() {
+                    timedOut = true;
+                    cancelFlag.requestCancel();
+                    // If the statement is waiting for admission, stop waiting.
+                    connection.server.cancelExecution(OptiqStatement.this);
+                }
+            };
+            TIMEOUT_TIMER.schedule(timeoutTask, timeoutMillis);
+        }
+    }
+
+    /** Stops the query timeout of the current execution, if any. */
+    synchronized void stopTimeout() {
+        if (timeoutTask != null) {
+            timeoutTask.cancel();
+            timeoutTask = null;
+        }
+    }
+
+    /**
+     * Called by a result set when it is closed or has returned its last row.
+     * Ends the execution, unless the statement has since started executing
+     * another query.
+     *
+     * @param resultSet Result set
+     */
+    synchronized void onExecutionEnd(OptiqResultSet resultSet) {
+        if (resultSet == openResultSet) {
+            endExecution();
+        }
+    }
+
+    /** Stops the query timeout, and tells the server that the current
+     * execution has finished, releasing its slot. */
+    private synchronized void endExecution() {
+        stopTimeout();
+        connection.server.endExecution(this);
+    }
+
+    /**
+     * Creates the exception to throw to the client when execution stops
+     * because this statement was canceled: a {@link SqlTimeoutException} if
+     * the query timeout elapsed, otherwise a {@link SQLException}.
+     *
+     * @param e Exception thrown by the planner or generated code
+     * @return Exception to throw to the client
+     */
+    SQLException createCancelException(Exception e) {
+        if (timedOut) {
+            final SqlTimeoutException timeoutException =
+                new SqlTimeoutException();
+            timeoutException.initCause(e);
+            return timeoutException;
+        }
+        return connection.helper.createException("Statement canceled", e);
+    }
+
+    /**
+     * Prepares a SQL statement, converting the exception thrown if the
+     * statement is canceled or times out during planning.
+     *
+     * @param sql SQL string
+     * @return Prepared statement
+     * @throws SQLException if canceled or timed out
+     */
+    private <T> OptiqPrepare.PrepareResult<T> parseQueryChecked(String sql)
+        throws SQLException
+    {
+        try {
+            return parseQuery(sql);
+        } catch (RuntimeException e) {
+            endExecution();
+            if (cancelFlag.isCancelRequested()) {
+                throw createCancelException(e);
+            }
+            throw e;
+        }
+    }
+
+    private Function0<Cursor> getCursorFactory(
         final OptiqPrepare.PrepareResult prepareResult)
     {
+        final boolean async =
+            ConnectionProperty.ASYNC_FETCH.getBoolean(
+                connection.getProperties());
+        final int batchSize =
+            fetchSize > 0 ? fetchSize : DEFAULT_ASYNC_BATCH_SIZE;
         return new Function0<Cursor>() {
             public Cursor apply() {
                 Enumerator<?> enumerator = prepareResult.execute();
+                if (async) {
+                    enumerator =
+                        new AsyncEnumerator<Object>(
+                            (Enumerator) enumerator,
+                            ASYNC_EXECUTOR,
+                            batchSize,
+                            ASYNC_BATCH_COUNT);
+                }
                 //noinspection unchecked
                 return prepareResult.columnList.size() == 1
                     ? new ObjectEnumeratorCursor((Enumerator) enumerator)
@@ -431,6 +626,20 @@ public abstract class OptiqStatement
                 ? Collections.<String>emptyList()
                 : Collections.singletonList(schemaName);
         }
+
+        public CancelFlag getCancelFlag() {
+            return cancelFlag;
+        }
+
+        public long getMemoryBudget() {
+            return ConnectionProperty.MEMORY_BUDGET.getLong(
+                connection.getProperties());
+        }
+
+        public int getParallelism() {
+            return (int) ConnectionProperty.PARALLELISM.getLong(
+                connection.getProperties());
+        }
     }
 }
 
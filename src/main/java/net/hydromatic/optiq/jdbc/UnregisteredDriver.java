@@ -19,6 +19,9 @@ package net.hydromatic.optiq.jdbc;
 
 import net.hydromatic.linq4j.function.Function0;
 
+import net.hydromatic.optiq.server.OptiqServer;
+import net.hydromatic.optiq.server.OptiqServerImpl;
+
 import org.eigenbase.util14.ConnectStringParser;
 
 import java.sql.*;
@@ -44,12 +47,14 @@ public abstract class UnregisteredDriver implements java.sql.Driver {
     final Factory factory;
     final Function0<OptiqPrepare> prepareFactory;
     final Handler handler;
+    final OptiqServer server;
 
     protected UnregisteredDriver() {
         this.factory = createFactory();
         this.prepareFactory = createPrepareFactory();
         this.version = createDriverVersion();
         this.handler = createHandler();
+        this.server = createServer();
     }
 
     protected Function0<OptiqPrepare> createPrepareFactory() {
@@ -78,6 +83,22 @@ public abstract class UnregisteredDriver implements java.sql.Driver {
         return new HandlerImpl();
     }
 
+    /** Creates the server that is shared by all connections created by this
+     * driver.
+     *
+     * <p>The default implementation reads the server's admission limits
+     * from the system properties "optiq.server.maxConcurrentStatements" and
+     * "optiq.server.heapThreshold", which default to 0, meaning no limit.
+     * They are read once, when the driver is created; connections cannot
+     * change them. Derived classes may override this method to create a
+     * server with other limits.</p> */
+    protected OptiqServer createServer() {
+        return new OptiqServerImpl(
+            Integer.getInteger("optiq.server.maxConcurrentStatements", 0),
+            Double.parseDouble(
+                System.getProperty("optiq.server.heapThreshold", "0")));
+    }
+
     /**
      * Returns the name of a class to be factory for JDBC objects
      * (connection, statement) appropriate for the current JDBC version.
@@ -175,6 +196,17 @@ public abstract class UnregisteredDriver implements java.sql.Driver {
         return version;
     }
 
+    /**
+     * Returns the server shared by all connections created by this driver,
+     * which allows statements to be monitored and their execution to be
+     * limited. Not in the JDBC API.
+     *
+     * @return Server
+     */
+    public OptiqServer getServer() {
+        return server;
+    }
+
     public final int getMajorVersion() {
         return version.majorVersion;
     }
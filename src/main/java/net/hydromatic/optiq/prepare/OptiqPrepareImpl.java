@@ -34,6 +34,7 @@ import org.eigenbase.relopt.*;
 import org.eigenbase.relopt.volcano.VolcanoPlanner;
 import org.eigenbase.reltype.*;
 import org.eigenbase.rex.RexBuilder;
+import org.eigenbase.rex.RexLiteral;
 import org.eigenbase.rex.RexNode;
 import org.eigenbase.sql.*;
 import org.eigenbase.sql.fun.SqlStdOperatorTable;
@@ -118,10 +119,19 @@ public class OptiqPrepareImpl implements OptiqPrepare {
     protected RelOptPlanner createPlanner() {
         final VolcanoPlanner planner = new VolcanoPlanner();
         planner.addRelTraitDef(ConventionTraitDef.instance);
+        planner.addRelTraitDef(RelCollationTraitDef.INSTANCE);
         RelOptUtil.registerAbstractRels(planner);
         planner.addRule(JavaRules.ENUMERABLE_JOIN_RULE);
+        planner.addRule(JavaRules.ENUMERABLE_MERGE_JOIN_RULE);
+        planner.addRule(JavaRules.ENUMERABLE_SEMI_JOIN_RULE);
+        planner.addRule(JavaRules.ENUMERABLE_ANTI_JOIN_RULE);
         planner.addRule(JavaRules.ENUMERABLE_CALC_RULE);
+        planner.addRule(JavaRules.ENUMERABLE_CALC_COLLATION_RULE);
         planner.addRule(JavaRules.ENUMERABLE_AGGREGATE_RULE);
+        planner.addRule(JavaRules.ENUMERABLE_SORTED_AGGREGATE_RULE);
+        planner.addRule(JavaRules.ENUMERABLE_SORTED_AGGREGATE_PROJECT_RULE);
+        planner.addRule(JavaRules.ENUMERABLE_SORTED_AGGREGATE_TABLE_RULE);
+        planner.addRule(JavaRules.ENUMERABLE_WINDOW_RULE);
         planner.addRule(JavaRules.ENUMERABLE_SORT_RULE);
         planner.addRule(JavaRules.ENUMERABLE_UNION_RULE);
         planner.addRule(JavaRules.ENUMERABLE_INTERSECT_RULE);
@@ -137,7 +147,16 @@ public class OptiqPrepareImpl implements OptiqPrepare {
         planner.addRule(PushFilterPastJoinRule.instance);
         planner.addRule(RemoveDistinctAggregateRule.instance);
         planner.addRule(ReduceAggregatesRule.instance);
+        planner.addRule(PushAggregatePastJoinRule.instance);
+        planner.addRule(PushAggregatePastJoinRule.instanceProject);
         planner.addRule(SwapJoinRule.instance);
+        planner.addRule(SemiJoinRule.instance);
+        planner.addRule(ExistsToSemiJoinRule.instance);
+        planner.addRule(WindowedAggSplitterRule.instance);
+        planner.addRule(PushLimitPastProjectRule.instance);
+        planner.addRule(PushLimitPastProjectRule.instanceCalc);
+        planner.addRule(PushLimitPastUnionRule.instance);
+        planner.addRule(JavaRules.ENUMERABLE_LIMIT_TABLE_RULE);
         return planner;
     }
 
@@ -183,6 +202,7 @@ public class OptiqPrepareImpl implements OptiqPrepare {
             if (planner == null) {
                 throw new AssertionError("factory returned null planner");
             }
+            planner.setCancelFlag(context.getCancelFlag());
             try {
                 return prepare2_(
                     context, sql, queryable, elementType, maxRowCount,
@@ -216,7 +236,9 @@ public class OptiqPrepareImpl implements OptiqPrepare {
                 typeFactory,
                 context.getRootSchema(),
                 convention,
-                planner);
+                planner,
+                context,
+                maxRowCount);
 
         final RelDataType x;
         final Prepare.PreparedResult preparedResult;
@@ -301,9 +323,10 @@ public class OptiqPrepareImpl implements OptiqPrepare {
         }
         Enumerable<T> enumerable =
             (Enumerable<T>) preparedResult.execute();
-        if (maxRowCount >= 0) {
+        if (maxRowCount >= 0 && !preparingStmt.limitPushed) {
             // Apply limit. In JDBC 0 means "no limit". But for us, -1 means
-            // "no limit", and 0 is a valid limit.
+            // "no limit", and 0 is a valid limit. Usually the limit has been
+            // pushed into the plan as a FETCH; this is the fallback.
             enumerable = enumerable.take(maxRowCount);
         }
         Class resultClazz = null;
@@ -333,19 +356,28 @@ public class OptiqPrepareImpl implements OptiqPrepare {
         private final RelOptPlanner planner;
         private final RexBuilder rexBuilder;
         private final Schema schema;
+        private final Context context;
+        private final int maxRowCount;
         private int expansionDepth;
         private SqlValidator sqlValidator;
 
+        /** Whether {@link #maxRowCount} has been pushed into the plan. */
+        boolean limitPushed;
+
         public OptiqPreparingStmt(
             CatalogReader catalogReader,
             RelDataTypeFactory typeFactory,
             Schema schema,
             Convention resultConvention,
-            RelOptPlanner planner)
+            RelOptPlanner planner,
+            Context context,
+            int maxRowCount)
         {
             super(catalogReader, resultConvention);
             this.schema = schema;
             this.planner = planner;
+            this.context = context;
+            this.maxRowCount = maxRowCount;
             this.rexBuilder = new RexBuilder(typeFactory);
         }
 
@@ -353,6 +385,57 @@ public class OptiqPrepareImpl implements OptiqPrepare {
         protected void init(Class runtimeContextClass) {
         }
 
+        @Override
+        protected RelNode optimize(
+            RelDataType logicalRowType,
+            RelNode rootRel)
+        {
+            final RelNode optimized =
+                super.optimize(logicalRowType, pushLimit(rootRel));
+            return Parallelizer.parallelize(
+                optimized, context.getParallelism());
+        }
+
+        /**
+         * Applies the statement's maximum row count to the root of a plan,
+         * as the FETCH of a sort. If the root is already a sort, tightens its
+         * FETCH; otherwise adds a sort with no keys. The planner can then
+         * use Top-N execution, and stop reading input early.
+         */
+        private RelNode pushLimit(RelNode rootRel) {
+            if (maxRowCount < 0
+                || rootRel instanceof TableModificationRelBase)
+            {
+                return rootRel;
+            }
+            final RexBuilder rexBuilder = rootRel.getCluster().getRexBuilder();
+            RexNode fetch =
+                rexBuilder.makeExactLiteral(BigDecimal.valueOf(maxRowCount));
+            limitPushed = true;
+            if (rootRel.getClass() == SortRel.class) {
+                final SortRel sort = (SortRel) rootRel;
+                if (sort.fetch != null
+                    && (!(sort.fetch instanceof RexLiteral)
+                        || RexLiteral.longValue(sort.fetch) <= maxRowCount))
+                {
+                    return sort;
+                }
+                return sort.copy(
+                    sort.getTraitSet(),
+                    sort.getChild(),
+                    sort.getCollations(),
+                    sort.offset,
+                    fetch);
+            }
+            return new SortRel(
+                rootRel.getCluster(),
+                rootRel.getCluster().traitSetOf(Convention.NONE),
+                rootRel,
+                Collections.<RelFieldCollation>emptyList(),
+                null,
+                fetch);
+        }
+
         public PreparedResult prepareQueryable(
             Queryable queryable,
             RelDataType resultType)
@@ -549,7 +632,12 @@ public class OptiqPrepareImpl implements OptiqPrepare {
 
                 @Override
                 public Object execute() {
-                    return executable.execute(schema);
+                    return executable.execute(
+                        new CancellableDataContext(
+                            schema,
+                            context.getCancelFlag(),
+                            new MemoryBudget(context.getMemoryBudget()),
+                            context.getParallelism()));
                 }
 
                 @Override
@@ -659,13 +747,23 @@ public class OptiqPrepareImpl implements OptiqPrepare {
                     convention = EnumerableConvention.CUSTOM;
                 }
             }
+            RelTraitSet traitSet = cluster.traitSetOf(convention);
+            final List<RelCollation> collations = getCollationList();
+            if (!collations.isEmpty()) {
+                // The table is stored sorted; tell the planner.
+                traitSet =
+                    RelCollationTraitDef.plus(traitSet, collations.get(0));
+            }
             return new JavaRules.EnumerableTableAccessRel(
-                cluster, cluster.traitSetOf(convention),
-                this, expression, elementType);
+                cluster, traitSet, this, expression, elementType);
         }
 
         public List<RelCollation> getCollationList() {
-            return Collections.emptyList();
+            final List<RelCollation> collations =
+                table == null ? null : table.getStatistic().getCollations();
+            return collations == null
+                ? Collections.<RelCollation>emptyList()
+                : collations;
         }
 
         public boolean isKey(BitSet columns) {
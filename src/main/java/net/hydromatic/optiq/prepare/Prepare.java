@@ -20,7 +20,13 @@ package net.hydromatic.optiq.prepare;
 import net.hydromatic.optiq.runtime.Typed;
 
 import org.eigenbase.rel.*;
+import org.eigenbase.rel.rules.ConvertMultiJoinRule;
+import org.eigenbase.rel.rules.OptimizeMultiJoinRule;
+import org.eigenbase.rel.rules.PushFilterIntoMultiJoinRule;
 import org.eigenbase.relopt.*;
+import org.eigenbase.relopt.hep.HepMatchOrder;
+import org.eigenbase.relopt.hep.HepPlanner;
+import org.eigenbase.relopt.hep.HepProgramBuilder;
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.rex.RexBuilder;
 import org.eigenbase.sql.*;
@@ -76,6 +82,8 @@ public abstract class Prepare {
     {
         final RelOptPlanner planner = rootRel.getCluster().getPlanner();
 
+        rootRel = optimizeJoinOrder(rootRel);
+
         // Allow each rel to register its own rules.
         RelVisitor visitor = new RelVisitor() {
             @Override
@@ -100,6 +108,46 @@ public abstract class Prepare {
         return rootRel3;
     }
 
+    /**
+     * Chooses the order of joins of three or more inputs, using a heuristic
+     * planner, before the main planner sees them. Exhaustive search of the
+     * orders of a join of many inputs takes too long.
+     *
+     * @param rootRel root of a relational expression
+     * @return an equivalent relational expression
+     */
+    protected RelNode optimizeJoinOrder(RelNode rootRel)
+    {
+        final int[] joinCount = {0};
+        final boolean[] correlated = {false};
+        new RelVisitor() {
+            @Override
+            public void visit(RelNode node, int ordinal, RelNode parent) {
+                if (node instanceof JoinRel) {
+                    ++joinCount[0];
+                    correlated[0] |=
+                        !((JoinRel) node).getVariablesStopped().isEmpty()
+                        || !((JoinRel) node).getSystemFieldList().isEmpty();
+                }
+                super.visit(node, ordinal, parent);
+            }
+        }.go(rootRel);
+        if (joinCount[0] < 2 || correlated[0]) {
+            return rootRel;
+        }
+        final HepProgramBuilder programBuilder = new HepProgramBuilder();
+        programBuilder.addMatchOrder(HepMatchOrder.BOTTOM_UP);
+        programBuilder.addRuleCollection(
+            Arrays.<RelOptRule>asList(
+                ConvertMultiJoinRule.instance,
+                PushFilterIntoMultiJoinRule.instance));
+        programBuilder.addRuleInstance(OptimizeMultiJoinRule.instance);
+        final HepPlanner hepPlanner =
+            new HepPlanner(programBuilder.createProgram(), true);
+        hepPlanner.setRoot(rootRel);
+        return hepPlanner.findBestExp();
+    }
+
     protected RelTraitSet getDesiredRootTraitSet(RelNode rootRel)
     {
         // Make sure non-CallingConvention traits, if any, are preserved
@@ -31,6 +31,7 @@ import org.eigenbase.rel.RelImplementorImpl;
 import org.eigenbase.rel.RelNode;
 import org.eigenbase.relopt.RelImplementor;
 import org.eigenbase.rex.RexBuilder;
+import org.eigenbase.util.Pair;
 
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
@@ -46,6 +47,24 @@ import java.util.*;
 public class EnumerableRelImplementor extends RelImplementorImpl {
     public Map<String, Queryable> map = new LinkedHashMap<String, Queryable>();
 
+    /** Parameter of the generated {@code execute} method; the root of the
+     * environment from which generated code accesses tables. */
+    private final ParameterExpression root =
+        Expressions.parameter(Modifier.FINAL, DataContext.class, "root");
+
+    /** Join filters to be applied to the output of relational expressions
+     * not yet implemented; each is the ordinal of the key field and the
+     * variable that holds the {@link net.hydromatic.optiq.runtime.JoinFilter}
+     * populated by a hash join above. */
+    private final Map<RelNode, List<Pair<Integer, Expression>>> joinFilters =
+        new HashMap<RelNode, List<Pair<Integer, Expression>>>();
+
+    /** Partitions of table scans beneath a gather; each is the variable
+     * that holds the ordinal of the partition being read, and the number of
+     * partitions. */
+    private final Map<RelNode, Pair<Expression, Integer>> partitions =
+        new HashMap<RelNode, Pair<Expression, Integer>>();
+
     public EnumerableRelImplementor(RexBuilder rexBuilder) {
         super(rexBuilder);
     }
@@ -59,7 +78,92 @@ public class EnumerableRelImplementor extends RelImplementorImpl {
     }
 
     public BlockExpression visitChildInternal(RelNode child, int ordinal) {
-        return ((EnumerableRel) child).implement(this);
+        final EnumerableRel rel = (EnumerableRel) child;
+        final BlockExpression block = rel.implement(this);
+        final List<Pair<Integer, Expression>> filters =
+            joinFilters.remove(rel);
+        if (filters == null) {
+            return block;
+        }
+        final BlockBuilder builder = new BlockBuilder();
+        Expression expression = builder.append("input", block);
+        for (Pair<Integer, Expression> filter : filters) {
+            expression =
+                Expressions.call(
+                    filter.right,
+                    BuiltinMethod.JOIN_FILTER_PROBE.method,
+                    expression,
+                    rel.getPhysType().generateAccessor(
+                        Collections.singletonList(filter.left)));
+        }
+        return builder.append(expression).toBlock();
+    }
+
+    /** Registers a join filter to be applied to the output of a relational
+     * expression when it is implemented.
+     *
+     * @param rel Relational expression, a descendant of the join
+     * @param field Ordinal of the key field in the output of {@code rel}
+     * @param filter Variable holding the join filter
+     */
+    public void addJoinFilter(RelNode rel, int field, Expression filter) {
+        List<Pair<Integer, Expression>> filters = joinFilters.get(rel);
+        if (filters == null) {
+            filters = new ArrayList<Pair<Integer, Expression>>();
+            joinFilters.put(rel, filters);
+        }
+        filters.add(Pair.of(field, filter));
+    }
+
+    /** Unregisters a join filter, if it has not already been applied. */
+    public void removeJoinFilter(RelNode rel, Expression filter) {
+        final List<Pair<Integer, Expression>> filters = joinFilters.get(rel);
+        if (filters == null) {
+            return;
+        }
+        for (Iterator<Pair<Integer, Expression>> iterator =
+                 filters.iterator(); iterator.hasNext();)
+        {
+            if (iterator.next().right == filter) {
+                iterator.remove();
+            }
+        }
+        if (filters.isEmpty()) {
+            joinFilters.remove(rel);
+        }
+    }
+
+    /** Returns the join filters that will be applied to the output of a
+     * relational expression; a table scan may use them to read less. */
+    public List<Pair<Integer, Expression>> getJoinFilters(RelNode rel) {
+        final List<Pair<Integer, Expression>> filters = joinFilters.get(rel);
+        return filters == null
+            ? Collections.<Pair<Integer, Expression>>emptyList()
+            : filters;
+    }
+
+    /** Registers that a table scan is to read only one partition of its
+     * table, because a gather above reads the partitions in parallel.
+     *
+     * @param rel Table scan
+     * @param partition Variable holding the ordinal of the partition
+     * @param partitionCount Number of partitions
+     */
+    public void addPartition(
+        RelNode rel, Expression partition, int partitionCount)
+    {
+        partitions.put(rel, Pair.of(partition, partitionCount));
+    }
+
+    /** Unregisters the partition of a table scan. */
+    public void removePartition(RelNode rel) {
+        partitions.remove(rel);
+    }
+
+    /** Returns the partition that a table scan is to read, or null if it is
+     * to read the whole table. */
+    public Pair<Expression, Integer> getPartition(RelNode rel) {
+        return partitions.get(rel);
     }
 
     public ClassDeclaration implementRoot(EnumerableRel rootRel) {
@@ -68,8 +172,6 @@ public class EnumerableRelImplementor extends RelImplementorImpl {
             new ArrayList<MemberDeclaration>();
         declareSyntheticClasses(implement, memberDeclarations);
 
-        ParameterExpression root =
-            Expressions.parameter(Modifier.FINAL, DataContext.class, "root");
         memberDeclarations.add(
             Expressions.methodDecl(
                 Modifier.PUBLIC,
@@ -331,6 +433,12 @@ public class EnumerableRelImplementor extends RelImplementorImpl {
         return classDeclaration;
     }
 
+    /** Returns the expression by which generated code accesses the root of
+     * the environment, a {@link DataContext}. */
+    public ParameterExpression getRootExpression() {
+        return root;
+    }
+
     public Expression register(Queryable queryable) {
         String name = "v" + map.size();
         map.put(name, queryable);
@@ -18,9 +18,15 @@
 package net.hydromatic.optiq.rules.java;
 
 import net.hydromatic.optiq.BuiltinMethod;
+import net.hydromatic.optiq.LimitableTable;
 import net.hydromatic.optiq.ModifiableTable;
+import net.hydromatic.optiq.PartitionableTable;
+import net.hydromatic.optiq.RangeFilterableTable;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
 import net.hydromatic.optiq.prepare.Prepare;
+import net.hydromatic.optiq.runtime.JoinFilter;
+import net.hydromatic.optiq.runtime.Utilities;
+import net.hydromatic.optiq.runtime.WindowEnumerables;
 
 import net.hydromatic.linq4j.*;
 import net.hydromatic.linq4j.expressions.*;
@@ -30,11 +36,21 @@ import net.hydromatic.linq4j.function.*;
 import org.eigenbase.rel.*;
 import org.eigenbase.rel.convert.ConverterRule;
 import org.eigenbase.rel.metadata.RelMetadataQuery;
+import org.eigenbase.rel.rules.AntiJoinRel;
+import org.eigenbase.rel.rules.SemiJoinRel;
 import org.eigenbase.relopt.*;
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeField;
 import org.eigenbase.rex.*;
+import org.eigenbase.sql.SqlAggFunction;
+import org.eigenbase.sql.SqlCall;
+import org.eigenbase.sql.SqlIntervalLiteral;
+import org.eigenbase.sql.SqlKind;
+import org.eigenbase.sql.SqlLiteral;
+import org.eigenbase.sql.SqlNode;
+import org.eigenbase.sql.SqlWindowOperator;
 import org.eigenbase.sql.fun.SqlStdOperatorTable;
+import org.eigenbase.sql.parser.SqlParserUtil;
 import org.eigenbase.trace.EigenbaseTrace;
 import org.eigenbase.util.*;
 
@@ -90,12 +106,51 @@ public class JavaRules {
                 }
                 newInputs.add(input);
             }
+            final RelOptCluster cluster = join.getCluster();
+            final RelTraitSet traitSet =
+                join.getTraitSet().replace(EnumerableConvention.CUSTOM);
+            final RelNode left = newInputs.get(0);
+            final RelNode right = newInputs.get(1);
+            final List<Integer> leftKeys = new ArrayList<Integer>();
+            final List<Integer> rightKeys = new ArrayList<Integer>();
+            final RexNode remaining =
+                RelOptUtil.splitJoinCondition(
+                    left, right, join.getCondition(), leftKeys, rightKeys);
             try {
-                return new EnumerableJoinRel(
-                    join.getCluster(),
-                    join.getTraitSet().replace(EnumerableConvention.CUSTOM),
-                    newInputs.get(0),
-                    newInputs.get(1),
+                if (remaining.isAlwaysTrue()
+                    || (!leftKeys.isEmpty()
+                        && join.getJoinType() == JoinRelType.INNER))
+                {
+                    // Hash join, applying the remaining condition, if any,
+                    // to the joined rows.
+                    return new EnumerableJoinRel(
+                        cluster,
+                        traitSet,
+                        left,
+                        right,
+                        join.getCondition(),
+                        join.getJoinType(),
+                        join.getVariablesStopped());
+                }
+                if (join.getJoinType() == JoinRelType.INNER) {
+                    try {
+                        return new EnumerableBandJoinRel(
+                            cluster,
+                            traitSet,
+                            left,
+                            right,
+                            join.getCondition(),
+                            join.getJoinType(),
+                            join.getVariablesStopped());
+                    } catch (InvalidRelException e) {
+                        // Not a band join. Fall through.
+                    }
+                }
+                return new EnumerableNestedLoopJoinRel(
+                    cluster,
+                    traitSet,
+                    left,
+                    right,
                     join.getCondition(),
                     join.getJoinType(),
                     join.getVariablesStopped());
@@ -114,6 +169,10 @@ public class JavaRules {
         final ImmutableIntList leftKeys;
         final ImmutableIntList rightKeys;
 
+        /** Part of the join condition that is not equality of keys, or
+         * TRUE. It is applied to each joined row. */
+        final RexNode remaining;
+
         protected EnumerableJoinRel(
             RelOptCluster cluster,
             RelTraitSet traits,
@@ -141,12 +200,14 @@ public class JavaRules {
                     condition,
                     leftKeys,
                     rightKeys);
-            if (!remaining.isAlwaysTrue()) {
+            if (!remaining.isAlwaysTrue() && joinType != JoinRelType.INNER) {
                 throw new InvalidRelException(
-                    "EnumerableJoinRel only supports equi-join");
+                    "EnumerableJoinRel only supports a non-equi condition in "
+                    + "an inner join");
             }
             this.leftKeys = ImmutableIntList.of(leftKeys);
             this.rightKeys = ImmutableIntList.of(rightKeys);
+            this.remaining = remaining;
             this.physType =
                 PhysTypeImpl.of(
                     (JavaTypeFactory) cluster.getTypeFactory(),
@@ -209,320 +270,621 @@ public class JavaRules {
 
         public BlockExpression implement(EnumerableRelImplementor implementor) {
             BlockBuilder list = new BlockBuilder();
-            Expression leftExpression =
-                list.append(
-                    "left",
-                    implementor.visitChild(this, 0, (EnumerableRel) left));
-            Expression rightExpression =
-                list.append(
-                    "right",
-                    implementor.visitChild(this, 1, (EnumerableRel) right));
+            final PhysType leftPhysType = ((EnumerableRel) left).getPhysType();
+            final PhysType rightPhysType =
+                ((EnumerableRel) right).getPhysType();
+
+            // The hash table is built on the inner (second) input and probed
+            // by the outer. Build on the smaller input; if that is the left,
+            // swap the inputs, and have the selector take the right row
+            // first.
+            final boolean swapped =
+                RelMetadataQuery.getRowCount(left)
+                < RelMetadataQuery.getRowCount(right);
+            final EnumerableRel outerRel =
+                (EnumerableRel) (swapped ? right : left);
+            final EnumerableRel innerRel =
+                (EnumerableRel) (swapped ? left : right);
+            final PhysType outerPhysType =
+                swapped ? rightPhysType : leftPhysType;
+            final PhysType innerPhysType =
+                swapped ? leftPhysType : rightPhysType;
+            final List<Integer> outerKeys = swapped ? rightKeys : leftKeys;
+            final List<Integer> innerKeys = swapped ? leftKeys : rightKeys;
+
+            // Whether to return inner rows that match no outer row, and outer
+            // rows that match no inner row.
+            final boolean unmatchedInner =
+                swapped
+                    ? joinType.generatesNullsOnRight()
+                    : joinType.generatesNullsOnLeft();
+            final boolean unmatchedOuter =
+                swapped
+                    ? joinType.generatesNullsOnLeft()
+                    : joinType.generatesNullsOnRight();
+
+            // If outer rows that match nothing are discarded, and the inner
+            // input is the smaller, summarize the inner keys in a join filter
+            // as the hash table is built, and apply it to the outer input as
+            // near to its scan as possible, so that rows that cannot match
+            // are discarded early.
+            Expression joinFilter = null;
+            Pair<EnumerableRel, Integer> filterTarget = null;
+            if (!unmatchedOuter
+                && outerKeys.size() == 1
+                && RelMetadataQuery.getRowCount(innerRel)
+                < RelMetadataQuery.getRowCount(outerRel))
+            {
+                joinFilter =
+                    list.append(
+                        "joinFilter", Expressions.new_(JoinFilter.class));
+                filterTarget =
+                    EnumUtil.joinFilterTarget(outerRel, outerKeys.get(0));
+            }
+            final Expression[] inputExpressions = new Expression[2];
+            for (int i = 0; i < 2; i++) {
+                final boolean outer = (i == 1) == swapped;
+                if (outer && filterTarget != null) {
+                    implementor.addJoinFilter(
+                        filterTarget.left, filterTarget.right, joinFilter);
+                }
+                inputExpressions[i] =
+                    list.append(
+                        LEFT_RIGHT[i],
+                        implementor.visitChild(
+                            this, i, (EnumerableRel) getInputs().get(i)));
+                if (outer && filterTarget != null) {
+                    implementor.removeJoinFilter(
+                        filterTarget.left, joinFilter);
+                }
+            }
+            final Expression outerExpression =
+                inputExpressions[swapped ? 1 : 0];
+            Expression innerExpression = inputExpressions[swapped ? 0 : 1];
+            if (joinFilter != null) {
+                innerExpression =
+                    Expressions.call(
+                        joinFilter,
+                        BuiltinMethod.JOIN_FILTER_BUILD.method,
+                        innerExpression,
+                        innerPhysType.generateAccessor(innerKeys));
+            }
+            final Expression selector =
+                EnumUtil.joinSelector(
+                    this, physType, joinType != JoinRelType.INNER, swapped);
+
             final PhysType keyPhysType =
-                ((EnumerableRel) left).getPhysType().project(
-                    leftKeys, JavaRowFormat.CUSTOM);
+                outerPhysType.project(outerKeys, JavaRowFormat.CUSTOM);
+            final Expression outerSerializer =
+                outerPhysType.generateSerializer();
+            final Expression innerSerializer =
+                innerPhysType.generateSerializer();
+            // If the keys are primitive, and of the same types on both
+            // sides, the hash table can use keys packed into a long.
+            Expression outerLongKeySelector = null;
+            Expression innerLongKeySelector = null;
+            if (sameFieldClasses(
+                    outerPhysType, outerKeys, innerPhysType, innerKeys))
+            {
+                outerLongKeySelector =
+                    outerPhysType.generateLongKeySelector(outerKeys);
+                innerLongKeySelector =
+                    innerPhysType.generateLongKeySelector(innerKeys);
+            }
+            if (joinType == JoinRelType.INNER
+                && keyPhysType.comparer() == null
+                && outerSerializer != null
+                && innerSerializer != null)
+            {
+                // Join that can spill to disk if the query has a memory
+                // budget.
+                return list.append(
+                    where(
+                        implementor,
+                        Expressions.call(
+                            BuiltinMethod.SPILLING_JOIN.method,
+                            implementor.getRootExpression(),
+                            outerExpression,
+                            innerExpression,
+                            outerPhysType.generateAccessor(outerKeys),
+                            innerPhysType.generateAccessor(innerKeys),
+                            outerLongKeySelector == null
+                                ? Expressions.constant(null)
+                                : outerLongKeySelector,
+                            innerLongKeySelector == null
+                                ? Expressions.constant(null)
+                                : innerLongKeySelector,
+                            selector,
+                            list.append("outerSerializer", outerSerializer),
+                            list.append("innerSerializer", innerSerializer))))
+                    .toBlock();
+            }
+            if (outerLongKeySelector != null && innerLongKeySelector != null) {
+                return list.append(
+                    where(
+                        implementor,
+                        Expressions.call(
+                            BuiltinMethod.LONG_HASH_JOIN.method,
+                            outerExpression,
+                            innerExpression,
+                            outerLongKeySelector,
+                            innerLongKeySelector,
+                            selector,
+                            Expressions.constant(unmatchedInner),
+                            Expressions.constant(unmatchedOuter))))
+                    .toBlock();
+            }
+            if (joinType == JoinRelType.INNER
+                && keyPhysType.comparer() != null)
+            {
+                return list.append(
+                    where(
+                        implementor,
+                        Expressions.call(
+                            outerExpression,
+                            BuiltinMethod.JOIN.method,
+                            Expressions.list(
+                                innerExpression,
+                                outerPhysType.generateAccessor(outerKeys),
+                                innerPhysType.generateAccessor(innerKeys),
+                                selector)
+                                .appendIfNotNull(keyPhysType.comparer()))))
+                    .toBlock();
+            }
             return list.append(
-                Expressions.call(
-                    leftExpression,
-                    BuiltinMethod.JOIN.method,
-                    Expressions.list(
-                        rightExpression,
-                        ((EnumerableRel) left).getPhysType()
-                            .generateAccessor(leftKeys),
-                        ((EnumerableRel) right).getPhysType()
-                            .generateAccessor(rightKeys),
-                        generateSelector())
-                        .appendIfNotNull(keyPhysType.comparer())))
+                where(
+                    implementor,
+                    Expressions.call(
+                        BuiltinMethod.HASH_JOIN.method,
+                        outerExpression,
+                        innerExpression,
+                        outerPhysType.generateAccessor(outerKeys),
+                        innerPhysType.generateAccessor(innerKeys),
+                        selector,
+                        Expressions.constant(unmatchedInner),
+                        Expressions.constant(unmatchedOuter))))
                 .toBlock();
         }
 
-        Expression generateSelector() {
-            // A parameter for each input.
-            final List<ParameterExpression> parameters =
-                new ArrayList<ParameterExpression>();
+        /** Applies the remaining join condition, if any, to the rows returned
+         * by a hash join. The join is inner, so the fields of a joined row
+         * are the fields referenced by the condition. */
+        private Expression where(
+            EnumerableRelImplementor implementor,
+            Expression expression)
+        {
+            if (remaining.isAlwaysTrue()) {
+                return expression;
+            }
+            final JavaTypeFactory typeFactory =
+                (JavaTypeFactory) implementor.getTypeFactory();
+            final RexProgramBuilder programBuilder =
+                new RexProgramBuilder(
+                    getRowType(), getCluster().getRexBuilder());
+            programBuilder.addCondition(remaining);
+            final BlockBuilder builder = new BlockBuilder();
+            final ParameterExpression v =
+                Expressions.parameter(physType.getJavaRowType(), "v");
+            builder.add(
+                Expressions.return_(
+                    null,
+                    RexToLixTranslator.translateCondition(
+                        programBuilder.getProgram(),
+                        typeFactory,
+                        builder,
+                        new RexToLixTranslator.InputGetterImpl(
+                            Collections.singletonList(
+                                Pair.of((Expression) v, physType))))));
+            return Expressions.call(
+                expression,
+                BuiltinMethod.WHERE.method,
+                Expressions.lambda(
+                    Predicate1.class, builder.toBlock(), v));
+        }
 
-            // Generate all fields.
-            final List<Expression> expressions =
-                new ArrayList<Expression>();
-            for (Ord<RelNode> rel : Ord.zip(getInputs())) {
-                PhysType inputPhysType = ((EnumerableRel) rel.e).getPhysType();
-                final ParameterExpression parameter =
-                    Expressions.parameter(
-                        inputPhysType.getJavaRowType(),
-                        LEFT_RIGHT[rel.i]);
-                parameters.add(parameter);
-                int fieldCount = inputPhysType.getRowType().getFieldCount();
-                for (int i = 0; i < fieldCount; i++) {
-                    expressions.add(
-                        Types.castIfNecessary(
-                            inputPhysType.fieldClass(i),
-                            inputPhysType.fieldReference(parameter, i)));
+        private static boolean sameFieldClasses(
+            PhysType leftPhysType,
+            List<Integer> leftKeys,
+            PhysType rightPhysType,
+            List<Integer> rightKeys)
+        {
+            for (Pair<Integer, Integer> pair : Pair.zip(leftKeys, rightKeys)) {
+                if (leftPhysType.fieldClass(pair.left)
+                    != rightPhysType.fieldClass(pair.right))
+                {
+                    return false;
                 }
             }
-            return Expressions.lambda(
-                Function2.class,
-                physType.record(expressions),
-                parameters);
+            return true;
+        }
+
+        /** Generates a function that creates an output row from a left and
+         * a right row. If {@code nullableSelector}, the input on the
+         * null-generating side of an outer join may be null. */
+        Expression generateSelector(boolean nullableSelector) {
+            return EnumUtil.joinSelector(
+                this, physType, nullableSelector, false);
         }
     }
 
+    public static final EnumerableMergeJoinRule ENUMERABLE_MERGE_JOIN_RULE =
+        new EnumerableMergeJoinRule();
+
     /**
-     * Utilities for generating programs in the Enumerable (functional)
-     * style.
+     * Rule to convert a {@link JoinRel} whose inputs are both sorted on the
+     * join keys to an {@link EnumerableMergeJoinRel}.
+     *
+     * <p>The inputs are known to be sorted if they report it via
+     * {@link RelNode#getCollationList()}; for example, a {@link SortRel}, or
+     * a scan of a table that is stored in key order.</p>
      */
-    public static class EnumUtil
-    {
-        /** Declares a method that overrides another method. */
-        static MethodDeclaration overridingMethodDecl(
-            Method method,
-            Iterable<ParameterExpression> parameters,
-            BlockExpression body)
-        {
-            return Expressions.methodDecl(
-                method.getModifiers() & ~Modifier.ABSTRACT,
-                method.getReturnType(),
-                method.getName(),
-                parameters,
-                body);
+    public static class EnumerableMergeJoinRule extends RelOptRule {
+        private EnumerableMergeJoinRule() {
+            super(
+                new RelOptRuleOperand(
+                    JoinRel.class,
+                    Convention.NONE,
+                    new RelOptRuleOperand(RelNode.class, ANY),
+                    new RelOptRuleOperand(RelNode.class, ANY)),
+                "EnumerableMergeJoinRule");
         }
 
-        static Type javaClass(
-            JavaTypeFactory typeFactory, RelDataType type)
-        {
-            final Type clazz = typeFactory.getJavaClass(type);
-            return clazz instanceof Class ? clazz : Object[].class;
+        public void onMatch(RelOptRuleCall call) {
+            final JoinRel join = (JoinRel) call.rels[0];
+            final RelNode left = call.rels[1];
+            final RelNode right = call.rels[2];
+            final List<Integer> leftKeys = new ArrayList<Integer>();
+            final List<Integer> rightKeys = new ArrayList<Integer>();
+            final RexNode remaining =
+                RelOptUtil.splitJoinCondition(
+                    left, right, join.getCondition(), leftKeys, rightKeys);
+            if (!remaining.isAlwaysTrue()
+                || leftKeys.isEmpty()
+                || !sameKeyTypes(left, leftKeys, right, rightKeys))
+            {
+                return;
+            }
+            final List<Integer> order =
+                EnumerableMergeJoinRel.mergeKeyOrder(
+                    left.getCollationList(), leftKeys,
+                    right.getCollationList(), rightKeys);
+            if (order == null) {
+                return;
+            }
+            RelTraitSet traitSet =
+                join.getTraitSet().replace(EnumerableConvention.CUSTOM);
+
+            // Ask for inputs that are sorted on the join keys, so that the
+            // planner chooses sorted implementations of them.
+            final RelCollation leftCollation =
+                keyCollation(left.getCollationList(), leftKeys, order);
+            final RelTraitSet leftTraitSet =
+                RelCollationTraitDef.plus(traitSet, leftCollation);
+            final RelTraitSet rightTraitSet =
+                RelCollationTraitDef.plus(
+                    traitSet,
+                    keyCollation(
+                        right.getCollationList(), rightKeys, order));
+            if (join.getJoinType() == JoinRelType.INNER
+                || join.getJoinType() == JoinRelType.LEFT)
+            {
+                // Output is in the order of the left input.
+                traitSet = leftTraitSet;
+            }
+            try {
+                call.transformTo(
+                    new EnumerableMergeJoinRel(
+                        join.getCluster(),
+                        traitSet,
+                        convert(join.getLeft(), leftTraitSet),
+                        convert(join.getRight(), rightTraitSet),
+                        join.getCondition(),
+                        join.getJoinType(),
+                        join.getVariablesStopped()));
+            } catch (InvalidRelException e) {
+                tracer.warning(e.toString());
+            }
         }
 
-        static Class javaRowClass(
-            JavaTypeFactory typeFactory, RelDataType type)
+        /** Returns the leading fields of the first collation that sorts on
+         * the given keys, taken in the given order. */
+        private static RelCollation keyCollation(
+            List<RelCollation> collations,
+            List<Integer> keys,
+            List<Integer> order)
         {
-            if (type.isStruct() && type.getFieldCount() == 1) {
-                type = type.getFieldList().get(0).getType();
+        loop:
+            for (RelCollation collation : collations) {
+                final List<RelFieldCollation> fields =
+                    collation.getFieldCollations();
+                if (fields.size() < order.size()) {
+                    continue;
+                }
+                for (int p = 0; p < order.size(); p++) {
+                    final RelFieldCollation field = fields.get(p);
+                    if (field.getFieldIndex() != keys.get(order.get(p))
+                        || !EnumerableMergeJoinRel.isAscending(field))
+                    {
+                        continue loop;
+                    }
+                }
+                return new RelCollationImpl(fields.subList(0, order.size()));
             }
-            final Type clazz = typeFactory.getJavaClass(type);
-            return clazz instanceof Class ? (Class) clazz : Object[].class;
+            throw new AssertionError(
+                "no collation on " + keys + " in " + collations);
         }
-    }
-
-    public static class EnumerableTableAccessRel
-        extends TableAccessRelBase
-        implements EnumerableRel
-    {
-        private final Expression expression;
-        private final PhysType physType;
-        private final Class elementType;
 
-        public EnumerableTableAccessRel(
-            RelOptCluster cluster,
-            RelTraitSet traitSet,
-            RelOptTable table,
-            Expression expression,
-            Class elementType)
+        /** Returns whether each pair of keys has the same type, so that the
+         * keys can be compared to each other. */
+        private static boolean sameKeyTypes(
+            RelNode left,
+            List<Integer> leftKeys,
+            RelNode right,
+            List<Integer> rightKeys)
         {
-            super(cluster, traitSet, table);
-            assert getConvention() instanceof EnumerableConvention;
-            this.elementType = elementType;
-            if (Types.isArray(expression.getType())) {
-                if (Types.toClass(expression.getType()).getComponentType()
-                    .isPrimitive())
+            final List<RelDataTypeField> leftFields =
+                left.getRowType().getFieldList();
+            final List<RelDataTypeField> rightFields =
+                right.getRowType().getFieldList();
+            for (Pair<Integer, Integer> pair : Pair.zip(leftKeys, rightKeys)) {
+                if (leftFields.get(pair.left).getType().getSqlTypeName()
+                    != rightFields.get(pair.right).getType().getSqlTypeName())
                 {
-                    expression = Expressions.call(
-                        BuiltinMethod.AS_LIST.method,
-                        expression);
+                    return false;
                 }
-                expression =
-                    Expressions.call(
-                        BuiltinMethod.AS_ENUMERABLE.method,
-                        expression);
-            } else if (Types.isAssignableFrom(
-                    Iterable.class, expression.getType())
-                && !Types.isAssignableFrom(
-                    Enumerable.class, expression.getType()))
-            {
-                expression =
-                    Expressions.call(
-                        BuiltinMethod.AS_ENUMERABLE2.method,
-                        expression);
             }
-            this.expression = expression;
-
-            // Note that representation is ARRAY. This assumes that the table
-            // returns a Object[] for each record. Actually a Table<T> can
-            // return any type T. And, if it is a JdbcTable, we'd like to be
-            // able to generate alternate accessors that return e.g. synthetic
-            // records {T0 f0; T1 f1; ...} and don't box every primitive value.
-            this.physType =
-                PhysTypeImpl.of(
-                    (JavaTypeFactory) cluster.getTypeFactory(),
-                    getRowType(),
-                    ((EnumerableConvention) getConvention()).format);
-        }
-
-
-        @Override
-        public RelNode copy(
-            RelTraitSet traitSet, List<RelNode> inputs)
-        {
-            return new EnumerableTableAccessRel(
-                getCluster(), traitSet, table, expression, elementType);
-        }
-
-        public PhysType getPhysType() {
-            return physType;
-        }
-
-        public BlockExpression implement(EnumerableRelImplementor implementor) {
-            return Blocks.toBlock(expression);
+            return true;
         }
     }
 
-    public static final EnumerableCalcRule ENUMERABLE_CALC_RULE =
-        new EnumerableCalcRule();
-
     /**
-     * Rule to convert a {@link CalcRel} to an
-     * {@link EnumerableCalcRel}.
+     * Join whose inputs are both sorted on the join keys. Reads each input
+     * once, merging runs of rows with equal keys, and builds no hash table.
+     * Supports inner and outer joins.
      */
-    private static class EnumerableCalcRule
-        extends ConverterRule
+    public static class EnumerableMergeJoinRel
+        extends EnumerableJoinRel
     {
-        private EnumerableCalcRule()
+        protected EnumerableMergeJoinRel(
+            RelOptCluster cluster,
+            RelTraitSet traits,
+            RelNode left,
+            RelNode right,
+            RexNode condition,
+            JoinRelType joinType,
+            Set<String> variablesStopped)
+            throws InvalidRelException
         {
             super(
-                CalcRel.class,
-                Convention.NONE,
-                EnumerableConvention.ARRAY,
-                "EnumerableCalcRule");
+                cluster,
+                traits,
+                left,
+                right,
+                condition,
+                joinType,
+                variablesStopped);
         }
 
-        public RelNode convert(RelNode rel)
+        @Override
+        public EnumerableMergeJoinRel copy(
+            RelTraitSet traitSet,
+            RexNode conditionExpr,
+            RelNode left,
+            RelNode right)
         {
-            final CalcRel calc = (CalcRel) rel;
+            try {
+                return new EnumerableMergeJoinRel(
+                    getCluster(),
+                    traitSet,
+                    left,
+                    right,
+                    conditionExpr,
+                    joinType,
+                    variablesStopped);
+            } catch (InvalidRelException e) {
+                // Semantic error not possible. Must be a bug. Convert to
+                // internal error.
+                throw new AssertionError(e);
+            }
+        }
 
-            // If there's a multiset, let FarragoMultisetSplitter work on it
-            // first.
-            if (RexMultisetUtil.containsMultiset(calc.getProgram())) {
-                return null;
+        @Override
+        public RelOptCost computeSelfCost(RelOptPlanner planner) {
+            // Cheaper than a hash join, because there is no hash table to
+            // build or probe.
+            return super.computeSelfCost(planner).multiplyBy(0.5);
+        }
+
+        @Override
+        public List<RelCollation> getCollationList() {
+            switch (joinType) {
+            case INNER:
+            case LEFT:
+                // Rows are returned in the order of the left input, whose
+                // fields are the leading fields of the output.
+                return left.getCollationList();
+            default:
+                return Collections.emptyList();
             }
+        }
 
-            return new EnumerableCalcRel(
-                rel.getCluster(),
-                rel.getTraitSet().replace(
-                    EnumerableConvention.ARRAY),
-                convert(
-                    calc.getChild(),
-                    calc.getTraitSet().replace(EnumerableConvention.ARRAY)),
-                calc.getProgram(),
-                ProjectRelBase.Flags.Boxed);
-        }
-    }
-
-    /**
-     * Rule to convert an {@link EnumerableCalcRel} on an
-     * {@link EnumerableConvention#ARRAY} input to one on a
-     * {@link EnumerableConvention#CUSTOM} input.
-     */
-    public static class EnumerableCustomCalcRule extends RelOptRule {
-        public static final RelOptRule INSTANCE =
-            new EnumerableCustomCalcRule();
-
-        private EnumerableCustomCalcRule() {
-            super(
-                new RelOptRuleOperand(
-                    EnumerableCalcRel.class,
-                    (RelTrait) null,
-                    new RelOptRuleOperand(
-                        RelNode.class,
-                        EnumerableConvention.ARRAY,
-                        RelOptRuleOperand.Dummy.ANY)),
-                "EnumerableCustomCalcRule");
+        public BlockExpression implement(EnumerableRelImplementor implementor) {
+            BlockBuilder list = new BlockBuilder();
+            Expression leftExpression =
+                list.append(
+                    "left",
+                    implementor.visitChild(this, 0, (EnumerableRel) left));
+            Expression rightExpression =
+                list.append(
+                    "right",
+                    implementor.visitChild(this, 1, (EnumerableRel) right));
+            final PhysType leftPhysType = ((EnumerableRel) left).getPhysType();
+            final PhysType rightPhysType =
+                ((EnumerableRel) right).getPhysType();
+
+            // Compare keys in the order that the inputs are sorted on them.
+            // If the inputs chosen by the planner turn out not to be sorted,
+            // sort them.
+            List<Integer> order =
+                mergeKeyOrder(
+                    left.getCollationList(), leftKeys,
+                    right.getCollationList(), rightKeys);
+            if (order == null) {
+                order = new ArrayList<Integer>();
+                for (int i = 0; i < leftKeys.size(); i++) {
+                    order.add(i);
+                }
+                leftExpression =
+                    sort(list, "left", leftExpression, leftPhysType, leftKeys);
+                rightExpression =
+                    sort(
+                        list, "right", rightExpression, rightPhysType,
+                        rightKeys);
+            }
+            final List<Integer> leftMergeKeys = new ArrayList<Integer>();
+            final List<Integer> rightMergeKeys = new ArrayList<Integer>();
+            for (int i : order) {
+                leftMergeKeys.add(leftKeys.get(i));
+                rightMergeKeys.add(rightKeys.get(i));
+            }
+            return list.append(
+                Expressions.call(
+                    BuiltinMethod.SORTED_MERGE_JOIN.method,
+                    leftExpression,
+                    rightExpression,
+                    leftPhysType.generateAccessor(leftMergeKeys),
+                    rightPhysType.generateAccessor(rightMergeKeys),
+                    generateSelector(true),
+                    Expressions.constant(joinType.generatesNullsOnLeft()),
+                    Expressions.constant(joinType.generatesNullsOnRight())))
+                .toBlock();
         }
 
-        public void onMatch(RelOptRuleCall call) {
-            final EnumerableCalcRel calc =
-                (EnumerableCalcRel) call.getRels()[0];
-            final RelTraitSet traitSet =
-                calc.getTraitSet().replace(EnumerableConvention.CUSTOM);
-            call.transformTo(
-                new EnumerableCalcRel(
-                    calc.getCluster(),
-                    calc.getTraitSet(),
-                    convert(call.getRels()[1], traitSet),
-                    calc.getProgram(),
-                    calc.flags));
+        /** Sorts an input on its join keys, ascending. */
+        private static Expression sort(
+            BlockBuilder list,
+            String name,
+            Expression expression,
+            PhysType physType,
+            List<Integer> keys)
+        {
+            final List<RelFieldCollation> collations =
+                new ArrayList<RelFieldCollation>();
+            for (int key : keys) {
+                collations.add(
+                    new RelFieldCollation(
+                        key,
+                        RelFieldCollation.Direction.Ascending,
+                        RelFieldCollation.NullDirection.LAST));
+            }
+            final Pair<Expression, Expression> pair =
+                physType.generateCollationKey(collations);
+            return list.append(
+                name + "Sorted",
+                Expressions.call(
+                    expression,
+                    BuiltinMethod.ORDER_BY.method,
+                    list.append(name + "KeySelector", pair.left),
+                    list.append(name + "Comparator", pair.right)));
         }
-    }
-
-    public static final ConverterRule ENUMERABLE_ARRAY_FROM_CUSTOM_RULE =
-        new EnumerableConverterRule(
-            EnumerableConvention.ARRAY,
-            EnumerableConvention.CUSTOM);
-
-    public static final ConverterRule ENUMERABLE_CUSTOM_FROM_ARRAY_RULE =
-        new EnumerableConverterRule(
-            EnumerableConvention.CUSTOM,
-            EnumerableConvention.ARRAY);
 
-    /**
-     * Rule to convert a relational expression from
-     * {@link EnumerableConvention#ARRAY} to another
-     * {@link EnumerableConvention}.
-     */
-    private static class EnumerableConverterRule extends ConverterRule {
-        private EnumerableConverterRule(
-            EnumerableConvention out, EnumerableConvention in)
+        /** Returns the order in which to compare the join keys so that both
+         * inputs are sorted ascending on them, or null if there is no such
+         * order.
+         *
+         * <p>For example, if the keys are (a, b) on the left and (x, y) on
+         * the right, the left is sorted on (b, a, c) and the right on (y,
+         * x), returns [1, 0].</p> */
+        static List<Integer> mergeKeyOrder(
+            List<RelCollation> leftCollations,
+            List<Integer> leftKeys,
+            List<RelCollation> rightCollations,
+            List<Integer> rightKeys)
         {
-            super(
-                RelNode.class, in, out,
-                "Enumerable-" + in.name() + "-to-" + out.name());
+            final int n = leftKeys.size();
+            for (RelCollation leftCollation : leftCollations) {
+                final List<RelFieldCollation> leftFields =
+                    leftCollation.getFieldCollations();
+            loop:
+                for (RelCollation rightCollation : rightCollations) {
+                    final List<RelFieldCollation> rightFields =
+                        rightCollation.getFieldCollations();
+                    if (leftFields.size() < n || rightFields.size() < n) {
+                        continue;
+                    }
+                    final List<Integer> order = new ArrayList<Integer>();
+                    for (int p = 0; p < n; p++) {
+                        final RelFieldCollation leftField = leftFields.get(p);
+                        final RelFieldCollation rightField =
+                            rightFields.get(p);
+                        if (!isAscending(leftField)
+                            || !isAscending(rightField))
+                        {
+                            continue loop;
+                        }
+                        int k = -1;
+                        for (int i = 0; i < n; i++) {
+                            if (leftKeys.get(i) == leftField.getFieldIndex()
+                                && rightKeys.get(i)
+                                == rightField.getFieldIndex()
+                                && !order.contains(i))
+                            {
+                                k = i;
+                                break;
+                            }
+                        }
+                        if (k < 0) {
+                            continue loop;
+                        }
+                        order.add(k);
+                    }
+                    return order;
+                }
+            }
+            return null;
         }
 
-        @Override
-        public RelNode convert(RelNode rel) {
-            if (rel instanceof EnumerableTableAccessRel) {
-                // The physical row type of a table access is baked in.
-                return null;
-            }
-            RelTraitSet newTraitSet =
-                rel.getTraitSet().replace(
-                    ConventionTraitDef.instance, getOutTrait());
-            if (rel instanceof EnumerableSortRel) {
-                // The physical row type of a sort must be the same as its
-                // input.
-                EnumerableSortRel sortRel = (EnumerableSortRel) rel;
-                return sortRel.copy(
-                    newTraitSet,
-                    convert(sortRel.getChild(), newTraitSet),
-                    sortRel.getCollations());
+        private static boolean isAscending(RelFieldCollation collation) {
+            switch (collation.getDirection()) {
+            case Ascending:
+            case StrictlyAscending:
+                return true;
+            default:
+                return false;
             }
-            return rel.copy(newTraitSet, rel.getInputs());
         }
     }
 
-    public static class EnumerableCalcRel
-        extends SingleRel
+    /**
+     * Join that tests every pair of rows against the join condition, which
+     * may be any predicate. Holds the right input in memory a chunk at a
+     * time, and reads the left input once per chunk. Supports inner and
+     * outer joins.
+     */
+    public static class EnumerableNestedLoopJoinRel
+        extends JoinRelBase
         implements EnumerableRel
     {
-        private final RexProgram program;
-
-        private final PhysType physType;
-
-        /**
-         * Values defined in {@link org.eigenbase.rel.ProjectRelBase.Flags}.
-         */
-        protected int flags;
+        protected final PhysType physType;
 
-        public EnumerableCalcRel(
+        protected EnumerableNestedLoopJoinRel(
             RelOptCluster cluster,
-            RelTraitSet traitSet,
-            RelNode child,
-            RexProgram program,
-            int flags)
+            RelTraitSet traits,
+            RelNode left,
+            RelNode right,
+            RexNode condition,
+            JoinRelType joinType,
+            Set<String> variablesStopped)
+            throws InvalidRelException
         {
-            super(cluster, traitSet, child);
-            assert getConvention() instanceof EnumerableConvention;
-            this.flags = flags;
-            this.program = program;
-            this.rowType = program.getOutputRowType();
+            super(
+                cluster,
+                traits,
+                left,
+                right,
+                condition,
+                joinType,
+                variablesStopped);
             this.physType =
                 PhysTypeImpl.of(
                     (JavaTypeFactory) cluster.getTypeFactory(),
@@ -534,46 +896,1243 @@ public class JavaRules {
             return physType;
         }
 
-        public RelOptPlanWriter explainTerms(RelOptPlanWriter pw) {
-            return program.explainCalc(super.explainTerms(pw));
+        @Override
+        public EnumerableNestedLoopJoinRel copy(
+            RelTraitSet traitSet,
+            RexNode conditionExpr,
+            RelNode left,
+            RelNode right)
+        {
+            try {
+                return new EnumerableNestedLoopJoinRel(
+                    getCluster(),
+                    traitSet,
+                    left,
+                    right,
+                    conditionExpr,
+                    joinType,
+                    variablesStopped);
+            } catch (InvalidRelException e) {
+                // Semantic error not possible. Must be a bug. Convert to
+                // internal error.
+                throw new AssertionError(e);
+            }
         }
 
-        public double getRows() {
-            return FilterRel.estimateFilteredRows(
-                getChild(), program);
+        @Override
+        public RelOptCost computeSelfCost(RelOptPlanner planner) {
+            // Evaluates the condition for every pair of rows.
+            final Double rowCount = RelMetadataQuery.getRowCount(this);
+            final Double leftRowCount = RelMetadataQuery.getRowCount(left);
+            final Double rightRowCount = RelMetadataQuery.getRowCount(right);
+            if (rowCount == null
+                || leftRowCount == null
+                || rightRowCount == null)
+            {
+                // No statistics; don't choose this join unless there is no
+                // other way.
+                return planner.makeHugeCost();
+            }
+            return planner.makeCost(rowCount, leftRowCount * rightRowCount, 0);
         }
 
-        public RelOptCost computeSelfCost(RelOptPlanner planner) {
-            double dRows = RelMetadataQuery.getRowCount(this);
-            double dCpu =
-                RelMetadataQuery.getRowCount(getChild())
-                * program.getExprCount();
-            double dIo = 0;
-            return planner.makeCost(dRows, dCpu, dIo);
+        public BlockExpression implement(EnumerableRelImplementor implementor) {
+            final JavaTypeFactory typeFactory =
+                (JavaTypeFactory) implementor.getTypeFactory();
+            BlockBuilder list = new BlockBuilder();
+            Expression leftExpression =
+                list.append(
+                    "left",
+                    implementor.visitChild(this, 0, (EnumerableRel) left));
+            Expression rightExpression =
+                list.append(
+                    "right",
+                    implementor.visitChild(this, 1, (EnumerableRel) right));
+            return list.append(
+                Expressions.call(
+                    BuiltinMethod.NESTED_LOOP_JOIN.method,
+                    leftExpression,
+                    rightExpression,
+                    EnumUtil.joinPredicate(
+                        this, typeFactory, condition, false),
+                    EnumUtil.joinSelector(this, physType, true, false),
+                    Expressions.constant(joinType.generatesNullsOnLeft()),
+                    Expressions.constant(joinType.generatesNullsOnRight())))
+                .toBlock();
         }
+    }
 
-        public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs)
+    /**
+     * Inner join whose condition bounds a column of one input by columns of
+     * the other; for example, {@code a.ts BETWEEN b.start AND b.end}. Sorts
+     * the input that has the bounded column, and finds the rows in range for
+     * each row of the other input by binary search.
+     */
+    public static class EnumerableBandJoinRel
+        extends EnumerableNestedLoopJoinRel
+    {
+        /** Whether the bounded column is in the left input. That input is
+         * sorted; the other input provides the bounds. */
+        final boolean keyOnLeft;
+        final int keyField;
+        /** Field of the other input that is the lower bound, or -1. */
+        final int lowerField;
+        final boolean lowerInclusive;
+        /** Field of the other input that is the upper bound, or -1. */
+        final int upperField;
+        final boolean upperInclusive;
+        /** Rest of the join condition, or TRUE. */
+        final RexNode remaining;
+
+        protected EnumerableBandJoinRel(
+            RelOptCluster cluster,
+            RelTraitSet traits,
+            RelNode left,
+            RelNode right,
+            RexNode condition,
+            JoinRelType joinType,
+            Set<String> variablesStopped)
+            throws InvalidRelException
         {
-            return new EnumerableCalcRel(
-                getCluster(),
-                traitSet,
-                sole(inputs),
-                program.copy(),
-                getFlags());
+            super(
+                cluster,
+                traits,
+                left,
+                right,
+                condition,
+                joinType,
+                variablesStopped);
+            if (joinType != JoinRelType.INNER) {
+                throw new InvalidRelException(
+                    "EnumerableBandJoinRel only supports inner join");
+            }
+
+            // Find comparisons between a left field and a right field of the
+            // same type, each as "leftField op rightField".
+            final int leftCount = left.getRowType().getFieldCount();
+            // The join is inner, so its fields are the fields of the inputs.
+            final List<RelDataTypeField> fields = getRowType().getFieldList();
+            final List<RexNode> conjunctions =
+                RelOptUtil.conjunctions(condition);
+            final List<RexCall> comparisons = new ArrayList<RexCall>();
+            final List<Integer> leftFields = new ArrayList<Integer>();
+            final List<Integer> rightFields = new ArrayList<Integer>();
+            final List<SqlKind> kinds = new ArrayList<SqlKind>();
+            for (RexNode conjunction : conjunctions) {
+                if (!(conjunction instanceof RexCall)) {
+                    continue;
+                }
+                final RexCall call = (RexCall) conjunction;
+                SqlKind kind = call.getOperator().getKind();
+                switch (kind) {
+                case LESS_THAN:
+                case LESS_THAN_OR_EQUAL:
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQUAL:
+                    break;
+                default:
+                    continue;
+                }
+                if (!(call.getOperands()[0] instanceof RexInputRef)
+                    || !(call.getOperands()[1] instanceof RexInputRef))
+                {
+                    continue;
+                }
+                int field0 = ((RexInputRef) call.getOperands()[0]).getIndex();
+                int field1 = ((RexInputRef) call.getOperands()[1]).getIndex();
+                if (field0 >= leftCount && field1 < leftCount) {
+                    final int temp = field0;
+                    field0 = field1;
+                    field1 = temp;
+                    kind = reverse(kind);
+                }
+                if (field0 >= leftCount
+                    || field1 < leftCount
+                    || fields.get(field0).getType().getSqlTypeName()
+                    != fields.get(field1).getType().getSqlTypeName())
+                {
+                    continue;
+                }
+                comparisons.add(call);
+                leftFields.add(field0);
+                rightFields.add(field1 - leftCount);
+                kinds.add(kind);
+            }
+
+            // Choose the bounded column that has the most bounds, preferring
+            // a column of the right input (so the right input is sorted).
+            int bestScore = 0;
+            boolean bestOnLeft = false;
+            int bestKey = -1;
+            int bestLower = -1;
+            int bestUpper = -1;
+            for (boolean onLeft : new boolean[] {false, true}) {
+                final List<Integer> keys = onLeft ? leftFields : rightFields;
+                for (int key : keys) {
+                    int lower = -1;
+                    int upper = -1;
+                    for (int i = 0; i < comparisons.size(); i++) {
+                        if (keys.get(i) != key) {
+                            continue;
+                        }
+                        // If the key is on the left, "key > bound" is a
+                        // lower bound; if on the right, "bound < key" is.
+                        final SqlKind kind = kinds.get(i);
+                        final boolean isLower =
+                            (kind == SqlKind.GREATER_THAN
+                             || kind == SqlKind.GREATER_THAN_OR_EQUAL)
+                            == onLeft;
+                        if (isLower && lower < 0) {
+                            lower = i;
+                        } else if (!isLower && upper < 0) {
+                            upper = i;
+                        }
+                    }
+                    final int score =
+                        (lower >= 0 ? 1 : 0) + (upper >= 0 ? 1 : 0);
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestOnLeft = onLeft;
+                        bestKey = key;
+                        bestLower = lower;
+                        bestUpper = upper;
+                    }
+                }
+            }
+            if (bestScore == 0) {
+                throw new InvalidRelException(
+                    "EnumerableBandJoinRel requires a condition that bounds "
+                    + "a column of one input by a column of the other");
+            }
+            this.keyOnLeft = bestOnLeft;
+            this.keyField = bestKey;
+            final List<Integer> boundFields =
+                bestOnLeft ? rightFields : leftFields;
+            this.lowerField = bestLower < 0 ? -1 : boundFields.get(bestLower);
+            this.lowerInclusive =
+                bestLower >= 0 && isInclusive(kinds.get(bestLower));
+            this.upperField = bestUpper < 0 ? -1 : boundFields.get(bestUpper);
+            this.upperInclusive =
+                bestUpper >= 0 && isInclusive(kinds.get(bestUpper));
+            final List<RexNode> rest = new ArrayList<RexNode>(conjunctions);
+            if (bestLower >= 0) {
+                rest.remove(comparisons.get(bestLower));
+            }
+            if (bestUpper >= 0) {
+                rest.remove(comparisons.get(bestUpper));
+            }
+            this.remaining =
+                RelOptUtil.composeConjunction(cluster.getRexBuilder(), rest);
         }
 
-        public int getFlags()
-        {
-            return flags;
+        private static SqlKind reverse(SqlKind kind) {
+            switch (kind) {
+            case LESS_THAN:
+                return SqlKind.GREATER_THAN;
+            case LESS_THAN_OR_EQUAL:
+                return SqlKind.GREATER_THAN_OR_EQUAL;
+            case GREATER_THAN:
+                return SqlKind.LESS_THAN;
+            case GREATER_THAN_OR_EQUAL:
+                return SqlKind.LESS_THAN_OR_EQUAL;
+            default:
+                return kind;
+            }
         }
 
-        public BlockExpression implement(EnumerableRelImplementor implementor) {
-            final JavaTypeFactory typeFactory =
-                (JavaTypeFactory) implementor.getTypeFactory();
-            final BlockBuilder statements = new BlockBuilder();
-            final EnumerableRel child = (EnumerableRel) getChild();
+        private static boolean isInclusive(SqlKind kind) {
+            return kind == SqlKind.LESS_THAN_OR_EQUAL
+                || kind == SqlKind.GREATER_THAN_OR_EQUAL;
+        }
 
-            // final Enumerable<Employee> inputEnumerable = <<child impl>>;
+        @Override
+        public EnumerableBandJoinRel copy(
+            RelTraitSet traitSet,
+            RexNode conditionExpr,
+            RelNode left,
+            RelNode right)
+        {
+            try {
+                return new EnumerableBandJoinRel(
+                    getCluster(),
+                    traitSet,
+                    left,
+                    right,
+                    conditionExpr,
+                    joinType,
+                    variablesStopped);
+            } catch (InvalidRelException e) {
+                // Semantic error not possible. Must be a bug. Convert to
+                // internal error.
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public RelOptCost computeSelfCost(RelOptPlanner planner) {
+            // Sorts one input, then does a binary search for each row of the
+            // other.
+            double rowCount = RelMetadataQuery.getRowCount(this);
+            double sortedRowCount =
+                RelMetadataQuery.getRowCount(keyOnLeft ? left : right);
+            double probeRowCount =
+                RelMetadataQuery.getRowCount(keyOnLeft ? right : left);
+            double cpu =
+                (sortedRowCount + probeRowCount)
+                * Math.log(Math.max(sortedRowCount, 2d));
+            return planner.makeCost(rowCount, cpu, 0);
+        }
+
+        public BlockExpression implement(EnumerableRelImplementor implementor) {
+            final JavaTypeFactory typeFactory =
+                (JavaTypeFactory) implementor.getTypeFactory();
+            BlockBuilder list = new BlockBuilder();
+            Expression leftExpression =
+                list.append(
+                    "left",
+                    implementor.visitChild(this, 0, (EnumerableRel) left));
+            Expression rightExpression =
+                list.append(
+                    "right",
+                    implementor.visitChild(this, 1, (EnumerableRel) right));
+            final PhysType leftPhysType = ((EnumerableRel) left).getPhysType();
+            final PhysType rightPhysType =
+                ((EnumerableRel) right).getPhysType();
+
+            // The sorted input is the "inner" input of the band join; if
+            // it is the left input, swap the inputs.
+            final PhysType keyPhysType =
+                keyOnLeft ? leftPhysType : rightPhysType;
+            final PhysType boundPhysType =
+                keyOnLeft ? rightPhysType : leftPhysType;
+            return list.append(
+                Expressions.call(
+                    BuiltinMethod.BAND_JOIN.method,
+                    keyOnLeft ? rightExpression : leftExpression,
+                    keyOnLeft ? leftExpression : rightExpression,
+                    lowerField < 0
+                        ? Expressions.constant(null)
+                        : boundPhysType.generateAccessor(
+                            Collections.singletonList(lowerField)),
+                    Expressions.constant(lowerInclusive),
+                    upperField < 0
+                        ? Expressions.constant(null)
+                        : boundPhysType.generateAccessor(
+                            Collections.singletonList(upperField)),
+                    Expressions.constant(upperInclusive),
+                    keyPhysType.generateAccessor(
+                        Collections.singletonList(keyField)),
+                    remaining.isAlwaysTrue()
+                        ? Expressions.constant(null)
+                        : EnumUtil.joinPredicate(
+                            this, typeFactory, remaining, keyOnLeft),
+                    EnumUtil.joinSelector(this, physType, false, keyOnLeft)))
+                .toBlock();
+        }
+    }
+
+    public static final RelOptRule ENUMERABLE_SEMI_JOIN_RULE =
+        new EnumerableSemiJoinRule(SemiJoinRel.class, "EnumerableSemiJoinRule");
+
+    public static final RelOptRule ENUMERABLE_ANTI_JOIN_RULE =
+        new EnumerableSemiJoinRule(AntiJoinRel.class, "EnumerableAntiJoinRule");
+
+    /**
+     * Rule to convert a {@link SemiJoinRel} or {@link AntiJoinRel} to an
+     * {@link EnumerableSemiJoinRel}.
+     */
+    private static class EnumerableSemiJoinRule extends ConverterRule {
+        private EnumerableSemiJoinRule(
+            Class<? extends JoinRelBase> clazz,
+            String description)
+        {
+            super(
+                clazz,
+                Convention.NONE,
+                EnumerableConvention.CUSTOM,
+                description);
+        }
+
+        @Override
+        public RelNode convert(RelNode rel) {
+            final JoinRelBase join = (JoinRelBase) rel;
+            final boolean anti = join instanceof AntiJoinRel;
+            List<RelNode> newInputs = new ArrayList<RelNode>();
+            for (RelNode input : join.getInputs()) {
+                if (!(input.getConvention() instanceof EnumerableConvention)) {
+                    input =
+                        convert(
+                            input,
+                            input.getTraitSet()
+                                .replace(EnumerableConvention.CUSTOM));
+                }
+                newInputs.add(input);
+            }
+            return new EnumerableSemiJoinRel(
+                join.getCluster(),
+                join.getTraitSet().replace(EnumerableConvention.CUSTOM),
+                newInputs.get(0),
+                newInputs.get(1),
+                join.getCondition(),
+                anti
+                    ? ((AntiJoinRel) join).getLeftKeys()
+                    : ((SemiJoinRel) join).getLeftKeys(),
+                anti
+                    ? ((AntiJoinRel) join).getRightKeys()
+                    : ((SemiJoinRel) join).getRightKeys(),
+                anti);
+        }
+    }
+
+    /**
+     * Semi-join or anti-join in the Enumerable convention. Returns each left
+     * row that has (or, if anti, does not have) a right row with equal keys.
+     * Builds a hash set of the right keys and probes it once per left row, so
+     * it never creates a joined row.
+     */
+    public static class EnumerableSemiJoinRel
+        extends JoinRelBase
+        implements EnumerableRel
+    {
+        private final PhysType physType;
+        final ImmutableIntList leftKeys;
+        final ImmutableIntList rightKeys;
+        /** Whether this is an anti-join. */
+        final boolean anti;
+
+        protected EnumerableSemiJoinRel(
+            RelOptCluster cluster,
+            RelTraitSet traits,
+            RelNode left,
+            RelNode right,
+            RexNode condition,
+            List<Integer> leftKeys,
+            List<Integer> rightKeys,
+            boolean anti)
+        {
+            super(
+                cluster,
+                traits,
+                left,
+                right,
+                condition,
+                JoinRelType.INNER,
+                Collections.<String>emptySet());
+            this.leftKeys = ImmutableIntList.of(leftKeys);
+            this.rightKeys = ImmutableIntList.of(rightKeys);
+            this.anti = anti;
+            this.physType =
+                PhysTypeImpl.of(
+                    (JavaTypeFactory) cluster.getTypeFactory(),
+                    getRowType(),
+                    (EnumerableConvention) getConvention());
+        }
+
+        public PhysType getPhysType() {
+            return physType;
+        }
+
+        @Override
+        public EnumerableSemiJoinRel copy(
+            RelTraitSet traitSet,
+            RexNode conditionExpr,
+            RelNode left,
+            RelNode right)
+        {
+            return new EnumerableSemiJoinRel(
+                getCluster(),
+                traitSet,
+                left,
+                right,
+                conditionExpr,
+                leftKeys,
+                rightKeys,
+                anti);
+        }
+
+        @Override
+        public RelDataType deriveRowType() {
+            // Only the columns of the left input.
+            return deriveJoinRowType(
+                left.getRowType(),
+                null,
+                JoinRelType.INNER,
+                getCluster().getTypeFactory(),
+                null,
+                Collections.<RelDataTypeField>emptyList());
+        }
+
+        @Override
+        public RelOptPlanWriter explainTerms(RelOptPlanWriter pw) {
+            return super.explainTerms(pw)
+                .itemIf("anti", anti, anti);
+        }
+
+        @Override
+        public RelOptCost computeSelfCost(RelOptPlanner planner) {
+            // Reads each input once, and creates no rows.
+            double cpu =
+                RelMetadataQuery.getRowCount(left)
+                + RelMetadataQuery.getRowCount(right);
+            return planner.makeCost(RelMetadataQuery.getRowCount(this), cpu, 0);
+        }
+
+        @Override
+        public double getRows() {
+            final double selectivity = RexUtil.getSelectivity(condition);
+            return RelMetadataQuery.getRowCount(left)
+                * (anti ? 1d - selectivity : selectivity);
+        }
+
+        @Override
+        public List<RelCollation> getCollationList() {
+            // Left rows are returned in the order they are read.
+            return left.getCollationList();
+        }
+
+        public BlockExpression implement(EnumerableRelImplementor implementor) {
+            BlockBuilder list = new BlockBuilder();
+            Expression leftExpression =
+                list.append(
+                    "left",
+                    implementor.visitChild(this, 0, (EnumerableRel) left));
+            Expression rightExpression =
+                list.append(
+                    "right",
+                    implementor.visitChild(this, 1, (EnumerableRel) right));
+            final PhysType leftPhysType = ((EnumerableRel) left).getPhysType();
+            final PhysType rightPhysType =
+                ((EnumerableRel) right).getPhysType();
+            return list.append(
+                Expressions.call(
+                    BuiltinMethod.SEMI_JOIN.method,
+                    leftExpression,
+                    rightExpression,
+                    leftPhysType.generateAccessor(leftKeys),
+                    rightPhysType.generateAccessor(rightKeys),
+                    Expressions.constant(anti)))
+                .toBlock();
+        }
+    }
+
+    /**
+     * Utilities for generating programs in the Enumerable (functional)
+     * style.
+     */
+    public static class EnumUtil
+    {
+        /** Declares a method that overrides another method. */
+        static MethodDeclaration overridingMethodDecl(
+            Method method,
+            Iterable<ParameterExpression> parameters,
+            BlockExpression body)
+        {
+            return Expressions.methodDecl(
+                method.getModifiers() & ~Modifier.ABSTRACT,
+                method.getReturnType(),
+                method.getName(),
+                parameters,
+                body);
+        }
+
+        static Type javaClass(
+            JavaTypeFactory typeFactory, RelDataType type)
+        {
+            final Type clazz = typeFactory.getJavaClass(type);
+            return clazz instanceof Class ? clazz : Object[].class;
+        }
+
+        /** Generates a function that creates an output row of a join from
+         * a left and a right row.
+         *
+         * @param join Join
+         * @param physType Physical type of the join's output
+         * @param nullable Whether the input on the null-generating side of
+         *     an outer join may be null
+         * @param swapped Whether the function takes the right row as its
+         *     first parameter and the left row as its second
+         */
+        static Expression joinSelector(
+            JoinRelBase join,
+            PhysType physType,
+            boolean nullable,
+            boolean swapped)
+        {
+            // A parameter for each input.
+            final List<ParameterExpression> parameters =
+                new ArrayList<ParameterExpression>();
+
+            // Generate all fields.
+            final List<Expression> expressions =
+                new ArrayList<Expression>();
+            for (Ord<RelNode> rel : Ord.zip(join.getInputs())) {
+                PhysType inputPhysType = ((EnumerableRel) rel.e).getPhysType();
+                final ParameterExpression parameter =
+                    Expressions.parameter(
+                        inputPhysType.getJavaRowType(),
+                        LEFT_RIGHT[rel.i]);
+                parameters.add(parameter);
+                // In an outer join, the input on the null-generating side
+                // is null if there is no matching row.
+                final boolean nullableInput =
+                    nullable
+                    && (rel.i == 0
+                        ? join.getJoinType().generatesNullsOnLeft()
+                        : join.getJoinType().generatesNullsOnRight());
+                int fieldCount = inputPhysType.getRowType().getFieldCount();
+                for (int i = 0; i < fieldCount; i++) {
+                    final Expression expression =
+                        Types.castIfNecessary(
+                            inputPhysType.fieldClass(i),
+                            inputPhysType.fieldReference(parameter, i));
+                    if (!nullableInput) {
+                        expressions.add(expression);
+                        continue;
+                    }
+                    final Class boxClass =
+                        Primitive.box(inputPhysType.fieldClass(i));
+                    expressions.add(
+                        Expressions.condition(
+                            Expressions.equal(
+                                parameter, Expressions.constant(null)),
+                            Expressions.constant(null, boxClass),
+                            Types.castIfNecessary(boxClass, expression)));
+                }
+            }
+            if (swapped) {
+                Collections.reverse(parameters);
+            }
+            return Expressions.lambda(
+                Function2.class,
+                physType.record(expressions),
+                parameters);
+        }
+
+        /** Generates a predicate that evaluates a condition on a left and a
+         * right row of a join. The condition references the fields of the
+         * left input followed by the fields of the right input.
+         *
+         * @param join Join
+         * @param typeFactory Type factory
+         * @param condition Condition
+         * @param swapped Whether the predicate takes the right row as its
+         *     first parameter and the left row as its second
+         */
+        static Expression joinPredicate(
+            JoinRelBase join,
+            JavaTypeFactory typeFactory,
+            RexNode condition,
+            boolean swapped)
+        {
+            final RelDataType inputRowType =
+                JoinRelBase.createJoinType(
+                    typeFactory,
+                    join.getLeft().getRowType(),
+                    join.getRight().getRowType(),
+                    null,
+                    Collections.<RelDataTypeField>emptyList());
+            final RexProgramBuilder programBuilder =
+                new RexProgramBuilder(
+                    inputRowType, join.getCluster().getRexBuilder());
+            programBuilder.addCondition(condition);
+            final List<ParameterExpression> parameters =
+                new ArrayList<ParameterExpression>();
+            final List<Pair<Expression, PhysType>> inputs =
+                new ArrayList<Pair<Expression, PhysType>>();
+            for (Ord<RelNode> rel : Ord.zip(join.getInputs())) {
+                PhysType inputPhysType = ((EnumerableRel) rel.e).getPhysType();
+                final ParameterExpression parameter =
+                    Expressions.parameter(
+                        inputPhysType.getJavaRowType(),
+                        LEFT_RIGHT[rel.i]);
+                parameters.add(parameter);
+                inputs.add(
+                    Pair.<Expression, PhysType>of(parameter, inputPhysType));
+            }
+            final BlockBuilder builder = new BlockBuilder();
+            builder.add(
+                Expressions.return_(
+                    null,
+                    RexToLixTranslator.translateCondition(
+                        programBuilder.getProgram(),
+                        typeFactory,
+                        builder,
+                        new RexToLixTranslator.InputGetterImpl(inputs))));
+            if (swapped) {
+                Collections.reverse(parameters);
+            }
+            return Expressions.lambda(
+                Predicate2.class, builder.toBlock(), parameters);
+        }
+
+        /** Finds where to apply a join filter on a field of the probe input
+         * of a hash join. Follows the field down through relational
+         * expressions that pass it through unchanged, and on which
+         * discarding input rows whose value does not match only discards
+         * output rows whose value does not match: projections and filters,
+         * sorts without a limit, the left input of semi-joins, and inner
+         * joins. Returns the lowest such expression and the ordinal of the
+         * field in its output.
+         *
+         * <p>A plan is a DAG: the same relational expression may occur more
+         * than once beneath the probe input, for example both scans of a
+         * self-join. The filter is registered on a relational expression,
+         * and would be applied to whichever occurrence is implemented first;
+         * so the search stops above any expression that occurs more than
+         * once.</p> */
+        static Pair<EnumerableRel, Integer> joinFilterTarget(
+            EnumerableRel rel,
+            int field)
+        {
+            final Map<RelNode, Integer> occurrences =
+                new IdentityHashMap<RelNode, Integer>();
+            countOccurrences(rel, occurrences);
+            for (;;) {
+                final RelNode input;
+                final int inputField;
+                if (rel instanceof EnumerableCalcRel) {
+                    final EnumerableCalcRel calc = (EnumerableCalcRel) rel;
+                    input = calc.getChild();
+                    inputField = calc.getProgram().getSourceField(field);
+                } else if (rel instanceof EnumerableSortRel
+                    && ((EnumerableSortRel) rel).offset == null
+                    && ((EnumerableSortRel) rel).fetch == null)
+                {
+                    input = ((EnumerableSortRel) rel).getChild();
+                    inputField = field;
+                } else if (rel instanceof EnumerableSemiJoinRel) {
+                    input = ((EnumerableSemiJoinRel) rel).getLeft();
+                    inputField = field;
+                } else if (rel instanceof EnumerableJoinRel
+                    && ((EnumerableJoinRel) rel).getJoinType()
+                    == JoinRelType.INNER)
+                {
+                    final EnumerableJoinRel join = (EnumerableJoinRel) rel;
+                    final int leftCount =
+                        join.getLeft().getRowType().getFieldCount();
+                    if (field < leftCount) {
+                        input = join.getLeft();
+                        inputField = field;
+                    } else {
+                        input = join.getRight();
+                        inputField = field - leftCount;
+                    }
+                } else {
+                    break;
+                }
+                if (inputField < 0
+                    || !(input instanceof EnumerableRel)
+                    || occurrences.get(input) > 1)
+                {
+                    break;
+                }
+                rel = (EnumerableRel) input;
+                field = inputField;
+            }
+            return Pair.of(rel, field);
+        }
+
+        /** Counts how many times each relational expression occurs in the
+         * tree rooted at a given relational expression. */
+        private static void countOccurrences(
+            RelNode rel,
+            Map<RelNode, Integer> occurrences)
+        {
+            final Integer count = occurrences.get(rel);
+            occurrences.put(rel, count == null ? 1 : count + 1);
+            for (RelNode input : rel.getInputs()) {
+                countOccurrences(input, occurrences);
+            }
+        }
+
+        static Class javaRowClass(
+            JavaTypeFactory typeFactory, RelDataType type)
+        {
+            if (type.isStruct() && type.getFieldCount() == 1) {
+                type = type.getFieldList().get(0).getType();
+            }
+            final Type clazz = typeFactory.getJavaClass(type);
+            return clazz instanceof Class ? (Class) clazz : Object[].class;
+        }
+    }
+
+    public static class EnumerableTableAccessRel
+        extends TableAccessRelBase
+        implements EnumerableRel
+    {
+        private final Expression expression;
+        private final PhysType physType;
+        private final Class elementType;
+
+        /** Maximum number of rows to read, or -1 to read all rows. Only
+         * set if the table is a {@link LimitableTable}. */
+        public final int fetch;
+
+        public EnumerableTableAccessRel(
+            RelOptCluster cluster,
+            RelTraitSet traitSet,
+            RelOptTable table,
+            Expression expression,
+            Class elementType)
+        {
+            this(cluster, traitSet, table, expression, elementType, -1);
+        }
+
+        public EnumerableTableAccessRel(
+            RelOptCluster cluster,
+            RelTraitSet traitSet,
+            RelOptTable table,
+            Expression expression,
+            Class elementType,
+            int fetch)
+        {
+            super(cluster, traitSet, table);
+            assert getConvention() instanceof EnumerableConvention;
+            assert fetch < 0 || table.unwrap(LimitableTable.class) != null;
+            this.elementType = elementType;
+            this.fetch = fetch;
+            if (Types.isArray(expression.getType())) {
+                if (Types.toClass(expression.getType()).getComponentType()
+                    .isPrimitive())
+                {
+                    expression = Expressions.call(
+                        BuiltinMethod.AS_LIST.method,
+                        expression);
+                }
+                expression =
+                    Expressions.call(
+                        BuiltinMethod.AS_ENUMERABLE.method,
+                        expression);
+            } else if (Types.isAssignableFrom(
+                    Iterable.class, expression.getType())
+                && !Types.isAssignableFrom(
+                    Enumerable.class, expression.getType()))
+            {
+                expression =
+                    Expressions.call(
+                        BuiltinMethod.AS_ENUMERABLE2.method,
+                        expression);
+            }
+            this.expression = expression;
+
+            // Note that representation is ARRAY. This assumes that the table
+            // returns a Object[] for each record. Actually a Table<T> can
+            // return any type T. And, if it is a JdbcTable, we'd like to be
+            // able to generate alternate accessors that return e.g. synthetic
+            // records {T0 f0; T1 f1; ...} and don't box every primitive value.
+            this.physType =
+                PhysTypeImpl.of(
+                    (JavaTypeFactory) cluster.getTypeFactory(),
+                    getRowType(),
+                    ((EnumerableConvention) getConvention()).format);
+        }
+
+
+        @Override
+        public RelNode copy(
+            RelTraitSet traitSet, List<RelNode> inputs)
+        {
+            return new EnumerableTableAccessRel(
+                getCluster(), traitSet, table, expression, elementType,
+                fetch);
+        }
+
+        /** Creates a copy of this table access that reads at most
+         * {@code fetch} rows. */
+        public EnumerableTableAccessRel withFetch(int fetch) {
+            return new EnumerableTableAccessRel(
+                getCluster(), getTraitSet(), table, expression, elementType,
+                fetch);
+        }
+
+        @Override
+        public RelOptPlanWriter explainTerms(RelOptPlanWriter pw) {
+            return super.explainTerms(pw)
+                .itemIf("fetch", fetch, fetch >= 0);
+        }
+
+        @Override
+        public double getRows() {
+            final double rows = super.getRows();
+            return fetch >= 0 ? Math.min(rows, fetch) : rows;
+        }
+
+        public PhysType getPhysType() {
+            return physType;
+        }
+
+        public BlockExpression implement(EnumerableRelImplementor implementor) {
+            Expression expression = this.expression;
+            if (fetch >= 0) {
+                // Ask the table to read only the first rows.
+                expression =
+                    Expressions.call(
+                        Expressions.convert_(
+                            expression, LimitableTable.class),
+                        BuiltinMethod.LIMITABLE_TABLE_LIMIT.method,
+                        Expressions.constant(fetch));
+            } else if (implementor.getPartition(this) != null) {
+                // A gather above reads each partition of the table in a
+                // separate thread; read only the current partition.
+                final Pair<Expression, Integer> partition =
+                    implementor.getPartition(this);
+                expression =
+                    Expressions.call(
+                        Expressions.convert_(
+                            expression, PartitionableTable.class),
+                        BuiltinMethod.PARTITIONABLE_TABLE_PARTITION.method,
+                        partition.left,
+                        Expressions.constant(partition.right));
+            } else if (table.unwrap(RangeFilterableTable.class) != null) {
+                // If a hash join above will discard rows whose key is outside
+                // the range of its build side, ask the table to read only
+                // that range.
+                for (Pair<Integer, Expression> filter
+                    : implementor.getJoinFilters(this))
+                {
+                    expression =
+                        Expressions.call(
+                            Expressions.convert_(
+                                expression, RangeFilterableTable.class),
+                            BuiltinMethod.RANGE_FILTERABLE_TABLE_RANGE.method,
+                            Expressions.constant(filter.left),
+                            filter.right);
+                    break;
+                }
+            }
+            // Check whether the statement has been canceled before fetching
+            // each row.
+            return Blocks.toBlock(
+                Expressions.call(
+                    BuiltinMethod.CANCELLABLE.method,
+                    implementor.getRootExpression(),
+                    expression));
+        }
+    }
+
+    public static final RelOptRule ENUMERABLE_LIMIT_TABLE_RULE =
+        new EnumerableLimitTableRule();
+
+    /**
+     * Rule that pushes the limit of an {@link EnumerableSortRel} that has a
+     * FETCH but no sort keys into an {@link EnumerableTableAccessRel} of a
+     * {@link LimitableTable}, so that the table reads only as many rows as
+     * are needed.
+     *
+     * <p>The sort remains, to apply the OFFSET; the table returns the first
+     * OFFSET + FETCH rows.</p>
+     */
+    private static class EnumerableLimitTableRule extends RelOptRule {
+        private EnumerableLimitTableRule() {
+            super(
+                new RelOptRuleOperand(
+                    EnumerableSortRel.class,
+                    new RelOptRuleOperand(
+                        EnumerableTableAccessRel.class, ANY)),
+                "EnumerableLimitTableRule");
+        }
+
+        public void onMatch(RelOptRuleCall call) {
+            final EnumerableSortRel sort =
+                (EnumerableSortRel) call.getRels()[0];
+            final EnumerableTableAccessRel scan =
+                (EnumerableTableAccessRel) call.getRels()[1];
+            if (!sort.getCollations().isEmpty()
+                || !(sort.fetch instanceof RexLiteral)
+                || (sort.offset != null
+                    && !(sort.offset instanceof RexLiteral))
+                || scan.getTable().unwrap(LimitableTable.class) == null)
+            {
+                return;
+            }
+            final long limit =
+                RexLiteral.longValue(sort.fetch)
+                + (sort.offset == null
+                    ? 0
+                    : RexLiteral.longValue(sort.offset));
+            if (limit > Integer.MAX_VALUE
+                || scan.fetch >= 0 && scan.fetch <= limit)
+            {
+                return;
+            }
+            call.transformTo(
+                sort.copy(
+                    sort.getTraitSet(),
+                    Collections.<RelNode>singletonList(
+                        scan.withFetch((int) limit))));
+        }
+    }
+
+    public static final EnumerableCalcRule ENUMERABLE_CALC_RULE =
+        new EnumerableCalcRule();
+
+    /**
+     * Rule to convert a {@link CalcRel} to an
+     * {@link EnumerableCalcRel}.
+     */
+    private static class EnumerableCalcRule
+        extends ConverterRule
+    {
+        private EnumerableCalcRule()
+        {
+            super(
+                CalcRel.class,
+                Convention.NONE,
+                EnumerableConvention.ARRAY,
+                "EnumerableCalcRule");
+        }
+
+        public RelNode convert(RelNode rel)
+        {
+            final CalcRel calc = (CalcRel) rel;
+
+            // If there's a multiset, let FarragoMultisetSplitter work on it
+            // first.
+            if (RexMultisetUtil.containsMultiset(calc.getProgram())) {
+                return null;
+            }
+
+            // If there's a windowed aggregate, let WindowedAggSplitterRule
+            // work on it first.
+            if (RexOver.containsOver(calc.getProgram())) {
+                return null;
+            }
+
+            return new EnumerableCalcRel(
+                rel.getCluster(),
+                rel.getTraitSet().replace(
+                    EnumerableConvention.ARRAY),
+                convert(
+                    calc.getChild(),
+                    calc.getTraitSet().replace(EnumerableConvention.ARRAY)),
+                calc.getProgram(),
+                ProjectRelBase.Flags.Boxed);
+        }
+    }
+
+    public static final EnumerableCalcCollationRule
+    ENUMERABLE_CALC_COLLATION_RULE =
+        new EnumerableCalcCollationRule();
+
+    /**
+     * Rule that creates an {@link EnumerableCalcRel} whose output is sorted,
+     * because its input is sorted on fields that it projects.
+     *
+     * <p>For example, if the input is sorted on (a, b), a calc that projects
+     * (b, a + 1, a) is sorted on (2, 0).</p>
+     */
+    private static class EnumerableCalcCollationRule
+        extends RelOptRule
+    {
+        private EnumerableCalcCollationRule()
+        {
+            super(
+                new RelOptRuleOperand(
+                    EnumerableCalcRel.class,
+                    new RelOptRuleOperand(RelNode.class, ANY)),
+                "EnumerableCalcCollationRule");
+        }
+
+        public void onMatch(RelOptRuleCall call)
+        {
+            final EnumerableCalcRel calc = (EnumerableCalcRel) call.rels[0];
+            final RelNode child = call.rels[1];
+            final RelCollation childCollation =
+                child.getTraitSet().getTrait(RelCollationTraitDef.INSTANCE);
+            if (childCollation == null
+                || childCollation.getFieldCollations().isEmpty()
+                || child.getConvention() != calc.getChild().getConvention())
+            {
+                return;
+            }
+            final List<RelCollation> collations =
+                calc.getProgram().getCollations(
+                    Collections.singletonList(childCollation));
+            if (collations.isEmpty()
+                || calc.getTraitSet().contains(collations.get(0)))
+            {
+                return;
+            }
+            call.transformTo(
+                new EnumerableCalcRel(
+                    calc.getCluster(),
+                    calc.getTraitSet().replace(collations.get(0)),
+                    convert(
+                        calc.getChild(),
+                        calc.getChild().getTraitSet().replace(
+                            childCollation)),
+                    calc.getProgram(),
+                    calc.flags));
+        }
+    }
+
+    /**
+     * Rule to convert an {@link EnumerableCalcRel} on an
+     * {@link EnumerableConvention#ARRAY} input to one on a
+     * {@link EnumerableConvention#CUSTOM} input.
+     */
+    public static class EnumerableCustomCalcRule extends RelOptRule {
+        public static final RelOptRule INSTANCE =
+            new EnumerableCustomCalcRule();
+
+        private EnumerableCustomCalcRule() {
+            super(
+                new RelOptRuleOperand(
+                    EnumerableCalcRel.class,
+                    (RelTrait) null,
+                    new RelOptRuleOperand(
+                        RelNode.class,
+                        EnumerableConvention.ARRAY,
+                        RelOptRuleOperand.Dummy.ANY)),
+                "EnumerableCustomCalcRule");
+        }
+
+        public void onMatch(RelOptRuleCall call) {
+            final EnumerableCalcRel calc =
+                (EnumerableCalcRel) call.getRels()[0];
+            final RelTraitSet traitSet =
+                calc.getTraitSet().replace(EnumerableConvention.CUSTOM);
+            call.transformTo(
+                new EnumerableCalcRel(
+                    calc.getCluster(),
+                    calc.getTraitSet(),
+                    convert(call.getRels()[1], traitSet),
+                    calc.getProgram(),
+                    calc.flags));
+        }
+    }
+
+    public static final ConverterRule ENUMERABLE_ARRAY_FROM_CUSTOM_RULE =
+        new EnumerableConverterRule(
+            EnumerableConvention.ARRAY,
+            EnumerableConvention.CUSTOM);
+
+    public static final ConverterRule ENUMERABLE_CUSTOM_FROM_ARRAY_RULE =
+        new EnumerableConverterRule(
+            EnumerableConvention.CUSTOM,
+            EnumerableConvention.ARRAY);
+
+    /**
+     * Rule to convert a relational expression from
+     * {@link EnumerableConvention#ARRAY} to another
+     * {@link EnumerableConvention}.
+     */
+    private static class EnumerableConverterRule extends ConverterRule {
+        private EnumerableConverterRule(
+            EnumerableConvention out, EnumerableConvention in)
+        {
+            super(
+                RelNode.class, in, out,
+                "Enumerable-" + in.name() + "-to-" + out.name());
+        }
+
+        @Override
+        public RelNode convert(RelNode rel) {
+            if (rel instanceof EnumerableTableAccessRel) {
+                // The physical row type of a table access is baked in.
+                return null;
+            }
+            RelTraitSet newTraitSet =
+                rel.getTraitSet().replace(
+                    ConventionTraitDef.instance, getOutTrait());
+            if (rel instanceof EnumerableSortRel) {
+                // The physical row type of a sort must be the same as its
+                // input.
+                EnumerableSortRel sortRel = (EnumerableSortRel) rel;
+                return sortRel.copy(
+                    newTraitSet,
+                    convert(
+                        sortRel.getChild(),
+                        sortRel.getChild().getTraitSet().replace(
+                            ConventionTraitDef.instance, getOutTrait())),
+                    sortRel.getCollations());
+            }
+            return rel.copy(newTraitSet, rel.getInputs());
+        }
+    }
+
+    public static class EnumerableCalcRel
+        extends SingleRel
+        implements EnumerableRel
+    {
+        private final RexProgram program;
+
+        private final PhysType physType;
+
+        /**
+         * Values defined in {@link org.eigenbase.rel.ProjectRelBase.Flags}.
+         */
+        protected int flags;
+
+        public EnumerableCalcRel(
+            RelOptCluster cluster,
+            RelTraitSet traitSet,
+            RelNode child,
+            RexProgram program,
+            int flags)
+        {
+            super(cluster, traitSet, child);
+            assert getConvention() instanceof EnumerableConvention;
+            this.flags = flags;
+            this.program = program;
+            this.rowType = program.getOutputRowType();
+            this.physType =
+                PhysTypeImpl.of(
+                    (JavaTypeFactory) cluster.getTypeFactory(),
+                    getRowType(),
+                    (EnumerableConvention) getConvention());
+        }
+
+        public PhysType getPhysType() {
+            return physType;
+        }
+
+        public RelOptPlanWriter explainTerms(RelOptPlanWriter pw) {
+            return program.explainCalc(super.explainTerms(pw));
+        }
+
+        public double getRows() {
+            return FilterRel.estimateFilteredRows(
+                getChild(), program);
+        }
+
+        public RelOptCost computeSelfCost(RelOptPlanner planner) {
+            double dRows = RelMetadataQuery.getRowCount(this);
+            double dCpu =
+                RelMetadataQuery.getRowCount(getChild())
+                * program.getExprCount();
+            double dIo = 0;
+            return planner.makeCost(dRows, dCpu, dIo);
+        }
+
+        public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs)
+        {
+            return new EnumerableCalcRel(
+                getCluster(),
+                traitSet,
+                sole(inputs),
+                program.copy(),
+                getFlags());
+        }
+
+        public int getFlags()
+        {
+            return flags;
+        }
+
+        @Override
+        public List<RelCollation> getCollationList() {
+            // Filtering and projecting preserve the order of the input.
+            return program.getCollations(getChild().getCollationList());
+        }
+
+        public BlockExpression implement(EnumerableRelImplementor implementor) {
+            final JavaTypeFactory typeFactory =
+                (JavaTypeFactory) implementor.getTypeFactory();
+            final BlockBuilder statements = new BlockBuilder();
+            final EnumerableRel child = (EnumerableRel) getChild();
+
+            // final Enumerable<Employee> inputEnumerable = <<child impl>>;
             // return new Enumerable<IntString>() {
             //     Enumerator<IntString> enumerator() {
             //         return new Enumerator<IntString>() {
@@ -583,6 +2142,9 @@ public class JavaRules {
             final Type enumeratorType =
                 Types.of(
                     Enumerator.class, outputJavaType);
+            final Type closeableEnumeratorType =
+                Types.of(
+                    Utilities.CloseableEnumerator.class, outputJavaType);
             Type inputJavaType = child.getPhysType().getJavaRowType();
             ParameterExpression inputEnumerator =
                 Expressions.parameter(
@@ -596,148 +2158,948 @@ public class JavaRules {
                         BuiltinMethod.ENUMERATOR_CURRENT.method),
                     inputJavaType);
 
-            BlockExpression moveNextBody;
-            if (program.getCondition() == null) {
-                moveNextBody =
-                    Blocks.toFunctionBlock(
+            BlockExpression moveNextBody;
+            if (program.getCondition() == null) {
+                moveNextBody =
+                    Blocks.toFunctionBlock(
+                        Expressions.call(
+                            inputEnumerator,
+                            BuiltinMethod.ENUMERATOR_MOVE_NEXT.method));
+            } else {
+                final BlockBuilder list = new BlockBuilder();
+                list.add(
+                    Expressions.statement(
+                        Expressions.call(
+                            BuiltinMethod.CHECK_CANCEL.method,
+                            implementor.getRootExpression())));
+                Expression condition =
+                    RexToLixTranslator.translateCondition(
+                        program,
+                        typeFactory,
+                        list,
+                        new RexToLixTranslator.InputGetterImpl(
+                            Collections.singletonList(
+                                Pair.of(input, child.getPhysType()))));
+                list.add(
+                    Expressions.ifThen(
+                        condition,
+                        Expressions.return_(
+                            null, Expressions.constant(true))));
+                moveNextBody =
+                    Expressions.block(
+                        Expressions.while_(
+                            Expressions.call(
+                                inputEnumerator,
+                                BuiltinMethod.ENUMERATOR_MOVE_NEXT.method),
+                            list.toBlock()),
+                        Expressions.return_(
+                            null,
+                            Expressions.constant(false)));
+            }
+
+            final BlockBuilder list = new BlockBuilder();
+            List<Expression> expressions =
+                RexToLixTranslator.translateProjects(
+                    program,
+                    typeFactory,
+                    list,
+                    new RexToLixTranslator.InputGetterImpl(
+                        Collections.singletonList(
+                            Pair.of(input, child.getPhysType()))));
+            list.add(
+                Expressions.return_(
+                    null,
+                    physType.record(expressions)));
+            BlockExpression currentBody =
+                list.toBlock();
+
+            final Expression inputEnumerable =
+                statements.append(
+                    "inputEnumerable",
+                    implementor.visitChild(
+                        this, 0, child),
+                    false);
+            final Expression body =
+                Expressions.new_(
+                    closeableEnumeratorType,
+                    NO_EXPRS,
+                    Expressions.<MemberDeclaration>list(
+                        Expressions.fieldDecl(
+                            Modifier.PUBLIC
+                            | Modifier.FINAL,
+                            inputEnumerator,
+                            Expressions.call(
+                                inputEnumerable,
+                                BuiltinMethod.ENUMERABLE_ENUMERATOR.method)),
+                        EnumUtil.overridingMethodDecl(
+                            BuiltinMethod.ENUMERATOR_RESET.method,
+                            NO_PARAMS,
+                            Blocks.toFunctionBlock(
+                                Expressions.call(
+                                    inputEnumerator,
+                                    BuiltinMethod.ENUMERATOR_RESET.method))),
+                        EnumUtil.overridingMethodDecl(
+                            BuiltinMethod.ENUMERATOR_MOVE_NEXT.method,
+                            NO_PARAMS,
+                            moveNextBody),
+                        EnumUtil.overridingMethodDecl(
+                            BuiltinMethod.CLOSEABLE_ENUMERATOR_CLOSE.method,
+                            NO_PARAMS,
+                            Blocks.toFunctionBlock(
+                                Expressions.call(
+                                    BuiltinMethod.CLOSE.method,
+                                    inputEnumerator))),
+                        Expressions.methodDecl(
+                            Modifier.PUBLIC,
+                            BRIDGE_METHODS
+                                ? Object.class
+                                : outputJavaType,
+                            "current",
+                            NO_PARAMS,
+                            currentBody)));
+            statements.add(
+                Expressions.return_(
+                    null,
+                    Expressions.new_(
+                        ABSTRACT_ENUMERABLE_CTOR,
+                        // TODO: generics
+                        //   Collections.singletonList(inputRowType),
+                        NO_EXPRS,
+                        Arrays.<MemberDeclaration>asList(
+                            Expressions.methodDecl(
+                                Modifier.PUBLIC,
+                                enumeratorType,
+                                BuiltinMethod.ENUMERABLE_ENUMERATOR
+                                    .method.getName(),
+                                NO_PARAMS,
+                                Blocks.toFunctionBlock(body))))));
+            return statements.toBlock();
+        }
+
+        public RexProgram getProgram() {
+            return program;
+        }
+    }
+
+    public static final EnumerableAggregateRule ENUMERABLE_AGGREGATE_RULE =
+        new EnumerableAggregateRule();
+
+    /**
+     * Rule to convert an {@link org.eigenbase.rel.AggregateRel} to an
+     * {@link net.hydromatic.optiq.rules.java.JavaRules.EnumerableAggregateRel}.
+     */
+    private static class EnumerableAggregateRule
+        extends ConverterRule
+    {
+        private EnumerableAggregateRule()
+        {
+            super(
+                AggregateRel.class,
+                Convention.NONE,
+                EnumerableConvention.ARRAY,
+                "EnumerableAggregateRule");
+        }
+
+        public RelNode convert(RelNode rel)
+        {
+            final AggregateRel agg = (AggregateRel) rel;
+            final RelTraitSet traitSet =
+                agg.getTraitSet().replace(EnumerableConvention.ARRAY);
+            try {
+                return new EnumerableAggregateRel(
+                    rel.getCluster(),
+                    traitSet,
+                    convert(agg.getChild(), traitSet),
+                    agg.getGroupSet(),
+                    agg.getAggCallList());
+            } catch (InvalidRelException e) {
+                tracer.warning(e.toString());
+                return null;
+            }
+        }
+    }
+
+    public static final EnumerableSortedAggregateRule
+    ENUMERABLE_SORTED_AGGREGATE_RULE =
+        new EnumerableSortedAggregateRule(
+            new RelOptRuleOperand(
+                AggregateRel.class,
+                Convention.NONE,
+                new RelOptRuleOperand(SortRel.class, RelOptRule.ANY)),
+            "sort");
+
+    public static final EnumerableSortedAggregateRule
+    ENUMERABLE_SORTED_AGGREGATE_PROJECT_RULE =
+        new EnumerableSortedAggregateRule(
+            new RelOptRuleOperand(
+                AggregateRel.class,
+                Convention.NONE,
+                new RelOptRuleOperand(
+                    ProjectRel.class,
+                    new RelOptRuleOperand(SortRel.class, RelOptRule.ANY))),
+            "project");
+
+    public static final EnumerableSortedAggregateRule
+    ENUMERABLE_SORTED_AGGREGATE_TABLE_RULE =
+        new EnumerableSortedAggregateRule(
+            new RelOptRuleOperand(
+                AggregateRel.class,
+                Convention.NONE,
+                new RelOptRuleOperand(
+                    TableAccessRelBase.class, RelOptRule.ANY)),
+            "table");
+
+    /**
+     * Rule to convert an {@link org.eigenbase.rel.AggregateRel} whose input
+     * is sorted on the group keys to an
+     * {@link net.hydromatic.optiq.rules.java.JavaRules.EnumerableSortedAggregateRel}.
+     *
+     * <p>The input is known to be sorted if it is a {@link SortRel}, a
+     * {@link ProjectRel} of a {@link SortRel} that projects the sort keys,
+     * or a scan of a table whose first collation is on the group keys. (The
+     * sort need not be ascending; rows with equal keys are adjacent either
+     * way.)</p>
+     */
+    public static class EnumerableSortedAggregateRule
+        extends RelOptRule
+    {
+        private EnumerableSortedAggregateRule(
+            RelOptRuleOperand operand, String id)
+        {
+            super(operand, "EnumerableSortedAggregateRule: " + id);
+        }
+
+        public void onMatch(RelOptRuleCall call) {
+            final AggregateRel agg = (AggregateRel) call.rels[0];
+            final RelNode sorted = call.rels[call.rels.length - 1];
+            List<RelFieldCollation> collations;
+            if (sorted instanceof SortRel) {
+                collations = ((SortRel) sorted).getCollations();
+            } else {
+                final List<RelCollation> collationList =
+                    sorted.getCollationList();
+                if (collationList.isEmpty()) {
+                    return;
+                }
+                collations = collationList.get(0).getFieldCollations();
+            }
+            if (call.rels.length == 3) {
+                collations =
+                    projectCollations(
+                        (ProjectRel) call.rels[1], collations);
+            }
+            if (!isGroupedBy(collations, agg.getGroupSet())) {
+                return;
+            }
+            final RelTraitSet traitSet =
+                agg.getTraitSet().replace(EnumerableConvention.ARRAY);
+
+            // Ask for an input that is sorted on the group keys.
+            final RelTraitSet childTraitSet =
+                RelCollationTraitDef.plus(
+                    traitSet,
+                    new RelCollationImpl(
+                        collations.subList(
+                            0, agg.getGroupSet().cardinality())));
+            try {
+                call.transformTo(
+                    new EnumerableSortedAggregateRel(
+                        agg.getCluster(),
+                        traitSet,
+                        convert(agg.getChild(), childTraitSet),
+                        agg.getGroupSet(),
+                        agg.getAggCallList()));
+            } catch (InvalidRelException e) {
+                tracer.warning(e.toString());
+            }
+        }
+
+        /** Converts collations of a project's input to collations of its
+         * output. Stops at the first sort key that is not projected. */
+        private static List<RelFieldCollation> projectCollations(
+            ProjectRel project,
+            List<RelFieldCollation> collations)
+        {
+            final List<RelFieldCollation> list =
+                new ArrayList<RelFieldCollation>();
+            final RexNode[] exps = project.getProjectExps();
+            loop:
+            for (RelFieldCollation collation : collations) {
+                for (int i = 0; i < exps.length; i++) {
+                    if (exps[i] instanceof RexInputRef
+                        && ((RexInputRef) exps[i]).getIndex()
+                        == collation.getFieldIndex())
+                    {
+                        list.add(collation.copy(i));
+                        continue loop;
+                    }
+                }
+                break;
+            }
+            return list;
+        }
+
+        /** Returns whether rows that have the same values of the group keys
+         * are adjacent in output sorted on the given collations; that is,
+         * whether the first few sort keys are the group keys, in any
+         * order. */
+        static boolean isGroupedBy(
+            List<RelFieldCollation> collations,
+            BitSet groupSet)
+        {
+            final int groupCount = groupSet.cardinality();
+            if (groupCount == 0 || collations.size() < groupCount) {
+                return false;
+            }
+            final BitSet keys = new BitSet();
+            for (RelFieldCollation collation
+                : collations.subList(0, groupCount))
+            {
+                keys.set(collation.getFieldIndex());
+            }
+            return keys.equals(groupSet);
+        }
+    }
+
+    public static class EnumerableAggregateRel
+        extends AggregateRelBase
+        implements EnumerableRel
+    {
+        private final PhysType physType;
+
+        private static final List<Aggregation> SUPPORTED_AGGREGATIONS =
+            Arrays.<Aggregation>asList(
+                SqlStdOperatorTable.countOperator,
+                SqlStdOperatorTable.minOperator,
+                SqlStdOperatorTable.maxOperator,
+                SqlStdOperatorTable.sumOperator);
+
+        public EnumerableAggregateRel(
+            RelOptCluster cluster,
+            RelTraitSet traitSet,
+            RelNode child,
+            BitSet groupSet,
+            List<AggregateCall> aggCalls)
+            throws InvalidRelException
+        {
+            super(cluster, traitSet, child, groupSet, aggCalls);
+            assert getConvention() instanceof EnumerableConvention;
+
+            for (AggregateCall aggCall : aggCalls) {
+                if (aggCall.isDistinct()) {
+                    throw new InvalidRelException(
+                        "distinct aggregation not supported");
+                }
+                final Aggregation aggregation = aggCall.getAggregation();
+                if (!SUPPORTED_AGGREGATIONS.contains(aggregation)) {
+                    throw new InvalidRelException(
+                        "aggregation " + aggregation + " not supported");
+                }
+            }
+            this.physType =
+                PhysTypeImpl.of(
+                    (JavaTypeFactory) cluster.getTypeFactory(),
+                    getRowType(),
+                    (EnumerableConvention) getConvention());
+        }
+
+        @Override
+        public EnumerableAggregateRel copy(
+            RelTraitSet traitSet, List<RelNode> inputs)
+        {
+            try {
+                return new EnumerableAggregateRel(
+                    getCluster(),
+                    traitSet,
+                    sole(inputs),
+                    groupSet,
+                    aggCalls);
+            } catch (InvalidRelException e) {
+                // Semantic error not possible. Must be a bug. Convert to
+                // internal error.
+                throw new AssertionError(e);
+            }
+        }
+
+        public PhysType getPhysType() {
+            return physType;
+        }
+
+        public BlockExpression implement(EnumerableRelImplementor implementor) {
+            final JavaTypeFactory typeFactory =
+                (JavaTypeFactory) implementor.getTypeFactory();
+            final BlockBuilder statements = new BlockBuilder();
+            final EnumerableRel child = (EnumerableRel) getChild();
+            Expression childExp =
+                statements.append(
+                    "child",
+                    implementor.visitChild(
+                        this, 0, child));
+            RelDataType inputRowType = getChild().getRowType();
+
+            // final Enumerable<Employee> child = <<child impl>>;
+            // Function1<Employee, Integer> keySelector =
+            //     new Function1<Employee, Integer>() {
+            //         public Integer apply(Employee a0) {
+            //             return a0.deptno;
+            //         }
+            //     };
+            // Function1<Employee, Object[]> accumulatorInitializer =
+            //     new Function1<Employee, Object[]>() {
+            //         public Object[] apply(Employee a0) {
+            //             return new Object[] {0, 0};
+            //         }
+            //     };
+            // Function2<Object[], Employee, Object[]> accumulatorAdder =
+            //     new Function2<Object[], Employee, Object[]>() {
+            //         public Object[] apply(Object[] a1, Employee a0) {
+            //              a1[0] = ((Integer) a1[0]) + 1;
+            //              a1[1] = ((Integer) a1[1]) + a0.salary;
+            //             return a1;
+            //         }
+            //     };
+            // Function2<Integer, Object[], Object[]> resultSelector =
+            //     new Function2<Integer, Object[], Object[]>() {
+            //         public Object[] apply(Integer a0, Object[] a1) {
+            //             return new Object[] { a0, a1[0], a1[1] };
+            //         }
+            //     };
+            // return childEnumerable
+            //     .groupBy(
+            //        keySelector, accumulatorInitializer, accumulatorAdder,
+            //        resultSelector);
+            //
+            // or, if key has 0 columns,
+            //
+            // return childEnumerable
+            //     .aggregate(
+            //       accumulatorInitializer.apply(),
+            //       accumulatorAdder,
+            //       resultSelector);
+            //
+            // with a slightly different resultSelector.
+            PhysType inputPhysType = child.getPhysType();
+
+            ParameterExpression parameter =
+                Expressions.parameter(inputPhysType.getJavaRowType(), "a0");
+
+            final List<Expression> keyExpressions = Expressions.list();
+            PhysType keyPhysType =
+                inputPhysType.project(
+                    Util.toList(groupSet),
+                    JavaRowFormat.CUSTOM);
+            final int keyArity = groupSet.cardinality();
+            for (int groupKey : Util.toIter(groupSet)) {
+                keyExpressions.add(
+                    inputPhysType.fieldReference(parameter, groupKey));
+            }
+            final Expression keySelector =
+                statements.append(
+                    "keySelector",
+                    child.getPhysType().generateSelector(
+                        parameter,
+                        Util.toList(groupSet)));
+
+            final List<RexImpTable.AggImplementor2> implementors =
+                new ArrayList<RexImpTable.AggImplementor2>();
+            for (AggregateCall aggCall : aggCalls) {
+                RexImpTable.AggImplementor2 implementor2 =
+                    RexImpTable.INSTANCE.get2(
+                        aggCall.getAggregation());
+                if (implementor2 == null) {
+                    throw new RuntimeException(
+                        "cannot implement aggregate " + aggCall);
+                }
+                implementors.add(implementor2);
+            }
+
+            // Function0<Object[]> accumulatorInitializer =
+            //     new Function0<Object[]>() {
+            //         public Object[] apply() {
+            //             return new Object[] {0, 0};
+            //         }
+            //     };
+            //
+            // If an aggregate's result is a primitive number, or its box, its
+            // accumulator is a primitive field, updated in place, plus a
+            // boolean field if the result is nullable (or, for MIN and MAX,
+            // to indicate that the first value has been seen). Thus
+            // "sum(nullable int)" becomes fields "int f0; boolean f1", and
+            // adding a row does not allocate a box.
+            final List<Expression> initExpressions =
+                new ArrayList<Expression>();
+            final List<Integer> valueFields = new ArrayList<Integer>();
+            final List<Integer> flagFields = new ArrayList<Integer>();
+            for (Ord<Pair<AggregateCall, RexImpTable.AggImplementor2>> ord
+                : Ord.zip(Pair.zip(aggCalls, implementors)))
+            {
+                final Class resultClass =
+                    physType.fieldClass(keyArity + ord.i);
+                final Primitive primitive = primitiveAccumulator(
+                    ord.e.right, resultClass);
+                valueFields.add(initExpressions.size());
+                initExpressions.add(
+                    ord.e.right.implementInit(
+                        ord.e.left.getAggregation(),
+                        primitive == null
+                            ? resultClass
+                            : primitive.primitiveClass,
+                        fieldTypes(
+                            typeFactory,
+                            inputRowType,
+                            ord.e.left.getArgList())));
+                if (primitive != null
+                    && (ord.e.right.initByFirst()
+                        || resultClass != primitive.primitiveClass))
+                {
+                    flagFields.add(initExpressions.size());
+                    initExpressions.add(Expressions.constant(false));
+                } else {
+                    flagFields.add(-1);
+                }
+            }
+
+            final PhysType accPhysType =
+                PhysTypeImpl.of(
+                    typeFactory,
+                    typeFactory.createSyntheticType(
+                        new AbstractList<Type>() {
+                            public Type get(int index) {
+                                return initExpressions.get(index).getType();
+                            }
+
+                            public int size() {
+                                return initExpressions.size();
+                            }
+                        }));
+
+            final Expression accumulatorInitializer =
+                statements.append(
+                    "accumulatorInitializer",
+                    Expressions.lambda(
+                        Function0.class,
+                        accPhysType.record(initExpressions)));
+
+            // Function2<Object[], Employee, Object[]> accumulatorAdder =
+            //     new Function2<Object[], Employee, Object[]>() {
+            //         public Object[] apply(Object[] acc, Employee in) {
+            //              acc[0] = ((Integer) acc[0]) + 1;
+            //              acc[1] = ((Integer) acc[1]) + in.salary;
+            //             return acc;
+            //         }
+            //     };
+            BlockBuilder bb2 = new BlockBuilder();
+            final ParameterExpression inParameter =
+                Expressions.parameter(inputPhysType.getJavaRowType(), "in");
+            final ParameterExpression accParameter =
+                Expressions.parameter(accPhysType.getJavaRowType(), "acc");
+            for (Ord<Pair<AggregateCall, RexImpTable.AggImplementor2>> ord
+                : Ord.zip(Pair.zip(aggCalls, implementors)))
+            {
+                final int valueField = valueFields.get(ord.i);
+                final int flagField = flagFields.get(ord.i);
+                final Type type = initExpressions.get(valueField).type;
+                final Expression accumulator =
+                    accPhysType.fieldReference(accParameter, valueField);
+                final List<Expression> conditions = new ArrayList<Expression>();
+                for (int arg : ord.e.left.getArgList()) {
+                    if (inputPhysType.fieldNullable(arg)) {
+                        conditions.add(
+                            Expressions.notEqual(
+                                inputPhysType.fieldReference(inParameter, arg),
+                                Expressions.constant(null)));
+                    }
+                }
+                final List<Expression> accessors =
+                    accessors(inputPhysType, inParameter, ord.e.left);
+                Expression add =
+                    ord.e.right.implementAdd(
+                        ord.e.left.getAggregation(),
+                        Types.castIfNecessary(type, accumulator),
+                        accessors);
+                final List<Statement> assigns = new ArrayList<Statement>();
+                if (flagField >= 0) {
+                    // f0 = f1 ? lesser(f0, in.x) : in.x; f1 = true;
+                    final Expression flag =
+                        accPhysType.fieldReference(accParameter, flagField);
+                    if (ord.e.right.initByFirst()) {
+                        add =
+                            Expressions.condition(
+                                flag,
+                                add,
+                                Types.castIfNecessary(
+                                    type, accessors.get(0)));
+                    }
+                    assigns.add(
+                        Expressions.statement(
+                            Expressions.assign(accumulator, add)));
+                    assigns.add(
+                        Expressions.statement(
+                            Expressions.assign(
+                                flag, Expressions.constant(true))));
+                } else {
+                    assigns.add(
+                        Expressions.statement(
+                            Expressions.assign(accumulator, add)));
+                }
+                if (conditions.isEmpty()) {
+                    for (Statement assign : assigns) {
+                        bb2.add(assign);
+                    }
+                } else {
+                    bb2.add(
+                        Expressions.ifThen(
+                            Expressions.foldAnd(conditions),
+                            Expressions.block(assigns)));
+                }
+            }
+            bb2.add(accParameter);
+            final Expression accumulatorAdder =
+                statements.append(
+                    "accumulatorAdder",
+                    Expressions.lambda(
+                        Function2.class,
+                        bb2.toBlock(),
+                        Arrays.asList(accParameter, inParameter)));
+
+            // Function2<Integer, Object[], Object[]> resultSelector =
+            //     new Function2<Integer, Object[], Object[]>() {
+            //         public Object[] apply(Integer key, Object[] acc) {
+            //             return new Object[] { key, acc[0], acc[1] };
+            //         }
+            //     };
+            final List<Expression> results = Expressions.list();
+            final ParameterExpression keyParameter;
+            if (keyArity == 0) {
+                keyParameter = null;
+            } else {
+                final Type keyType = keyPhysType.getJavaRowType();
+                keyParameter = Expressions.parameter(keyType, "key");
+                for (int j = 0; j < keyArity; j++) {
+                    results.add(
+                        keyPhysType.fieldReference(keyParameter, j));
+                }
+            }
+            for (Ord<Pair<AggregateCall, RexImpTable.AggImplementor2>> ord
+                : Ord.zip(Pair.zip(aggCalls, implementors)))
+            {
+                final Class resultClass =
+                    physType.fieldClass(keyArity + ord.i);
+                Expression result =
+                    ord.e.right.implementResult(
+                        ord.e.left.getAggregation(),
+                        accPhysType.fieldReference(
+                            accParameter, valueFields.get(ord.i)));
+                final int flagField = flagFields.get(ord.i);
+                if (flagField >= 0 && !Primitive.is(resultClass)) {
+                    // f1 ? (Integer) f0 : (Integer) null
+                    result =
+                        Expressions.condition(
+                            accPhysType.fieldReference(
+                                accParameter, flagField),
+                            Types.castIfNecessary(resultClass, result),
+                            Types.castIfNecessary(
+                                resultClass, RexImpTable.NULL_EXPR));
+                }
+                results.add(result);
+            }
+            final PhysType resultPhysType = physType;
+            if (keyArity == 0) {
+                final Expression resultSelector =
+                    statements.append(
+                        "resultSelector",
+                        Expressions.lambda(
+                            Function1.class,
+                            resultPhysType.record(results),
+                            accParameter));
+                statements.add(
+                    Expressions.return_(
+                        null,
                         Expressions.call(
-                            inputEnumerator,
-                            BuiltinMethod.ENUMERATOR_MOVE_NEXT.method));
+                            BuiltinMethod.SINGLETON_ENUMERABLE.method,
+                            Expressions.call(
+                                childExp,
+                                BuiltinMethod.AGGREGATE.method,
+                                Expressions.<Expression>list()
+                                    .append(
+                                        Expressions.call(
+                                            accumulatorInitializer,
+                                            "apply"))
+                                    .append(accumulatorAdder)
+                                    .append(resultSelector)))));
             } else {
-                final BlockBuilder list = new BlockBuilder();
-                Expression condition =
-                    RexToLixTranslator.translateCondition(
-                        program,
-                        typeFactory,
-                        list,
-                        new RexToLixTranslator.InputGetterImpl(
-                            Collections.singletonList(
-                                Pair.of(input, child.getPhysType()))));
-                list.add(
-                    Expressions.ifThen(
-                        condition,
+                final Expression resultSelector =
+                    statements.append(
+                        "resultSelector",
+                        Expressions.lambda(
+                            Function2.class,
+                            resultPhysType.record(results),
+                            Expressions.list(keyParameter, accParameter)));
+                final Expression serializer =
+                    inputPhysType.generateSerializer();
+                // If the key is primitive, the hash table can use keys
+                // packed into a long, and the boxed key is created only
+                // once per group.
+                final Expression longKeySelector =
+                    inputPhysType.generateLongKeySelector(
+                        Util.toList(groupSet));
+                if (isInputGrouped()) {
+                    // Rows of each group are adjacent; no hash table needed.
+                    statements.add(
                         Expressions.return_(
-                            null, Expressions.constant(true))));
-                moveNextBody =
-                    Expressions.block(
-                        Expressions.while_(
+                            null,
                             Expressions.call(
-                                inputEnumerator,
-                                BuiltinMethod.ENUMERATOR_MOVE_NEXT.method),
-                            list.toBlock()),
+                                BuiltinMethod.SORTED_GROUP_BY.method,
+                                childExp,
+                                keySelector,
+                                accumulatorInitializer,
+                                accumulatorAdder,
+                                resultSelector)));
+                } else if (keyPhysType.comparer() == null
+                    && serializer != null)
+                {
+                    // Aggregation that can spill to disk if the query has a
+                    // memory budget.
+                    statements.add(
                         Expressions.return_(
                             null,
-                            Expressions.constant(false)));
+                            Expressions.call(
+                                BuiltinMethod.SPILLING_GROUP_BY.method,
+                                implementor.getRootExpression(),
+                                childExp,
+                                keySelector,
+                                longKeySelector == null
+                                    ? Expressions.constant(null)
+                                    : statements.append(
+                                        "longKeySelector", longKeySelector),
+                                accumulatorInitializer,
+                                accumulatorAdder,
+                                resultSelector,
+                                statements.append("serializer", serializer))));
+                } else if (longKeySelector != null) {
+                    statements.add(
+                        Expressions.return_(
+                            null,
+                            Expressions.call(
+                                BuiltinMethod.LONG_HASH_GROUP_BY.method,
+                                childExp,
+                                statements.append(
+                                    "longKeySelector", longKeySelector),
+                                keySelector,
+                                accumulatorInitializer,
+                                accumulatorAdder,
+                                resultSelector)));
+                } else {
+                    statements.add(
+                        Expressions.return_(
+                            null,
+                            Expressions.call(
+                                childExp,
+                                BuiltinMethod.GROUP_BY2.method,
+                                Expressions
+                                    .list(
+                                        keySelector,
+                                        accumulatorInitializer,
+                                        accumulatorAdder,
+                                        resultSelector)
+                                    .appendIfNotNull(
+                                        keyPhysType.comparer()))));
+                }
             }
+            return statements.toBlock();
+        }
 
-            final BlockBuilder list = new BlockBuilder();
-            List<Expression> expressions =
-                RexToLixTranslator.translateProjects(
-                    program,
-                    typeFactory,
-                    list,
-                    new RexToLixTranslator.InputGetterImpl(
-                        Collections.singletonList(
-                            Pair.of(input, child.getPhysType()))));
-            list.add(
-                Expressions.return_(
-                    null,
-                    physType.record(expressions)));
-            BlockExpression currentBody =
-                list.toBlock();
+        /** Returns the primitive type of the accumulator of an aggregate
+         * whose result is of a given class, or null if the accumulator
+         * cannot be primitive. */
+        private static Primitive primitiveAccumulator(
+            RexImpTable.AggImplementor2 implementor,
+            Class resultClass)
+        {
+            if (!implementor.primitiveAccumulator()) {
+                return null;
+            }
+            final Primitive primitive = Primitive.ofBoxOr(resultClass);
+            if (primitive == null) {
+                return null;
+            }
+            switch (primitive) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return primitive;
+            default:
+                return null;
+            }
+        }
 
-            final Expression inputEnumerable =
-                statements.append(
-                    "inputEnumerable",
-                    implementor.visitChild(
-                        this, 0, child),
-                    false);
-            final Expression body =
-                Expressions.new_(
-                    enumeratorType,
-                    NO_EXPRS,
-                    Expressions.<MemberDeclaration>list(
-                        Expressions.fieldDecl(
-                            Modifier.PUBLIC
-                            | Modifier.FINAL,
-                            inputEnumerator,
-                            Expressions.call(
-                                inputEnumerable,
-                                BuiltinMethod.ENUMERABLE_ENUMERATOR.method)),
-                        EnumUtil.overridingMethodDecl(
-                            BuiltinMethod.ENUMERATOR_RESET.method,
-                            NO_PARAMS,
-                            Blocks.toFunctionBlock(
-                                Expressions.call(
-                                    inputEnumerator,
-                                    BuiltinMethod.ENUMERATOR_RESET.method))),
-                        EnumUtil.overridingMethodDecl(
-                            BuiltinMethod.ENUMERATOR_MOVE_NEXT.method,
-                            NO_PARAMS,
-                            moveNextBody),
-                        Expressions.methodDecl(
-                            Modifier.PUBLIC,
-                            BRIDGE_METHODS
-                                ? Object.class
-                                : outputJavaType,
-                            "current",
-                            NO_PARAMS,
-                            currentBody)));
-            statements.add(
-                Expressions.return_(
-                    null,
-                    Expressions.new_(
-                        ABSTRACT_ENUMERABLE_CTOR,
-                        // TODO: generics
-                        //   Collections.singletonList(inputRowType),
-                        NO_EXPRS,
-                        Arrays.<MemberDeclaration>asList(
-                            Expressions.methodDecl(
-                                Modifier.PUBLIC,
-                                enumeratorType,
-                                BuiltinMethod.ENUMERABLE_ENUMERATOR
-                                    .method.getName(),
-                                NO_PARAMS,
-                                Blocks.toFunctionBlock(body))))));
-            return statements.toBlock();
+        /** Returns whether the rows of each group are adjacent in the
+         * input. If so, each group can be returned as soon as its last row
+         * has been read.
+         *
+         * <p>By the time the plan is implemented, the input is a concrete
+         * relational expression, so this method can look at the order that
+         * it delivers.</p> */
+        protected boolean isInputGrouped() {
+            for (RelCollation collation : getChild().getCollationList()) {
+                if (EnumerableSortedAggregateRule.isGroupedBy(
+                        collation.getFieldCollations(), groupSet))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public List<RelCollation> getCollationList() {
+            if (!isInputGrouped()) {
+                // Hash aggregation returns groups in first-seen order.
+                return Collections.emptyList();
+            }
+            // Groups are returned in the order of the input. Group keys are
+            // the leading output fields, in the order of the group set.
+            final List<Integer> groupList = Util.toList(groupSet);
+            final List<RelCollation> list = new ArrayList<RelCollation>();
+            for (RelCollation collation : getChild().getCollationList()) {
+                final List<RelFieldCollation> fieldCollations =
+                    new ArrayList<RelFieldCollation>();
+                for (RelFieldCollation fieldCollation
+                    : collation.getFieldCollations())
+                {
+                    final int i =
+                        groupList.indexOf(fieldCollation.getFieldIndex());
+                    if (i < 0) {
+                        break;
+                    }
+                    fieldCollations.add(fieldCollation.copy(i));
+                }
+                if (!fieldCollations.isEmpty()) {
+                    list.add(new RelCollationImpl(fieldCollations));
+                }
+            }
+            return list;
+        }
+
+        private List<Type> fieldTypes(
+            final JavaTypeFactory typeFactory,
+            final RelDataType inputRowType,
+            final List<Integer> argList)
+        {
+            return new AbstractList<Type>() {
+                public Type get(int index) {
+                    return EnumUtil.javaClass(
+                        typeFactory,
+                        inputRowType.getFieldList()
+                            .get(argList.get(index))
+                            .getType());
+                }
+                public int size() {
+                    return argList.size();
+                }
+            };
+        }
+
+        private List<Expression> accessors(
+            PhysType physType,
+            ParameterExpression v1,
+            AggregateCall aggCall)
+        {
+            final List<Expression> expressions = new ArrayList<Expression>();
+            for (int field : aggCall.getArgList()) {
+                expressions.add(
+                    Types.castIfNecessary(
+                        physType.fieldClass(field),
+                        physType.fieldReference(v1, field)));
+            }
+            return expressions;
+        }
+    }
+
+    /**
+     * Aggregate whose input is sorted on the group keys. Returns each group
+     * as soon as its last row has been read, so it keeps only one group's
+     * accumulator in memory, and needs no hash table.
+     */
+    public static class EnumerableSortedAggregateRel
+        extends EnumerableAggregateRel
+    {
+        public EnumerableSortedAggregateRel(
+            RelOptCluster cluster,
+            RelTraitSet traitSet,
+            RelNode child,
+            BitSet groupSet,
+            List<AggregateCall> aggCalls)
+            throws InvalidRelException
+        {
+            super(cluster, traitSet, child, groupSet, aggCalls);
         }
 
-        public RexProgram getProgram() {
-            return program;
+        @Override
+        public EnumerableSortedAggregateRel copy(
+            RelTraitSet traitSet, List<RelNode> inputs)
+        {
+            try {
+                return new EnumerableSortedAggregateRel(
+                    getCluster(),
+                    traitSet,
+                    sole(inputs),
+                    groupSet,
+                    aggCalls);
+            } catch (InvalidRelException e) {
+                // Semantic error not possible. Must be a bug. Convert to
+                // internal error.
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public RelOptCost computeSelfCost(RelOptPlanner planner) {
+            // Cheaper than hashing, because there is no hash table to build
+            // or probe.
+            return super.computeSelfCost(planner).multiplyBy(0.5);
+        }
+
+        @Override
+        protected boolean isInputGrouped() {
+            return true;
         }
     }
 
-    public static final EnumerableAggregateRule ENUMERABLE_AGGREGATE_RULE =
-        new EnumerableAggregateRule();
+    public static final EnumerableWindowRule ENUMERABLE_WINDOW_RULE =
+        new EnumerableWindowRule();
 
     /**
-     * Rule to convert an {@link org.eigenbase.rel.AggregateRel} to an
-     * {@link net.hydromatic.optiq.rules.java.JavaRules.EnumerableAggregateRel}.
+     * Rule to convert a {@link WindowedAggregateRel} to an
+     * {@link EnumerableWindowRel}.
      */
-    private static class EnumerableAggregateRule
+    private static class EnumerableWindowRule
         extends ConverterRule
     {
-        private EnumerableAggregateRule()
+        private EnumerableWindowRule()
         {
             super(
-                AggregateRel.class,
+                WindowedAggregateRel.class,
                 Convention.NONE,
                 EnumerableConvention.ARRAY,
-                "EnumerableAggregateRule");
+                "EnumerableWindowRule");
         }
 
         public RelNode convert(RelNode rel)
         {
-            final AggregateRel agg = (AggregateRel) rel;
+            final WindowedAggregateRel window = (WindowedAggregateRel) rel;
             final RelTraitSet traitSet =
-                agg.getTraitSet().replace(EnumerableConvention.ARRAY);
+                window.getTraitSet().replace(EnumerableConvention.ARRAY);
             try {
-                return new EnumerableAggregateRel(
+                return new EnumerableWindowRel(
                     rel.getCluster(),
                     traitSet,
-                    convert(agg.getChild(), traitSet),
-                    agg.getGroupSet(),
-                    agg.getAggCallList());
+                    convert(window.getChild(), traitSet),
+                    window.getProgram(),
+                    window.getRowType());
             } catch (InvalidRelException e) {
                 tracer.warning(e.toString());
                 return null;
@@ -745,39 +3107,121 @@ public class JavaRules {
         }
     }
 
-    public static class EnumerableAggregateRel
-        extends AggregateRelBase
+    /**
+     * Implementation of {@link WindowedAggregateRel} in
+     * {@link EnumerableConvention enumerable calling convention}.
+     *
+     * <p>Each distinct window sorts the rows once, then computes its
+     * aggregates in a single pass over each partition; see
+     * {@link WindowEnumerables}.</p>
+     */
+    public static class EnumerableWindowRel
+        extends SingleRel
         implements EnumerableRel
     {
+        private final RexProgram program;
         private final PhysType physType;
 
-        private static final List<Aggregation> SUPPORTED_AGGREGATIONS =
-            Arrays.<Aggregation>asList(
-                SqlStdOperatorTable.countOperator,
-                SqlStdOperatorTable.minOperator,
-                SqlStdOperatorTable.maxOperator,
-                SqlStdOperatorTable.sumOperator);
+        /** Kind of each supported windowed aggregate function, as understood
+         * by {@link WindowEnumerables#window}. */
+        private static final Map<SqlAggFunction, String> AGG_KINDS =
+            new HashMap<SqlAggFunction, String>();
+
+        static {
+            AGG_KINDS.put(SqlStdOperatorTable.countOperator, "COUNT");
+            AGG_KINDS.put(SqlStdOperatorTable.sumOperator, "SUM");
+            AGG_KINDS.put(SqlStdOperatorTable.sumEmptyIsZeroOperator, "SUM0");
+            AGG_KINDS.put(SqlStdOperatorTable.minOperator, "MIN");
+            AGG_KINDS.put(SqlStdOperatorTable.maxOperator, "MAX");
+            AGG_KINDS.put(
+                SqlStdOperatorTable.firstValueOperator, "FIRST_VALUE");
+            AGG_KINDS.put(
+                SqlStdOperatorTable.lastValueOperator, "LAST_VALUE");
+            AGG_KINDS.put(SqlStdOperatorTable.rowNumberFunc, "ROW_NUMBER");
+            AGG_KINDS.put(SqlStdOperatorTable.rankFunc, "RANK");
+            AGG_KINDS.put(SqlStdOperatorTable.denseRankFunc, "DENSE_RANK");
+        }
 
-        public EnumerableAggregateRel(
+        public EnumerableWindowRel(
             RelOptCluster cluster,
             RelTraitSet traitSet,
             RelNode child,
-            BitSet groupSet,
-            List<AggregateCall> aggCalls)
+            RexProgram program,
+            RelDataType rowType)
             throws InvalidRelException
         {
-            super(cluster, traitSet, child, groupSet, aggCalls);
-            assert getConvention() instanceof EnumerableConvention;
+            super(cluster, traitSet, child);
+            // Rows are always arrays.
+            assert getConvention() == EnumerableConvention.ARRAY;
+            this.rowType = rowType;
+            this.program = program;
 
-            for (AggregateCall aggCall : aggCalls) {
-                if (aggCall.isDistinct()) {
+            // The output must be the input fields followed by the
+            // aggregates, and aggregate arguments and window keys must be
+            // fields of the input. WindowedAggSplitterRule ensures this.
+            final int fieldCount = child.getRowType().getFieldCount();
+            final List<RexLocalRef> projects = program.getProjectList();
+            for (int i = 0; i < projects.size(); i++) {
+                final RexNode expr =
+                    program.getExprList().get(projects.get(i).getIndex());
+                if (i < fieldCount
+                    ? !(expr instanceof RexInputRef
+                        && ((RexInputRef) expr).getIndex() == i)
+                    : !(expr instanceof RexOver))
+                {
                     throw new InvalidRelException(
-                        "distinct aggregation not supported");
+                        "window must project input fields then aggregates");
                 }
-                final Aggregation aggregation = aggCall.getAggregation();
-                if (!SUPPORTED_AGGREGATIONS.contains(aggregation)) {
+            }
+            for (RexNode expr : program.getExprList()) {
+                if (!(expr instanceof RexOver)) {
+                    continue;
+                }
+                final RexOver over = (RexOver) expr;
+                if (!AGG_KINDS.containsKey(over.getAggOperator())) {
                     throw new InvalidRelException(
-                        "aggregation " + aggregation + " not supported");
+                        "windowed aggregation " + over.getAggOperator()
+                        + " not supported");
+                }
+                if (over.operands.length > 1) {
+                    throw new InvalidRelException(
+                        "windowed aggregation with more than one argument"
+                        + " not supported");
+                }
+                final RexWindow window = over.getWindow();
+                for (RexNode key : window.orderKeys) {
+                    final RexNode keyExpr = expand(program, key);
+                    if (keyExpr instanceof RexCall
+                        && (((RexCall) keyExpr).getOperator()
+                            == SqlStdOperatorTable.nullsFirstOperator
+                            || ((RexCall) keyExpr).getOperator()
+                            == SqlStdOperatorTable.nullsLastOperator))
+                    {
+                        throw new InvalidRelException(
+                            "NULLS FIRST and NULLS LAST in window"
+                            + " not supported");
+                    }
+                }
+                for (RexNode node
+                    : concat(over.operands, window.partitionKeys,
+                        orderFields(program, window.orderKeys)))
+                {
+                    if (!(node instanceof RexLocalRef)
+                        || ((RexLocalRef) node).getIndex() >= fieldCount)
+                    {
+                        throw new InvalidRelException(
+                            "windowed aggregate argument or key " + node
+                            + " is not an input field");
+                    }
+                }
+                if (!window.isRows()
+                    && window.orderKeys.length != 1
+                    && (!isUnboundedOrCurrentRow(window.getLowerBound())
+                        || !isUnboundedOrCurrentRow(
+                            window.getUpperBound())))
+                {
+                    throw new InvalidRelException(
+                        "RANGE with offset requires one ORDER BY key");
                 }
             }
             this.physType =
@@ -788,321 +3232,252 @@ public class JavaRules {
         }
 
         @Override
-        public EnumerableAggregateRel copy(
+        public EnumerableWindowRel copy(
             RelTraitSet traitSet, List<RelNode> inputs)
         {
             try {
-                return new EnumerableAggregateRel(
+                return new EnumerableWindowRel(
                     getCluster(),
                     traitSet,
                     sole(inputs),
-                    groupSet,
-                    aggCalls);
+                    program,
+                    rowType);
             } catch (InvalidRelException e) {
                 // Semantic error not possible. Must be a bug. Convert to
                 // internal error.
                 throw new AssertionError(e);
-            }
-        }
-
-        public PhysType getPhysType() {
-            return physType;
-        }
-
-        public BlockExpression implement(EnumerableRelImplementor implementor) {
-            final JavaTypeFactory typeFactory =
-                (JavaTypeFactory) implementor.getTypeFactory();
-            final BlockBuilder statements = new BlockBuilder();
-            final EnumerableRel child = (EnumerableRel) getChild();
-            Expression childExp =
-                statements.append(
-                    "child",
-                    implementor.visitChild(
-                        this, 0, child));
-            RelDataType inputRowType = getChild().getRowType();
-
-            // final Enumerable<Employee> child = <<child impl>>;
-            // Function1<Employee, Integer> keySelector =
-            //     new Function1<Employee, Integer>() {
-            //         public Integer apply(Employee a0) {
-            //             return a0.deptno;
-            //         }
-            //     };
-            // Function1<Employee, Object[]> accumulatorInitializer =
-            //     new Function1<Employee, Object[]>() {
-            //         public Object[] apply(Employee a0) {
-            //             return new Object[] {0, 0};
-            //         }
-            //     };
-            // Function2<Object[], Employee, Object[]> accumulatorAdder =
-            //     new Function2<Object[], Employee, Object[]>() {
-            //         public Object[] apply(Object[] a1, Employee a0) {
-            //              a1[0] = ((Integer) a1[0]) + 1;
-            //              a1[1] = ((Integer) a1[1]) + a0.salary;
-            //             return a1;
-            //         }
-            //     };
-            // Function2<Integer, Object[], Object[]> resultSelector =
-            //     new Function2<Integer, Object[], Object[]>() {
-            //         public Object[] apply(Integer a0, Object[] a1) {
-            //             return new Object[] { a0, a1[0], a1[1] };
-            //         }
-            //     };
-            // return childEnumerable
-            //     .groupBy(
-            //        keySelector, accumulatorInitializer, accumulatorAdder,
-            //        resultSelector);
-            //
-            // or, if key has 0 columns,
-            //
-            // return childEnumerable
-            //     .aggregate(
-            //       accumulatorInitializer.apply(),
-            //       accumulatorAdder,
-            //       resultSelector);
-            //
-            // with a slightly different resultSelector.
-            PhysType inputPhysType = child.getPhysType();
-
-            ParameterExpression parameter =
-                Expressions.parameter(inputPhysType.getJavaRowType(), "a0");
-
-            final List<Expression> keyExpressions = Expressions.list();
-            PhysType keyPhysType =
-                inputPhysType.project(
-                    Util.toList(groupSet),
-                    JavaRowFormat.CUSTOM);
-            final int keyArity = groupSet.cardinality();
-            for (int groupKey : Util.toIter(groupSet)) {
-                keyExpressions.add(
-                    inputPhysType.fieldReference(parameter, groupKey));
-            }
-            final Expression keySelector =
-                statements.append(
-                    "keySelector",
-                    child.getPhysType().generateSelector(
-                        parameter,
-                        Util.toList(groupSet)));
-
-            final List<RexImpTable.AggImplementor2> implementors =
-                new ArrayList<RexImpTable.AggImplementor2>();
-            for (AggregateCall aggCall : aggCalls) {
-                RexImpTable.AggImplementor2 implementor2 =
-                    RexImpTable.INSTANCE.get2(
-                        aggCall.getAggregation());
-                if (implementor2 == null) {
-                    throw new RuntimeException(
-                        "cannot implement aggregate " + aggCall);
-                }
-                implementors.add(implementor2);
-            }
-
-            // Function0<Object[]> accumulatorInitializer =
-            //     new Function0<Object[]>() {
-            //         public Object[] apply() {
-            //             return new Object[] {0, 0};
-            //         }
-            //     };
-            final List<Expression> initExpressions =
-                new ArrayList<Expression>();
-            for (Ord<Pair<AggregateCall, RexImpTable.AggImplementor2>> ord
-                : Ord.zip(Pair.zip(aggCalls, implementors)))
-            {
-                initExpressions.add(
-                    ord.e.right.implementInit(
-                        ord.e.left.getAggregation(),
-                        physType.fieldClass(keyArity + ord.i),
-                        fieldTypes(
-                            typeFactory,
-                            inputRowType,
-                            ord.e.left.getArgList())));
-            }
-
-            final PhysType accPhysType =
-                PhysTypeImpl.of(
-                    typeFactory,
-                    typeFactory.createSyntheticType(
-                        new AbstractList<Type>() {
-                            public Type get(int index) {
-                                return initExpressions.get(index).getType();
-                            }
-
-                            public int size() {
-                                return initExpressions.size();
-                            }
-                        }));
-
-            final Expression accumulatorInitializer =
-                statements.append(
-                    "accumulatorInitializer",
-                    Expressions.lambda(
-                        Function0.class,
-                        accPhysType.record(initExpressions)));
-
-            // Function2<Object[], Employee, Object[]> accumulatorAdder =
-            //     new Function2<Object[], Employee, Object[]>() {
-            //         public Object[] apply(Object[] acc, Employee in) {
-            //              acc[0] = ((Integer) acc[0]) + 1;
-            //              acc[1] = ((Integer) acc[1]) + in.salary;
-            //             return acc;
-            //         }
-            //     };
-            BlockBuilder bb2 = new BlockBuilder();
-            final ParameterExpression inParameter =
-                Expressions.parameter(inputPhysType.getJavaRowType(), "in");
-            final ParameterExpression accParameter =
-                Expressions.parameter(accPhysType.getJavaRowType(), "acc");
-            for (Ord<Pair<AggregateCall, RexImpTable.AggImplementor2>> ord
-                : Ord.zip(Pair.zip(aggCalls, implementors)))
-            {
-                final Type type = initExpressions.get(ord.i).type;
-                final Expression accumulator =
-                    accPhysType.fieldReference(accParameter, ord.i);
-                final List<Expression> conditions = new ArrayList<Expression>();
-                for (int arg : ord.e.left.getArgList()) {
-                    if (inputPhysType.fieldNullable(arg)) {
-                        conditions.add(
-                            Expressions.notEqual(
-                                inputPhysType.fieldReference(inParameter, arg),
-                                Expressions.constant(null)));
-                    }
-                }
-                final Statement assign =
-                    Expressions.statement(
-                        Expressions.assign(
-                            accumulator,
-                            ord.e.right.implementAdd(
-                                ord.e.left.getAggregation(),
-                                Types.castIfNecessary(type, accumulator),
-                                accessors(
-                                    inputPhysType, inParameter, ord.e.left))));
-                if (conditions.isEmpty()) {
-                    bb2.add(assign);
-                } else {
-                    bb2.add(
-                        Expressions.ifThen(
-                            Expressions.foldAnd(conditions),
-                            assign));
-                }
-            }
-            bb2.add(accParameter);
-            final Expression accumulatorAdder =
+            }
+        }
+
+        public RexProgram getProgram() {
+            return program;
+        }
+
+        @Override
+        public RelOptPlanWriter explainTerms(RelOptPlanWriter pw) {
+            return program.explainCalc(super.explainTerms(pw));
+        }
+
+        public PhysType getPhysType() {
+            return physType;
+        }
+
+        public BlockExpression implement(EnumerableRelImplementor implementor) {
+            final JavaTypeFactory typeFactory =
+                (JavaTypeFactory) implementor.getTypeFactory();
+            final BlockBuilder statements = new BlockBuilder();
+            final EnumerableRel child = (EnumerableRel) getChild();
+            final PhysType inputPhysType = child.getPhysType();
+            Expression source =
                 statements.append(
-                    "accumulatorAdder",
-                    Expressions.lambda(
-                        Function2.class,
-                        bb2.toBlock(),
-                        Arrays.asList(accParameter, inParameter)));
+                    "child",
+                    implementor.visitChild(
+                        this, 0, child));
 
-            // Function2<Integer, Object[], Object[]> resultSelector =
-            //     new Function2<Integer, Object[], Object[]>() {
-            //         public Object[] apply(Integer key, Object[] acc) {
-            //             return new Object[] { key, acc[0], acc[1] };
+            // Function1<Employee, Object[]> toArray =
+            //     new Function1<Employee, Object[]>() {
+            //         public Object[] apply(Employee row) {
+            //             return new Object[] {row.empid, row.name};
             //         }
             //     };
-            final List<Expression> results = Expressions.list();
-            final ParameterExpression keyParameter;
-            if (keyArity == 0) {
-                keyParameter = null;
-            } else {
-                final Type keyType = keyPhysType.getJavaRowType();
-                keyParameter = Expressions.parameter(keyType, "key");
-                for (int j = 0; j < keyArity; j++) {
-                    results.add(
-                        keyPhysType.fieldReference(keyParameter, j));
-                }
-            }
-            for (Ord<Pair<AggregateCall, RexImpTable.AggImplementor2>> ord
-                : Ord.zip(Pair.zip(aggCalls, implementors)))
-            {
-                results.add(
-                    ord.e.right.implementResult(
-                        ord.e.left.getAggregation(),
-                        accPhysType.fieldReference(
-                            accParameter, ord.i)));
+            final ParameterExpression row =
+                Expressions.parameter(inputPhysType.getJavaRowType(), "row");
+            final List<Expression> fields = new ArrayList<Expression>();
+            final int fieldCount = child.getRowType().getFieldCount();
+            for (int i = 0; i < fieldCount; i++) {
+                fields.add(inputPhysType.fieldReference(row, i));
             }
-            final PhysType resultPhysType = physType;
-            if (keyArity == 0) {
-                final Expression resultSelector =
-                    statements.append(
-                        "resultSelector",
-                        Expressions.lambda(
-                            Function1.class,
-                            resultPhysType.record(results),
-                            accParameter));
-                statements.add(
-                    Expressions.return_(
-                        null,
-                        Expressions.call(
-                            BuiltinMethod.SINGLETON_ENUMERABLE.method,
-                            Expressions.call(
-                                childExp,
-                                BuiltinMethod.AGGREGATE.method,
-                                Expressions.<Expression>list()
-                                    .append(
-                                        Expressions.call(
-                                            accumulatorInitializer,
-                                            "apply"))
-                                    .append(accumulatorAdder)
-                                    .append(resultSelector)))));
-            } else {
-                final Expression resultSelector =
+            Expression toArray =
+                statements.append(
+                    "toArray",
+                    Expressions.lambda(
+                        Function1.class,
+                        Expressions.newArrayInit(Object.class, fields),
+                        row));
+
+            // Each run of aggregates with the same window is one call to
+            // WindowEnumerables.window, which appends the aggregates to each
+            // row. Its output is arrays, so the next call converts using
+            // the identity function.
+            final List<RexLocalRef> projects = program.getProjectList();
+            int i = fieldCount;
+            while (i < projects.size()) {
+                final RexWindow window = getOver(i).getWindow();
+                int j = i + 1;
+                while (j < projects.size()
+                    && getOver(j).getWindow().equals(window))
+                {
+                    ++j;
+                }
+                final List<Expression> kinds = new ArrayList<Expression>();
+                final List<Expression> ordinals =
+                    new ArrayList<Expression>();
+                final List<Expression> types = new ArrayList<Expression>();
+                for (int k = i; k < j; k++) {
+                    final RexOver over = getOver(k);
+                    kinds.add(
+                        Expressions.constant(
+                            AGG_KINDS.get(over.getAggOperator())));
+                    ordinals.add(
+                        Expressions.constant(
+                            over.operands.length == 0
+                                ? -1
+                                : ((RexLocalRef) over.operands[0])
+                                    .getIndex()));
+                    final Primitive primitive =
+                        Primitive.ofBoxOr(
+                            EnumUtil.javaRowClass(
+                                typeFactory, over.getType()));
+                    types.add(
+                        Expressions.constant(
+                            primitive == null || primitive == Primitive.OTHER
+                                ? null
+                                : primitive.name()));
+                }
+                final boolean ordered = window.orderKeys.length > 0;
+                final long lower =
+                    window.getLowerBound() == null
+                    && window.getUpperBound() == null
+                        ? WindowEnumerables.UNBOUNDED_PRECEDING
+                        : bound(window.getLowerBound());
+                final long upper =
+                    window.getLowerBound() == null
+                    && window.getUpperBound() == null
+                    && !ordered
+                        ? WindowEnumerables.UNBOUNDED_FOLLOWING
+                        : bound(window.getUpperBound());
+                source =
                     statements.append(
-                        "resultSelector",
-                        Expressions.lambda(
-                            Function2.class,
-                            resultPhysType.record(results),
-                            Expressions.list(keyParameter, accParameter)));
-                statements.add(
-                    Expressions.return_(
-                        null,
+                        "window",
                         Expressions.call(
-                            childExp,
-                            BuiltinMethod.GROUP_BY2.method,
-                            Expressions
-                                .list(
-                                    keySelector,
-                                    accumulatorInitializer,
-                                    accumulatorAdder,
-                                    resultSelector)
-                                .appendIfNotNull(
-                                    keyPhysType.comparer()))));
+                            BuiltinMethod.WINDOW.method,
+                            source,
+                            toArray,
+                            ordinals(window.partitionKeys),
+                            ordinals(orderFields(program, window.orderKeys)),
+                            descending(program, window.orderKeys),
+                            Expressions.constant(window.isRows()),
+                            boundExpression(lower),
+                            boundExpression(upper),
+                            Expressions.newArrayInit(String.class, kinds),
+                            Expressions.newArrayInit(int.class, ordinals),
+                            Expressions.newArrayInit(String.class, types)));
+                toArray =
+                    Expressions.call(BuiltinMethod.IDENTITY_SELECTOR.method);
+                i = j;
             }
+            statements.add(Expressions.return_(null, source));
             return statements.toBlock();
         }
 
-        private List<Type> fieldTypes(
-            final JavaTypeFactory typeFactory,
-            final RelDataType inputRowType,
-            final List<Integer> argList)
+        /** Returns the windowed aggregate that computes the given output
+         * field. */
+        private RexOver getOver(int field) {
+            final RexLocalRef ref = program.getProjectList().get(field);
+            return (RexOver) program.getExprList().get(ref.getIndex());
+        }
+
+        private static Expression ordinals(RexNode[] keys) {
+            final List<Expression> list = new ArrayList<Expression>();
+            for (RexNode key : keys) {
+                list.add(
+                    Expressions.constant(((RexLocalRef) key).getIndex()));
+            }
+            return Expressions.newArrayInit(int.class, list);
+        }
+
+        /** Returns the field that each ORDER BY key sorts on; that is, the
+         * key without DESC. */
+        private static RexNode[] orderFields(
+            RexProgram program, RexNode[] keys)
         {
-            return new AbstractList<Type>() {
-                public Type get(int index) {
-                    return EnumUtil.javaClass(
-                        typeFactory,
-                        inputRowType.getFieldList()
-                            .get(argList.get(index))
-                            .getType());
-                }
-                public int size() {
-                    return argList.size();
-                }
-            };
+            final RexNode[] fields = new RexNode[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                final RexNode expr = expand(program, keys[i]);
+                fields[i] =
+                    isDescending(expr)
+                        ? ((RexCall) expr).operands[0]
+                        : keys[i];
+            }
+            return fields;
         }
 
-        private List<Expression> accessors(
-            PhysType physType,
-            ParameterExpression v1,
-            AggregateCall aggCall)
+        private static Expression descending(
+            RexProgram program, RexNode[] keys)
         {
-            final List<Expression> expressions = new ArrayList<Expression>();
-            for (int field : aggCall.getArgList()) {
-                expressions.add(
-                    Types.castIfNecessary(
-                        physType.fieldClass(field),
-                        physType.fieldReference(v1, field)));
+            final List<Expression> list = new ArrayList<Expression>();
+            for (RexNode key : keys) {
+                list.add(
+                    Expressions.constant(
+                        isDescending(expand(program, key))));
             }
-            return expressions;
+            return Expressions.newArrayInit(boolean.class, list);
+        }
+
+        private static boolean isDescending(RexNode expr) {
+            return expr instanceof RexCall
+                && ((RexCall) expr).getOperator()
+                == SqlStdOperatorTable.descendingOperator;
+        }
+
+        /** Returns the expression that a local reference refers to. */
+        private static RexNode expand(RexProgram program, RexNode node) {
+            return node instanceof RexLocalRef
+                ? program.getExprList().get(((RexLocalRef) node).getIndex())
+                : node;
+        }
+
+        private static Expression boundExpression(long bound) {
+            if (bound == WindowEnumerables.UNBOUNDED_PRECEDING) {
+                return Expressions.field(
+                    null, WindowEnumerables.class, "UNBOUNDED_PRECEDING");
+            }
+            if (bound == WindowEnumerables.UNBOUNDED_FOLLOWING) {
+                return Expressions.field(
+                    null, WindowEnumerables.class, "UNBOUNDED_FOLLOWING");
+            }
+            return Expressions.constant(bound);
+        }
+
+        private static List<RexNode> concat(RexNode[]... arrays) {
+            final List<RexNode> list = new ArrayList<RexNode>();
+            for (RexNode[] array : arrays) {
+                list.addAll(Arrays.asList(array));
+            }
+            return list;
+        }
+
+        private static boolean isUnboundedOrCurrentRow(SqlNode bound) {
+            return bound == null
+                || SqlWindowOperator.isCurrentRow(bound)
+                || SqlWindowOperator.isUnboundedPreceding(bound)
+                || SqlWindowOperator.isUnboundedFollowing(bound);
+        }
+
+        /** Converts a window bound to an offset from the current row,
+         * as understood by {@link WindowEnumerables#window}. A missing
+         * bound means CURRENT ROW. */
+        private static long bound(SqlNode bound) {
+            if (bound == null || SqlWindowOperator.isCurrentRow(bound)) {
+                return 0;
+            }
+            if (SqlWindowOperator.isUnboundedPreceding(bound)) {
+                return WindowEnumerables.UNBOUNDED_PRECEDING;
+            }
+            if (SqlWindowOperator.isUnboundedFollowing(bound)) {
+                return WindowEnumerables.UNBOUNDED_FOLLOWING;
+            }
+            final SqlCall call = (SqlCall) bound;
+            final Object value = ((SqlLiteral) call.operands[0]).getValue();
+            final long offset;
+            if (value instanceof SqlIntervalLiteral.IntervalValue) {
+                offset =
+                    SqlParserUtil.intervalToMillis(
+                        (SqlIntervalLiteral.IntervalValue) value);
+            } else {
+                offset = ((BigDecimal) value).longValue();
+            }
+            return call.getKind() == SqlKind.PRECEDING ? -offset : offset;
         }
     }
 
@@ -1112,6 +3487,12 @@ public class JavaRules {
     /**
      * Rule to convert an {@link org.eigenbase.rel.SortRel} to an
      * {@link net.hydromatic.optiq.rules.java.JavaRules.EnumerableSortRel}.
+     *
+     * <p>The sort reads its input in whatever order the input has; so a sort
+     * that the planner created to enforce a {@link RelCollation} trait does
+     * not require its own output order. A sort from the query can also read
+     * an input that is already sorted on its keys, if the planner can find
+     * one; then it does not need to sort.</p>
      */
     private static class EnumerableSortRule
         extends ConverterRule
@@ -1125,6 +3506,33 @@ public class JavaRules {
                 "EnumerableSortRule");
         }
 
+        @Override
+        public void onMatch(RelOptRuleCall call) {
+            super.onMatch(call);
+            final SortRel sort = (SortRel) call.rels[0];
+            final RelNode child = sort.getChild();
+            if (sort.getCollations().isEmpty()
+                || child.getConvention() != Convention.NONE
+                || sort.getTraitSet().getTrait(RelCollationTraitDef.INSTANCE)
+                == null)
+            {
+                // Sorts whose input is physical were created by the planner
+                // to enforce a collation; their input must not be sorted on
+                // their own keys.
+                return;
+            }
+            final RelTraitSet traitSet =
+                sort.getTraitSet().replace(EnumerableConvention.ARRAY);
+            call.transformTo(
+                new EnumerableSortRel(
+                    sort.getCluster(),
+                    traitSet,
+                    convert(child, traitSet),
+                    sort.getCollations(),
+                    sort.offset,
+                    sort.fetch));
+        }
+
         public RelNode convert(RelNode rel)
         {
             final SortRel sort = (SortRel) rel;
@@ -1133,8 +3541,13 @@ public class JavaRules {
             return new EnumerableSortRel(
                 rel.getCluster(),
                 traitSet,
-                convert(sort.getChild(), traitSet),
-                sort.getCollations());
+                convert(
+                    sort.getChild(),
+                    sort.getChild().getTraitSet().replace(
+                        EnumerableConvention.ARRAY)),
+                sort.getCollations(),
+                sort.offset,
+                sort.fetch);
         }
     }
 
@@ -1148,9 +3561,11 @@ public class JavaRules {
             RelOptCluster cluster,
             RelTraitSet traitSet,
             RelNode child,
-            List<RelFieldCollation> collations)
+            List<RelFieldCollation> collations,
+            RexNode offset,
+            RexNode fetch)
         {
-            super(cluster, traitSet, child, collations);
+            super(cluster, traitSet, child, collations, offset, fetch);
             assert getConvention() instanceof EnumerableConvention;
             assert getConvention() == child.getConvention();
             this.physType =
@@ -1164,19 +3579,49 @@ public class JavaRules {
         public EnumerableSortRel copy(
             RelTraitSet traitSet,
             RelNode newInput,
-            List<RelFieldCollation> newCollations)
+            List<RelFieldCollation> newCollations,
+            RexNode offset,
+            RexNode fetch)
         {
             return new EnumerableSortRel(
                 getCluster(),
                 traitSet,
                 newInput,
-                newCollations);
+                newCollations,
+                offset,
+                fetch);
         }
 
         public PhysType getPhysType() {
             return physType;
         }
 
+        @Override
+        public RelOptCost computeSelfCost(RelOptPlanner planner) {
+            final RelCollation childCollation =
+                getChild().getTraitSet().getTrait(
+                    RelCollationTraitDef.INSTANCE);
+            final Double rowCount = RelMetadataQuery.getRowCount(this);
+            final double rows = rowCount == null ? 100d : rowCount;
+            if (collations.isEmpty()
+                || childCollation != null
+                && RelCollationImpl.satisfies(
+                    Collections.singletonList(childCollation), collations))
+            {
+                // Input is already in the required order; only skip and
+                // limit.
+                return planner.makeCost(rows, rows, 0);
+            }
+            final Double childRowCount =
+                RelMetadataQuery.getRowCount(getChild());
+            final double childRows =
+                childRowCount == null ? 100d : childRowCount;
+            return planner.makeCost(
+                rows,
+                childRows * Math.max(1d, Math.log(childRows) / Math.log(2d)),
+                0);
+        }
+
         public BlockExpression implement(EnumerableRelImplementor implementor) {
             final BlockBuilder statements = new BlockBuilder();
             final EnumerableRel child = (EnumerableRel) getChild();
@@ -1186,6 +3631,30 @@ public class JavaRules {
                     implementor.visitChild(
                         this, 0, child));
 
+            if (collations.isEmpty()
+                || RelCollationImpl.satisfies(
+                    child.getCollationList(), collations))
+            {
+                // Nothing to sort, or the input already delivers rows in the
+                // required order; just skip and limit. The input is closed
+                // as soon as the limit is reached.
+                if (offset == null && fetch == null) {
+                    statements.add(Expressions.return_(null, childExp));
+                    return statements.toBlock();
+                }
+                statements.add(
+                    Expressions.return_(
+                        null,
+                        Expressions.call(
+                            BuiltinMethod.LIMIT.method,
+                            childExp,
+                            Expressions.constant(
+                                offset == null ? 0 : intValue(offset)),
+                            Expressions.constant(
+                                fetch == null ? -1 : intValue(fetch)))));
+                return statements.toBlock();
+            }
+
             PhysType inputPhysType = child.getPhysType();
             final Pair<Expression, Expression> pair =
                 inputPhysType.generateCollationKey(
@@ -1197,6 +3666,61 @@ public class JavaRules {
 
             final Expression comparatorExp = pair.right;
 
+            if (fetch != null) {
+                // Top-N: keep only the first offset + fetch rows, in a
+                // bounded heap. If there is no comparator, the key is
+                // Comparable.
+                statements.add(
+                    Expressions.return_(
+                        null,
+                        Expressions.call(
+                            BuiltinMethod.TOP_N.method,
+                            childExp,
+                            keySelector,
+                            statements.append(
+                                "comparator",
+                                comparatorExp != null
+                                    ? comparatorExp
+                                    : Expressions.call(
+                                        BuiltinMethod.COMPARABLE_COMPARATOR
+                                            .method)),
+                            Expressions.constant(
+                                offset == null ? 0 : intValue(offset)),
+                            Expressions.constant(intValue(fetch)))));
+                return statements.toBlock();
+            }
+
+            final Expression serializer =
+                inputPhysType.generateSerializer();
+            final Expression normalizer =
+                inputPhysType.generateNormalizer(collations);
+            if (comparatorExp != null
+                && (serializer != null || normalizer != null))
+            {
+                // Sort that uses normalized keys, and can spill to disk if
+                // the query has a memory budget.
+                statements.add(
+                    Expressions.return_(
+                        null,
+                        skip(
+                            Expressions.call(
+                                BuiltinMethod.SPILLING_ORDER_BY.method,
+                                implementor.getRootExpression(),
+                                childExp,
+                                keySelector,
+                                statements.append(
+                                    "comparator", comparatorExp),
+                                serializer == null
+                                    ? Expressions.constant(null)
+                                    : statements.append(
+                                        "serializer", serializer),
+                                normalizer == null
+                                    ? Expressions.constant(null)
+                                    : statements.append(
+                                        "normalizer", normalizer)))));
+                return statements.toBlock();
+            }
+
             final List<Expression> arguments =
                 Expressions.list(keySelector);
             if (comparatorExp != null) {
@@ -1209,12 +3733,138 @@ public class JavaRules {
             statements.add(
                 Expressions.return_(
                     null,
-                    Expressions.call(
-                        childExp,
-                        BuiltinMethod.ORDER_BY.method,
-                        arguments)));
+                    skip(
+                        Expressions.call(
+                            childExp,
+                            BuiltinMethod.ORDER_BY.method,
+                            arguments))));
             return statements.toBlock();
         }
+
+        /** Wraps an expression in a call to skip the first rows, if this
+         * sort has an offset. */
+        private Expression skip(Expression expression) {
+            if (offset == null) {
+                return expression;
+            }
+            return Expressions.call(
+                expression,
+                BuiltinMethod.SKIP.method,
+                Expressions.constant(intValue(offset)));
+        }
+
+        /** Returns the value of an OFFSET or FETCH literal. The runtime
+         * methods that skip and limit rows take an int, so throws if the
+         * value is out of range, rather than silently truncating it. */
+        private static int intValue(RexNode node) {
+            final long value = RexLiteral.longValue(node);
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new RuntimeException(
+                    "OFFSET or FETCH value out of range: " + value);
+            }
+            return (int) value;
+        }
+    }
+
+    /**
+     * Relational expression that reads each partition of its input in a
+     * separate thread, and returns the rows of all partitions.
+     *
+     * <p>Its input is a pipeline of {@link EnumerableCalcRel}s, perhaps
+     * under an {@link EnumerableAggregateRel}, over an
+     * {@link EnumerableTableAccessRel} of a {@link PartitionableTable}. The
+     * input is evaluated once per partition, and the table access reads only
+     * that partition of the table. Rows are returned in partition order.</p>
+     *
+     * <p>Created by {@link Parallelizer}, not by a planner rule.</p>
+     */
+    public static class EnumerableGatherRel
+        extends SingleRel
+        implements EnumerableRel
+    {
+        private final PhysType physType;
+        public final int partitionCount;
+
+        public EnumerableGatherRel(
+            RelOptCluster cluster,
+            RelTraitSet traitSet,
+            RelNode child,
+            int partitionCount)
+        {
+            super(cluster, traitSet, child);
+            assert getConvention() instanceof EnumerableConvention;
+            assert partitionCount > 1;
+            assert partitionedScan(child) != null;
+            this.partitionCount = partitionCount;
+            this.physType =
+                PhysTypeImpl.of(
+                    (JavaTypeFactory) cluster.getTypeFactory(),
+                    getRowType(),
+                    (EnumerableConvention) getConvention());
+        }
+
+        @Override
+        public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+            return new EnumerableGatherRel(
+                getCluster(), traitSet, sole(inputs), partitionCount);
+        }
+
+        @Override
+        public RelOptPlanWriter explainTerms(RelOptPlanWriter pw) {
+            return super.explainTerms(pw)
+                .item("partitions", partitionCount);
+        }
+
+        /** Returns the scan of a {@link PartitionableTable} at the bottom of
+         * a pipeline that a gather can read in partitions, or null if
+         * {@code rel} is not such a pipeline. The pipeline is an optional
+         * aggregate over zero or more calcs over the scan. */
+        public static EnumerableTableAccessRel partitionedScan(RelNode rel) {
+            if (rel instanceof EnumerableAggregateRel) {
+                rel = ((EnumerableAggregateRel) rel).getChild();
+            }
+            while (rel instanceof EnumerableCalcRel) {
+                rel = ((EnumerableCalcRel) rel).getChild();
+            }
+            if (rel instanceof EnumerableTableAccessRel) {
+                final EnumerableTableAccessRel scan =
+                    (EnumerableTableAccessRel) rel;
+                if (scan.fetch < 0
+                    && scan.getTable().unwrap(PartitionableTable.class)
+                    != null)
+                {
+                    return scan;
+                }
+            }
+            return null;
+        }
+
+        public PhysType getPhysType() {
+            return physType;
+        }
+
+        public BlockExpression implement(EnumerableRelImplementor implementor) {
+            final BlockBuilder builder = new BlockBuilder();
+            final ParameterExpression partition =
+                Expressions.parameter(Integer.class, "partition");
+            final RelNode scan = partitionedScan(getChild());
+            implementor.addPartition(scan, partition, partitionCount);
+            final BlockExpression childBlock;
+            try {
+                childBlock =
+                    implementor.visitChild(
+                        this, 0, (EnumerableRel) getChild());
+            } finally {
+                implementor.removePartition(scan);
+            }
+            return builder.append(
+                Expressions.call(
+                    BuiltinMethod.GATHER.method,
+                    Expressions.lambda(
+                        Function1.class, childBlock, partition),
+                    Expressions.constant(partitionCount)))
+                .toBlock();
+        }
     }
 
     public static final EnumerableUnionRule ENUMERABLE_UNION_RULE =
@@ -1286,17 +3936,30 @@ public class JavaRules {
 
         public BlockExpression implement(EnumerableRelImplementor implementor) {
             final BlockBuilder statements = new BlockBuilder();
-            Expression unionExp = null;
+            final List<Expression> childExps = new ArrayList<Expression>();
             for (Ord<RelNode> ord : Ord.zip(inputs)) {
                 EnumerableRel input = (EnumerableRel) ord.e;
-                Expression childExp =
+                childExps.add(
                     statements.append(
                         "child" + ord.i,
-                        implementor.visitChild(this, ord.i, input));
+                        implementor.visitChild(this, ord.i, input)));
+            }
 
-                if (unionExp == null) {
-                    unionExp = childExp;
-                } else {
+            Expression unionExp;
+            if (all && childExps.size() > 1) {
+                // Reads the inputs concurrently, if the query may use several
+                // threads; otherwise, one after another.
+                unionExp =
+                    Expressions.call(
+                        BuiltinMethod.UNION_ALL.method,
+                        implementor.getRootExpression(),
+                        Expressions.newArrayInit(
+                            Enumerable.class, childExps));
+            } else {
+                unionExp = childExps.get(0);
+                for (Expression childExp
+                    : childExps.subList(1, childExps.size()))
+                {
                     unionExp =
                         Expressions.call(
                             unionExp,
@@ -0,0 +1,178 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.rules.java;
+
+import net.hydromatic.linq4j.Ord;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.RelMetadataQuery;
+import org.eigenbase.sql.fun.SqlStdOperatorTable;
+import org.eigenbase.util.Util;
+
+import java.util.*;
+
+/**
+ * Rewrites an optimized plan so that large scans of
+ * {@link net.hydromatic.optiq.PartitionableTable}s are read in parallel.
+ *
+ * <p>It applies two rewrites, top-down:</p>
+ *
+ * <ul>
+ *
+ * <li>An aggregate over a pipeline of calcs over a partitionable scan
+ * becomes a final aggregate over a gather of partial aggregates. Each
+ * partial aggregate computes the original aggregate functions over one
+ * partition; the final aggregate combines them, using SUM for COUNT and
+ * the original function for SUM, MIN and MAX.</li>
+ *
+ * <li>A calc that filters a partitionable scan is evaluated in parallel,
+ * under a gather.</li>
+ *
+ * </ul>
+ *
+ * <p>A scan is divided into at most {@code parallelism} partitions, and
+ * only if each partition would have at least
+ * {@link #MIN_ROWS_PER_PARTITION} rows. The gather returns rows in
+ * partition order, so the rewritten plan returns rows in the same order as
+ * the original.</p>
+ */
+public class Parallelizer {
+    /** Minimum estimated number of rows in each partition of a scan. Below
+     * this, the cost of starting a task outweighs the benefit. */
+    public static final double MIN_ROWS_PER_PARTITION = 10000d;
+
+    private final int parallelism;
+
+    private Parallelizer(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Rewrites a plan of enumerable relational expressions to read large
+     * partitionable tables in parallel.
+     *
+     * @param rel Root of optimized plan
+     * @param parallelism Maximum number of partitions of any scan
+     * @return Rewritten plan, or the original plan if there is nothing to
+     *     read in parallel
+     */
+    public static RelNode parallelize(RelNode rel, int parallelism) {
+        if (parallelism <= 1) {
+            return rel;
+        }
+        return new Parallelizer(parallelism).visit(rel);
+    }
+
+    private RelNode visit(RelNode rel) {
+        if (rel instanceof JavaRules.EnumerableAggregateRel) {
+            final RelNode parallel =
+                parallelizeAggregate((JavaRules.EnumerableAggregateRel) rel);
+            if (parallel != null) {
+                return parallel;
+            }
+        } else if (rel instanceof JavaRules.EnumerableCalcRel
+            && ((JavaRules.EnumerableCalcRel) rel).getProgram()
+                .getCondition() != null)
+        {
+            final int partitionCount = partitionCount(rel);
+            if (partitionCount > 1) {
+                return new JavaRules.EnumerableGatherRel(
+                    rel.getCluster(), rel.getTraitSet(), rel, partitionCount);
+            }
+        }
+        final List<RelNode> inputs = rel.getInputs();
+        final List<RelNode> newInputs = new ArrayList<RelNode>();
+        boolean changed = false;
+        for (RelNode input : inputs) {
+            final RelNode newInput = visit(input);
+            newInputs.add(newInput);
+            changed |= newInput != input;
+        }
+        if (!changed) {
+            return rel;
+        }
+        return rel.copy(rel.getTraitSet(), newInputs);
+    }
+
+    /** Splits an aggregate into partial aggregates, evaluated in parallel,
+     * and a final aggregate; or returns null if the input is not a large
+     * partitionable pipeline. */
+    private RelNode parallelizeAggregate(
+        JavaRules.EnumerableAggregateRel aggregate)
+    {
+        if (aggregate.getChild() instanceof JavaRules.EnumerableAggregateRel)
+        {
+            return null;
+        }
+        final int partitionCount = partitionCount(aggregate.getChild());
+        if (partitionCount <= 1) {
+            return null;
+        }
+        final int groupCount = aggregate.getGroupCount();
+        final List<AggregateCall> finalCalls = new ArrayList<AggregateCall>();
+        for (Ord<AggregateCall> aggCall
+            : Ord.zip(aggregate.getAggCallList()))
+        {
+            Aggregation aggregation = aggCall.e.getAggregation();
+            if (aggregation == SqlStdOperatorTable.countOperator) {
+                aggregation = SqlStdOperatorTable.sumOperator;
+            }
+            finalCalls.add(
+                new AggregateCall(
+                    aggregation,
+                    false,
+                    Collections.singletonList(groupCount + aggCall.i),
+                    aggCall.e.getType(),
+                    aggCall.e.getName()));
+        }
+        final RelNode gather =
+            new JavaRules.EnumerableGatherRel(
+                aggregate.getCluster(),
+                aggregate.getTraitSet(),
+                aggregate,
+                partitionCount);
+        try {
+            return new JavaRules.EnumerableAggregateRel(
+                aggregate.getCluster(),
+                aggregate.getTraitSet(),
+                gather,
+                Util.bitSetBetween(0, groupCount),
+                finalCalls);
+        } catch (InvalidRelException e) {
+            // COUNT, SUM, MIN and MAX are all supported; must be a bug.
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Returns the number of partitions in which to read a pipeline, or 1
+     * if it should be read in one thread. */
+    private int partitionCount(RelNode rel) {
+        final RelNode scan = JavaRules.EnumerableGatherRel.partitionedScan(rel);
+        if (scan == null || rel instanceof JavaRules.EnumerableAggregateRel) {
+            return 1;
+        }
+        final Double rowCount = RelMetadataQuery.getRowCount(scan);
+        if (rowCount == null) {
+            return 1;
+        }
+        return (int) Math.min(
+            parallelism, Math.floor(rowCount / MIN_ROWS_PER_PARTITION));
+    }
+}
+
+// End Parallelizer.java
@@ -75,6 +75,23 @@ public interface PhysType {
      */
     Expression generateAccessor(List<Integer> fields);
 
+    /** Generates a function that packs a given list of fields into a
+     * {@code long}, for use as a key in
+     * {@link net.hydromatic.optiq.runtime.LongHashTables}; or returns null
+     * if the fields cannot be packed.
+     *
+     * <p>Fields can be packed if there is one field of a primitive numeric
+     * type, or two fields of type {@code int} or narrower. For example:</p>
+     * <pre>{@code
+     * new LongFunction1<Employee> {
+     *    public long apply(Employee v1) {
+     *        return LongHashTables.pack(v1.<fieldN>, v1.<fieldM>);
+     *    }
+     * }
+     * }</pre>
+     */
+    Expression generateLongKeySelector(List<Integer> fields);
+
     /** Generates a selector with the default row format. */
     Expression generateSelector(
         ParameterExpression parameter,
@@ -104,6 +121,19 @@ public interface PhysType {
      * @return Expression to create a row
      */
     Expression record(List<Expression> expressions);
+
+    /** Generates an expression that creates a
+     * {@link net.hydromatic.optiq.runtime.RowSerializer} for rows of this
+     * type, or returns null if rows of this type cannot be serialized (for
+     * example, if a field is of a type that the serializer does not support,
+     * or the row class cannot be created from its field values). */
+    Expression generateSerializer();
+
+    /** Generates an expression that creates a
+     * {@link net.hydromatic.optiq.runtime.NormalizedKeySorter.Normalizer} for
+     * the leading field of a collation, or returns null if that field has no
+     * normalized form. */
+    Expression generateNormalizer(List<RelFieldCollation> collations);
 }
 
 // End PhysType.java
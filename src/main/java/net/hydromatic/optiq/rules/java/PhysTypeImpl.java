@@ -19,8 +19,12 @@ package net.hydromatic.optiq.rules.java;
 
 import net.hydromatic.linq4j.expressions.*;
 import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.LongFunction1;
 import net.hydromatic.optiq.BuiltinMethod;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.jdbc.JavaTypeFactoryImpl;
+import net.hydromatic.optiq.runtime.NormalizedKeySorter;
+import net.hydromatic.optiq.runtime.RowSerializer;
 import net.hydromatic.optiq.runtime.Utilities;
 
 import org.eigenbase.rel.RelFieldCollation;
@@ -395,6 +399,156 @@ public class PhysTypeImpl implements PhysType {
         }
     }
 
+    public Expression generateLongKeySelector(List<Integer> fields) {
+        final ParameterExpression v1 =
+            Expressions.parameter(javaRowClass, "v1");
+        final Expression body;
+        switch (fields.size()) {
+        case 1:
+            final int field = fields.get(0);
+            final Class clazz = fieldClass(field);
+            if (isIntLike(clazz) || clazz == long.class) {
+                body =
+                    Expressions.convert_(fieldReference(v1, field), long.class);
+            } else if (clazz == double.class || clazz == float.class) {
+                body =
+                    Expressions.call(
+                        BuiltinMethod.LONG_HASH_DOUBLE_KEY.method,
+                        Types.castIfNecessary(
+                            double.class, fieldReference(v1, field)));
+            } else {
+                return null;
+            }
+            break;
+        case 2:
+            final int field0 = fields.get(0);
+            final int field1 = fields.get(1);
+            if (!isIntLike(fieldClass(field0))
+                || !isIntLike(fieldClass(field1)))
+            {
+                return null;
+            }
+            body =
+                Expressions.call(
+                    BuiltinMethod.LONG_HASH_PACK.method,
+                    Types.castIfNecessary(
+                        int.class, fieldReference(v1, field0)),
+                    Types.castIfNecessary(
+                        int.class, fieldReference(v1, field1)));
+            break;
+        default:
+            return null;
+        }
+        return Expressions.lambda(LongFunction1.class, body, v1);
+    }
+
+    /** Returns whether a class is a primitive type whose values can be
+     * converted to {@code int} without loss. */
+    private static boolean isIntLike(Class clazz) {
+        return clazz == int.class
+            || clazz == short.class
+            || clazz == byte.class
+            || clazz == char.class;
+    }
+
+    public Expression generateSerializer() {
+        for (Class fieldClass : fieldClasses) {
+            if (!RowSerializer.canSerialize(fieldClass)) {
+                return null;
+            }
+        }
+        final Expression toArray;
+        final Expression fromArray;
+        switch (format) {
+        case ARRAY:
+            toArray = Expressions.call(BuiltinMethod.IDENTITY_SELECTOR.method);
+            fromArray = toArray;
+            break;
+        case CUSTOM:
+            if (!(javaRowClass
+                  instanceof JavaTypeFactoryImpl.SyntheticRecordType))
+            {
+                // A class such as a user's Employee class may not have a
+                // constructor that takes all of its fields.
+                return null;
+            }
+            // fall through
+        default:
+            // new RowSerializer(
+            //     new Function1<Employee, Object[]>() {
+            //         public Object[] apply(Employee row) {
+            //             return new Object[] {row.empid, row.name};
+            //         }
+            //     },
+            //     new Function1<Object[], Employee>() {
+            //         public Employee apply(Object[] values) {
+            //             return new Employee(
+            //                 (Integer) values[0], (String) values[1]);
+            //         }
+            //     })
+            final ParameterExpression row =
+                Expressions.parameter(javaRowClass, "row");
+            final ParameterExpression values =
+                Expressions.parameter(Object[].class, "values");
+            final List<Expression> fieldReferences =
+                new ArrayList<Expression>();
+            final List<Expression> valueReferences =
+                new ArrayList<Expression>();
+            for (int field = 0; field < rowType.getFieldCount(); field++) {
+                fieldReferences.add(fieldReference(row, field));
+                valueReferences.add(
+                    JavaRowFormat.ARRAY.field(
+                        values, field, fieldClass(field)));
+            }
+            toArray =
+                Expressions.lambda(
+                    Function1.class,
+                    Expressions.newArrayInit(Object.class, fieldReferences),
+                    row);
+            fromArray =
+                Expressions.lambda(
+                    Function1.class,
+                    record(valueReferences),
+                    values);
+        }
+        return Expressions.new_(RowSerializer.class, toArray, fromArray);
+    }
+
+    public Expression generateNormalizer(
+        List<RelFieldCollation> collations)
+    {
+        if (collations.isEmpty()) {
+            return null;
+        }
+        final RelFieldCollation collation = collations.get(0);
+        final int index = collation.getFieldIndex();
+        if (!NormalizedKeySorter.canNormalize(fieldClass(index))) {
+            return null;
+        }
+        // NormalizedKeySorter.normalizer(
+        //     new Function1<Employee, Object>() {
+        //         public Object apply(Employee v) {
+        //             return v.empid;
+        //         }
+        //     },
+        //     descending,
+        //     nullsFirst)
+        final ParameterExpression parameter =
+            Expressions.parameter(javaRowClass, "v");
+        return Expressions.call(
+            BuiltinMethod.NORMALIZER.method,
+            Expressions.lambda(
+                Function1.class,
+                fieldReference(parameter, index),
+                parameter),
+            Expressions.constant(
+                collation.getDirection()
+                == RelFieldCollation.Direction.Descending),
+            Expressions.constant(
+                collation.nullDirection
+                == RelFieldCollation.NullDirection.FIRST));
+    }
+
     public Expression fieldReference(
         Expression expression, int field)
     {
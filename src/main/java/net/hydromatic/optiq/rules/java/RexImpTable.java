@@ -520,6 +520,17 @@ public class RexImpTable {
          * not-null. If true, the container code must handle null values
          * appropriately. */
         boolean callOnNull();
+        /** Whether the accumulator can be held in a field of a primitive
+         * type, and updated in place, if the result is of a primitive
+         * numeric type or its box. If so, the container calls
+         * {@link #implementInit} and {@link #implementAdd} with primitive
+         * types; if the result is nullable, the container keeps a
+         * {@code boolean} field that records whether a value has been
+         * added, and returns null if not. */
+        boolean primitiveAccumulator();
+        /** Whether a primitive accumulator is set to the first value added,
+         * rather than being initialized by {@link #implementInit}. */
+        boolean initByFirst();
         Expression implementInit(
             Aggregation aggregation,
             Type returnType,
@@ -650,6 +661,14 @@ public class RexImpTable {
             return false;
         }
 
+        public boolean primitiveAccumulator() {
+            return true;
+        }
+
+        public boolean initByFirst() {
+            return false;
+        }
+
         public Expression implementInit(
             Aggregation aggregation,
             Type returnType,
@@ -681,6 +700,14 @@ public class RexImpTable {
             return false;
         }
 
+        public boolean primitiveAccumulator() {
+            return true;
+        }
+
+        public boolean initByFirst() {
+            return false;
+        }
+
         public Expression implementInit(
             Aggregation aggregation,
             Type returnType,
@@ -738,6 +765,14 @@ public class RexImpTable {
             return false;
         }
 
+        public boolean primitiveAccumulator() {
+            return true;
+        }
+
+        public boolean initByFirst() {
+            return true;
+        }
+
         public Expression implementInit(
             Aggregation aggregation,
             Type returnType,
@@ -765,6 +800,15 @@ public class RexImpTable {
             //   : lesser(acc, arg)
             assert arguments.size() == 1;
             final Expression arg = arguments.get(0);
+            if (Primitive.is(accumulator.type)) {
+                // Primitive accumulator. The container has ensured that it
+                // has been set to the first value.
+                return Expressions.call(
+                    SqlFunctions.class,
+                    aggregation == minOperator ? "lesser" : "greater",
+                    accumulator,
+                    Types.castIfNecessary(accumulator.type, arg));
+            }
             return optimize(
                 Expressions.condition(
                     Expressions.foldOr(
@@ -655,7 +655,8 @@ public class RexToLixTranslator {
     }
 
     /** Implementation of {@link InputGetter} that calls
-     * {@link PhysType#fieldReference}. */
+     * {@link PhysType#fieldReference}. If there are several inputs, their
+     * fields are numbered consecutively, as in the row type of a join. */
     public static class InputGetterImpl implements InputGetter {
         private List<Pair<Expression, PhysType>> inputs;
 
@@ -664,10 +665,19 @@ public class RexToLixTranslator {
         }
 
         public Expression field(BlockBuilder list, int index) {
-            final Pair<Expression, PhysType> input = inputs.get(0);
-            final PhysType physType = input.right;
-            final Expression left = list.append("current" + index, input.left);
-            return physType.fieldReference(left, index);
+            int offset = 0;
+            for (Pair<Expression, PhysType> input : inputs) {
+                final PhysType physType = input.right;
+                final int fieldCount =
+                    physType.getRowType().getFieldCount();
+                if (index - offset < fieldCount) {
+                    final Expression left =
+                        list.append("current" + index, input.left);
+                    return physType.fieldReference(left, index - offset);
+                }
+                offset += fieldCount;
+            }
+            throw new IllegalArgumentException("field " + index);
         }
     }
 
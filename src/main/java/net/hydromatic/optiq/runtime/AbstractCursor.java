@@ -130,6 +130,10 @@ public abstract class AbstractCursor implements Cursor {
 
     public abstract boolean next();
 
+    public void close() {
+        // nothing to do
+    }
+
     static class AccessorImpl implements Accessor {
         protected final Getter getter;
 
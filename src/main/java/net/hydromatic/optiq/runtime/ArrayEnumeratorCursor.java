@@ -48,6 +48,11 @@ public class ArrayEnumeratorCursor extends AbstractCursor {
         return enumerator.moveNext();
     }
 
+    @Override
+    public void close() {
+        Utilities.close(enumerator);
+    }
+
     class ArrayEnumeratorGetter implements Getter {
         protected final int field;
 
@@ -0,0 +1,222 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.Enumerator;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Enumerator that reads rows from an underlying enumerator in a separate
+ * thread, and hands them to the consumer via a bounded buffer.
+ *
+ * <p>The producer task reads rows in batches, and blocks when the buffer
+ * holds {@code batchCount} batches that the consumer has not yet read. Thus
+ * the consumer can process rows while the next rows are being computed, but
+ * the producer never gets more than {@code batchSize * batchCount} rows
+ * ahead.</p>
+ *
+ * <p>If the underlying enumerator throws, the exception is re-thrown to the
+ * consumer, after it has read the rows produced before the failure. If the
+ * consumer calls {@link #close()}, the producer stops at the next row or
+ * batch boundary.</p>
+ *
+ * <p>The underlying enumerator must return a distinct object for each
+ * row, because rows are read before the consumer has finished with the
+ * previous row.</p>
+ *
+ * @param <T> Element type
+ */
+public class AsyncEnumerator<T> implements Enumerator<T>, Closeable {
+    /** Marks the end of the rows in the buffer. */
+    private static final Object END = new Object();
+
+    private final Enumerator<T> source;
+    private final Executor executor;
+    private final int batchSize;
+    private final BlockingQueue<Object> queue;
+
+    private volatile boolean closed;
+    /** Set by the first call to {@link #moveNext()}, or by {@link #close()}
+     * if it is called first; then whoever set it closes the source. */
+    private final AtomicBoolean started = new AtomicBoolean();
+    private boolean done;
+    private List<T> batch = Collections.emptyList();
+    private int index;
+    private T current;
+
+    /**
+     * Creates an AsyncEnumerator.
+     *
+     * @param source Underlying enumerator
+     * @param executor Executor on which to run the producer task
+     * @param batchSize Number of rows in each batch; must be positive
+     * @param batchCount Maximum number of batches in the buffer; must be
+     *     positive
+     */
+    public AsyncEnumerator(
+        Enumerator<T> source,
+        Executor executor,
+        int batchSize,
+        int batchCount)
+    {
+        assert batchSize > 0 : batchSize;
+        assert batchCount > 0 : batchCount;
+        this.source = source;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        // One extra slot for the end marker, so that the producer never
+        // blocks after it has produced its last row.
+        this.queue = new ArrayBlockingQueue<Object>(batchCount + 1);
+    }
+
+    public T current() {
+        return current;
+    }
+
+    public boolean moveNext() {
+        if (closed) {
+            return false;
+        }
+        if (started.compareAndSet(false, true)) {
+            executor.execute(new Producer());
+        }
+        while (index >= batch.size()) {
+            if (done) {
+                return false;
+            }
+            final Object o = take();
+            if (o == END) {
+                done = true;
+                return false;
+            }
+            if (o instanceof Failure) {
+                done = true;
+                final Throwable e = ((Failure) o).throwable;
+                if (e instanceof RuntimeException) {
+                    throw (RuntimeException) e;
+                }
+                if (e instanceof Error) {
+                    throw (Error) e;
+                }
+                throw new RuntimeException(e);
+            }
+            //noinspection unchecked
+            batch = (List<T>) o;
+            index = 0;
+        }
+        current = batch.get(index++);
+        return true;
+    }
+
+    public void reset() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops the producer and discards any buffered rows. Called when the
+     * cursor is closed; the producer then closes the underlying
+     * enumerator. If the producer has not started, closes the underlying
+     * enumerator immediately.
+     *
+     * <p>May be called from a thread other than the consumer, for example to
+     * cancel a statement; a consumer waiting for rows sees the end of the
+     * data.</p>
+     */
+    public void close() {
+        closed = true;
+        if (started.compareAndSet(false, true)) {
+            Utilities.close(source);
+            return;
+        }
+        // Make room, in case the producer is blocked on a full buffer, and
+        // wake up the consumer, in case it is waiting for a batch.
+        queue.clear();
+        queue.offer(END);
+    }
+
+    private Object take() {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Puts an object into the buffer, waiting if necessary, unless the
+     * consumer has closed the enumerator. Returns whether the object was
+     * added. */
+    private boolean put(Object o) throws InterruptedException {
+        while (!closed) {
+            if (queue.offer(o, 100, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Task that reads rows from the underlying enumerator and puts them, in
+     * batches, into the buffer. */
+    private class Producer implements Runnable {
+        public void run() {
+            try {
+                List<T> list = new ArrayList<T>(batchSize);
+                while (!closed && source.moveNext()) {
+                    list.add(source.current());
+                    if (list.size() >= batchSize) {
+                        if (!put(list)) {
+                            return;
+                        }
+                        list = new ArrayList<T>(batchSize);
+                    }
+                }
+                if (!list.isEmpty() && !put(list)) {
+                    return;
+                }
+                put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                try {
+                    put(new Failure(e));
+                } catch (InterruptedException e2) {
+                    Thread.currentThread().interrupt();
+                }
+            } finally {
+                // Release the underlying source, whether it is exhausted or
+                // the consumer stopped early.
+                Utilities.close(source);
+            }
+        }
+    }
+
+    /** Wraps an exception thrown by the underlying enumerator. */
+    private static class Failure {
+        final Throwable throwable;
+
+        Failure(Throwable throwable) {
+            this.throwable = throwable;
+        }
+    }
+}
+
+// End AsyncEnumerator.java
@@ -0,0 +1,90 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.Queryable;
+
+import net.hydromatic.optiq.DataContext;
+import net.hydromatic.optiq.Schema;
+import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+
+import org.eigenbase.util.CancelFlag;
+
+/**
+ * Implementation of {@link DataContext} that wraps the root schema of a
+ * statement and carries the statement's {@link CancelFlag}, the
+ * {@link MemoryBudget} of the current execution, and the number of threads
+ * that its operators may use.
+ *
+ * <p>Generated code receives an instance as its {@code root} argument, and
+ * calls {@link Utilities#checkCancel(DataContext)} and
+ * {@link Utilities#cancellable(DataContext, net.hydromatic.linq4j.Enumerable)}
+ * to stop execution soon after the statement is canceled or times out.</p>
+ */
+public class CancellableDataContext implements DataContext {
+    private final DataContext dataContext;
+    public final CancelFlag cancelFlag;
+    public final MemoryBudget memoryBudget;
+    public final int parallelism;
+
+    /**
+     * Creates a CancellableDataContext.
+     *
+     * @param dataContext Underlying data context, usually the root schema
+     * @param cancelFlag Cancel flag of the statement being executed
+     * @param memoryBudget Memory that operators of this execution may use
+     * @param parallelism Maximum number of threads that an operator of this
+     *     execution may use; 1 if operators are serial
+     */
+    public CancellableDataContext(
+        DataContext dataContext,
+        CancelFlag cancelFlag,
+        MemoryBudget memoryBudget,
+        int parallelism)
+    {
+        this.dataContext = dataContext;
+        this.cancelFlag = cancelFlag;
+        this.memoryBudget = memoryBudget;
+        this.parallelism = parallelism;
+        assert dataContext != null;
+        assert cancelFlag != null;
+        assert memoryBudget != null;
+    }
+
+    /** Throws {@link QueryCanceledException} if cancellation has been
+     * requested. */
+    public void checkCancel() {
+        if (cancelFlag.isCancelRequested()) {
+            throw new QueryCanceledException();
+        }
+    }
+
+    public <T> Queryable<T> getTable(String name, Class<T> elementType) {
+        return dataContext.getTable(name, elementType);
+    }
+
+    public Schema getSubSchema(String name) {
+        return dataContext.getSubSchema(name);
+    }
+
+    public JavaTypeFactory getTypeFactory() {
+        return dataContext.getTypeFactory();
+    }
+}
+
+// End CancellableDataContext.java
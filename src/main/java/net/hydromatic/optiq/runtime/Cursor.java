@@ -48,6 +48,11 @@ public interface Cursor {
      */
     boolean next();
 
+    /**
+     * Closes this cursor and releases its resources.
+     */
+    void close();
+
     /**
      * Accessor of a column value.
      */
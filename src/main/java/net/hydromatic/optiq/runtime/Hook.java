@@ -31,7 +31,19 @@ import java.util.concurrent.CopyOnWriteArrayList;
 public enum Hook {
     /** Called with the generated Java plan, just before it is compiled by
      * Janino. */
-    JAVA_PLAN;
+    JAVA_PLAN,
+
+    /** Called with the SQL string generated for a JDBC data source, just
+     * before it is executed. */
+    JDBC_SQL,
+
+    /** Called with the {@link java.io.File} each time an operator creates a
+     * temporary file to hold rows that do not fit in its memory budget. */
+    SPILL,
+
+    /** Called with a list of the number of inner rows in each partition
+     * each time a parallel hash join has built its hash tables. */
+    PARALLEL_JOIN;
 
     private final List<Function1<Object, Object>> handlers =
         new CopyOnWriteArrayList<Function1<Object, Object>>();
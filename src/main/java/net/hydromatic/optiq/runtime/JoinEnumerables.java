@@ -0,0 +1,1179 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Function2;
+import net.hydromatic.linq4j.function.Predicate2;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Join algorithms that linq4j does not provide: hash joins that can be
+ * outer joins, semi-joins and anti-joins, and joins whose condition is not
+ * (or not only) equality of keys.
+ */
+public class JoinEnumerables {
+    /** Number of rows of the inner input that a nested-loop join holds in
+     * memory at a time. */
+    public static final int CHUNK_SIZE = 4096;
+
+    /** Minimum number of inner rows for which a parallel hash join builds
+     * its hash table in several threads. */
+    private static final int PARALLEL_THRESHOLD = 1 << 15;
+
+    private JoinEnumerables() {
+        throw new AssertionError("no instances!");
+    }
+
+    /**
+     * Joins two inputs on matching keys, optionally returning rows that
+     * match nothing, as an outer join does.
+     *
+     * <p>Builds a hash table on the inner input. For each outer row,
+     * returns its matching inner rows in the order they were read, or if
+     * there are none and {@code generateNullsOnRight}, the outer row and
+     * null. Then, if {@code generateNullsOnLeft}, returns null and each
+     * inner row that matched no outer row; a bit set records which inner
+     * rows have matched.</p>
+     *
+     * <p>A null key, or a composite key that contains a null, matches
+     * nothing.</p>
+     *
+     * @param outer Outer input
+     * @param inner Inner input, from which the hash table is built
+     * @param outerKeySelector Extracts the key from an outer row
+     * @param innerKeySelector Extracts the key from an inner row
+     * @param resultSelector Creates an output row from an outer and an
+     *     inner row, either of which may be null if the join is outer
+     * @param generateNullsOnLeft Whether to return inner rows that match no
+     *     outer row
+     * @param generateNullsOnRight Whether to return outer rows that match no
+     *     inner row
+     * @return Joined rows
+     */
+    public static <TSource, TInner, TKey, TResult> Enumerable<TResult>
+    hashJoin(
+        final Enumerable<TSource> outer,
+        final Enumerable<TInner> inner,
+        final Function1<TSource, TKey> outerKeySelector,
+        final Function1<TInner, TKey> innerKeySelector,
+        final Function2<TSource, TInner, TResult> resultSelector,
+        final boolean generateNullsOnLeft,
+        final boolean generateNullsOnRight)
+    {
+        return new AbstractEnumerable<TResult>() {
+            public Enumerator<TResult> enumerator() {
+                return new HashJoinEnumerator<TSource, TInner, TKey, TResult>(
+                    outer, inner, outerKeySelector, innerKeySelector,
+                    resultSelector, generateNullsOnLeft,
+                    generateNullsOnRight);
+            }
+        };
+    }
+
+    /**
+     * Joins two inputs on matching keys, building the hash table and probing
+     * it in several threads. The join is inner.
+     *
+     * <p>Reads the inner input into memory, then computes the keys of its
+     * rows, and builds one hash table for each partition of the key hash, in
+     * parallel. Reads the outer input in chunks of {@link #CHUNK_SIZE} rows,
+     * and probes up to {@code parallelism} chunks at a time, each in a
+     * separate thread. Joined rows are returned in the same order as a
+     * serial hash join would return them.</p>
+     *
+     * <p>If the inner input is small, the hash table is built in one
+     * thread; if the outer input fits into one chunk, it is probed in the
+     * calling thread.</p>
+     *
+     * @param outer Outer input
+     * @param inner Inner input, from which the hash tables are built
+     * @param outerKeySelector Extracts the key from an outer row
+     * @param innerKeySelector Extracts the key from an inner row
+     * @param resultSelector Creates an output row from a matching pair
+     * @param parallelism Maximum number of threads
+     * @return Joined rows
+     */
+    public static <TSource, TInner, TKey, TResult> Enumerable<TResult>
+    parallelHashJoin(
+        final Enumerable<TSource> outer,
+        final Enumerable<TInner> inner,
+        final Function1<TSource, TKey> outerKeySelector,
+        final Function1<TInner, TKey> innerKeySelector,
+        final Function2<TSource, TInner, TResult> resultSelector,
+        final int parallelism)
+    {
+        assert parallelism > 0;
+        return new AbstractEnumerable<TResult>() {
+            public Enumerator<TResult> enumerator() {
+                return new ParallelHashJoinEnumerator<
+                    TSource, TInner, TKey, TResult>(
+                    outer, inner, outerKeySelector, innerKeySelector,
+                    resultSelector, parallelism);
+            }
+        };
+    }
+
+    /** Returns whether a join key is null or contains a null, and therefore
+     * matches no other key. */
+    static boolean isNullKey(Object key) {
+        if (key == null) {
+            return true;
+        }
+        if (key instanceof List) {
+            for (Object o : (List) key) {
+                if (o == null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the rows of the outer input that have (or, for an anti-join,
+     * do not have) a matching row in the inner input.
+     *
+     * <p>Builds a hash set of the inner keys, then probes it once per outer
+     * row. Unlike a join followed by a projection, it returns each outer row
+     * at most once, however many inner rows it matches, and never creates a
+     * joined row.</p>
+     *
+     * <p>A null key, or a composite key that contains a null, matches
+     * nothing; an anti-join therefore returns outer rows whose key is
+     * null.</p>
+     *
+     * @param outer Outer input
+     * @param inner Inner input, from which the hash set is built
+     * @param outerKeySelector Extracts the key from an outer row
+     * @param innerKeySelector Extracts the key from an inner row
+     * @param anti Whether to return outer rows that match no inner row,
+     *     rather than those that match at least one
+     * @return Rows of the outer input
+     */
+    public static <TSource, TInner, TKey> Enumerable<TSource> semiJoin(
+        final Enumerable<TSource> outer,
+        final Enumerable<TInner> inner,
+        final Function1<TSource, TKey> outerKeySelector,
+        final Function1<TInner, TKey> innerKeySelector,
+        final boolean anti)
+    {
+        return new AbstractEnumerable<TSource>() {
+            public Enumerator<TSource> enumerator() {
+                return new SemiJoinEnumerator<TSource, TInner, TKey>(
+                    outer, inner, outerKeySelector, innerKeySelector, anti);
+            }
+        };
+    }
+
+    /**
+     * Joins two inputs using an arbitrary predicate.
+     *
+     * <p>Reads the inner input in chunks of {@link #CHUNK_SIZE} rows, and
+     * for each chunk, reads the outer input and tests each of its rows
+     * against each row in the chunk. The outer input is therefore read once
+     * per chunk, and must return the same rows in the same order each
+     * time.</p>
+     *
+     * @param outer Left input
+     * @param inner Right input
+     * @param predicate Join condition
+     * @param resultSelector Creates an output row from a left and a right
+     *     row, either of which may be null if the join is outer
+     * @param generateNullsOnLeft Whether to emit right rows that match no
+     *     left row (right or full join)
+     * @param generateNullsOnRight Whether to emit left rows that match no
+     *     right row (left or full join)
+     * @return Joined rows
+     */
+    public static <TSource, TInner, TResult> Enumerable<TResult>
+    nestedLoopJoin(
+        Enumerable<TSource> outer,
+        Enumerable<TInner> inner,
+        Predicate2<TSource, TInner> predicate,
+        Function2<TSource, TInner, TResult> resultSelector,
+        boolean generateNullsOnLeft,
+        boolean generateNullsOnRight)
+    {
+        return nestedLoopJoin(
+            outer, inner, predicate, resultSelector, generateNullsOnLeft,
+            generateNullsOnRight, CHUNK_SIZE);
+    }
+
+    /** As {@link #nestedLoopJoin(Enumerable, Enumerable, Predicate2,
+     * Function2, boolean, boolean)}, but with a given chunk size. */
+    public static <TSource, TInner, TResult> Enumerable<TResult>
+    nestedLoopJoin(
+        final Enumerable<TSource> outer,
+        final Enumerable<TInner> inner,
+        final Predicate2<TSource, TInner> predicate,
+        final Function2<TSource, TInner, TResult> resultSelector,
+        final boolean generateNullsOnLeft,
+        final boolean generateNullsOnRight,
+        final int chunkSize)
+    {
+        assert chunkSize > 0;
+        return new AbstractEnumerable<TResult>() {
+            public Enumerator<TResult> enumerator() {
+                return new NestedLoopJoinEnumerator<TSource, TInner, TResult>(
+                    outer, inner, predicate, resultSelector,
+                    generateNullsOnLeft, generateNullsOnRight, chunkSize);
+            }
+        };
+    }
+
+    /**
+     * Joins two inputs on a condition that requires a key of each inner row
+     * to lie within a range computed from the outer row; for example,
+     * {@code outer.lo <= inner.key AND inner.key < outer.hi}.
+     *
+     * <p>Reads the inner input into memory and sorts it on the key. For each
+     * outer row, finds the inner rows in range by binary search, and tests
+     * them against the remaining predicate, if any. Rows whose key or bound
+     * is null match nothing.</p>
+     *
+     * @param outer Left input
+     * @param inner Right input, which is held in memory
+     * @param lowerSelector Computes the lower bound of the range from an
+     *     outer row, or null if there is no lower bound
+     * @param lowerInclusive Whether the lower bound is inclusive
+     * @param upperSelector Computes the upper bound of the range from an
+     *     outer row, or null if there is no upper bound
+     * @param upperInclusive Whether the upper bound is inclusive
+     * @param innerKeySelector Extracts the key from an inner row
+     * @param predicate Remaining join condition, or null
+     * @param resultSelector Creates an output row from an outer and an
+     *     inner row
+     * @return Joined rows
+     */
+    public static <TSource, TInner, TKey extends Comparable, TResult>
+    Enumerable<TResult> bandJoin(
+        final Enumerable<TSource> outer,
+        final Enumerable<TInner> inner,
+        final Function1<TSource, TKey> lowerSelector,
+        final boolean lowerInclusive,
+        final Function1<TSource, TKey> upperSelector,
+        final boolean upperInclusive,
+        final Function1<TInner, TKey> innerKeySelector,
+        final Predicate2<TSource, TInner> predicate,
+        final Function2<TSource, TInner, TResult> resultSelector)
+    {
+        return new AbstractEnumerable<TResult>() {
+            public Enumerator<TResult> enumerator() {
+                return new BandJoinEnumerator<TSource, TInner, TKey, TResult>(
+                    outer, inner, lowerSelector, lowerInclusive,
+                    upperSelector, upperInclusive, innerKeySelector,
+                    predicate, resultSelector);
+            }
+        };
+    }
+
+    /** Enumerator that implements a hash join.
+     *
+     * <p>The inner rows are held in a list. Rows with the same key form a
+     * chain: the table maps each key to the first and last row of its chain,
+     * and {@code next} holds the next row in the chain, indexed by row, or
+     * -1.</p>
+     *
+     * @param <TSource> Outer row type
+     * @param <TInner> Inner row type
+     * @param <TKey> Key type
+     * @param <TResult> Result type */
+    private static class HashJoinEnumerator<TSource, TInner, TKey, TResult>
+        implements Enumerator<TResult>
+    {
+        private final Enumerable<TSource> outer;
+        private final Enumerable<TInner> inner;
+        private final Function1<TSource, TKey> outerKeySelector;
+        private final Function1<TInner, TKey> innerKeySelector;
+        private final Function2<TSource, TInner, TResult> resultSelector;
+        private final boolean generateNullsOnLeft;
+        private final boolean generateNullsOnRight;
+
+        /** Maps each key to the first and last inner row with that key. */
+        private Map<TKey, int[]> table;
+        private List<TInner> rows;
+        private int[] next;
+        /** Inner rows that have matched an outer row; only if
+         * generateNullsOnLeft. */
+        private final BitSet matched = new BitSet();
+        private Enumerator<TSource> outerEnumerator;
+        private TSource outerRow;
+        private int match = -1;
+        /** Once the outer input is exhausted, the next inner row to consider
+         * returning as unmatched; -1 before then. */
+        private int unmatched = -1;
+        private TResult current;
+
+        HashJoinEnumerator(
+            Enumerable<TSource> outer,
+            Enumerable<TInner> inner,
+            Function1<TSource, TKey> outerKeySelector,
+            Function1<TInner, TKey> innerKeySelector,
+            Function2<TSource, TInner, TResult> resultSelector,
+            boolean generateNullsOnLeft,
+            boolean generateNullsOnRight)
+        {
+            this.outer = outer;
+            this.inner = inner;
+            this.outerKeySelector = outerKeySelector;
+            this.innerKeySelector = innerKeySelector;
+            this.resultSelector = resultSelector;
+            this.generateNullsOnLeft = generateNullsOnLeft;
+            this.generateNullsOnRight = generateNullsOnRight;
+        }
+
+        public TResult current() {
+            return current;
+        }
+
+        public boolean moveNext() {
+            if (table == null) {
+                build();
+                outerEnumerator = outer.enumerator();
+            }
+            for (;;) {
+                if (match >= 0) {
+                    if (generateNullsOnLeft) {
+                        matched.set(match);
+                    }
+                    current = resultSelector.apply(outerRow, rows.get(match));
+                    match = next[match];
+                    return true;
+                }
+                if (unmatched >= 0) {
+                    unmatched = matched.nextClearBit(unmatched);
+                    if (unmatched < rows.size()) {
+                        current =
+                            resultSelector.apply(null, rows.get(unmatched++));
+                        return true;
+                    }
+                    current = null;
+                    return false;
+                }
+                if (!outerEnumerator.moveNext()) {
+                    outerRow = null;
+                    if (generateNullsOnLeft) {
+                        unmatched = 0;
+                        continue;
+                    }
+                    current = null;
+                    return false;
+                }
+                outerRow = outerEnumerator.current();
+                final TKey key = outerKeySelector.apply(outerRow);
+                final int[] firstLast =
+                    isNullKey(key) ? null : table.get(key);
+                if (firstLast != null) {
+                    match = firstLast[0];
+                } else if (generateNullsOnRight) {
+                    current = resultSelector.apply(outerRow, null);
+                    return true;
+                }
+            }
+        }
+
+        public void reset() {
+            if (outerEnumerator != null) {
+                outerEnumerator.reset();
+            }
+            outerRow = null;
+            match = -1;
+            unmatched = -1;
+            matched.clear();
+            current = null;
+        }
+
+        private void build() {
+            final Map<TKey, int[]> table = new HashMap<TKey, int[]>();
+            final List<TInner> rows = new ArrayList<TInner>();
+            int[] next = new int[16];
+            final Enumerator<TInner> enumerator = inner.enumerator();
+            try {
+                while (enumerator.moveNext()) {
+                    final TInner row = enumerator.current();
+                    final int i = rows.size();
+                    rows.add(row);
+                    if (i == next.length) {
+                        next = Arrays.copyOf(next, i * 2);
+                    }
+                    next[i] = -1;
+                    final TKey key = innerKeySelector.apply(row);
+                    if (isNullKey(key)) {
+                        // Kept only so that it can be returned unmatched.
+                        continue;
+                    }
+                    final int[] firstLast = table.get(key);
+                    if (firstLast == null) {
+                        table.put(key, new int[] {i, i});
+                    } else {
+                        next[firstLast[1]] = i;
+                        firstLast[1] = i;
+                    }
+                }
+            } finally {
+                Utilities.close(enumerator);
+            }
+            this.table = table;
+            this.rows = rows;
+            this.next = next;
+        }
+    }
+
+    /** Enumerator that implements a parallel hash join.
+     *
+     * <p>As in {@link HashJoinEnumerator}, rows with the same key form a
+     * chain through {@code next}. Each row belongs to the table of one
+     * partition, and the row numbers of each partition are gathered
+     * together before the tables are built, so the thread that builds a
+     * table reads only that partition's rows, and the threads write
+     * disjoint elements of {@code next}.</p>
+     *
+     * @param <TSource> Outer row type
+     * @param <TInner> Inner row type
+     * @param <TKey> Key type
+     * @param <TResult> Result type */
+    private static class ParallelHashJoinEnumerator<
+        TSource, TInner, TKey, TResult>
+        implements Utilities.CloseableEnumerator<TResult>
+    {
+        private final Enumerable<TSource> outer;
+        private final Enumerable<TInner> inner;
+        private final Function1<TSource, TKey> outerKeySelector;
+        private final Function1<TInner, TKey> innerKeySelector;
+        private final Function2<TSource, TInner, TResult> resultSelector;
+        private final int parallelism;
+
+        /** Hash table of each partition; maps each key to the first and
+         * last inner row with that key. */
+        private List<Map<TKey, int[]>> tables;
+        private List<TInner> rows;
+        private int[] next;
+        private Enumerator<TSource> outerEnumerator;
+        private boolean outerDone;
+        /** Chunks of outer rows being probed, in the order they were
+         * read. */
+        private final LinkedList<Future<List<TResult>>> futures =
+            new LinkedList<Future<List<TResult>>>();
+        private List<TResult> results = Collections.emptyList();
+        private int resultOrdinal = -1;
+
+        ParallelHashJoinEnumerator(
+            Enumerable<TSource> outer,
+            Enumerable<TInner> inner,
+            Function1<TSource, TKey> outerKeySelector,
+            Function1<TInner, TKey> innerKeySelector,
+            Function2<TSource, TInner, TResult> resultSelector,
+            int parallelism)
+        {
+            this.outer = outer;
+            this.inner = inner;
+            this.outerKeySelector = outerKeySelector;
+            this.innerKeySelector = innerKeySelector;
+            this.resultSelector = resultSelector;
+            this.parallelism = parallelism;
+        }
+
+        public TResult current() {
+            return results.get(resultOrdinal);
+        }
+
+        public boolean moveNext() {
+            if (tables == null) {
+                build();
+                outerEnumerator = outer.enumerator();
+            }
+            while (++resultOrdinal >= results.size()) {
+                results = Collections.emptyList();
+                resultOrdinal = -1;
+                if (futures.isEmpty()) {
+                    if (outerDone) {
+                        return false;
+                    }
+                    final List<TSource> chunk = readChunk();
+                    if (outerDone) {
+                        // Last chunk, and no other chunk is being probed;
+                        // probe it in this thread.
+                        results = probe(chunk);
+                        continue;
+                    }
+                    futures.add(submit(chunk));
+                }
+                // Read ahead, so that up to "parallelism" chunks are being
+                // probed at a time.
+                while (!outerDone && futures.size() < parallelism) {
+                    final List<TSource> chunk = readChunk();
+                    if (!chunk.isEmpty()) {
+                        futures.add(submit(chunk));
+                    }
+                }
+                results = ParallelEnumerables.get(futures.removeFirst());
+            }
+            return true;
+        }
+
+        public void reset() {
+            cancel();
+            if (outerEnumerator != null) {
+                outerEnumerator.reset();
+            }
+            outerDone = false;
+            results = Collections.emptyList();
+            resultOrdinal = -1;
+        }
+
+        public void close() {
+            cancel();
+            if (outerEnumerator != null) {
+                Utilities.close(outerEnumerator);
+            }
+        }
+
+        private void cancel() {
+            for (Future<List<TResult>> future : futures) {
+                future.cancel(true);
+            }
+            futures.clear();
+        }
+
+        /** Reads up to {@link #CHUNK_SIZE} outer rows. */
+        private List<TSource> readChunk() {
+            final List<TSource> chunk = new ArrayList<TSource>();
+            while (chunk.size() < CHUNK_SIZE) {
+                if (!outerEnumerator.moveNext()) {
+                    outerDone = true;
+                    break;
+                }
+                chunk.add(outerEnumerator.current());
+            }
+            return chunk;
+        }
+
+        private Future<List<TResult>> submit(final List<TSource> chunk) {
+            return ParallelEnumerables.submit(
+                new Callable<List<TResult>>() {
+                    public List<TResult> call() {
+                        return probe(chunk);
+                    }
+                });
+        }
+
+        /** Returns the joined rows for a chunk of outer rows. */
+        private List<TResult> probe(List<TSource> chunk) {
+            final List<TResult> list = new ArrayList<TResult>();
+            for (TSource outerRow : chunk) {
+                final TKey key = outerKeySelector.apply(outerRow);
+                if (isNullKey(key)) {
+                    continue;
+                }
+                final int[] firstLast =
+                    tables.get(partition(key, tables.size())).get(key);
+                if (firstLast == null) {
+                    continue;
+                }
+                for (int i = firstLast[0]; i >= 0; i = next[i]) {
+                    list.add(resultSelector.apply(outerRow, rows.get(i)));
+                }
+            }
+            return list;
+        }
+
+        private void build() {
+            final List<TInner> rows = new ArrayList<TInner>();
+            final Enumerator<TInner> enumerator = inner.enumerator();
+            try {
+                while (enumerator.moveNext()) {
+                    rows.add(enumerator.current());
+                }
+            } finally {
+                Utilities.close(enumerator);
+            }
+            final int n = rows.size();
+            final int partitionCount =
+                n < PARALLEL_THRESHOLD ? 1 : parallelism;
+
+            // Compute the key of each row, and thereby its partition, in
+            // ranges of rows, and count the rows of each partition in each
+            // range. Rows whose key is null are in no partition.
+            final Object[] keys = new Object[n];
+            final int[] partitions = new int[n];
+            final int[][] counts = new int[partitionCount][partitionCount];
+            final List<Runnable> tasks = new ArrayList<Runnable>();
+            for (int c = 0; c < partitionCount; c++) {
+                final int start = (int) ((long) n * c / partitionCount);
+                final int end = (int) ((long) n * (c + 1) / partitionCount);
+                final int[] rangeCounts = counts[c];
+                tasks.add(
+                    new Runnable() {
+                        public void run() {
+                            for (int i = start; i < end; i++) {
+                                final TKey key =
+                                    innerKeySelector.apply(rows.get(i));
+                                keys[i] = key;
+                                if (isNullKey(key)) {
+                                    partitions[i] = -1;
+                                } else {
+                                    final int p =
+                                        partition(key, partitionCount);
+                                    partitions[i] = p;
+                                    ++rangeCounts[p];
+                                }
+                            }
+                        }
+                    });
+            }
+            runAll(tasks);
+
+            // Lay out the row numbers of each partition contiguously, in row
+            // order: those from the first range, then the second, and so
+            // forth. Each range writes its row numbers in parallel.
+            final int[] starts = new int[partitionCount + 1];
+            final int[][] offsets = new int[partitionCount][partitionCount];
+            int offset = 0;
+            for (int p = 0; p < partitionCount; p++) {
+                starts[p] = offset;
+                for (int c = 0; c < partitionCount; c++) {
+                    offsets[c][p] = offset;
+                    offset += counts[c][p];
+                }
+            }
+            starts[partitionCount] = offset;
+            final int[] rowNumbers = new int[offset];
+            tasks.clear();
+            for (int c = 0; c < partitionCount; c++) {
+                final int start = (int) ((long) n * c / partitionCount);
+                final int end = (int) ((long) n * (c + 1) / partitionCount);
+                final int[] rangeOffsets = offsets[c];
+                tasks.add(
+                    new Runnable() {
+                        public void run() {
+                            for (int i = start; i < end; i++) {
+                                final int p = partitions[i];
+                                if (p >= 0) {
+                                    rowNumbers[rangeOffsets[p]++] = i;
+                                }
+                            }
+                        }
+                    });
+            }
+            runAll(tasks);
+
+            // Build the table of each partition from its own rows.
+            final List<Map<TKey, int[]>> tables =
+                new ArrayList<Map<TKey, int[]>>();
+            final int[] next = new int[n];
+            final List<Integer> sizes = new ArrayList<Integer>();
+            tasks.clear();
+            for (int p = 0; p < partitionCount; p++) {
+                final int start = starts[p];
+                final int end = starts[p + 1];
+                final Map<TKey, int[]> table = new HashMap<TKey, int[]>();
+                tables.add(table);
+                sizes.add(end - start);
+                tasks.add(
+                    new Runnable() {
+                        @SuppressWarnings("unchecked")
+                        public void run() {
+                            for (int j = start; j < end; j++) {
+                                final int i = rowNumbers[j];
+                                next[i] = -1;
+                                final TKey key = (TKey) keys[i];
+                                final int[] firstLast = table.get(key);
+                                if (firstLast == null) {
+                                    table.put(key, new int[] {i, i});
+                                } else {
+                                    next[firstLast[1]] = i;
+                                    firstLast[1] = i;
+                                }
+                            }
+                        }
+                    });
+            }
+            runAll(tasks);
+            Hook.PARALLEL_JOIN.run(sizes);
+            this.rows = rows;
+            this.next = next;
+            this.tables = tables;
+        }
+
+        /** Runs tasks in parallel, and waits for them all to finish. If
+         * there is only one task, runs it in this thread. */
+        private static void runAll(List<Runnable> tasks) {
+            if (tasks.size() == 1) {
+                tasks.get(0).run();
+                return;
+            }
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Runnable task : tasks) {
+                futures.add(ParallelEnumerables.submit(task));
+            }
+            for (Future<?> future : futures) {
+                ParallelEnumerables.get(future);
+            }
+        }
+
+        /** Returns the partition of a non-null key. Uses the high bits of a
+         * mixed hash code, because the hash table of each partition uses
+         * the low bits; if it used the same bits, the keys of a partition
+         * would occupy only some of the table's buckets. */
+        private static int partition(Object key, int partitionCount) {
+            final int h = key.hashCode() * 0x9E3779B9;
+            return (int) (((h & 0xFFFFFFFFL) * partitionCount) >>> 32);
+        }
+    }
+
+    /** Enumerator that implements a semi-join or anti-join.
+     *
+     * @param <TSource> Outer row type
+     * @param <TInner> Inner row type
+     * @param <TKey> Key type */
+    private static class SemiJoinEnumerator<TSource, TInner, TKey>
+        implements Enumerator<TSource>
+    {
+        private final Enumerable<TSource> outer;
+        private final Enumerable<TInner> inner;
+        private final Function1<TSource, TKey> outerKeySelector;
+        private final Function1<TInner, TKey> innerKeySelector;
+        private final boolean anti;
+
+        private Set<TKey> keys;
+        private Enumerator<TSource> outerEnumerator;
+        private TSource current;
+
+        SemiJoinEnumerator(
+            Enumerable<TSource> outer,
+            Enumerable<TInner> inner,
+            Function1<TSource, TKey> outerKeySelector,
+            Function1<TInner, TKey> innerKeySelector,
+            boolean anti)
+        {
+            this.outer = outer;
+            this.inner = inner;
+            this.outerKeySelector = outerKeySelector;
+            this.innerKeySelector = innerKeySelector;
+            this.anti = anti;
+        }
+
+        public TSource current() {
+            return current;
+        }
+
+        public boolean moveNext() {
+            if (keys == null) {
+                build();
+                outerEnumerator = outer.enumerator();
+            }
+            while (outerEnumerator.moveNext()) {
+                final TSource row = outerEnumerator.current();
+                final TKey key = outerKeySelector.apply(row);
+                final boolean matches = !isNullKey(key) && keys.contains(key);
+                if (matches != anti) {
+                    current = row;
+                    return true;
+                }
+            }
+            current = null;
+            return false;
+        }
+
+        public void reset() {
+            if (outerEnumerator != null) {
+                outerEnumerator.reset();
+            }
+            current = null;
+        }
+
+        private void build() {
+            final Set<TKey> keys = new HashSet<TKey>();
+            final Enumerator<TInner> enumerator = inner.enumerator();
+            try {
+                while (enumerator.moveNext()) {
+                    final TKey key =
+                        innerKeySelector.apply(enumerator.current());
+                    if (!isNullKey(key)) {
+                        keys.add(key);
+                    }
+                }
+            } finally {
+                Utilities.close(enumerator);
+            }
+            this.keys = keys;
+        }
+    }
+
+    /** Enumerator that implements a block nested-loop join.
+     *
+     * @param <TSource> Left row type
+     * @param <TInner> Right row type
+     * @param <TResult> Result type */
+    private static class NestedLoopJoinEnumerator<TSource, TInner, TResult>
+        implements Enumerator<TResult>
+    {
+        private static final int LOAD = 0;
+        private static final int PROBE = 1;
+        private static final int UNMATCHED_INNER = 2;
+        private static final int DONE = 3;
+
+        private final Enumerable<TSource> outer;
+        private final Enumerable<TInner> inner;
+        private final Predicate2<TSource, TInner> predicate;
+        private final Function2<TSource, TInner, TResult> resultSelector;
+        private final boolean generateNullsOnLeft;
+        private final boolean generateNullsOnRight;
+        private final int chunkSize;
+
+        private int state;
+        private Enumerator<TInner> inners;
+        /** Whether {@link #inners} is positioned on a row that has not yet
+         * been added to a chunk. */
+        private boolean innerPending;
+        private final List<TInner> chunk = new ArrayList<TInner>();
+        private boolean firstChunk;
+        private boolean lastChunk;
+        /** Which rows of the current chunk have matched; only if
+         * generateNullsOnLeft. */
+        private boolean[] innerMatched;
+        /** Which outer rows, by position, have matched a row of any chunk;
+         * only if generateNullsOnRight. */
+        private final BitSet outerMatched = new BitSet();
+
+        private Enumerator<TSource> outers;
+        private TSource outerRow;
+        private int outerPosition;
+        private boolean outerPending;
+        private boolean rowMatched;
+        private int j;
+
+        private TResult current;
+
+        NestedLoopJoinEnumerator(
+            Enumerable<TSource> outer,
+            Enumerable<TInner> inner,
+            Predicate2<TSource, TInner> predicate,
+            Function2<TSource, TInner, TResult> resultSelector,
+            boolean generateNullsOnLeft,
+            boolean generateNullsOnRight,
+            int chunkSize)
+        {
+            this.outer = outer;
+            this.inner = inner;
+            this.predicate = predicate;
+            this.resultSelector = resultSelector;
+            this.generateNullsOnLeft = generateNullsOnLeft;
+            this.generateNullsOnRight = generateNullsOnRight;
+            this.chunkSize = chunkSize;
+            reset();
+        }
+
+        public TResult current() {
+            return current;
+        }
+
+        /** Reads the next chunk of inner rows. Returns false if there are no
+         * more chunks to process. */
+        private boolean loadChunk() {
+            if (lastChunk) {
+                return false;
+            }
+            if (inners == null) {
+                inners = inner.enumerator();
+                innerPending = inners.moveNext();
+            }
+            chunk.clear();
+            while (innerPending && chunk.size() < chunkSize) {
+                chunk.add(inners.current());
+                innerPending = inners.moveNext();
+            }
+            lastChunk = !innerPending;
+            if (lastChunk) {
+                Utilities.close(inners);
+            }
+            if (chunk.isEmpty() && !(firstChunk && generateNullsOnRight)) {
+                // Inner input is empty, and there are no outer rows to
+                // return with nulls.
+                return false;
+            }
+            firstChunk = false;
+            innerMatched =
+                generateNullsOnLeft ? new boolean[chunk.size()] : null;
+            return true;
+        }
+
+        public boolean moveNext() {
+            for (;;) {
+                switch (state) {
+                case LOAD:
+                    if (!loadChunk()) {
+                        state = DONE;
+                        break;
+                    }
+                    outers = outer.enumerator();
+                    outerPosition = -1;
+                    outerPending = false;
+                    state = PROBE;
+                    break;
+
+                case PROBE:
+                    if (outerPending) {
+                        while (j < chunk.size()) {
+                            final TInner innerRow = chunk.get(j++);
+                            if (predicate.apply(outerRow, innerRow)) {
+                                rowMatched = true;
+                                if (innerMatched != null) {
+                                    innerMatched[j - 1] = true;
+                                }
+                                current =
+                                    resultSelector.apply(outerRow, innerRow);
+                                return true;
+                            }
+                        }
+                        outerPending = false;
+                        if (generateNullsOnRight) {
+                            if (rowMatched) {
+                                outerMatched.set(outerPosition);
+                            }
+                            if (lastChunk
+                                && !outerMatched.get(outerPosition))
+                            {
+                                current = resultSelector.apply(outerRow, null);
+                                return true;
+                            }
+                        }
+                    }
+                    if (outers.moveNext()) {
+                        outerRow = outers.current();
+                        ++outerPosition;
+                        outerPending = true;
+                        rowMatched = false;
+                        j = 0;
+                        break;
+                    }
+                    Utilities.close(outers);
+                    outers = null;
+                    outerRow = null;
+                    j = 0;
+                    state =
+                        generateNullsOnLeft
+                            ? UNMATCHED_INNER
+                            : lastChunk ? DONE : LOAD;
+                    break;
+
+                case UNMATCHED_INNER:
+                    while (j < chunk.size()) {
+                        final TInner innerRow = chunk.get(j++);
+                        if (!innerMatched[j - 1]) {
+                            current = resultSelector.apply(null, innerRow);
+                            return true;
+                        }
+                    }
+                    state = lastChunk ? DONE : LOAD;
+                    break;
+
+                default:
+                    current = null;
+                    return false;
+                }
+            }
+        }
+
+        public void reset() {
+            state = LOAD;
+            inners = null;
+            innerPending = false;
+            chunk.clear();
+            firstChunk = true;
+            lastChunk = false;
+            innerMatched = null;
+            outerMatched.clear();
+            outers = null;
+            outerRow = null;
+            outerPosition = -1;
+            outerPending = false;
+            rowMatched = false;
+            j = 0;
+            current = null;
+        }
+    }
+
+    /** Enumerator that implements a band join.
+     *
+     * @param <TSource> Outer row type
+     * @param <TInner> Inner row type
+     * @param <TKey> Key type
+     * @param <TResult> Result type */
+    private static class BandJoinEnumerator<
+        TSource, TInner, TKey extends Comparable, TResult>
+        implements Enumerator<TResult>
+    {
+        private final Enumerable<TSource> outer;
+        private final Enumerable<TInner> inner;
+        private final Function1<TSource, TKey> lowerSelector;
+        private final boolean lowerInclusive;
+        private final Function1<TSource, TKey> upperSelector;
+        private final boolean upperInclusive;
+        private final Function1<TInner, TKey> innerKeySelector;
+        private final Predicate2<TSource, TInner> predicate;
+        private final Function2<TSource, TInner, TResult> resultSelector;
+
+        /** Inner rows with non-null keys, sorted on key; null until the
+         * inner input has been read. */
+        private List<TInner> innerRows;
+        private List<TKey> innerKeys;
+
+        private Enumerator<TSource> outers;
+        private TSource outerRow;
+        /** Range of {@link #innerRows} that is in the band of the current
+         * outer row; {@link #j} is the next one to test. */
+        private int j;
+        private int end;
+
+        private TResult current;
+
+        BandJoinEnumerator(
+            Enumerable<TSource> outer,
+            Enumerable<TInner> inner,
+            Function1<TSource, TKey> lowerSelector,
+            boolean lowerInclusive,
+            Function1<TSource, TKey> upperSelector,
+            boolean upperInclusive,
+            Function1<TInner, TKey> innerKeySelector,
+            Predicate2<TSource, TInner> predicate,
+            Function2<TSource, TInner, TResult> resultSelector)
+        {
+            this.outer = outer;
+            this.inner = inner;
+            this.lowerSelector = lowerSelector;
+            this.lowerInclusive = lowerInclusive;
+            this.upperSelector = upperSelector;
+            this.upperInclusive = upperInclusive;
+            this.innerKeySelector = innerKeySelector;
+            this.predicate = predicate;
+            this.resultSelector = resultSelector;
+        }
+
+        public TResult current() {
+            return current;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void load() {
+            final List<Object[]> pairs = new ArrayList<Object[]>();
+            final Enumerator<TInner> inners = inner.enumerator();
+            try {
+                while (inners.moveNext()) {
+                    final TInner row = inners.current();
+                    final TKey key = innerKeySelector.apply(row);
+                    if (key != null) {
+                        pairs.add(new Object[] {key, row});
+                    }
+                }
+            } finally {
+                Utilities.close(inners);
+            }
+            Collections.sort(
+                pairs,
+                new Comparator<Object[]>() {
+                    public int compare(Object[] o1, Object[] o2) {
+                        return ((Comparable) o1[0]).compareTo(o2[0]);
+                    }
+                });
+            innerKeys = new ArrayList<TKey>(pairs.size());
+            innerRows = new ArrayList<TInner>(pairs.size());
+            for (Object[] pair : pairs) {
+                innerKeys.add((TKey) pair[0]);
+                innerRows.add((TInner) pair[1]);
+            }
+        }
+
+        /** Returns the index of the first key that is greater than (or, if
+         * {@code orEqual}, greater than or equal to) a given value. */
+        @SuppressWarnings("unchecked")
+        private int search(TKey value, boolean orEqual) {
+            int lo = 0;
+            int hi = innerKeys.size();
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                final int c = innerKeys.get(mid).compareTo(value);
+                if (c < 0 || c == 0 && !orEqual) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        public boolean moveNext() {
+            if (innerRows == null) {
+                load();
+                outers = outer.enumerator();
+            }
+            for (;;) {
+                while (j < end) {
+                    final TInner innerRow = innerRows.get(j++);
+                    if (predicate == null
+                        || predicate.apply(outerRow, innerRow))
+                    {
+                        current = resultSelector.apply(outerRow, innerRow);
+                        return true;
+                    }
+                }
+                if (!outers.moveNext()) {
+                    current = null;
+                    return false;
+                }
+                outerRow = outers.current();
+                j = 0;
+                end = innerRows.size();
+                if (lowerSelector != null) {
+                    final TKey lower = lowerSelector.apply(outerRow);
+                    if (lower == null) {
+                        end = 0;
+                        continue;
+                    }
+                    j = search(lower, lowerInclusive);
+                }
+                if (upperSelector != null) {
+                    final TKey upper = upperSelector.apply(outerRow);
+                    if (upper == null) {
+                        end = 0;
+                        continue;
+                    }
+                    end = search(upper, !upperInclusive);
+                }
+            }
+        }
+
+        public void reset() {
+            innerRows = null;
+            innerKeys = null;
+            outers = null;
+            outerRow = null;
+            j = 0;
+            end = 0;
+            current = null;
+        }
+    }
+}
+
+// End JoinEnumerables.java
@@ -0,0 +1,240 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Predicate1;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Summary of the keys on the build side of a hash join, used to discard rows
+ * on the probe side that cannot match before they reach the join.
+ *
+ * <p>The join wraps its build input in {@link #build}, which records the key
+ * of each row as the join reads it to build its hash table. Once the build
+ * input is exhausted, the filter is complete and holds a bloom filter over
+ * the keys and, if the keys are comparable, their minimum and maximum.
+ * Until then, {@link #mightContain} returns true for every key, so a probe
+ * row that is read early is never wrongly discarded.</p>
+ *
+ * <p>{@link #probe} applies the filter to an input on the probe side; the
+ * planner places it as close to the probe-side scan as it can. A table that
+ * implements {@link net.hydromatic.optiq.RangeFilterableTable} can also use
+ * {@link #getMin()} and {@link #getMax()} to read only the rows in range.</p>
+ *
+ * <p>The filter is only valid for joins that discard probe rows that match
+ * nothing: inner joins, and outer joins that do not preserve the probe
+ * side. A null key matches nothing.</p>
+ */
+public class JoinFilter {
+    /** Number of bits in the bloom filter per key. With 3 hash functions,
+     * gives a false-positive rate of about 3%. */
+    private static final int BITS_PER_KEY = 8;
+
+    private static final int HASH_COUNT = 3;
+
+    private int[] hashes = new int[16];
+    private int count;
+    private Comparable min;
+    private Comparable max;
+    /** Whether all keys so far are comparable and of the same class, so that
+     * min and max are meaningful. */
+    private boolean ranged;
+    private BitSet bits;
+    private int mask;
+    private volatile boolean complete;
+
+    public JoinFilter() {
+        reset();
+    }
+
+    /** Discards all keys, and makes the filter incomplete. */
+    public void reset() {
+        count = 0;
+        min = null;
+        max = null;
+        ranged = true;
+        bits = null;
+        complete = false;
+    }
+
+    /** Records a key from the build side. */
+    @SuppressWarnings("unchecked")
+    public void add(Object key) {
+        assert !complete;
+        if (JoinEnumerables.isNullKey(key)) {
+            return;
+        }
+        if (count == hashes.length) {
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        hashes[count++] = key.hashCode();
+        if (ranged) {
+            if (!(key instanceof Comparable)
+                || min != null && min.getClass() != key.getClass())
+            {
+                ranged = false;
+                min = null;
+                max = null;
+            } else {
+                final Comparable c = (Comparable) key;
+                if (min == null || c.compareTo(min) < 0) {
+                    min = c;
+                }
+                if (max == null || c.compareTo(max) > 0) {
+                    max = c;
+                }
+            }
+        }
+    }
+
+    /** Marks the build side as exhausted, and builds the bloom filter. */
+    public void complete() {
+        int size = 64;
+        while (size < count * BITS_PER_KEY && size < (1 << 30)) {
+            size <<= 1;
+        }
+        bits = new BitSet(size);
+        mask = size - 1;
+        for (int i = 0; i < count; i++) {
+            final int h1 = hashes[i];
+            final int h2 = mix(h1);
+            for (int j = 0; j < HASH_COUNT; j++) {
+                bits.set((h1 + j * h2) & mask);
+            }
+        }
+        hashes = new int[16];
+        complete = true;
+    }
+
+    /** Returns whether the build side has been read completely. */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /** Returns the smallest key on the build side, or null if the filter is
+     * not complete, the keys are not comparable, or there are none. */
+    public Comparable getMin() {
+        return complete && ranged ? min : null;
+    }
+
+    /** Returns the largest key on the build side; see {@link #getMin()}. */
+    public Comparable getMax() {
+        return complete && ranged ? max : null;
+    }
+
+    /** Returns false if a probe row with the given key certainly matches no
+     * build row, true if it might. */
+    @SuppressWarnings("unchecked")
+    public boolean mightContain(Object key) {
+        if (!complete) {
+            return true;
+        }
+        if (JoinEnumerables.isNullKey(key)) {
+            return false;
+        }
+        if (min != null && ranged && min.getClass() == key.getClass()) {
+            final Comparable c = (Comparable) key;
+            if (c.compareTo(min) < 0 || c.compareTo(max) > 0) {
+                return false;
+            }
+        }
+        final int h1 = key.hashCode();
+        final int h2 = mix(h1);
+        for (int j = 0; j < HASH_COUNT; j++) {
+            if (!bits.get((h1 + j * h2) & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Derives a second hash from a key's hash code; odd, so that the
+     * probes visit distinct bits. */
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) | 1;
+    }
+
+    /**
+     * Returns an enumerable that returns the rows of the build side of a
+     * join, recording their keys in this filter. Each time it is enumerated,
+     * it resets the filter, and completes it when it reaches the end.
+     */
+    public <T, K> Enumerable<T> build(
+        final Enumerable<T> input,
+        final Function1<T, K> keySelector)
+    {
+        return new AbstractEnumerable<T>() {
+            public Enumerator<T> enumerator() {
+                reset();
+                final Enumerator<T> enumerator = input.enumerator();
+                return new Utilities.CloseableEnumerator<T>() {
+                    public T current() {
+                        return enumerator.current();
+                    }
+
+                    public boolean moveNext() {
+                        if (enumerator.moveNext()) {
+                            if (!complete) {
+                                add(keySelector.apply(enumerator.current()));
+                            }
+                            return true;
+                        }
+                        if (!complete) {
+                            complete();
+                        }
+                        return false;
+                    }
+
+                    public void reset() {
+                        enumerator.reset();
+                        JoinFilter.this.reset();
+                    }
+
+                    public void close() {
+                        Utilities.close(enumerator);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the rows of an input on the probe side of a join whose key
+     * might match a row on the build side.
+     */
+    public <T, K> Enumerable<T> probe(
+        Enumerable<T> input,
+        final Function1<T, K> keySelector)
+    {
+        return input.where(
+            new Predicate1<T>() {
+                public boolean apply(T v1) {
+                    return mightContain(keySelector.apply(v1));
+                }
+            });
+    }
+}
+
+// End JoinFilter.java
@@ -0,0 +1,486 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.function.Function0;
+import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Function2;
+import net.hydromatic.linq4j.function.LongFunction1;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Hash join and hash aggregation on keys that can be packed into a
+ * {@code long}.
+ *
+ * <p>Generated code uses these methods instead of the linq4j methods when
+ * every key field is of a primitive type, for example a single
+ * {@code int}, {@code long} or {@code double} key, or a pair of
+ * {@code int} keys. The key selector returns a {@code long} (see
+ * {@link #pack(int, int)} and {@link #doubleKey(double)}), so no key is
+ * boxed, and the table is an open-addressing hash table held in flat arrays
+ * rather than a {@link java.util.HashMap} of lists.</p>
+ *
+ * <p>Two keys are equal if and only if their packed values are equal; the
+ * packing functions are chosen so that this is the same as
+ * {@link Object#equals} on the boxed keys.</p>
+ */
+public class LongHashTables {
+    private LongHashTables() {
+        throw new AssertionError("no instances!");
+    }
+
+    /** Packs two {@code int} keys into a {@code long}. */
+    public static long pack(int k0, int k1) {
+        return ((long) k0 << 32) | (k1 & 0xFFFFFFFFL);
+    }
+
+    /** Converts a {@code double} key to a {@code long}. Like
+     * {@link Double#equals}, treats all NaN values as equal, and -0.0 as
+     * different from 0.0. */
+    public static long doubleKey(double d) {
+        return Double.doubleToLongBits(d);
+    }
+
+    /**
+     * Joins two inputs on matching keys. Returns the same rows in the same
+     * order as {@link net.hydromatic.linq4j.ExtendedEnumerable#join}: for
+     * each outer row, its matching inner rows in the order they were read.
+     *
+     * @param outer Outer input
+     * @param inner Inner input, from which the hash table is built
+     * @param outerKeySelector Extracts the key from an outer row
+     * @param innerKeySelector Extracts the key from an inner row
+     * @param resultSelector Creates an output row from a matching pair
+     * @return Joined rows
+     */
+    public static <TSource, TInner, TResult> Enumerable<TResult> join(
+        Enumerable<TSource> outer,
+        Enumerable<TInner> inner,
+        LongFunction1<TSource> outerKeySelector,
+        LongFunction1<TInner> innerKeySelector,
+        Function2<TSource, TInner, TResult> resultSelector)
+    {
+        return join(
+            outer, inner, outerKeySelector, innerKeySelector, resultSelector,
+            false, false);
+    }
+
+    /**
+     * Joins two inputs on matching keys, optionally returning rows that
+     * match nothing, as an outer join does.
+     *
+     * <p>For each outer row, returns its matching inner rows, or if there are
+     * none and {@code generateNullsOnRight}, the outer row and null. Then, if
+     * {@code generateNullsOnLeft}, returns null and each inner row that
+     * matched no outer row. The hash table records which inner rows have
+     * matched in a bit set.</p>
+     *
+     * @param outer Outer input
+     * @param inner Inner input, from which the hash table is built
+     * @param outerKeySelector Extracts the key from an outer row
+     * @param innerKeySelector Extracts the key from an inner row
+     * @param resultSelector Creates an output row from an outer and an
+     *     inner row, either of which may be null if the join is outer
+     * @param generateNullsOnLeft Whether to return inner rows that match no
+     *     outer row
+     * @param generateNullsOnRight Whether to return outer rows that match no
+     *     inner row
+     * @return Joined rows
+     */
+    public static <TSource, TInner, TResult> Enumerable<TResult> join(
+        final Enumerable<TSource> outer,
+        final Enumerable<TInner> inner,
+        final LongFunction1<TSource> outerKeySelector,
+        final LongFunction1<TInner> innerKeySelector,
+        final Function2<TSource, TInner, TResult> resultSelector,
+        final boolean generateNullsOnLeft,
+        final boolean generateNullsOnRight)
+    {
+        return new AbstractEnumerable<TResult>() {
+            public Enumerator<TResult> enumerator() {
+                return new JoinEnumerator<TSource, TInner, TResult>(
+                    outer, inner, outerKeySelector, innerKeySelector,
+                    resultSelector, generateNullsOnLeft,
+                    generateNullsOnRight);
+            }
+        };
+    }
+
+    /**
+     * Groups rows by key and aggregates each group. Like
+     * {@link net.hydromatic.linq4j.ExtendedEnumerable#groupBy(Function1, Function0, Function2, Function2)},
+     * but groups on a {@code long} key, and calls {@code keySelector} only
+     * for the first row of each group. Groups are returned in the order
+     * that their first row was read.
+     *
+     * @param source Input
+     * @param longKeySelector Extracts the key from a row, as a long
+     * @param keySelector Extracts the key from a row, as passed to
+     *     {@code resultSelector}
+     * @param accumulatorInitializer Creates an accumulator
+     * @param accumulatorAdder Adds a row to an accumulator
+     * @param resultSelector Creates an output row from a key and accumulator
+     * @return Aggregated rows
+     */
+    public static <TSource, TKey, TAccumulate, TResult> Enumerable<TResult>
+    groupBy(
+        final Enumerable<TSource> source,
+        final LongFunction1<TSource> longKeySelector,
+        final Function1<TSource, TKey> keySelector,
+        final Function0<TAccumulate> accumulatorInitializer,
+        final Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+        final Function2<TKey, TAccumulate, TResult> resultSelector)
+    {
+        return new AbstractEnumerable<TResult>() {
+            public Enumerator<TResult> enumerator() {
+                final LongIntTable table = new LongIntTable();
+                Object[] keys = new Object[16];
+                Object[] accumulators = new Object[16];
+                final Enumerator<TSource> enumerator = source.enumerator();
+                try {
+                    while (enumerator.moveNext()) {
+                        final TSource row = enumerator.current();
+                        final int groupCount = table.size;
+                        final int id =
+                            table.add(longKeySelector.apply(row));
+                        final TAccumulate accumulator;
+                        if (table.size > groupCount) {
+                            // First row of a new group.
+                            if (id == keys.length) {
+                                keys = Arrays.copyOf(keys, id * 2);
+                                accumulators =
+                                    Arrays.copyOf(accumulators, id * 2);
+                            }
+                            keys[id] = keySelector.apply(row);
+                            accumulator = accumulatorInitializer.apply();
+                        } else {
+                            //noinspection unchecked
+                            accumulator = (TAccumulate) accumulators[id];
+                        }
+                        accumulators[id] =
+                            accumulatorAdder.apply(accumulator, row);
+                    }
+                } finally {
+                    Utilities.close(enumerator);
+                }
+                return new GroupEnumerator<TKey, TAccumulate, TResult>(
+                    table.size, keys, accumulators, resultSelector);
+            }
+        };
+    }
+
+    /** Scrambles the bits of a key, so that keys that differ only in their
+     * high bits, or are multiples of the table size, are spread over the
+     * table. (The finalization step of MurmurHash3.) */
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Open-addressing hash table that assigns consecutive ids, starting from
+     * 0, to distinct {@code long} keys.
+     *
+     * <p>Uses linear probing. The table is at most half full, so that
+     * probe sequences are short.</p>
+     */
+    static class LongIntTable {
+        /** Key in each slot. */
+        private long[] keys = new long[16];
+
+        /** Id + 1 of the key in each slot, or 0 if the slot is empty. */
+        private int[] ids = new int[16];
+
+        /** Number of keys. */
+        int size;
+
+        /** Returns the id of a key, or -1 if it is not in the table. */
+        int get(long key) {
+            final int mask = keys.length - 1;
+            for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+                final int id = ids[slot];
+                if (id == 0) {
+                    return -1;
+                }
+                if (keys[slot] == key) {
+                    return id - 1;
+                }
+            }
+        }
+
+        /** Returns the id of a key, adding it if it is not in the table. */
+        int add(long key) {
+            final int mask = keys.length - 1;
+            for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+                final int id = ids[slot];
+                if (id == 0) {
+                    keys[slot] = key;
+                    ids[slot] = ++size;
+                    if (size * 2 > keys.length) {
+                        grow();
+                    }
+                    return size - 1;
+                }
+                if (keys[slot] == key) {
+                    return id - 1;
+                }
+            }
+        }
+
+        private void grow() {
+            final long[] oldKeys = keys;
+            final int[] oldIds = ids;
+            keys = new long[oldKeys.length * 2];
+            ids = new int[oldIds.length * 2];
+            final int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldIds[i] != 0) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while (ids[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    ids[slot] = oldIds[i];
+                }
+            }
+        }
+    }
+
+    /** Enumerator that returns the groups of a
+     * {@link LongHashTables#groupBy}.
+     *
+     * @param <TKey> Key type
+     * @param <TAccumulate> Accumulator type
+     * @param <TResult> Result type */
+    private static class GroupEnumerator<TKey, TAccumulate, TResult>
+        implements Enumerator<TResult>
+    {
+        private final int size;
+        private final Object[] keys;
+        private final Object[] accumulators;
+        private final Function2<TKey, TAccumulate, TResult> resultSelector;
+        private int i = -1;
+        private TResult current;
+
+        GroupEnumerator(
+            int size,
+            Object[] keys,
+            Object[] accumulators,
+            Function2<TKey, TAccumulate, TResult> resultSelector)
+        {
+            this.size = size;
+            this.keys = keys;
+            this.accumulators = accumulators;
+            this.resultSelector = resultSelector;
+        }
+
+        public TResult current() {
+            return current;
+        }
+
+        public boolean moveNext() {
+            if (++i >= size) {
+                current = null;
+                return false;
+            }
+            //noinspection unchecked
+            current =
+                resultSelector.apply(
+                    (TKey) keys[i],
+                    (TAccumulate) accumulators[i]);
+            return true;
+        }
+
+        public void reset() {
+            i = -1;
+            current = null;
+        }
+    }
+
+    /** Enumerator that performs a hash join.
+     *
+     * <p>The inner rows are held in an array. Rows with the same key form a
+     * chain: {@code first} and {@code last} hold the first and last row of
+     * each key's chain, indexed by key id, and {@code next} holds the next
+     * row in the chain, indexed by row, or -1.</p>
+     *
+     * @param <TSource> Outer row type
+     * @param <TInner> Inner row type
+     * @param <TResult> Result type */
+    private static class JoinEnumerator<TSource, TInner, TResult>
+        implements Enumerator<TResult>
+    {
+        private final Enumerable<TSource> outer;
+        private final Enumerable<TInner> inner;
+        private final LongFunction1<TSource> outerKeySelector;
+        private final LongFunction1<TInner> innerKeySelector;
+        private final Function2<TSource, TInner, TResult> resultSelector;
+        private final boolean generateNullsOnLeft;
+        private final boolean generateNullsOnRight;
+
+        private LongIntTable table;
+        private Object[] rows;
+        private int rowCount;
+        private int[] first;
+        private int[] next;
+        /** Inner rows that have matched an outer row; only if
+         * generateNullsOnLeft. */
+        private final BitSet matched = new BitSet();
+        private Enumerator<TSource> outerEnumerator;
+        private TSource outerRow;
+        private int match = -1;
+        /** Once the outer input is exhausted, the next inner row to consider
+         * returning as unmatched; -1 before then. */
+        private int unmatched = -1;
+        private TResult current;
+
+        JoinEnumerator(
+            Enumerable<TSource> outer,
+            Enumerable<TInner> inner,
+            LongFunction1<TSource> outerKeySelector,
+            LongFunction1<TInner> innerKeySelector,
+            Function2<TSource, TInner, TResult> resultSelector,
+            boolean generateNullsOnLeft,
+            boolean generateNullsOnRight)
+        {
+            this.outer = outer;
+            this.inner = inner;
+            this.outerKeySelector = outerKeySelector;
+            this.innerKeySelector = innerKeySelector;
+            this.resultSelector = resultSelector;
+            this.generateNullsOnLeft = generateNullsOnLeft;
+            this.generateNullsOnRight = generateNullsOnRight;
+        }
+
+        public TResult current() {
+            return current;
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean moveNext() {
+            if (table == null) {
+                build();
+                outerEnumerator = outer.enumerator();
+            }
+            for (;;) {
+                if (match >= 0) {
+                    if (generateNullsOnLeft) {
+                        matched.set(match);
+                    }
+                    current =
+                        resultSelector.apply(outerRow, (TInner) rows[match]);
+                    match = next[match];
+                    return true;
+                }
+                if (unmatched >= 0) {
+                    unmatched = matched.nextClearBit(unmatched);
+                    if (unmatched < rowCount) {
+                        current =
+                            resultSelector.apply(
+                                null, (TInner) rows[unmatched++]);
+                        return true;
+                    }
+                    current = null;
+                    return false;
+                }
+                if (!outerEnumerator.moveNext()) {
+                    outerRow = null;
+                    if (generateNullsOnLeft) {
+                        unmatched = 0;
+                        continue;
+                    }
+                    current = null;
+                    return false;
+                }
+                outerRow = outerEnumerator.current();
+                final int id =
+                    table.get(outerKeySelector.apply(outerRow));
+                if (id >= 0) {
+                    match = first[id];
+                } else if (generateNullsOnRight) {
+                    current = resultSelector.apply(outerRow, null);
+                    return true;
+                }
+            }
+        }
+
+        public void reset() {
+            if (outerEnumerator != null) {
+                outerEnumerator.reset();
+            }
+            outerRow = null;
+            match = -1;
+            unmatched = -1;
+            matched.clear();
+            current = null;
+        }
+
+        private void build() {
+            final LongIntTable table = new LongIntTable();
+            Object[] rows = new Object[16];
+            int[] next = new int[16];
+            int[] first = new int[16];
+            int[] last = new int[16];
+            int rowCount = 0;
+            final Enumerator<TInner> enumerator = inner.enumerator();
+            try {
+                while (enumerator.moveNext()) {
+                    final TInner row = enumerator.current();
+                    final int keyCount = table.size;
+                    final int id = table.add(innerKeySelector.apply(row));
+                    if (rowCount == rows.length) {
+                        rows = Arrays.copyOf(rows, rowCount * 2);
+                        next = Arrays.copyOf(next, rowCount * 2);
+                    }
+                    rows[rowCount] = row;
+                    next[rowCount] = -1;
+                    if (table.size > keyCount) {
+                        // First row with this key.
+                        if (id == first.length) {
+                            first = Arrays.copyOf(first, id * 2);
+                            last = Arrays.copyOf(last, id * 2);
+                        }
+                        first[id] = rowCount;
+                    } else {
+                        next[last[id]] = rowCount;
+                    }
+                    last[id] = rowCount;
+                    ++rowCount;
+                }
+            } finally {
+                Utilities.close(enumerator);
+            }
+            this.table = table;
+            this.rows = rows;
+            this.rowCount = rowCount;
+            this.next = next;
+            this.first = first;
+        }
+    }
+}
+
+// End LongHashTables.java
@@ -0,0 +1,91 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Amount of memory that the operators of one query execution may use for
+ * their hash tables and buffers.
+ *
+ * <p>Operators that can spill to disk, such as those in
+ * {@link SpillingEnumerables}, reserve memory before they grow, and spill
+ * when a reservation fails. Sizes are estimates (see
+ * {@link RowSerializer#estimateSize(Object)}), not exact heap usage.</p>
+ *
+ * <p>Thread-safe, so that operators running in different threads can share a
+ * budget.</p>
+ */
+public class MemoryBudget {
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * Creates a MemoryBudget.
+     *
+     * @param limit Maximum number of bytes; zero or negative means no limit
+     */
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /** Returns whether this budget has a limit. */
+    public boolean isLimited() {
+        return limit > 0;
+    }
+
+    /** Returns the maximum number of bytes, or zero if there is no limit. */
+    public long getLimit() {
+        return Math.max(limit, 0);
+    }
+
+    /** Returns the number of bytes currently reserved. */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Reserves a number of bytes, if that would not exceed the limit.
+     *
+     * @param bytes Number of bytes
+     * @return Whether the bytes were reserved
+     */
+    public boolean reserve(long bytes) {
+        for (;;) {
+            final long current = used.get();
+            final long next = current + bytes;
+            if (limit > 0 && next > limit) {
+                return false;
+            }
+            if (used.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases bytes previously reserved.
+     *
+     * @param bytes Number of bytes
+     */
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+}
+
+// End MemoryBudget.java
@@ -0,0 +1,359 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.function.Function1;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sorts rows in memory using normalized keys.
+ *
+ * <p>A {@link Normalizer} encodes the leading sort field of each row as a
+ * {@code long}, such that if the normalized key of one row is less than
+ * another's, the first row sorts first. Rows are sorted by normalized key
+ * using a radix sort, and only rows whose normalized keys are equal are
+ * compared using the full comparator. Large inputs are split into chunks
+ * that are sorted in parallel, then merged.</p>
+ *
+ * <p>The sort is stable.</p>
+ *
+ * @param <T> Row type
+ */
+public class NormalizedKeySorter<T> {
+    /** Inputs smaller than this are sorted using the comparator only. */
+    private static final int RADIX_THRESHOLD = 64;
+
+    /** Minimum number of rows in a chunk that is sorted in parallel with
+     * other chunks. */
+    private static final int PARALLEL_THRESHOLD = 1 << 15;
+
+    private static final int PARALLELISM =
+        Runtime.getRuntime().availableProcessors();
+
+    private final Normalizer<T> normalizer;
+    final Comparator<T> comparator;
+
+    /**
+     * Creates a NormalizedKeySorter.
+     *
+     * @param normalizer Computes normalized keys, or null if rows have no
+     *     normalized key; then rows are sorted using the comparator only
+     * @param comparator Compares rows
+     */
+    public NormalizedKeySorter(
+        Normalizer<T> normalizer,
+        Comparator<T> comparator)
+    {
+        this.normalizer = normalizer;
+        this.comparator = comparator;
+    }
+
+    /** Returns whether values of a given class can be normalized. */
+    public static boolean canNormalize(Class clazz) {
+        return clazz.isPrimitive() && clazz != void.class
+            || clazz == Byte.class
+            || clazz == Short.class
+            || clazz == Integer.class
+            || clazz == Long.class
+            || clazz == Float.class
+            || clazz == Double.class
+            || clazz == BigDecimal.class
+            || clazz == Boolean.class
+            || clazz == Character.class
+            || clazz == String.class;
+    }
+
+    /**
+     * Creates a normalizer for rows whose leading sort field is extracted
+     * by a given function.
+     *
+     * @param selector Extracts the leading sort field from a row; the field
+     *     must be of a type for which {@link #canNormalize(Class)} holds
+     * @param descending Whether the field is sorted in descending order
+     * @param nullsFirst Whether null values sort before all other values
+     * @return Normalizer
+     */
+    public static <T> Normalizer<T> normalizer(
+        final Function1<T, Object> selector,
+        final boolean descending,
+        final boolean nullsFirst)
+    {
+        final long nullKey = nullsFirst ? Long.MIN_VALUE : Long.MAX_VALUE;
+        return new Normalizer<T>() {
+            public long normalize(T row) {
+                final Object value = selector.apply(row);
+                if (value == null) {
+                    return nullKey;
+                }
+                final long key = NormalizedKeySorter.normalize(value);
+                return descending ? ~key : key;
+            }
+        };
+    }
+
+    /** Encodes a non-null value as a {@code long} whose signed order is
+     * consistent with the value's natural order. Values that compare
+     * differently may have the same key, but a value that is less than
+     * another never has a greater key. */
+    static long normalize(Object value) {
+        if (value instanceof Integer
+            || value instanceof Long
+            || value instanceof Short
+            || value instanceof Byte)
+        {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Double
+            || value instanceof Float
+            || value instanceof BigDecimal)
+        {
+            // Flip the bits of negative values, so that signed comparison
+            // of the bits gives the same order as Double.compare.
+            final long bits =
+                Double.doubleToLongBits(((Number) value).doubleValue());
+            return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+        }
+        if (value instanceof String) {
+            // First four characters; shorter strings are padded with 0,
+            // which sorts before every character.
+            final String s = (String) value;
+            long key = 0;
+            for (int i = 0; i < 4; i++) {
+                key <<= 16;
+                if (i < s.length()) {
+                    key |= s.charAt(i);
+                }
+            }
+            return key ^ Long.MIN_VALUE;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        if (value instanceof Character) {
+            return (Character) value;
+        }
+        throw new IllegalArgumentException(
+            "cannot normalize " + value.getClass());
+    }
+
+    /** Sorts a list of rows. Returns a new list; does not modify the
+     * argument. */
+    public List<T> sort(List<T> rows) {
+        final int n = rows.size();
+        final int chunkCount =
+            Math.min(PARALLELISM, n / PARALLEL_THRESHOLD);
+        final Chunk chunk;
+        if (chunkCount <= 1) {
+            chunk = sortChunk(rows);
+        } else {
+            chunk = sortParallel(rows, chunkCount);
+        }
+        //noinspection unchecked
+        return (List<T>) Arrays.asList(chunk.rows);
+    }
+
+    /** Sorts chunks of rows in parallel, then merges pairs of chunks, also
+     * in parallel, until one chunk remains. */
+    private Chunk sortParallel(final List<T> rows, int chunkCount) {
+        final int n = rows.size();
+        List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+        for (int i = 0; i < chunkCount; i++) {
+            final List<T> subList =
+                rows.subList(
+                    (int) ((long) n * i / chunkCount),
+                    (int) ((long) n * (i + 1) / chunkCount));
+            futures.add(
+                ParallelEnumerables.submit(
+                    new Callable<Chunk>() {
+                        public Chunk call() {
+                            return sortChunk(subList);
+                        }
+                    }));
+        }
+        List<Chunk> chunks = get(futures);
+        while (chunks.size() > 1) {
+            futures = new ArrayList<Future<Chunk>>();
+            for (int i = 0; i + 1 < chunks.size(); i += 2) {
+                final Chunk left = chunks.get(i);
+                final Chunk right = chunks.get(i + 1);
+                futures.add(
+                    ParallelEnumerables.submit(
+                        new Callable<Chunk>() {
+                            public Chunk call() {
+                                return merge(left, right);
+                            }
+                        }));
+            }
+            final List<Chunk> merged = get(futures);
+            if (chunks.size() % 2 == 1) {
+                merged.add(chunks.get(chunks.size() - 1));
+            }
+            chunks = merged;
+        }
+        return chunks.get(0);
+    }
+
+    private List<Chunk> get(List<Future<Chunk>> futures) {
+        final List<Chunk> list = new ArrayList<Chunk>();
+        try {
+            for (Future<Chunk> future : futures) {
+                list.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return list;
+    }
+
+    /** Sorts rows by normalized key, then sorts each run of rows with equal
+     * keys using the comparator. */
+    private Chunk sortChunk(List<T> list) {
+        final int n = list.size();
+        Object[] rows = list.toArray();
+        long[] keys = new long[n];
+        if (normalizer == null || n < RADIX_THRESHOLD) {
+            sortRange(rows, 0, n);
+            if (normalizer != null) {
+                for (int i = 0; i < n; i++) {
+                    //noinspection unchecked
+                    keys[i] = normalizer.normalize((T) rows[i]);
+                }
+            }
+            return new Chunk(rows, keys);
+        }
+        long mask = 0;
+        for (int i = 0; i < n; i++) {
+            //noinspection unchecked
+            keys[i] = normalizer.normalize((T) rows[i]) ^ Long.MIN_VALUE;
+            mask |= keys[i] ^ keys[0];
+        }
+        // Least-significant-digit radix sort, one byte at a time, skipping
+        // bytes that are the same in every key.
+        Object[] rows2 = new Object[n];
+        long[] keys2 = new long[n];
+        final int[] counts = new int[257];
+        for (int shift = 0; shift < 64; shift += 8) {
+            if (((mask >>> shift) & 0xff) == 0) {
+                continue;
+            }
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                ++counts[(int) ((keys[i] >>> shift) & 0xff) + 1];
+            }
+            for (int i = 0; i < 256; i++) {
+                counts[i + 1] += counts[i];
+            }
+            for (int i = 0; i < n; i++) {
+                final int j = counts[(int) ((keys[i] >>> shift) & 0xff)]++;
+                rows2[j] = rows[i];
+                keys2[j] = keys[i];
+            }
+            final Object[] rowsTemp = rows;
+            rows = rows2;
+            rows2 = rowsTemp;
+            final long[] keysTemp = keys;
+            keys = keys2;
+            keys2 = keysTemp;
+        }
+        for (int i = 0; i < n; i++) {
+            keys[i] ^= Long.MIN_VALUE;
+        }
+        for (int i = 0; i < n;) {
+            int j = i + 1;
+            while (j < n && keys[j] == keys[i]) {
+                ++j;
+            }
+            if (j - i > 1) {
+                sortRange(rows, i, j);
+            }
+            i = j;
+        }
+        return new Chunk(rows, keys);
+    }
+
+    private void sortRange(Object[] rows, int from, int to) {
+        //noinspection unchecked
+        Arrays.sort((T[]) rows, from, to, comparator);
+    }
+
+    /** Merges two sorted chunks. Among equal rows, those from the left chunk
+     * come first. */
+    private Chunk merge(Chunk left, Chunk right) {
+        final int n = left.rows.length + right.rows.length;
+        final Object[] rows = new Object[n];
+        final long[] keys = new long[n];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < n; k++) {
+            final boolean takeLeft;
+            if (i >= left.rows.length) {
+                takeLeft = false;
+            } else if (j >= right.rows.length) {
+                takeLeft = true;
+            } else if (left.keys[i] != right.keys[j]) {
+                takeLeft = left.keys[i] < right.keys[j];
+            } else {
+                //noinspection unchecked
+                takeLeft =
+                    comparator.compare((T) left.rows[i], (T) right.rows[j])
+                    <= 0;
+            }
+            if (takeLeft) {
+                rows[k] = left.rows[i];
+                keys[k] = left.keys[i++];
+            } else {
+                rows[k] = right.rows[j];
+                keys[k] = right.keys[j++];
+            }
+        }
+        return new Chunk(rows, keys);
+    }
+
+    /** Sorted rows and their normalized keys. */
+    private static class Chunk {
+        final Object[] rows;
+        final long[] keys;
+
+        Chunk(Object[] rows, long[] keys) {
+            this.rows = rows;
+            this.keys = keys;
+        }
+    }
+
+    /** Computes the normalized key of a row.
+     *
+     * @param <T> Row type */
+    public interface Normalizer<T> {
+        long normalize(T row);
+    }
+}
+
+// End NormalizedKeySorter.java
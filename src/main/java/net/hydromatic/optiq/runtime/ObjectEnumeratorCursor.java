@@ -48,6 +48,11 @@ public class ObjectEnumeratorCursor extends AbstractCursor {
         return enumerator.moveNext();
     }
 
+    @Override
+    public void close() {
+        Utilities.close(enumerator);
+    }
+
     class ObjectEnumeratorGetter implements Getter {
         public ObjectEnumeratorGetter(int field) {
             assert field == 0;
@@ -0,0 +1,572 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.function.Function1;
+
+import net.hydromatic.optiq.DataContext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Enumerables that evaluate their inputs in parallel.
+ */
+public class ParallelEnumerables {
+    /** Number of rows in each batch that a branch of a concurrent union, or
+     * a partition of a gather, hands to the consumer. */
+    private static final int BATCH_SIZE = 256;
+
+    /** Maximum number of batches that a branch of a concurrent union, or a
+     * partition of a gather, may read ahead of the consumer. */
+    private static final int BATCH_COUNT = 4;
+
+    /** Name of the system property that limits the number of threads, across
+     * all queries, that evaluate parts of queries in parallel. If it is not
+     * set, or is not positive, the number is not limited. */
+    public static final String MAX_THREADS_PROPERTY =
+        "optiq.runtime.maxThreads";
+
+    /** Executor for all tasks that evaluate part of a query in parallel:
+     * producers of concurrent unions and gathers, and the tasks of parallel
+     * sorts and hash joins.
+     *
+     * <p>Tasks are never queued: if every thread is busy, the executor
+     * rejects the task, and the caller runs it itself. A queue would not be
+     * safe, because a producer may block waiting for the consumer; the
+     * producers of one gather could occupy every thread while the consumer
+     * waits for a queued producer of another.</p> */
+    private static final ExecutorService EXECUTOR =
+        new ThreadPoolExecutor(
+            0,
+            maxThreads(Integer.getInteger(MAX_THREADS_PROPERTY, 0)),
+            60L,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "optiq-parallel");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private ParallelEnumerables() {
+        throw new AssertionError("no instances!");
+    }
+
+    /**
+     * Returns the rows of all inputs, as UNION ALL does.
+     *
+     * <p>If the query may use several threads (see
+     * {@link Utilities#parallelism(DataContext)}), reads up to that many
+     * inputs at a time, each in a separate task, and returns rows in the
+     * order they arrive. Each task reads at most a few batches of rows ahead
+     * of the consumer. Otherwise, reads the inputs one after another.</p>
+     *
+     * @param root Data context of the query
+     * @param inputs Inputs
+     * @return Rows of all inputs
+     */
+    public static <T> Enumerable<T> unionAll(
+        DataContext root,
+        final Enumerable<T>[] inputs)
+    {
+        final int parallelism = Utilities.parallelism(root);
+        if (parallelism <= 1 || inputs.length <= 1) {
+            Enumerable<T> enumerable = inputs[0];
+            for (int i = 1; i < inputs.length; i++) {
+                enumerable = enumerable.concat(inputs[i]);
+            }
+            return enumerable;
+        }
+        return new AbstractEnumerable<T>() {
+            public Enumerator<T> enumerator() {
+                return new UnionAllEnumerator<T>(
+                    Arrays.asList(inputs), parallelism);
+            }
+        };
+    }
+
+    /**
+     * Evaluates each partition of an input in a separate task, and returns
+     * the rows of all partitions.
+     *
+     * <p>The tasks start when the enumerator is created. Rows are returned
+     * in partition order: all rows of partition 0, then all rows of
+     * partition 1, and so forth; so if the input is partitioned into
+     * contiguous ranges, the rows are in the same order as if it had been
+     * read in one thread. Each task reads at most a few batches of rows ahead
+     * of the consumer, so a consumer that stops early, such as a LIMIT,
+     * does not wait for every partition to be read. Closing the enumerator
+     * stops the tasks.</p>
+     *
+     * @param partitions Function that returns the rows of a given partition
+     * @param partitionCount Number of partitions
+     */
+    public static <T> Enumerable<T> gather(
+        final Function1<Integer, Enumerable<T>> partitions,
+        final int partitionCount)
+    {
+        return new AbstractEnumerable<T>() {
+            public Enumerator<T> enumerator() {
+                return new GatherEnumerator<T>(partitions, partitionCount);
+            }
+        };
+    }
+
+    /** Enumerator that reads each partition of an input in a separate task,
+     * and returns the rows of each partition in turn.
+     *
+     * <p>Each task puts batches of rows into a queue of its own, which holds
+     * at most {@link #BATCH_COUNT} batches, and blocks when the queue is
+     * full. The consumer reads the queue of partition 0 until that task has
+     * finished, then the queue of partition 1, and so forth.</p>
+     *
+     * @param <T> Element type */
+    private static class GatherEnumerator<T>
+        implements Utilities.CloseableEnumerator<T>
+    {
+        private final Function1<Integer, Enumerable<T>> partitions;
+        private final int partitionCount;
+        private final List<BlockingQueue<Batch<T>>> queues =
+            new ArrayList<BlockingQueue<Batch<T>>>();
+        private final List<Future<?>> futures = new ArrayList<Future<?>>();
+        /** Set when the consumer closes or resets the enumerator; each run
+         * of the producers has its own flag. */
+        private AtomicBoolean closed;
+        private int partition;
+        private List<T> rows = Collections.emptyList();
+        private int index = -1;
+
+        GatherEnumerator(
+            Function1<Integer, Enumerable<T>> partitions,
+            int partitionCount)
+        {
+            this.partitions = partitions;
+            this.partitionCount = partitionCount;
+            start();
+        }
+
+        private void start() {
+            closed = new AtomicBoolean();
+            for (int i = 0; i < partitionCount; i++) {
+                BlockingQueue<Batch<T>> queue =
+                    new ArrayBlockingQueue<Batch<T>>(BATCH_COUNT);
+                try {
+                    futures.add(
+                        EXECUTOR.submit(new Producer(i, queue, closed)));
+                } catch (RejectedExecutionException e) {
+                    // Every thread is busy. Read the partition now, in this
+                    // thread, into a queue that has no limit.
+                    queue = new LinkedBlockingQueue<Batch<T>>();
+                    new Producer(i, queue, closed).run();
+                }
+                queues.add(queue);
+            }
+        }
+
+        public T current() {
+            return rows.get(index);
+        }
+
+        public boolean moveNext() {
+            if (closed.get()) {
+                return false;
+            }
+            while (++index >= rows.size()) {
+                rows = Collections.emptyList();
+                index = -1;
+                if (partition >= queues.size()) {
+                    return false;
+                }
+                final Batch<T> batch = take(queues.get(partition));
+                if (batch.rows != null) {
+                    rows = batch.rows;
+                    continue;
+                }
+                if (batch.throwable != null) {
+                    close();
+                    throw rethrow(batch.throwable);
+                }
+                ++partition;
+            }
+            return true;
+        }
+
+        public void reset() {
+            close();
+            queues.clear();
+            futures.clear();
+            partition = 0;
+            rows = Collections.emptyList();
+            index = -1;
+            start();
+        }
+
+        /** Stops the tasks. Each closes its partition at the next row or
+         * batch boundary. */
+        public void close() {
+            closed.set(true);
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        private Batch<T> take(BlockingQueue<Batch<T>> queue) {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        /** Task that reads the rows of one partition and puts them, in
+         * batches, into the partition's queue. */
+        private class Producer implements Runnable {
+            private final int partition;
+            private final BlockingQueue<Batch<T>> queue;
+            private final AtomicBoolean closed;
+
+            Producer(
+                int partition,
+                BlockingQueue<Batch<T>> queue,
+                AtomicBoolean closed)
+            {
+                this.partition = partition;
+                this.queue = queue;
+                this.closed = closed;
+            }
+
+            public void run() {
+                Enumerator<T> enumerator = null;
+                try {
+                    enumerator = partitions.apply(partition).enumerator();
+                    List<T> list = new ArrayList<T>(BATCH_SIZE);
+                    while (!closed.get() && enumerator.moveNext()) {
+                        list.add(enumerator.current());
+                        if (list.size() >= BATCH_SIZE) {
+                            if (!put(new Batch<T>(null, list, null))) {
+                                return;
+                            }
+                            list = new ArrayList<T>(BATCH_SIZE);
+                        }
+                    }
+                    if (!list.isEmpty()
+                        && !put(new Batch<T>(null, list, null)))
+                    {
+                        return;
+                    }
+                    put(new Batch<T>(null, null, null));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable e) {
+                    try {
+                        put(new Batch<T>(null, null, e));
+                    } catch (InterruptedException e2) {
+                        Thread.currentThread().interrupt();
+                    }
+                } finally {
+                    if (enumerator != null) {
+                        Utilities.close(enumerator);
+                    }
+                }
+            }
+
+            /** Puts a batch into the queue, waiting for space if necessary,
+             * unless the consumer has closed the enumerator. Returns whether
+             * the batch was added. */
+            private boolean put(Batch<T> batch) throws InterruptedException {
+                while (!closed.get()) {
+                    if (queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+    }
+
+    /** Enumerator that reads several inputs concurrently, and returns their
+     * rows as they arrive.
+     *
+     * <p>Each running input has a producer task that puts batches of rows
+     * into a queue shared by all producers. A producer holds a permit for
+     * each of its batches that the consumer has not yet taken, and blocks
+     * when it has none left. When an input is exhausted, the next input
+     * that has not started is started.</p>
+     *
+     * <p>If an input throws, the exception is re-thrown to the consumer, and
+     * the other producers stop.</p>
+     *
+     * @param <T> Element type */
+    private static class UnionAllEnumerator<T>
+        implements Utilities.CloseableEnumerator<T>
+    {
+        private final List<Enumerable<T>> inputs;
+        private final int concurrency;
+        /** Queue shared by the producers of the current run. */
+        private BlockingQueue<Batch<T>> queue;
+        /** Set when the consumer closes or resets the enumerator; each run
+         * of the producers has its own flag. */
+        private AtomicBoolean closed;
+        private final List<Future<?>> futures = new ArrayList<Future<?>>();
+        /** Number of inputs whose producer has been started. */
+        private int started;
+        /** Number of producers that have started and not finished. */
+        private int running;
+        private List<T> rows;
+        private int index;
+
+        UnionAllEnumerator(List<Enumerable<T>> inputs, int concurrency) {
+            this.inputs = inputs;
+            this.concurrency = concurrency;
+            init();
+        }
+
+        private void init() {
+            queue = new LinkedBlockingQueue<Batch<T>>();
+            closed = new AtomicBoolean();
+            futures.clear();
+            started = 0;
+            running = 0;
+            rows = Collections.emptyList();
+            index = -1;
+        }
+
+        public T current() {
+            return rows.get(index);
+        }
+
+        public boolean moveNext() {
+            if (closed.get()) {
+                return false;
+            }
+            if (started == 0) {
+                while (started < inputs.size() && running < concurrency) {
+                    startNext();
+                }
+            }
+            while (++index >= rows.size()) {
+                rows = Collections.emptyList();
+                index = -1;
+                if (running == 0) {
+                    return false;
+                }
+                final Batch<T> batch = take();
+                if (batch.rows != null) {
+                    batch.permits.release();
+                    rows = batch.rows;
+                    continue;
+                }
+                --running;
+                if (batch.throwable != null) {
+                    close();
+                    throw rethrow(batch.throwable);
+                }
+                if (started < inputs.size()) {
+                    startNext();
+                }
+            }
+            return true;
+        }
+
+        /** Stops the producers, and starts again from the first input. */
+        public void reset() {
+            close();
+            init();
+        }
+
+        /** Stops the producers. Each closes its input at the next row or
+         * batch boundary, or when interrupted, whichever is sooner. */
+        public void close() {
+            closed.set(true);
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        private void startNext() {
+            final Enumerable<T> input = inputs.get(started++);
+            ++running;
+            try {
+                futures.add(
+                    EXECUTOR.submit(
+                        new Producer<T>(input, queue, closed, BATCH_COUNT)));
+            } catch (RejectedExecutionException e) {
+                // Every thread is busy. Read the input now, in this thread,
+                // without a limit on the batches it may read ahead.
+                new Producer<T>(input, queue, closed, Integer.MAX_VALUE)
+                    .run();
+            }
+        }
+
+        private Batch<T> take() {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        /** Task that reads rows from one input and puts them, in batches,
+         * into the queue. */
+        private static class Producer<T> implements Runnable {
+            private final Enumerable<T> input;
+            private final BlockingQueue<Batch<T>> queue;
+            private final AtomicBoolean closed;
+            final Semaphore permits;
+
+            Producer(
+                Enumerable<T> input,
+                BlockingQueue<Batch<T>> queue,
+                AtomicBoolean closed,
+                int batchCount)
+            {
+                this.input = input;
+                this.queue = queue;
+                this.closed = closed;
+                this.permits = new Semaphore(batchCount);
+            }
+
+            public void run() {
+                Enumerator<T> enumerator = null;
+                try {
+                    enumerator = input.enumerator();
+                    List<T> list = new ArrayList<T>(BATCH_SIZE);
+                    while (!closed.get() && enumerator.moveNext()) {
+                        list.add(enumerator.current());
+                        if (list.size() >= BATCH_SIZE) {
+                            if (!put(list)) {
+                                return;
+                            }
+                            list = new ArrayList<T>(BATCH_SIZE);
+                        }
+                    }
+                    if (!list.isEmpty() && !put(list)) {
+                        return;
+                    }
+                    queue.add(new Batch<T>(permits, null, null));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable e) {
+                    queue.add(new Batch<T>(permits, null, e));
+                } finally {
+                    if (enumerator != null) {
+                        Utilities.close(enumerator);
+                    }
+                }
+            }
+
+            /** Puts a batch into the queue, waiting for a permit if
+             * necessary, unless the consumer has closed the enumerator.
+             * Returns whether the batch was added. */
+            private boolean put(List<T> list) throws InterruptedException {
+                while (!closed.get()) {
+                    if (permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                        queue.add(new Batch<T>(permits, list, null));
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+    }
+
+    /** Batch of rows from a producer of a concurrent union or a gather; or,
+     * if {@code rows} is null, the end of the producer's rows, perhaps
+     * because it failed. */
+    private static class Batch<T> {
+        /** Permits of the producer, to be released when the consumer takes
+         * the batch; null if the producer's queue is bounded instead. */
+        final Semaphore permits;
+        final List<T> rows;
+        final Throwable throwable;
+
+        Batch(Semaphore permits, List<T> rows, Throwable throwable) {
+            this.permits = permits;
+            this.rows = rows;
+            this.throwable = throwable;
+        }
+    }
+
+    /** Returns an unchecked exception to be thrown in the consumer's thread
+     * for an exception thrown by a producer. Errors are thrown directly. */
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new RuntimeException(e);
+    }
+
+    /** Waits for a task to finish, and returns its result. If the task
+     * threw, rethrows the exception in the calling thread. */
+    private static int maxThreads(int maxThreads) {
+        return maxThreads > 0 ? maxThreads : Integer.MAX_VALUE;
+    }
+
+    /** Runs a task in a thread of the shared executor, or if every thread is
+     * busy, in the calling thread before returning. The task must not block
+     * waiting for the caller. */
+    static <T> Future<T> submit(Callable<T> task) {
+        try {
+            return EXECUTOR.submit(task);
+        } catch (RejectedExecutionException e) {
+            final FutureTask<T> future = new FutureTask<T>(task);
+            future.run();
+            return future;
+        }
+    }
+
+    /** Runs a task in a thread of the shared executor, or if every thread is
+     * busy, in the calling thread; see {@link #submit(Callable)}. */
+    static Future<?> submit(Runnable task) {
+        return submit(Executors.callable(task));
+    }
+
+    static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
+
+// End ParallelEnumerables.java
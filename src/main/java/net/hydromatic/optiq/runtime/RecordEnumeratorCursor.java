@@ -57,6 +57,11 @@ public class RecordEnumeratorCursor<E> extends AbstractCursor {
         return enumerator.moveNext();
     }
 
+    @Override
+    public void close() {
+        Utilities.close(enumerator);
+    }
+
     class RecordEnumeratorGetter implements Getter {
         protected final Field field;
 
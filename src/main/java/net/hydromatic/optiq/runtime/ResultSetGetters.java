@@ -0,0 +1,129 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Methods on {@link ResultSet} called by generated row builders.
+ *
+ * <p>Each method calls the corresponding method of the result set and
+ * converts any {@link SQLException} into a {@link RuntimeException}, so that
+ * generated code does not need to catch it.</p>
+ */
+public class ResultSetGetters {
+    private ResultSetGetters() {
+        throw new AssertionError("no instances!");
+    }
+
+    private static RuntimeException wrap(SQLException e) {
+        return new RuntimeException(e);
+    }
+
+    public static boolean wasNull(ResultSet resultSet) {
+        try {
+            return resultSet.wasNull();
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+
+    public static boolean getBoolean(ResultSet resultSet, int i) {
+        try {
+            return resultSet.getBoolean(i);
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+
+    public static byte getByte(ResultSet resultSet, int i) {
+        try {
+            return resultSet.getByte(i);
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+
+    public static short getShort(ResultSet resultSet, int i) {
+        try {
+            return resultSet.getShort(i);
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+
+    public static int getInt(ResultSet resultSet, int i) {
+        try {
+            return resultSet.getInt(i);
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+
+    public static long getLong(ResultSet resultSet, int i) {
+        try {
+            return resultSet.getLong(i);
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+
+    public static float getFloat(ResultSet resultSet, int i) {
+        try {
+            return resultSet.getFloat(i);
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+
+    public static double getDouble(ResultSet resultSet, int i) {
+        try {
+            return resultSet.getDouble(i);
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+
+    public static String getString(ResultSet resultSet, int i) {
+        try {
+            return resultSet.getString(i);
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+
+    public static BigDecimal getBigDecimal(ResultSet resultSet, int i) {
+        try {
+            return resultSet.getBigDecimal(i);
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+
+    public static Object getObject(ResultSet resultSet, int i) {
+        try {
+            return resultSet.getObject(i);
+        } catch (SQLException e) {
+            throw wrap(e);
+        }
+    }
+}
+
+// End ResultSetGetters.java
@@ -0,0 +1,319 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.function.Function1;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Converts rows to and from a compact binary format, so that operators can
+ * write them to temporary files.
+ *
+ * <p>The generated code supplies functions to convert a row to an array of
+ * field values and back; see
+ * {@link net.hydromatic.optiq.rules.java.PhysType#generateSerializer()}.
+ * Each value is written as a one-byte tag followed by a variable-length
+ * encoding. Integers use zig-zag variable-length encoding, so small values
+ * take one or two bytes.</p>
+ *
+ * @param <T> Row type
+ */
+public class RowSerializer<T> {
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte BYTE = 3;
+    private static final byte SHORT = 4;
+    private static final byte INT = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte CHAR = 9;
+    private static final byte STRING = 10;
+    private static final byte BIG_DECIMAL = 11;
+    private static final byte BYTE_STRING = 12;
+    private static final byte SQL_DATE = 13;
+    private static final byte SQL_TIME = 14;
+    private static final byte SQL_TIMESTAMP = 15;
+    private static final byte UTIL_DATE = 16;
+
+    /** Classes whose values can be serialized. */
+    private static final Set<Class> SERIALIZABLE_CLASSES =
+        new HashSet<Class>(
+            Arrays.<Class>asList(
+                boolean.class, Boolean.class,
+                byte.class, Byte.class,
+                short.class, Short.class,
+                int.class, Integer.class,
+                long.class, Long.class,
+                float.class, Float.class,
+                double.class, Double.class,
+                char.class, Character.class,
+                String.class,
+                BigDecimal.class,
+                ByteString.class,
+                java.sql.Date.class,
+                java.sql.Time.class,
+                java.sql.Timestamp.class,
+                java.util.Date.class));
+
+    private final Function1<T, Object[]> toArray;
+    private final Function1<Object[], T> fromArray;
+
+    /**
+     * Creates a RowSerializer.
+     *
+     * @param toArray Function that converts a row to an array of field values
+     * @param fromArray Function that converts an array of field values to a
+     *     row
+     */
+    public RowSerializer(
+        Function1<T, Object[]> toArray,
+        Function1<Object[], T> fromArray)
+    {
+        this.toArray = toArray;
+        this.fromArray = fromArray;
+    }
+
+    /** Returns whether values of a given class can be serialized. */
+    public static boolean canSerialize(Class clazz) {
+        return SERIALIZABLE_CLASSES.contains(clazz);
+    }
+
+    /**
+     * Writes a row.
+     *
+     * @param out Output
+     * @param row Row
+     * @throws IOException on write error
+     */
+    public void write(DataOutputStream out, T row) throws IOException {
+        final Object[] values = toArray.apply(row);
+        writeVarLong(out, values.length);
+        for (Object value : values) {
+            writeValue(out, value);
+        }
+    }
+
+    /**
+     * Reads a row.
+     *
+     * @param in Input
+     * @return Row
+     * @throws IOException on read error
+     */
+    public T read(DataInputStream in) throws IOException {
+        final Object[] values = new Object[(int) readVarLong(in)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readValue(in);
+        }
+        return fromArray.apply(values);
+    }
+
+    /**
+     * Estimates the number of bytes of heap occupied by a row.
+     *
+     * @param row Row
+     * @return Estimated size in bytes
+     */
+    public long estimateSize(T row) {
+        final Object[] values = toArray.apply(row);
+        // Object header plus array header and slots.
+        long size = 32 + 8 * values.length;
+        for (Object value : values) {
+            size += estimateValueSize(value);
+        }
+        return size;
+    }
+
+    private static long estimateValueSize(Object value) {
+        if (value == null
+            || value instanceof Boolean
+            || value instanceof Byte)
+        {
+            // Cached instances.
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        }
+        if (value instanceof BigDecimal) {
+            return 64;
+        }
+        if (value instanceof ByteString) {
+            return 32 + ((ByteString) value).length();
+        }
+        return 24;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value)
+        throws IOException
+    {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            writeVarLong(out, (Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out, (Long) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeBytes(out, ((String) value).getBytes("UTF-8"));
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            writeVarLong(out, (Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (value instanceof BigDecimal) {
+            final BigDecimal bigDecimal = (BigDecimal) value;
+            out.writeByte(BIG_DECIMAL);
+            writeVarLong(out, bigDecimal.scale());
+            writeBytes(out, bigDecimal.unscaledValue().toByteArray());
+        } else if (value instanceof ByteString) {
+            final ByteString byteString = (ByteString) value;
+            final byte[] bytes = new byte[byteString.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = byteString.byteAt(i);
+            }
+            out.writeByte(BYTE_STRING);
+            writeBytes(out, bytes);
+        } else if (value instanceof java.sql.Timestamp) {
+            final java.sql.Timestamp timestamp = (java.sql.Timestamp) value;
+            out.writeByte(SQL_TIMESTAMP);
+            writeVarLong(out, timestamp.getTime());
+            writeVarLong(out, timestamp.getNanos());
+        } else if (value instanceof java.sql.Date) {
+            out.writeByte(SQL_DATE);
+            writeVarLong(out, ((java.util.Date) value).getTime());
+        } else if (value instanceof java.sql.Time) {
+            out.writeByte(SQL_TIME);
+            writeVarLong(out, ((java.util.Date) value).getTime());
+        } else if (value instanceof java.util.Date) {
+            out.writeByte(UTIL_DATE);
+            writeVarLong(out, ((java.util.Date) value).getTime());
+        } else {
+            throw new IllegalArgumentException(
+                "cannot serialize value of " + value.getClass());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case BYTE:
+            return in.readByte();
+        case SHORT:
+            return (short) readVarLong(in);
+        case INT:
+            return (int) readVarLong(in);
+        case LONG:
+            return readVarLong(in);
+        case FLOAT:
+            return in.readFloat();
+        case DOUBLE:
+            return in.readDouble();
+        case CHAR:
+            return in.readChar();
+        case STRING:
+            return new String(readBytes(in), "UTF-8");
+        case BIG_DECIMAL:
+            final int scale = (int) readVarLong(in);
+            return new BigDecimal(new BigInteger(readBytes(in)), scale);
+        case BYTE_STRING:
+            return new ByteString(readBytes(in));
+        case SQL_DATE:
+            return new java.sql.Date(readVarLong(in));
+        case SQL_TIME:
+            return new java.sql.Time(readVarLong(in));
+        case SQL_TIMESTAMP:
+            final java.sql.Timestamp timestamp =
+                new java.sql.Timestamp(readVarLong(in));
+            timestamp.setNanos((int) readVarLong(in));
+            return timestamp;
+        case UTIL_DATE:
+            return new java.util.Date(readVarLong(in));
+        default:
+            throw new IOException("bad tag " + tag);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+        throws IOException
+    {
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /** Writes a long using zig-zag variable-length encoding: 7 bits per
+     * byte, low bits first, with the sign in the lowest bit. */
+    static void writeVarLong(DataOutputStream out, long v)
+        throws IOException
+    {
+        long z = (v << 1) ^ (v >> 63);
+        while ((z & ~0x7FL) != 0) {
+            out.writeByte((int) ((z & 0x7F) | 0x80));
+            z >>>= 7;
+        }
+        out.writeByte((int) z);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long z = 0;
+        int shift = 0;
+        for (;;) {
+            final int b = in.readUnsignedByte();
+            z |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        return (z >>> 1) ^ -(z & 1);
+    }
+}
+
+// End RowSerializer.java
@@ -0,0 +1,408 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.function.Function0;
+import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Function2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Relational operators whose input is sorted, and which therefore need not
+ * hold more than a few rows in memory.
+ */
+public class SortedEnumerables {
+    private SortedEnumerables() {
+        throw new AssertionError("no instances!");
+    }
+
+    /**
+     * Groups rows by key and aggregates each group, given an input in which
+     * rows with the same key are adjacent (for example, because it is sorted
+     * on the key).
+     *
+     * <p>Returns each group as soon as the first row of the next group has
+     * been read, so holds only one accumulator at a time. Groups are
+     * returned in the order that they occur in the input.</p>
+     *
+     * @param source Input, with rows of each key adjacent
+     * @param keySelector Extracts the key from a row
+     * @param accumulatorInitializer Creates an accumulator
+     * @param accumulatorAdder Adds a row to an accumulator
+     * @param resultSelector Creates an output row from a key and accumulator
+     * @return Aggregated rows
+     */
+    public static <TSource, TKey, TAccumulate, TResult> Enumerable<TResult>
+    groupBy(
+        final Enumerable<TSource> source,
+        final Function1<TSource, TKey> keySelector,
+        final Function0<TAccumulate> accumulatorInitializer,
+        final Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+        final Function2<TKey, TAccumulate, TResult> resultSelector)
+    {
+        return new AbstractEnumerable<TResult>() {
+            public Enumerator<TResult> enumerator() {
+                return new GroupByEnumerator<
+                    TSource, TKey, TAccumulate, TResult>(
+                    source.enumerator(), keySelector, accumulatorInitializer,
+                    accumulatorAdder, resultSelector);
+            }
+        };
+    }
+
+    /**
+     * Joins two inputs that are both sorted on the join key, by merging
+     * them.
+     *
+     * <p>Neither input is read more than once, and the only rows held in
+     * memory are the current run of rows with the same key on each side.
+     * Keys are compared using their natural order, which must be the order
+     * the inputs are sorted in. A null key, or a composite key that contains
+     * a null, matches nothing; such rows may occur anywhere in the input.</p>
+     *
+     * <p>For inner and left joins, the output is in the order of the left
+     * input.</p>
+     *
+     * @param outer Left input, sorted on its key
+     * @param inner Right input, sorted on its key
+     * @param outerKeySelector Extracts the key from a left row
+     * @param innerKeySelector Extracts the key from a right row
+     * @param resultSelector Creates an output row from a left and a right
+     *     row, either of which may be null if the join is outer
+     * @param generateNullsOnLeft Whether to emit right rows that match no
+     *     left row (right or full join)
+     * @param generateNullsOnRight Whether to emit left rows that match no
+     *     right row (left or full join)
+     * @return Joined rows
+     */
+    public static <TSource, TInner, TKey extends Comparable, TResult>
+    Enumerable<TResult> mergeJoin(
+        final Enumerable<TSource> outer,
+        final Enumerable<TInner> inner,
+        final Function1<TSource, TKey> outerKeySelector,
+        final Function1<TInner, TKey> innerKeySelector,
+        final Function2<TSource, TInner, TResult> resultSelector,
+        final boolean generateNullsOnLeft,
+        final boolean generateNullsOnRight)
+    {
+        return new AbstractEnumerable<TResult>() {
+            public Enumerator<TResult> enumerator() {
+                return new MergeJoinEnumerator<TSource, TInner, TKey, TResult>(
+                    outer.enumerator(), inner.enumerator(), outerKeySelector,
+                    innerKeySelector, resultSelector, generateNullsOnLeft,
+                    generateNullsOnRight);
+            }
+        };
+    }
+
+    /** Returns whether a join key is null or contains a null, and therefore
+     * matches no other key. */
+    private static boolean isNullKey(Object key) {
+        if (key == null) {
+            return true;
+        }
+        if (key instanceof List) {
+            for (Object o : (List) key) {
+                if (o == null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean equal(Object o0, Object o1) {
+        return o0 == null ? o1 == null : o0.equals(o1);
+    }
+
+    /** Enumerator that aggregates groups of adjacent rows with the same
+     * key.
+     *
+     * @param <TSource> Input row type
+     * @param <TKey> Key type
+     * @param <TAccumulate> Accumulator type
+     * @param <TResult> Result type */
+    private static class GroupByEnumerator<TSource, TKey, TAccumulate, TResult>
+        implements Enumerator<TResult>
+    {
+        private final Enumerator<TSource> enumerator;
+        private final Function1<TSource, TKey> keySelector;
+        private final Function0<TAccumulate> accumulatorInitializer;
+        private final Function2<TAccumulate, TSource, TAccumulate>
+            accumulatorAdder;
+        private final Function2<TKey, TAccumulate, TResult> resultSelector;
+
+        /** Whether {@link #row} holds a row that has been read but not yet
+         * added to a group. */
+        private boolean pending;
+        private TSource row;
+        private boolean done;
+        private TResult current;
+
+        GroupByEnumerator(
+            Enumerator<TSource> enumerator,
+            Function1<TSource, TKey> keySelector,
+            Function0<TAccumulate> accumulatorInitializer,
+            Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+            Function2<TKey, TAccumulate, TResult> resultSelector)
+        {
+            this.enumerator = enumerator;
+            this.keySelector = keySelector;
+            this.accumulatorInitializer = accumulatorInitializer;
+            this.accumulatorAdder = accumulatorAdder;
+            this.resultSelector = resultSelector;
+        }
+
+        public TResult current() {
+            return current;
+        }
+
+        public boolean moveNext() {
+            if (!pending) {
+                if (done || !enumerator.moveNext()) {
+                    done = true;
+                    current = null;
+                    return false;
+                }
+                row = enumerator.current();
+            }
+            final TKey key = keySelector.apply(row);
+            TAccumulate accumulator = accumulatorInitializer.apply();
+            accumulator = accumulatorAdder.apply(accumulator, row);
+            pending = false;
+            while (enumerator.moveNext()) {
+                row = enumerator.current();
+                if (!equal(key, keySelector.apply(row))) {
+                    pending = true;
+                    break;
+                }
+                accumulator = accumulatorAdder.apply(accumulator, row);
+            }
+            if (!pending) {
+                done = true;
+                row = null;
+            }
+            current = resultSelector.apply(key, accumulator);
+            return true;
+        }
+
+        public void reset() {
+            enumerator.reset();
+            pending = false;
+            done = false;
+            row = null;
+            current = null;
+        }
+    }
+
+    /** Enumerator that merges two inputs sorted on the join key.
+     *
+     * @param <TSource> Left row type
+     * @param <TInner> Right row type
+     * @param <TKey> Key type
+     * @param <TResult> Result type */
+    private static class MergeJoinEnumerator<
+        TSource, TInner, TKey extends Comparable, TResult>
+        implements Enumerator<TResult>
+    {
+        private final Enumerator<TSource> outers;
+        private final Enumerator<TInner> inners;
+        private final Function1<TSource, TKey> outerKeySelector;
+        private final Function1<TInner, TKey> innerKeySelector;
+        private final Function2<TSource, TInner, TResult> resultSelector;
+        private final boolean generateNullsOnLeft;
+        private final boolean generateNullsOnRight;
+
+        private boolean started;
+        private boolean outerHas;
+        private boolean innerHas;
+        private TSource outerRow;
+        private TInner innerRow;
+        private TKey outerKey;
+        private TKey innerKey;
+
+        /** Runs of left and right rows with the same key, whose cross
+         * product is being returned; {@link #i} and {@link #j} index the
+         * next pair. */
+        private final List<TSource> outerRun = new ArrayList<TSource>();
+        private final List<TInner> innerRun = new ArrayList<TInner>();
+        private int i;
+        private int j;
+
+        private TResult current;
+
+        MergeJoinEnumerator(
+            Enumerator<TSource> outers,
+            Enumerator<TInner> inners,
+            Function1<TSource, TKey> outerKeySelector,
+            Function1<TInner, TKey> innerKeySelector,
+            Function2<TSource, TInner, TResult> resultSelector,
+            boolean generateNullsOnLeft,
+            boolean generateNullsOnRight)
+        {
+            this.outers = outers;
+            this.inners = inners;
+            this.outerKeySelector = outerKeySelector;
+            this.innerKeySelector = innerKeySelector;
+            this.resultSelector = resultSelector;
+            this.generateNullsOnLeft = generateNullsOnLeft;
+            this.generateNullsOnRight = generateNullsOnRight;
+        }
+
+        public TResult current() {
+            return current;
+        }
+
+        private void advanceOuter() {
+            outerHas = outers.moveNext();
+            if (outerHas) {
+                outerRow = outers.current();
+                outerKey = outerKeySelector.apply(outerRow);
+            } else {
+                outerRow = null;
+                outerKey = null;
+            }
+        }
+
+        private void advanceInner() {
+            innerHas = inners.moveNext();
+            if (innerHas) {
+                innerRow = inners.current();
+                innerKey = innerKeySelector.apply(innerRow);
+            } else {
+                innerRow = null;
+                innerKey = null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean moveNext() {
+            if (!started) {
+                started = true;
+                advanceOuter();
+                advanceInner();
+            }
+            for (;;) {
+                if (i < outerRun.size()) {
+                    current =
+                        resultSelector.apply(outerRun.get(i), innerRun.get(j));
+                    if (++j == innerRun.size()) {
+                        j = 0;
+                        ++i;
+                    }
+                    return true;
+                }
+                if (!outerHas && !innerHas) {
+                    current = null;
+                    return false;
+                }
+                if (outerHas
+                    && (!innerHas || isNullKey(outerKey)))
+                {
+                    // Left row matches no right row.
+                    final TSource row = outerRow;
+                    advanceOuter();
+                    if (generateNullsOnRight) {
+                        current = resultSelector.apply(row, null);
+                        return true;
+                    }
+                    if (!innerHas) {
+                        // No more left rows are needed.
+                        outerHas = false;
+                    }
+                    continue;
+                }
+                if (!outerHas || isNullKey(innerKey)) {
+                    // Right row matches no left row.
+                    final TInner row = innerRow;
+                    advanceInner();
+                    if (generateNullsOnLeft) {
+                        current = resultSelector.apply(null, row);
+                        return true;
+                    }
+                    if (!outerHas) {
+                        innerHas = false;
+                    }
+                    continue;
+                }
+                final int c = outerKey.compareTo(innerKey);
+                if (c < 0) {
+                    final TSource row = outerRow;
+                    advanceOuter();
+                    if (generateNullsOnRight) {
+                        current = resultSelector.apply(row, null);
+                        return true;
+                    }
+                    continue;
+                }
+                if (c > 0) {
+                    final TInner row = innerRow;
+                    advanceInner();
+                    if (generateNullsOnLeft) {
+                        current = resultSelector.apply(null, row);
+                        return true;
+                    }
+                    continue;
+                }
+                // Keys are equal. Read the run of rows with this key from
+                // each side, and return their cross product.
+                final TKey key = outerKey;
+                outerRun.clear();
+                innerRun.clear();
+                do {
+                    outerRun.add(outerRow);
+                    advanceOuter();
+                } while (outerHas
+                    && !isNullKey(outerKey)
+                    && key.compareTo(outerKey) == 0);
+                do {
+                    innerRun.add(innerRow);
+                    advanceInner();
+                } while (innerHas
+                    && !isNullKey(innerKey)
+                    && key.compareTo(innerKey) == 0);
+                i = 0;
+                j = 0;
+            }
+        }
+
+        public void reset() {
+            outers.reset();
+            inners.reset();
+            started = false;
+            outerHas = false;
+            innerHas = false;
+            outerRow = null;
+            innerRow = null;
+            outerKey = null;
+            innerKey = null;
+            outerRun.clear();
+            innerRun.clear();
+            i = 0;
+            j = 0;
+            current = null;
+        }
+    }
+}
+
+// End SortedEnumerables.java
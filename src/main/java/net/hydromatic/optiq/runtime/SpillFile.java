@@ -0,0 +1,167 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+
+import java.io.*;
+
+/**
+ * Temporary file to which an operator writes rows that do not fit in memory,
+ * and from which it later reads them back.
+ *
+ * <p>Rows are written using a {@link RowSerializer}. Call {@link #add} to
+ * write rows, then {@link #enumerable()} to read them. The file is deleted
+ * when all rows have been read, or when {@link #delete()} is called. An
+ * operator that creates spill files must delete them when it is closed,
+ * because a consumer may stop reading before the end.</p>
+ *
+ * @param <T> Row type
+ */
+class SpillFile<T> {
+    private static final int BUFFER_SIZE = 65536;
+
+    private final RowSerializer<T> serializer;
+    private final File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private long rowCount;
+
+    SpillFile(RowSerializer<T> serializer) {
+        this.serializer = serializer;
+        try {
+            this.file = File.createTempFile("optiq-spill", ".tmp");
+            this.out =
+                new DataOutputStream(
+                    new BufferedOutputStream(
+                        new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new RuntimeException("Error while creating spill file", e);
+        }
+        Hook.SPILL.run(file);
+    }
+
+    /** Writes a row. */
+    void add(T row) {
+        try {
+            serializer.write(out, row);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while writing spill file", e);
+        }
+        ++rowCount;
+    }
+
+    /** Returns the number of rows written. */
+    long getRowCount() {
+        return rowCount;
+    }
+
+    /** Finishes writing, and returns an enumerable that reads the rows. The
+     * enumerable may be enumerated only once. */
+    Enumerable<T> enumerable() {
+        finish();
+        return new AbstractEnumerable<T>() {
+            public Enumerator<T> enumerator() {
+                return new SpillFileEnumerator();
+            }
+        };
+    }
+
+    /** Closes the file, including a reader that has not reached the end,
+     * and deletes it. May be called more than once. */
+    void delete() {
+        try {
+            finish();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                in = null;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private void finish() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new RuntimeException(
+                    "Error while writing spill file", e);
+            }
+            out = null;
+        }
+    }
+
+    /** Enumerator that reads rows from the file, and deletes the file when it
+     * reaches the end or is closed. */
+    private class SpillFileEnumerator
+        implements Utilities.CloseableEnumerator<T>
+    {
+        private long remaining = rowCount;
+        private T current;
+
+        SpillFileEnumerator() {
+            try {
+                in = new DataInputStream(
+                    new BufferedInputStream(
+                        new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new RuntimeException(
+                    "Error while reading spill file", e);
+            }
+        }
+
+        public T current() {
+            return current;
+        }
+
+        public boolean moveNext() {
+            if (remaining <= 0 || in == null) {
+                close();
+                return false;
+            }
+            try {
+                current = serializer.read(in);
+            } catch (IOException e) {
+                close();
+                throw new RuntimeException(
+                    "Error while reading spill file", e);
+            }
+            --remaining;
+            return true;
+        }
+
+        public void reset() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            delete();
+        }
+    }
+}
+
+// End SpillFile.java
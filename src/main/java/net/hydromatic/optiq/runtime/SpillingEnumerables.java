@@ -0,0 +1,901 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.Linq4j;
+import net.hydromatic.linq4j.function.Function0;
+import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Function2;
+import net.hydromatic.linq4j.function.LongFunction1;
+
+import net.hydromatic.optiq.DataContext;
+
+import org.eigenbase.util.Pair;
+
+import java.util.*;
+
+/**
+ * Relational operators that respect the {@link MemoryBudget} of a query, and
+ * write rows to temporary files if the rows they hold would exceed it.
+ *
+ * <p>Generated code calls these methods instead of the corresponding linq4j
+ * methods. If the query has no memory budget, or rows cannot be serialized,
+ * they call the linq4j method, or, if the key can be packed into a
+ * {@code long}, the corresponding method of {@link LongHashTables}.</p>
+ */
+public class SpillingEnumerables {
+    /** Number of partitions that a spilling operator splits its input into. */
+    private static final int FANOUT = 16;
+
+    /** Number of times a partition can be split again if it still does not
+     * fit. After that, the operator ignores the budget. */
+    private static final int MAX_DEPTH = 4;
+
+    /** Estimated bytes used by a hash table entry, in addition to the row. */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** Maximum number of sorted runs that a sort merges at a time. If there
+     * are more, it merges runs into longer runs first. Each open run needs a
+     * read buffer. */
+    private static final int MERGE_FANIN = 64;
+
+    private SpillingEnumerables() {
+        throw new AssertionError("no instances!");
+    }
+
+    /**
+     * Joins two inputs on matching keys. Like
+     * {@link net.hydromatic.linq4j.ExtendedEnumerable#join}, builds a hash
+     * table on the inner input; if the table would exceed the query's memory
+     * budget, performs a grace hash join: partitions both inputs by key hash
+     * into temporary files, then joins each pair of partitions. If the query
+     * has no memory budget and may use several threads, performs a
+     * {@link JoinEnumerables#parallelHashJoin parallel hash join}.
+     *
+     * @param root Data context of the query
+     * @param outer Outer input
+     * @param inner Inner input
+     * @param outerKeySelector Extracts the key from an outer row
+     * @param innerKeySelector Extracts the key from an inner row
+     * @param outerLongKeySelector Extracts the key from an outer row as a
+     *     long, or null
+     * @param innerLongKeySelector Extracts the key from an inner row as a
+     *     long, or null
+     * @param resultSelector Creates an output row from a matching pair
+     * @param outerSerializer Serializer for outer rows
+     * @param innerSerializer Serializer for inner rows
+     * @return Joined rows
+     */
+    public static <TSource, TInner, TKey, TResult> Enumerable<TResult> join(
+        DataContext root,
+        final Enumerable<TSource> outer,
+        final Enumerable<TInner> inner,
+        final Function1<TSource, TKey> outerKeySelector,
+        final Function1<TInner, TKey> innerKeySelector,
+        final LongFunction1<TSource> outerLongKeySelector,
+        final LongFunction1<TInner> innerLongKeySelector,
+        final Function2<TSource, TInner, TResult> resultSelector,
+        final RowSerializer<TSource> outerSerializer,
+        final RowSerializer<TInner> innerSerializer)
+    {
+        final MemoryBudget budget = Utilities.memoryBudget(root);
+        if (budget == null
+            || !budget.isLimited()
+            || outerSerializer == null
+            || innerSerializer == null)
+        {
+            final int parallelism = Utilities.parallelism(root);
+            if (parallelism > 1) {
+                return JoinEnumerables.parallelHashJoin(
+                    outer, inner, outerKeySelector, innerKeySelector,
+                    resultSelector, parallelism);
+            }
+            if (outerLongKeySelector != null && innerLongKeySelector != null) {
+                return LongHashTables.join(
+                    outer, inner, outerLongKeySelector, innerLongKeySelector,
+                    resultSelector);
+            }
+            return outer.join(
+                inner, outerKeySelector, innerKeySelector, resultSelector);
+        }
+        return new AbstractEnumerable<TResult>() {
+            public Enumerator<TResult> enumerator() {
+                return new HashJoinEnumerator<TSource, TInner, TKey, TResult>(
+                    budget, outer, inner, outerKeySelector, innerKeySelector,
+                    resultSelector, outerSerializer, innerSerializer);
+            }
+        };
+    }
+
+    /**
+     * Groups rows by key and aggregates each group. Like
+     * {@link net.hydromatic.linq4j.ExtendedEnumerable#groupBy(Function1, Function0, Function2, Function2)},
+     * keeps a hash table of accumulators. When the table reaches the query's
+     * memory budget, rows whose key is already in the table continue to be
+     * aggregated in memory, and other rows are written to temporary files
+     * partitioned by key hash (hybrid hash aggregation). After the groups in
+     * memory have been returned, each partition is aggregated in the same
+     * way.
+     *
+     * @param root Data context of the query
+     * @param source Input
+     * @param keySelector Extracts the key from a row
+     * @param longKeySelector Extracts the key from a row as a long, or null
+     * @param accumulatorInitializer Creates an accumulator
+     * @param accumulatorAdder Adds a row to an accumulator
+     * @param resultSelector Creates an output row from a key and accumulator
+     * @param serializer Serializer for input rows
+     * @return Aggregated rows
+     */
+    public static <TSource, TKey, TAccumulate, TResult> Enumerable<TResult>
+    groupBy(
+        DataContext root,
+        final Enumerable<TSource> source,
+        final Function1<TSource, TKey> keySelector,
+        final LongFunction1<TSource> longKeySelector,
+        final Function0<TAccumulate> accumulatorInitializer,
+        final Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+        final Function2<TKey, TAccumulate, TResult> resultSelector,
+        final RowSerializer<TSource> serializer)
+    {
+        final MemoryBudget budget = Utilities.memoryBudget(root);
+        if (budget == null || !budget.isLimited() || serializer == null) {
+            if (longKeySelector != null) {
+                return LongHashTables.groupBy(
+                    source, longKeySelector, keySelector,
+                    accumulatorInitializer, accumulatorAdder, resultSelector);
+            }
+            return source.groupBy(
+                keySelector, accumulatorInitializer, accumulatorAdder,
+                resultSelector);
+        }
+        return new AbstractEnumerable<TResult>() {
+            public Enumerator<TResult> enumerator() {
+                return new HashAggregateEnumerator<
+                    TSource, TKey, TAccumulate, TResult>(
+                    budget, source, keySelector, accumulatorInitializer,
+                    accumulatorAdder, resultSelector, serializer);
+            }
+        };
+    }
+
+    /**
+     * Sorts rows. Like
+     * {@link net.hydromatic.linq4j.ExtendedEnumerable#orderBy(Function1, Comparator)},
+     * sorts in memory, and the sort is stable; if the rows would exceed the
+     * query's memory budget, performs an external merge sort: writes sorted
+     * runs to temporary files, then merges them as the output is read.
+     *
+     * <p>If there is a normalizer, sorts in memory using a
+     * {@link NormalizedKeySorter}.</p>
+     *
+     * @param root Data context of the query
+     * @param source Input
+     * @param keySelector Extracts the sort key from a row
+     * @param comparator Compares sort keys
+     * @param serializer Serializer for input rows, or null
+     * @param normalizer Computes normalized keys of input rows, or null
+     * @return Sorted rows
+     */
+    public static <TSource, TKey> Enumerable<TSource> orderBy(
+        DataContext root,
+        final Enumerable<TSource> source,
+        Function1<TSource, TKey> keySelector,
+        Comparator<TKey> comparator,
+        final RowSerializer<TSource> serializer,
+        NormalizedKeySorter.Normalizer<TSource> normalizer)
+    {
+        final MemoryBudget budget = Utilities.memoryBudget(root);
+        final boolean spill =
+            budget != null && budget.isLimited() && serializer != null;
+        if (!spill && normalizer == null) {
+            return source.orderBy(keySelector, comparator);
+        }
+        final NormalizedKeySorter<TSource> sorter =
+            new NormalizedKeySorter<TSource>(
+                normalizer, rowComparator(keySelector, comparator));
+        return new AbstractEnumerable<TSource>() {
+            public Enumerator<TSource> enumerator() {
+                if (spill) {
+                    return new SortEnumerator<TSource>(
+                        budget, source, sorter, serializer);
+                }
+                final List<TSource> list = new ArrayList<TSource>();
+                final Enumerator<TSource> enumerator = source.enumerator();
+                while (enumerator.moveNext()) {
+                    list.add(enumerator.current());
+                }
+                return Linq4j.enumerator(sorter.sort(list));
+            }
+        };
+    }
+
+    /** Creates a comparator that compares rows by their sort keys. */
+    private static <TSource, TKey> Comparator<TSource> rowComparator(
+        final Function1<TSource, TKey> keySelector,
+        final Comparator<TKey> comparator)
+    {
+        return new Comparator<TSource>() {
+            public int compare(TSource o1, TSource o2) {
+                return comparator.compare(
+                    keySelector.apply(o1), keySelector.apply(o2));
+            }
+        };
+    }
+
+    /** Returns the partition that a key belongs to. Mixes the hash code with
+     * the depth, so that a partition that is split again spreads over all of
+     * the sub-partitions. */
+    static int partition(Object key, int depth) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= depth * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & (FANOUT - 1);
+    }
+
+    /** Memory used by one operator. Reserves from the query's budget in
+     * chunks, to avoid contention on the budget. */
+    static class Reservation {
+        private static final long CHUNK = 1 << 16;
+
+        private final MemoryBudget budget;
+        private long reserved;
+        private long used;
+
+        Reservation(MemoryBudget budget) {
+            this.budget = budget;
+        }
+
+        /** Adds to the memory used, reserving more from the budget if
+         * necessary. Returns false, and does not add, if the budget is
+         * exhausted. */
+        boolean add(long bytes) {
+            if (used + bytes > reserved) {
+                final long needed = used + bytes - reserved;
+                long chunk = Math.max(CHUNK, needed);
+                if (!budget.reserve(chunk)) {
+                    // Not enough for a whole chunk; maybe enough for this
+                    // row.
+                    chunk = needed;
+                    if (!budget.reserve(chunk)) {
+                        return false;
+                    }
+                }
+                reserved += chunk;
+            }
+            used += bytes;
+            return true;
+        }
+
+        /** Returns all reserved memory to the budget. */
+        void clear() {
+            budget.release(reserved);
+            reserved = 0;
+            used = 0;
+        }
+    }
+
+    /** Estimates the size of rows, measuring only a sample of rows. */
+    static class RowSizer<T> {
+        private final RowSerializer<T> serializer;
+        private long count;
+        private long size;
+
+        RowSizer(RowSerializer<T> serializer) {
+            this.serializer = serializer;
+        }
+
+        long size(T row) {
+            if (count < 16 || (count & 255) == 0) {
+                final long rowSize = serializer.estimateSize(row);
+                size = count == 0 ? rowSize : (size * 3 + rowSize) / 4;
+            }
+            ++count;
+            return size;
+        }
+    }
+
+    /** Creates an array of spill files, one per partition, and adds them to
+     * the list of files that an operator must delete when it is closed. */
+    private static <T> List<SpillFile<T>> createPartitions(
+        RowSerializer<T> serializer,
+        List<SpillFile<?>> spillFiles)
+    {
+        final List<SpillFile<T>> list = new ArrayList<SpillFile<T>>(FANOUT);
+        for (int i = 0; i < FANOUT; i++) {
+            list.add(new SpillFile<T>(serializer));
+        }
+        spillFiles.addAll(list);
+        return list;
+    }
+
+    /** Deletes spill files, including any that are being read. */
+    private static void deleteAll(List<SpillFile<?>> spillFiles) {
+        for (SpillFile<?> spillFile : spillFiles) {
+            spillFile.delete();
+        }
+        spillFiles.clear();
+    }
+
+    /** Enumerator that performs a hash join, and a grace hash join if the
+     * inner input does not fit in memory.
+     *
+     * @param <TSource> Outer row type
+     * @param <TInner> Inner row type
+     * @param <TKey> Key type
+     * @param <TResult> Result type */
+    private static class HashJoinEnumerator<TSource, TInner, TKey, TResult>
+        implements Utilities.CloseableEnumerator<TResult>
+    {
+        private final Function1<TSource, TKey> outerKeySelector;
+        private final Function1<TInner, TKey> innerKeySelector;
+        private final Function2<TSource, TInner, TResult> resultSelector;
+        private final RowSerializer<TSource> outerSerializer;
+        private final RowSerializer<TInner> innerSerializer;
+        private final Reservation reservation;
+        private final RowSizer<TInner> sizer;
+
+        /** Pairs of inputs still to be joined. */
+        private final LinkedList<JoinTask<TSource, TInner>> tasks =
+            new LinkedList<JoinTask<TSource, TInner>>();
+
+        /** Spill files created by this join. */
+        private final List<SpillFile<?>> spillFiles =
+            new ArrayList<SpillFile<?>>();
+
+        private Map<TKey, List<TInner>> table;
+        private Enumerator<TSource> outerEnumerator;
+        private TSource outerRow;
+        private List<TInner> matches;
+        private int matchIndex;
+        private TResult current;
+
+        HashJoinEnumerator(
+            MemoryBudget budget,
+            Enumerable<TSource> outer,
+            Enumerable<TInner> inner,
+            Function1<TSource, TKey> outerKeySelector,
+            Function1<TInner, TKey> innerKeySelector,
+            Function2<TSource, TInner, TResult> resultSelector,
+            RowSerializer<TSource> outerSerializer,
+            RowSerializer<TInner> innerSerializer)
+        {
+            this.outerKeySelector = outerKeySelector;
+            this.innerKeySelector = innerKeySelector;
+            this.resultSelector = resultSelector;
+            this.outerSerializer = outerSerializer;
+            this.innerSerializer = innerSerializer;
+            this.reservation = new Reservation(budget);
+            this.sizer = new RowSizer<TInner>(innerSerializer);
+            tasks.add(new JoinTask<TSource, TInner>(outer, inner, 0));
+        }
+
+        public TResult current() {
+            return current;
+        }
+
+        public boolean moveNext() {
+            for (;;) {
+                if (matches != null && matchIndex < matches.size()) {
+                    current =
+                        resultSelector.apply(
+                            outerRow, matches.get(matchIndex++));
+                    return true;
+                }
+                if (outerEnumerator != null) {
+                    if (outerEnumerator.moveNext()) {
+                        outerRow = outerEnumerator.current();
+                        matches =
+                            table.get(outerKeySelector.apply(outerRow));
+                        matchIndex = 0;
+                        continue;
+                    }
+                    outerEnumerator = null;
+                    outerRow = null;
+                    matches = null;
+                    table = null;
+                    reservation.clear();
+                }
+                if (tasks.isEmpty()) {
+                    spillFiles.clear();
+                    return false;
+                }
+                start(tasks.removeFirst());
+            }
+        }
+
+        public void reset() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            if (outerEnumerator != null) {
+                Utilities.close(outerEnumerator);
+                outerEnumerator = null;
+            }
+            outerRow = null;
+            matches = null;
+            table = null;
+            tasks.clear();
+            deleteAll(spillFiles);
+            reservation.clear();
+        }
+
+        /** Builds a hash table on the inner input of a task. If it does not
+         * fit, partitions both inputs and adds a task for each pair of
+         * partitions. */
+        private void start(JoinTask<TSource, TInner> task) {
+            table = new HashMap<TKey, List<TInner>>();
+            final Enumerator<TInner> innerEnumerator =
+                task.inner.enumerator();
+            try {
+                while (innerEnumerator.moveNext()) {
+                    final TInner row = innerEnumerator.current();
+                    if (!reservation.add(sizer.size(row) + ENTRY_OVERHEAD)
+                        && task.depth < MAX_DEPTH)
+                    {
+                        spill(task, innerEnumerator, row);
+                        return;
+                    }
+                    addToTable(row);
+                }
+            } finally {
+                Utilities.close(innerEnumerator);
+            }
+            outerEnumerator = task.outer.enumerator();
+        }
+
+        private void addToTable(TInner row) {
+            final TKey key = innerKeySelector.apply(row);
+            List<TInner> list = table.get(key);
+            if (list == null) {
+                list = new ArrayList<TInner>(1);
+                table.put(key, list);
+            }
+            list.add(row);
+        }
+
+        private void spill(
+            JoinTask<TSource, TInner> task,
+            Enumerator<TInner> innerEnumerator,
+            TInner row)
+        {
+            final List<SpillFile<TInner>> innerFiles =
+                createPartitions(innerSerializer, spillFiles);
+            for (List<TInner> list : table.values()) {
+                for (TInner tableRow : list) {
+                    addToPartition(innerFiles, tableRow, task.depth);
+                }
+            }
+            table = null;
+            reservation.clear();
+            addToPartition(innerFiles, row, task.depth);
+            while (innerEnumerator.moveNext()) {
+                addToPartition(
+                    innerFiles, innerEnumerator.current(), task.depth);
+            }
+            final List<SpillFile<TSource>> outerFiles =
+                createPartitions(outerSerializer, spillFiles);
+            final Enumerator<TSource> outerEnumerator =
+                task.outer.enumerator();
+            try {
+                while (outerEnumerator.moveNext()) {
+                    final TSource outerRow = outerEnumerator.current();
+                    outerFiles.get(
+                        partition(
+                            outerKeySelector.apply(outerRow), task.depth))
+                        .add(outerRow);
+                }
+            } finally {
+                Utilities.close(outerEnumerator);
+            }
+            for (int i = FANOUT - 1; i >= 0; i--) {
+                final SpillFile<TSource> outerFile = outerFiles.get(i);
+                final SpillFile<TInner> innerFile = innerFiles.get(i);
+                if (outerFile.getRowCount() == 0
+                    || innerFile.getRowCount() == 0)
+                {
+                    // No row in this partition can match.
+                    outerFile.delete();
+                    innerFile.delete();
+                } else {
+                    tasks.addFirst(
+                        new JoinTask<TSource, TInner>(
+                            outerFile.enumerable(),
+                            innerFile.enumerable(),
+                            task.depth + 1));
+                }
+            }
+        }
+
+        private void addToPartition(
+            List<SpillFile<TInner>> files, TInner row, int depth)
+        {
+            files.get(partition(innerKeySelector.apply(row), depth)).add(row);
+        }
+    }
+
+    /** Pair of inputs to be joined.
+     *
+     * @param <TSource> Outer row type
+     * @param <TInner> Inner row type */
+    private static class JoinTask<TSource, TInner> {
+        final Enumerable<TSource> outer;
+        final Enumerable<TInner> inner;
+        final int depth;
+
+        JoinTask(Enumerable<TSource> outer, Enumerable<TInner> inner, int depth)
+        {
+            this.outer = outer;
+            this.inner = inner;
+            this.depth = depth;
+        }
+    }
+
+    /** Enumerator that performs hybrid hash aggregation.
+     *
+     * @param <TSource> Input row type
+     * @param <TKey> Key type
+     * @param <TAccumulate> Accumulator type
+     * @param <TResult> Result type */
+    private static class HashAggregateEnumerator<
+        TSource, TKey, TAccumulate, TResult>
+        implements Utilities.CloseableEnumerator<TResult>
+    {
+        private final Function1<TSource, TKey> keySelector;
+        private final Function0<TAccumulate> accumulatorInitializer;
+        private final Function2<TAccumulate, TSource, TAccumulate>
+            accumulatorAdder;
+        private final Function2<TKey, TAccumulate, TResult> resultSelector;
+        private final RowSerializer<TSource> serializer;
+        private final Reservation reservation;
+        private final RowSizer<TSource> sizer;
+
+        /** Inputs still to be aggregated, and their depth. */
+        private final LinkedList<Pair<Enumerable<TSource>, Integer>> tasks =
+            new LinkedList<Pair<Enumerable<TSource>, Integer>>();
+
+        /** Spill files created by this aggregation. */
+        private final List<SpillFile<?>> spillFiles =
+            new ArrayList<SpillFile<?>>();
+
+        private Iterator<Map.Entry<TKey, TAccumulate>> results;
+        private TResult current;
+
+        HashAggregateEnumerator(
+            MemoryBudget budget,
+            Enumerable<TSource> source,
+            Function1<TSource, TKey> keySelector,
+            Function0<TAccumulate> accumulatorInitializer,
+            Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+            Function2<TKey, TAccumulate, TResult> resultSelector,
+            RowSerializer<TSource> serializer)
+        {
+            this.keySelector = keySelector;
+            this.accumulatorInitializer = accumulatorInitializer;
+            this.accumulatorAdder = accumulatorAdder;
+            this.resultSelector = resultSelector;
+            this.serializer = serializer;
+            this.reservation = new Reservation(budget);
+            this.sizer = new RowSizer<TSource>(serializer);
+            tasks.add(Pair.of(source, 0));
+        }
+
+        public TResult current() {
+            return current;
+        }
+
+        public boolean moveNext() {
+            for (;;) {
+                if (results != null) {
+                    if (results.hasNext()) {
+                        final Map.Entry<TKey, TAccumulate> entry =
+                            results.next();
+                        current =
+                            resultSelector.apply(
+                                entry.getKey(), entry.getValue());
+                        return true;
+                    }
+                    results = null;
+                    reservation.clear();
+                }
+                if (tasks.isEmpty()) {
+                    spillFiles.clear();
+                    return false;
+                }
+                final Pair<Enumerable<TSource>, Integer> task =
+                    tasks.removeFirst();
+                results = aggregate(task.left, task.right);
+            }
+        }
+
+        public void reset() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            results = null;
+            tasks.clear();
+            deleteAll(spillFiles);
+            reservation.clear();
+        }
+
+        /** Aggregates an input. Rows that do not fit are written to
+         * partitions, and a task is added for each partition. */
+        private Iterator<Map.Entry<TKey, TAccumulate>> aggregate(
+            Enumerable<TSource> source,
+            int depth)
+        {
+            final Map<TKey, TAccumulate> map =
+                new HashMap<TKey, TAccumulate>();
+            List<SpillFile<TSource>> files = null;
+            final Enumerator<TSource> enumerator = source.enumerator();
+            try {
+                while (enumerator.moveNext()) {
+                    final TSource row = enumerator.current();
+                    final TKey key = keySelector.apply(row);
+                    TAccumulate accumulator = map.get(key);
+                    if (accumulator == null) {
+                        if (files == null
+                            && (reservation.add(
+                                    sizer.size(row) + ENTRY_OVERHEAD)
+                                || depth >= MAX_DEPTH))
+                        {
+                            accumulator = accumulatorInitializer.apply();
+                        } else {
+                            // Table is full, and this is a new key. Rows of
+                            // keys already in the table are still aggregated
+                            // in memory; the others are spilled.
+                            if (files == null) {
+                                files =
+                                    createPartitions(serializer, spillFiles);
+                            }
+                            files.get(partition(key, depth)).add(row);
+                            continue;
+                        }
+                    }
+                    map.put(key, accumulatorAdder.apply(accumulator, row));
+                }
+            } finally {
+                Utilities.close(enumerator);
+            }
+            if (files != null) {
+                for (SpillFile<TSource> file : files) {
+                    if (file.getRowCount() == 0) {
+                        file.delete();
+                    } else {
+                        tasks.addFirst(Pair.of(file.enumerable(), depth + 1));
+                    }
+                }
+            }
+            return map.entrySet().iterator();
+        }
+    }
+
+    /** Enumerator that sorts in memory, or performs an external merge sort
+     * if the input does not fit in memory.
+     *
+     * @param <TSource> Row type */
+    private static class SortEnumerator<TSource>
+        implements Utilities.CloseableEnumerator<TSource>
+    {
+        private final Enumerable<TSource> source;
+        private final NormalizedKeySorter<TSource> sorter;
+        private final RowSerializer<TSource> serializer;
+        private final Reservation reservation;
+        private final RowSizer<TSource> sizer;
+
+        /** Runs written by this sort. */
+        private final List<SpillFile<?>> spillFiles =
+            new ArrayList<SpillFile<?>>();
+
+        private Enumerator<TSource> output;
+
+        SortEnumerator(
+            MemoryBudget budget,
+            Enumerable<TSource> source,
+            NormalizedKeySorter<TSource> sorter,
+            RowSerializer<TSource> serializer)
+        {
+            this.source = source;
+            this.sorter = sorter;
+            this.serializer = serializer;
+            this.reservation = new Reservation(budget);
+            this.sizer = new RowSizer<TSource>(serializer);
+        }
+
+        public TSource current() {
+            return output.current();
+        }
+
+        public boolean moveNext() {
+            if (output == null) {
+                output = sort();
+            }
+            if (output.moveNext()) {
+                return true;
+            }
+            reservation.clear();
+            spillFiles.clear();
+            return false;
+        }
+
+        public void reset() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            if (output != null) {
+                Utilities.close(output);
+            }
+            deleteAll(spillFiles);
+            reservation.clear();
+        }
+
+        /** Reads the input. Each time the rows read so far reach the budget,
+         * sorts them and writes them to a file as a run. Returns an
+         * enumerator that merges the runs and the rows still in memory. */
+        private Enumerator<TSource> sort() {
+            final List<Enumerable<TSource>> runs =
+                new ArrayList<Enumerable<TSource>>();
+            List<TSource> list = new ArrayList<TSource>();
+            final Enumerator<TSource> enumerator = source.enumerator();
+            while (enumerator.moveNext()) {
+                final TSource row = enumerator.current();
+                if (!reservation.add(sizer.size(row) + ENTRY_OVERHEAD)
+                    && !list.isEmpty())
+                {
+                    runs.add(writeRun(Linq4j.enumerator(sorter.sort(list))));
+                    list = new ArrayList<TSource>();
+                    reservation.clear();
+                    reservation.add(sizer.size(row) + ENTRY_OVERHEAD);
+                }
+                list.add(row);
+            }
+            // The in-memory sort is stable, and so is the merge, because it
+            // breaks ties by run number.
+            list = sorter.sort(list);
+            if (runs.isEmpty()) {
+                return Linq4j.enumerator(list);
+            }
+            while (runs.size() >= MERGE_FANIN) {
+                // Too many runs to merge at once. Merge the earliest runs
+                // into a longer run, preserving the order of runs.
+                final List<Enumerable<TSource>> group =
+                    runs.subList(0, MERGE_FANIN);
+                final Enumerable<TSource> merged =
+                    writeRun(
+                        new MergeEnumerator<TSource>(
+                            new ArrayList<Enumerable<TSource>>(group),
+                            sorter.comparator));
+                group.clear();
+                runs.add(0, merged);
+            }
+            runs.add(Linq4j.asEnumerable(list));
+            return new MergeEnumerator<TSource>(runs, sorter.comparator);
+        }
+
+        /** Writes sorted rows to a file. */
+        private Enumerable<TSource> writeRun(Enumerator<TSource> rows) {
+            final SpillFile<TSource> file = new SpillFile<TSource>(serializer);
+            spillFiles.add(file);
+            while (rows.moveNext()) {
+                file.add(rows.current());
+            }
+            return file.enumerable();
+        }
+    }
+
+    /** Enumerator that merges sorted inputs. Reads the next row from each
+     * input only when the previous row from that input has been returned.
+     * Among equal rows, returns first those from earlier inputs.
+     *
+     * @param <T> Row type */
+    private static class MergeEnumerator<T>
+        implements Utilities.CloseableEnumerator<T>
+    {
+        private final PriorityQueue<Head<T>> queue;
+        private Head<T> head;
+        private T current;
+
+        MergeEnumerator(
+            List<Enumerable<T>> inputs,
+            final Comparator<T> comparator)
+        {
+            this.queue =
+                new PriorityQueue<Head<T>>(
+                    Math.max(inputs.size(), 1),
+                    new Comparator<Head<T>>() {
+                        public int compare(Head<T> o1, Head<T> o2) {
+                            final int c =
+                                comparator.compare(o1.current, o2.current);
+                            if (c != 0) {
+                                return c;
+                            }
+                            return o1.ordinal - o2.ordinal;
+                        }
+                    });
+            for (int i = 0; i < inputs.size(); i++) {
+                final Enumerator<T> enumerator = inputs.get(i).enumerator();
+                if (enumerator.moveNext()) {
+                    queue.add(new Head<T>(enumerator, i));
+                }
+            }
+        }
+
+        public T current() {
+            return current;
+        }
+
+        public boolean moveNext() {
+            if (head != null) {
+                // Advance the input that supplied the previous row.
+                if (head.enumerator.moveNext()) {
+                    head.current = head.enumerator.current();
+                    queue.add(head);
+                }
+                head = null;
+            }
+            head = queue.poll();
+            if (head == null) {
+                return false;
+            }
+            current = head.current;
+            return true;
+        }
+
+        public void reset() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            if (head != null) {
+                Utilities.close(head.enumerator);
+                head = null;
+            }
+            for (Head<T> h : queue) {
+                Utilities.close(h.enumerator);
+            }
+            queue.clear();
+        }
+    }
+
+    /** Input to a merge, and its current row.
+     *
+     * @param <T> Row type */
+    private static class Head<T> {
+        final Enumerator<T> enumerator;
+        final int ordinal;
+        T current;
+
+        Head(Enumerator<T> enumerator, int ordinal) {
+            this.enumerator = enumerator;
+            this.ordinal = ordinal;
+            this.current = enumerator.current();
+        }
+    }
+}
+
+// End SpillingEnumerables.java
@@ -0,0 +1,168 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.*;
+import net.hydromatic.linq4j.function.Function1;
+
+import java.util.*;
+
+/**
+ * Sorts rows and returns the first few, keeping only as many rows in memory
+ * as will be returned.
+ *
+ * <p>Used to implement a sort that has a FETCH clause, such as
+ * "ORDER BY x FETCH FIRST 10 ROWS ONLY". Rather than sorting all of the
+ * input, we keep the best {@code offset + fetch} rows in a heap whose root
+ * is the worst row retained. Each input row is compared with the root, and
+ * replaces it if better, so the cost is O(n log(offset + fetch)) and
+ * memory is O(offset + fetch).</p>
+ *
+ * <p>The sort is stable: of rows with equal keys, those that arrived first
+ * are returned first.</p>
+ */
+public class TopN {
+    private TopN() {
+        throw new AssertionError("no instances!");
+    }
+
+    /**
+     * Sorts the rows of an enumerable by a key, skips the first
+     * {@code offset} rows, and returns the next {@code fetch} rows.
+     */
+    public static <TSource, TKey> Enumerable<TSource> orderBy(
+        final Enumerable<TSource> source,
+        final Function1<TSource, TKey> keySelector,
+        final Comparator<TKey> comparator,
+        final int offset,
+        final int fetch)
+    {
+        return new AbstractEnumerable<TSource>() {
+            public Enumerator<TSource> enumerator() {
+                return Linq4j.enumerator(
+                    sort(source, keySelector, comparator, offset, fetch));
+            }
+        };
+    }
+
+    private static <TSource, TKey> List<TSource> sort(
+        Enumerable<TSource> source,
+        Function1<TSource, TKey> keySelector,
+        final Comparator<TKey> comparator,
+        int offset,
+        int fetch)
+    {
+        final long limit = (long) offset + fetch;
+        if (fetch <= 0 || limit > Integer.MAX_VALUE) {
+            // Degenerate cases. Nothing to return, or too many to keep in
+            // a heap; fall back to a full sort.
+            final List<Entry<TSource, TKey>> list =
+                new ArrayList<Entry<TSource, TKey>>();
+            if (fetch > 0) {
+                read(source, keySelector, list);
+                Collections.sort(list, entryComparator(comparator));
+            }
+            return values(list, offset, fetch);
+        }
+        final int capacity = (int) limit;
+        // Max-heap: the root is the worst row retained.
+        final Comparator<Entry<TSource, TKey>> ordering =
+            entryComparator(comparator);
+        final PriorityQueue<Entry<TSource, TKey>> heap =
+            new PriorityQueue<Entry<TSource, TKey>>(
+                Math.min(capacity, 1024) + 1,
+                Collections.reverseOrder(ordering));
+        final Enumerator<TSource> enumerator = source.enumerator();
+        long ordinal = 0;
+        while (enumerator.moveNext()) {
+            final TSource row = enumerator.current();
+            final Entry<TSource, TKey> entry =
+                new Entry<TSource, TKey>(
+                    row, keySelector.apply(row), ordinal++);
+            if (heap.size() < capacity) {
+                heap.add(entry);
+            } else if (ordering.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        final List<Entry<TSource, TKey>> list =
+            new ArrayList<Entry<TSource, TKey>>(heap);
+        Collections.sort(list, ordering);
+        return values(list, offset, fetch);
+    }
+
+    private static <TSource, TKey> void read(
+        Enumerable<TSource> source,
+        Function1<TSource, TKey> keySelector,
+        List<Entry<TSource, TKey>> list)
+    {
+        final Enumerator<TSource> enumerator = source.enumerator();
+        long ordinal = 0;
+        while (enumerator.moveNext()) {
+            final TSource row = enumerator.current();
+            list.add(
+                new Entry<TSource, TKey>(
+                    row, keySelector.apply(row), ordinal++));
+        }
+    }
+
+    private static <TSource, TKey> List<TSource> values(
+        List<Entry<TSource, TKey>> list, int offset, int fetch)
+    {
+        final List<TSource> values = new ArrayList<TSource>();
+        for (int i = offset; i < list.size() && values.size() < fetch; i++) {
+            values.add(list.get(i).row);
+        }
+        return values;
+    }
+
+    /** Compares entries by key, then by arrival order. */
+    private static <TSource, TKey> Comparator<Entry<TSource, TKey>>
+    entryComparator(final Comparator<TKey> comparator)
+    {
+        return new Comparator<Entry<TSource, TKey>>() {
+            public int compare(
+                Entry<TSource, TKey> e0, Entry<TSource, TKey> e1)
+            {
+                final int c = comparator.compare(e0.key, e1.key);
+                if (c != 0) {
+                    return c;
+                }
+                return e0.ordinal < e1.ordinal
+                    ? -1
+                    : e0.ordinal > e1.ordinal ? 1 : 0;
+            }
+        };
+    }
+
+    /** Row, its sort key, and its position in the input. */
+    private static class Entry<TSource, TKey> {
+        final TSource row;
+        final TKey key;
+        final long ordinal;
+
+        Entry(TSource row, TKey key, long ordinal) {
+            this.row = row;
+            this.key = key;
+            this.ordinal = ordinal;
+        }
+    }
+}
+
+// End TopN.java
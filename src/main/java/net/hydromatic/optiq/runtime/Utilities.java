@@ -17,6 +17,14 @@
 */
 package net.hydromatic.optiq.runtime;
 
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+
+import net.hydromatic.optiq.DataContext;
+
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 
@@ -159,6 +167,152 @@ public class Utilities {
             : v1 == null ? -1
             : FlatLists.ComparableList.compare(v0, v1);
     }
+
+    /** Throws {@link QueryCanceledException} if the statement executing
+     * against the given data context has been canceled. */
+    public static void checkCancel(DataContext root) {
+        if (root instanceof CancellableDataContext) {
+            ((CancellableDataContext) root).checkCancel();
+        }
+    }
+
+    /** Returns an enumerable that checks whether the statement has been
+     * canceled before it fetches each row; or the enumerable itself, if the
+     * data context cannot be canceled. */
+    public static <T> Enumerable<T> cancellable(
+        DataContext root,
+        final Enumerable<T> enumerable)
+    {
+        if (!(root instanceof CancellableDataContext)) {
+            return enumerable;
+        }
+        final CancellableDataContext dataContext =
+            (CancellableDataContext) root;
+        return new AbstractEnumerable<T>() {
+            public Enumerator<T> enumerator() {
+                dataContext.checkCancel();
+                final Enumerator<T> enumerator = enumerable.enumerator();
+                return new CloseableEnumerator<T>() {
+                    public T current() {
+                        return enumerator.current();
+                    }
+
+                    public boolean moveNext() {
+                        dataContext.checkCancel();
+                        return enumerator.moveNext();
+                    }
+
+                    public void reset() {
+                        enumerator.reset();
+                    }
+
+                    public void close() {
+                        Utilities.close(enumerator);
+                    }
+                };
+            }
+        };
+    }
+
+    /** Returns an enumerable that skips the first {@code offset} rows of
+     * another enumerable, then returns at most {@code fetch} rows, or all
+     * remaining rows if {@code fetch} is negative.
+     *
+     * <p>Unlike {@link Enumerable#take(int)}, once it has returned the last
+     * row it closes the underlying enumerator (if it is {@link Closeable}),
+     * so that a source such as a JDBC result set is released without reading
+     * the rest of its rows.</p> */
+    public static <T> Enumerable<T> limit(
+        final Enumerable<T> enumerable,
+        final int offset,
+        final int fetch)
+    {
+        return new AbstractEnumerable<T>() {
+            public Enumerator<T> enumerator() {
+                final Enumerator<T> enumerator = enumerable.enumerator();
+                return new CloseableEnumerator<T>() {
+                    int skipped;
+                    int count;
+                    boolean done;
+
+                    public T current() {
+                        return enumerator.current();
+                    }
+
+                    public boolean moveNext() {
+                        if (done) {
+                            return false;
+                        }
+                        for (; skipped < offset; ++skipped) {
+                            if (!enumerator.moveNext()) {
+                                close();
+                                return false;
+                            }
+                        }
+                        if ((fetch < 0 || count < fetch)
+                            && enumerator.moveNext())
+                        {
+                            ++count;
+                            return true;
+                        }
+                        close();
+                        return false;
+                    }
+
+                    public void reset() {
+                        enumerator.reset();
+                        skipped = 0;
+                        count = 0;
+                        done = false;
+                    }
+
+                    public void close() {
+                        done = true;
+                        Utilities.close(enumerator);
+                    }
+                };
+            }
+        };
+    }
+
+    /** Closes an enumerator, if it holds resources that need to be released
+     * (that is, if it implements {@link Closeable}). Enumerators that wrap
+     * other enumerators should implement {@link Closeable} and call this
+     * method, so that closing the outermost enumerator releases the
+     * sources. */
+    public static void close(Enumerator enumerator) {
+        if (enumerator instanceof Closeable) {
+            try {
+                ((Closeable) enumerator).close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /** Enumerator that can be closed without throwing a checked
+     * exception. Generated code implements it too, to pass
+     * {@link #close(Enumerator)} on to its input. */
+    public interface CloseableEnumerator<T> extends Enumerator<T>, Closeable {
+        void close();
+    }
+
+    /** Returns the memory budget of the query executing against the given
+     * data context, or null if it has none. */
+    public static MemoryBudget memoryBudget(DataContext root) {
+        return root instanceof CancellableDataContext
+            ? ((CancellableDataContext) root).memoryBudget
+            : null;
+    }
+
+    /** Returns the maximum number of threads that an operator of the query
+     * executing against the given data context may use; 1 if it has no
+     * such setting. */
+    public static int parallelism(DataContext root) {
+        return root instanceof CancellableDataContext
+            ? Math.max(1, ((CancellableDataContext) root).parallelism)
+            : 1;
+    }
 }
 
 // End Utilities.java
@@ -0,0 +1,680 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.Linq4j;
+import net.hydromatic.linq4j.expressions.Primitive;
+import net.hydromatic.linq4j.function.Function1;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Evaluates windowed aggregates, such as
+ * "SUM(sal) OVER (PARTITION BY deptno ORDER BY empid ROWS 2 PRECEDING)".
+ *
+ * <p>Rows are read into memory and sorted once, by the partitioning keys
+ * then the ordering keys. Each partition is then scanned once. The frame of
+ * each row is a range of rows in the sorted partition, and both ends of the
+ * range move forward as the scan proceeds; so rather than re-aggregating the
+ * frame for every row, each aggregate is told which rows enter and which
+ * rows leave the frame. COUNT and SUM add and subtract; MIN and MAX keep a
+ * monotonic deque of candidate rows. Evaluating a partition of n rows costs
+ * O(n), whatever the size of the frame.</p>
+ *
+ * <p>Generated code calls {@link #window} once for each distinct window in
+ * a query. Each call appends one column per aggregate to each row.</p>
+ */
+public class WindowEnumerables {
+    /** Value of a frame bound that means "UNBOUNDED PRECEDING". */
+    public static final long UNBOUNDED_PRECEDING = Long.MIN_VALUE;
+
+    /** Value of a frame bound that means "UNBOUNDED FOLLOWING". */
+    public static final long UNBOUNDED_FOLLOWING = Long.MAX_VALUE;
+
+    private WindowEnumerables() {
+        throw new AssertionError("no instances!");
+    }
+
+    /**
+     * Evaluates a set of aggregates that share a window.
+     *
+     * <p>Bounds are offsets from the current row: negative for PRECEDING,
+     * zero for CURRENT ROW, positive for FOLLOWING, or
+     * {@link #UNBOUNDED_PRECEDING} and {@link #UNBOUNDED_FOLLOWING}. If
+     * {@code rows} is false, offsets are in units of the (single, numeric)
+     * ordering key, and CURRENT ROW includes the row's peers. A descending
+     * ordering key sorts nulls first, and its PRECEDING rows have larger
+     * values.</p>
+     *
+     * @param source Input rows
+     * @param toArray Converts an input row to an array of field values
+     * @param partitionKeys Ordinals of PARTITION BY fields
+     * @param orderKeys Ordinals of ORDER BY fields
+     * @param orderDescending Whether each ORDER BY field is descending
+     * @param rows Whether the frame is physical (ROWS) or logical (RANGE)
+     * @param lower Lower bound of frame
+     * @param upper Upper bound of frame
+     * @param aggKinds Name of each aggregate, for example "SUM0"
+     * @param aggOrdinals Ordinal of the argument of each aggregate, or -1
+     * @param aggTypes Name of the {@link Primitive} of each aggregate's
+     *   result, or null if it is not primitive (say DECIMAL)
+     * @return Rows, each an array of the input fields followed by the
+     *   aggregates, sorted by partition and ordering keys
+     */
+    public static <TSource> Enumerable<Object[]> window(
+        final Enumerable<TSource> source,
+        final Function1<TSource, Object[]> toArray,
+        final int[] partitionKeys,
+        final int[] orderKeys,
+        final boolean[] orderDescending,
+        final boolean rows,
+        final long lower,
+        final long upper,
+        final String[] aggKinds,
+        final int[] aggOrdinals,
+        final String[] aggTypes)
+    {
+        assert aggKinds.length == aggOrdinals.length;
+        assert aggKinds.length == aggTypes.length;
+        assert orderKeys.length == orderDescending.length;
+        return new AbstractEnumerable<Object[]>() {
+            public Enumerator<Object[]> enumerator() {
+                final List<Object[]> list =
+                    read(source, toArray, aggKinds.length);
+                final Object[][] rowArray =
+                    list.toArray(new Object[list.size()][]);
+                new Evaluator(
+                    rowArray, partitionKeys, orderKeys, orderDescending,
+                    rows, lower, upper, aggKinds, aggOrdinals, aggTypes)
+                    .evaluate();
+                return Linq4j.enumerator(Arrays.asList(rowArray));
+            }
+        };
+    }
+
+    private static <TSource> List<Object[]> read(
+        Enumerable<TSource> source,
+        Function1<TSource, Object[]> toArray,
+        int extra)
+    {
+        final List<Object[]> list = new ArrayList<Object[]>();
+        final Enumerator<TSource> enumerator = source.enumerator();
+        try {
+            while (enumerator.moveNext()) {
+                final Object[] values = toArray.apply(enumerator.current());
+                final Object[] row = new Object[values.length + extra];
+                System.arraycopy(values, 0, row, 0, values.length);
+                list.add(row);
+            }
+        } finally {
+            Utilities.close(enumerator);
+        }
+        return list;
+    }
+
+    /** Compares two values, ascending, nulls last. */
+    @SuppressWarnings("unchecked")
+    private static int compare(Object v0, Object v1) {
+        if (v0 == v1) {
+            return 0;
+        }
+        if (v0 == null) {
+            return 1;
+        }
+        if (v1 == null) {
+            return -1;
+        }
+        return ((Comparable) v0).compareTo(v1);
+    }
+
+    private static int compare(int[] keys, Object[] row0, Object[] row1) {
+        for (int key : keys) {
+            final int c = compare(row0[key], row1[key]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the sign of {@code value - (key + offset)}, where value and
+     * key are non-null numbers or dates. */
+    private static int compareOffset(Object value, Object key, long offset) {
+        if (value instanceof BigDecimal || key instanceof BigDecimal) {
+            return toBigDecimal(value).compareTo(
+                toBigDecimal(key).add(BigDecimal.valueOf(offset)));
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return Double.compare(
+                ((Number) value).doubleValue(),
+                ((Number) key).doubleValue() + offset);
+        }
+        final long v = toLong(value);
+        final long k = toLong(key) + offset;
+        return v < k ? -1 : v > k ? 1 : 0;
+    }
+
+    private static long toLong(Object o) {
+        if (o instanceof java.util.Date) {
+            return ((java.util.Date) o).getTime();
+        }
+        return ((Number) o).longValue();
+    }
+
+    private static BigDecimal toBigDecimal(Object o) {
+        if (o instanceof BigDecimal) {
+            return (BigDecimal) o;
+        }
+        if (o instanceof Double || o instanceof Float) {
+            return new BigDecimal(((Number) o).doubleValue());
+        }
+        return BigDecimal.valueOf(toLong(o));
+    }
+
+    /** Converts a long to the type of an aggregate's result. */
+    private static Object box(long v, Primitive primitive) {
+        if (primitive == null) {
+            return BigDecimal.valueOf(v);
+        }
+        switch (primitive) {
+        case BYTE:
+            return (byte) v;
+        case SHORT:
+            return (short) v;
+        case INT:
+            return (int) v;
+        case FLOAT:
+            return (float) v;
+        case DOUBLE:
+            return (double) v;
+        default:
+            return v;
+        }
+    }
+
+    /** Kinds of aggregate function. */
+    private enum AggKind {
+        COUNT, SUM, SUM0, MIN, MAX, FIRST_VALUE, LAST_VALUE, ROW_NUMBER,
+        RANK, DENSE_RANK
+    }
+
+    /** Evaluates the aggregates of one window over an array of rows. */
+    private static class Evaluator {
+        final Object[][] rows;
+        final int[] partitionKeys;
+        final int[] orderKeys;
+        final boolean[] orderDescending;
+        final boolean physical;
+        final long lower;
+        final long upper;
+        final Agg[] aggs;
+
+        /** Ordinal of the first aggregate column in each row. */
+        final int firstAgg;
+
+        // State of the current row, used by the rank functions.
+        int partitionStart;
+        int peerStart;
+        int denseRank;
+
+        Evaluator(
+            Object[][] rows,
+            int[] partitionKeys,
+            int[] orderKeys,
+            boolean[] orderDescending,
+            boolean physical,
+            long lower,
+            long upper,
+            String[] aggKinds,
+            int[] aggOrdinals,
+            String[] aggTypes)
+        {
+            this.rows = rows;
+            this.partitionKeys = partitionKeys;
+            this.orderKeys = orderKeys;
+            this.orderDescending = orderDescending;
+            this.physical = physical;
+            this.lower = lower;
+            this.upper = upper;
+            this.firstAgg =
+                rows.length == 0 ? 0 : rows[0].length - aggKinds.length;
+            this.aggs = new Agg[aggKinds.length];
+            for (int i = 0; i < aggs.length; i++) {
+                aggs[i] =
+                    createAgg(
+                        AggKind.valueOf(aggKinds[i]),
+                        aggOrdinals[i],
+                        aggTypes[i] == null
+                            ? null
+                            : Primitive.valueOf(aggTypes[i]));
+            }
+            if (!physical
+                && (lower != 0 && lower != UNBOUNDED_PRECEDING
+                    || upper != 0 && upper != UNBOUNDED_FOLLOWING)
+                && orderKeys.length != 1)
+            {
+                throw new IllegalArgumentException(
+                    "RANGE with offset requires exactly one ORDER BY key");
+            }
+        }
+
+        private Agg createAgg(AggKind kind, int ordinal, Primitive primitive) {
+            switch (kind) {
+            case COUNT:
+                return new CountAgg(ordinal, primitive);
+            case SUM:
+                return new SumAgg(ordinal, primitive, false);
+            case SUM0:
+                return new SumAgg(ordinal, primitive, true);
+            case MIN:
+                return new MinMaxAgg(ordinal, false);
+            case MAX:
+                return new MinMaxAgg(ordinal, true);
+            case FIRST_VALUE:
+                return new ValueAgg(ordinal, true);
+            case LAST_VALUE:
+                return new ValueAgg(ordinal, false);
+            default:
+                return new RankAgg(kind, primitive);
+            }
+        }
+
+        void evaluate() {
+            if (partitionKeys.length + orderKeys.length > 0) {
+                // Arrays.sort on objects is stable.
+                Arrays.sort(
+                    rows,
+                    new Comparator<Object[]>() {
+                        public int compare(Object[] o1, Object[] o2) {
+                            int c =
+                                WindowEnumerables.compare(
+                                    partitionKeys, o1, o2);
+                            for (int i = 0; c == 0 && i < orderKeys.length;
+                                 i++)
+                            {
+                                final int key = orderKeys[i];
+                                c = WindowEnumerables.compare(
+                                    o1[key], o2[key]);
+                                if (orderDescending[i]) {
+                                    c = -c;
+                                }
+                            }
+                            return c;
+                        }
+                    });
+            }
+            int start = 0;
+            while (start < rows.length) {
+                int end = start + 1;
+                while (end < rows.length
+                    && compare(partitionKeys, rows[start], rows[end]) == 0)
+                {
+                    ++end;
+                }
+                evaluatePartition(start, end);
+                start = end;
+            }
+        }
+
+        /** Evaluates the aggregates for each row in the partition
+         * [p0, p1). */
+        private void evaluatePartition(int p0, int p1) {
+            for (Agg agg : aggs) {
+                agg.reset();
+            }
+            partitionStart = p0;
+            denseRank = 0;
+
+            // Rows [start, end) have been added to the aggregates.
+            int start = p0;
+            int end = p0;
+            int peerEnd = p0;
+            for (int i = p0; i < p1; i++) {
+                if (i == peerEnd) {
+                    // First row of a new group of peers.
+                    peerStart = i;
+                    ++denseRank;
+                    ++peerEnd;
+                    while (peerEnd < p1
+                        && compare(orderKeys, rows[i], rows[peerEnd]) == 0)
+                    {
+                        ++peerEnd;
+                    }
+                }
+                final int frameStart;
+                int frameEnd;
+                if (physical) {
+                    frameStart =
+                        lower == UNBOUNDED_PRECEDING
+                            ? p0
+                            : clamp(i + lower, p0, p1);
+                    frameEnd =
+                        upper == UNBOUNDED_FOLLOWING
+                            ? p1
+                            : clamp(i + upper + 1, p0, p1);
+                } else {
+                    frameStart =
+                        lower == UNBOUNDED_PRECEDING ? p0
+                            : lower == 0 ? peerStart
+                            : rangeStart(i, start, p1);
+                    frameEnd =
+                        upper == UNBOUNDED_FOLLOWING ? p1
+                            : upper == 0 ? peerEnd
+                            : rangeEnd(i, end, p1, peerEnd);
+                }
+                // A frame whose lower bound is above its upper bound, say
+                // "ROWS BETWEEN 2 FOLLOWING AND 1 FOLLOWING", is empty.
+                // Both ends of the frame only move forward.
+                frameEnd = Math.max(frameEnd, frameStart);
+                while (end < frameEnd) {
+                    for (Agg agg : aggs) {
+                        agg.add(end);
+                    }
+                    ++end;
+                }
+                while (start < frameStart) {
+                    for (Agg agg : aggs) {
+                        agg.remove(start);
+                    }
+                    ++start;
+                }
+                final Object[] row = rows[i];
+                for (int j = 0; j < aggs.length; j++) {
+                    row[firstAgg + j] = aggs[j].result(i, start, end);
+                }
+            }
+        }
+
+        private static int clamp(long i, int p0, int p1) {
+            return i < p0 ? p0 : i > p1 ? p1 : (int) i;
+        }
+
+        /** Returns the first row, at or after {@code from}, whose key is not
+         * less than the current row's key plus the lower offset; or, if the
+         * key is descending, not greater than the key minus the offset. */
+        private int rangeStart(int i, int from, int p1) {
+            final Object key = rows[i][orderKeys[0]];
+            if (key == null) {
+                return peerStart;
+            }
+            final int s = orderDescending[0] ? -1 : 1;
+            int j = from;
+            while (j < p1) {
+                final Object value = rows[j][orderKeys[0]];
+                if (value == null) {
+                    // Nulls sort last if ascending, first if descending.
+                    if (s > 0) {
+                        break;
+                    }
+                } else if (s * compareOffset(value, key, s * lower) >= 0) {
+                    break;
+                }
+                ++j;
+            }
+            return j;
+        }
+
+        /** Returns the first row, at or after {@code from}, whose key is
+         * greater than the current row's key plus the upper offset; or, if
+         * the key is descending, less than the key minus the offset. */
+        private int rangeEnd(int i, int from, int p1, int peerEnd) {
+            final Object key = rows[i][orderKeys[0]];
+            if (key == null) {
+                return peerEnd;
+            }
+            final int s = orderDescending[0] ? -1 : 1;
+            int j = from;
+            while (j < p1) {
+                final Object value = rows[j][orderKeys[0]];
+                if (value == null) {
+                    if (s > 0) {
+                        break;
+                    }
+                } else if (s * compareOffset(value, key, s * upper) > 0) {
+                    break;
+                }
+                ++j;
+            }
+            return j;
+        }
+
+        /** Aggregate function whose frame slides over a partition. */
+        abstract class Agg {
+            /** Called at the start of each partition. */
+            void reset() {
+            }
+
+            /** Adds a row to the frame. */
+            void add(int i) {
+            }
+
+            /** Removes a row from the frame. Rows are removed in the same
+             * order they were added. */
+            void remove(int i) {
+            }
+
+            /** Returns the value of the aggregate for row {@code i}, whose
+             * frame is rows [start, end). */
+            abstract Object result(int i, int start, int end);
+        }
+
+        /** COUNT(x) or COUNT(*). */
+        class CountAgg extends Agg {
+            final int ordinal;
+            final Primitive primitive;
+            long count;
+
+            CountAgg(int ordinal, Primitive primitive) {
+                this.ordinal = ordinal;
+                this.primitive = primitive;
+            }
+
+            void reset() {
+                count = 0;
+            }
+
+            void add(int i) {
+                if (ordinal < 0 || rows[i][ordinal] != null) {
+                    ++count;
+                }
+            }
+
+            void remove(int i) {
+                if (ordinal < 0 || rows[i][ordinal] != null) {
+                    --count;
+                }
+            }
+
+            Object result(int i, int start, int end) {
+                return box(count, primitive);
+            }
+        }
+
+        /** SUM(x), which is null if the frame has no values, and SUM0(x),
+         * which is zero. Integer types are summed as long, approximate
+         * types as double, and others (DECIMAL) as {@link BigDecimal}. */
+        class SumAgg extends Agg {
+            final int ordinal;
+            final Primitive primitive;
+            final boolean emptyIsZero;
+            final boolean approx;
+            long count;
+            long longSum;
+            double doubleSum;
+            BigDecimal decimalSum;
+
+            SumAgg(int ordinal, Primitive primitive, boolean emptyIsZero) {
+                this.ordinal = ordinal;
+                this.primitive = primitive;
+                this.emptyIsZero = emptyIsZero;
+                this.approx =
+                    primitive == Primitive.DOUBLE
+                    || primitive == Primitive.FLOAT;
+            }
+
+            void reset() {
+                count = 0;
+                longSum = 0;
+                doubleSum = 0;
+                decimalSum = BigDecimal.ZERO;
+            }
+
+            void add(int i) {
+                final Object v = rows[i][ordinal];
+                if (v != null) {
+                    ++count;
+                    if (primitive == null) {
+                        decimalSum = decimalSum.add(toBigDecimal(v));
+                    } else if (approx) {
+                        doubleSum += ((Number) v).doubleValue();
+                    } else {
+                        longSum += ((Number) v).longValue();
+                    }
+                }
+            }
+
+            void remove(int i) {
+                final Object v = rows[i][ordinal];
+                if (v != null) {
+                    --count;
+                    if (primitive == null) {
+                        decimalSum = decimalSum.subtract(toBigDecimal(v));
+                    } else if (approx) {
+                        doubleSum -= ((Number) v).doubleValue();
+                    } else {
+                        longSum -= ((Number) v).longValue();
+                    }
+                }
+            }
+
+            Object result(int i, int start, int end) {
+                if (count == 0) {
+                    // Reset sums, so that rounding errors in double do not
+                    // survive an empty frame.
+                    reset();
+                    if (!emptyIsZero) {
+                        return null;
+                    }
+                }
+                if (primitive == null) {
+                    return decimalSum;
+                } else if (approx) {
+                    return primitive == Primitive.FLOAT
+                        ? (Object) (float) doubleSum
+                        : (Object) doubleSum;
+                } else {
+                    return box(longSum, primitive);
+                }
+            }
+        }
+
+        /** MIN(x) or MAX(x). Keeps a deque of rows in the frame that could
+         * become the result as rows leave the frame: a row is dropped as
+         * soon as a later row has a better value. The deque's values are
+         * therefore monotonic, and its head is the result. Each row enters
+         * and leaves the deque at most once. */
+        class MinMaxAgg extends Agg {
+            final int ordinal;
+            final boolean max;
+            final int[] deque = new int[rows.length];
+            int head;
+            int tail;
+
+            MinMaxAgg(int ordinal, boolean max) {
+                this.ordinal = ordinal;
+                this.max = max;
+            }
+
+            void reset() {
+                head = 0;
+                tail = 0;
+            }
+
+            void add(int i) {
+                final Object v = rows[i][ordinal];
+                if (v == null) {
+                    return;
+                }
+                while (tail > head) {
+                    final int c = compare(rows[deque[tail - 1]][ordinal], v);
+                    if (max ? c > 0 : c < 0) {
+                        break;
+                    }
+                    --tail;
+                }
+                deque[tail++] = i;
+            }
+
+            void remove(int i) {
+                if (tail > head && deque[head] == i) {
+                    ++head;
+                }
+            }
+
+            Object result(int i, int start, int end) {
+                return tail > head ? rows[deque[head]][ordinal] : null;
+            }
+        }
+
+        /** FIRST_VALUE(x) or LAST_VALUE(x). */
+        class ValueAgg extends Agg {
+            final int ordinal;
+            final boolean first;
+
+            ValueAgg(int ordinal, boolean first) {
+                this.ordinal = ordinal;
+                this.first = first;
+            }
+
+            Object result(int i, int start, int end) {
+                if (start >= end) {
+                    return null;
+                }
+                return rows[first ? start : end - 1][ordinal];
+            }
+        }
+
+        /** ROW_NUMBER, RANK or DENSE_RANK; ignores the frame. */
+        class RankAgg extends Agg {
+            final AggKind kind;
+            final Primitive primitive;
+
+            RankAgg(AggKind kind, Primitive primitive) {
+                this.kind = kind;
+                this.primitive = primitive;
+            }
+
+            Object result(int i, int start, int end) {
+                switch (kind) {
+                case ROW_NUMBER:
+                    return box(i - partitionStart + 1, primitive);
+                case RANK:
+                    return box(peerStart - partitionStart + 1, primitive);
+                default:
+                    return box(denseRank, primitive);
+                }
+            }
+        }
+    }
+}
+
+// End WindowEnumerables.java
@@ -17,16 +17,66 @@
 */
 package net.hydromatic.optiq.server;
 
+import java.sql.SQLException;
+import java.util.List;
+
 /**
  * Server.
  *
- * <p>Represents shared state among connections, and will have monitoring and
- * management facilities.
+ * <p>Represents shared state among connections, and has monitoring and
+ * management facilities. It decides when each statement may start executing
+ * (see {@link #startExecution}) and can list the statements that are
+ * executing or waiting to execute (see {@link #getStatements()}).</p>
  */
 public interface OptiqServer {
     void removeStatement(OptiqServerStatement optiqServerStatement);
 
     void addStatement(OptiqServerStatement optiqServerStatement);
+
+    /**
+     * Called before a statement starts executing. Waits until the server
+     * admits the statement, or throws if the server rejects it.
+     *
+     * <p>If the statement is already executing, it keeps its place.</p>
+     *
+     * @param statement Statement
+     * @param user Name of the user executing the statement, or null
+     * @param sql SQL text, for monitoring purposes; may be null
+     * @throws SQLException if the statement is rejected, or its execution is
+     *     ended (say by cancel) while it is waiting
+     */
+    void startExecution(
+        OptiqServerStatement statement, String user, String sql)
+        throws SQLException;
+
+    /**
+     * Called when a statement finishes executing, because its results have
+     * been read or closed, it failed, or it was canceled. If the statement is
+     * waiting to execute, removes it from the queue. Does nothing if the
+     * statement is not executing.
+     *
+     * @param statement Statement
+     */
+    void endExecution(OptiqServerStatement statement);
+
+    /**
+     * Called when a statement is canceled. If the statement is waiting to
+     * execute, removes it from the queue, and its call to
+     * {@link #startExecution} throws. Does nothing if the statement is
+     * executing; it keeps its slot until it stops and calls
+     * {@link #endExecution}.
+     *
+     * @param statement Statement
+     */
+    void cancelExecution(OptiqServerStatement statement);
+
+    /**
+     * Returns a description of each statement that is executing or waiting
+     * to execute.
+     *
+     * @return List of statement descriptions
+     */
+    List<StatementInfo> getStatements();
 }
 
 // End OptiqServer.java
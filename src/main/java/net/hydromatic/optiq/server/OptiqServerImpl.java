@@ -0,0 +1,311 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.server;
+
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Implementation of {@link OptiqServer} that limits the number of statements
+ * executing at a time.
+ *
+ * <p>If {@link #getMaxConcurrentStatements() maxConcurrentStatements}
+ * statements are already executing, further statements wait in a queue.
+ * There is a queue per user, and when a statement finishes, the server admits
+ * the first statement from the queue of the next user in round-robin order.
+ * Thus one user who submits a burst of statements cannot starve other
+ * users.</p>
+ *
+ * <p>If {@link #getHeapThreshold() heapThreshold} is set, and the
+ * fraction of the maximum heap in use exceeds it when a statement is due to
+ * start, the server sheds load by rejecting the statement.</p>
+ *
+ * <p>Both limits are fixed when the server is created. The server is shared
+ * by all connections of a driver, so a connection cannot change them; see
+ * {@link net.hydromatic.optiq.jdbc.UnregisteredDriver#createServer()}.</p>
+ *
+ * <p>All methods are thread-safe. The server never calls a statement while
+ * holding its own lock, so statements may call the server while holding
+ * theirs.</p>
+ */
+public class OptiqServerImpl implements OptiqServer {
+    private final List<OptiqServerStatement> statementList =
+        new ArrayList<OptiqServerStatement>();
+
+    /** Statements that are executing or waiting to execute. */
+    private final Map<OptiqServerStatement, Execution> executions =
+        new LinkedHashMap<OptiqServerStatement, Execution>();
+
+    /** Queue of waiting statements for each user. The user whose statement
+     * will be admitted next is first. */
+    private final Map<String, LinkedList<Execution>> queues =
+        new LinkedHashMap<String, LinkedList<Execution>>();
+
+    private int runningCount;
+    private final int maxConcurrentStatements;
+    private final double heapThreshold;
+
+    /**
+     * Creates an OptiqServerImpl with no limit on the number of concurrent
+     * statements and no heap threshold.
+     */
+    public OptiqServerImpl() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates an OptiqServerImpl with given admission limits.
+     *
+     * @param maxConcurrentStatements Maximum number of statements that may
+     *   execute at a time; zero means no limit
+     * @param heapThreshold Fraction of the maximum heap size, between 0 and
+     *   1, above which new statements are rejected; zero means that
+     *   statements are never rejected
+     */
+    public OptiqServerImpl(int maxConcurrentStatements, double heapThreshold) {
+        if (maxConcurrentStatements < 0) {
+            throw new IllegalArgumentException(
+                "illegal maxConcurrentStatements value: "
+                + maxConcurrentStatements);
+        }
+        if (heapThreshold < 0 || heapThreshold > 1) {
+            throw new IllegalArgumentException(
+                "illegal heapThreshold value: " + heapThreshold);
+        }
+        this.maxConcurrentStatements = maxConcurrentStatements;
+        this.heapThreshold = heapThreshold;
+    }
+
+    /** Returns the maximum number of statements that may execute at a time,
+     * or zero if there is no limit. */
+    public int getMaxConcurrentStatements() {
+        return maxConcurrentStatements;
+    }
+
+    /** Returns the fraction of the maximum heap size above which new
+     * statements are rejected, or zero if statements are never rejected. */
+    public double getHeapThreshold() {
+        return heapThreshold;
+    }
+
+    public synchronized void addStatement(OptiqServerStatement statement) {
+        statementList.add(statement);
+    }
+
+    public void removeStatement(OptiqServerStatement statement) {
+        synchronized (this) {
+            statementList.remove(statement);
+        }
+        endExecution(statement);
+    }
+
+    public synchronized void startExecution(
+        OptiqServerStatement statement, String user, String sql)
+        throws SQLException
+    {
+        final Execution previous = executions.get(statement);
+        if (previous != null && previous.state == StatementInfo.State.RUNNING)
+        {
+            // Statement is re-executing before it has finished its previous
+            // execution (say its result set is still open). It keeps its slot.
+            executions.put(
+                statement, previous.restart(user == null ? "" : user, sql));
+            return;
+        }
+        final Execution execution =
+            new Execution(statement, user == null ? "" : user, sql);
+        executions.put(statement, execution);
+        enqueue(execution);
+        admit();
+        try {
+            while (execution.state == StatementInfo.State.QUEUED) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dequeue(execution);
+            executions.remove(statement);
+            throw new SQLException(
+                "Interrupted while waiting to execute statement");
+        }
+        if (execution.state != StatementInfo.State.RUNNING) {
+            throw new SQLException(execution.rejectReason);
+        }
+    }
+
+    public synchronized void endExecution(OptiqServerStatement statement) {
+        final Execution execution = executions.remove(statement);
+        if (execution == null) {
+            return;
+        }
+        switch (execution.state) {
+        case RUNNING:
+            --runningCount;
+            admit();
+            break;
+        case QUEUED:
+            dequeue(execution);
+            reject(execution, "Statement canceled while waiting to execute");
+            break;
+        }
+    }
+
+    public synchronized void cancelExecution(OptiqServerStatement statement) {
+        final Execution execution = executions.get(statement);
+        if (execution != null
+            && execution.state == StatementInfo.State.QUEUED)
+        {
+            endExecution(statement);
+        }
+    }
+
+    public List<StatementInfo> getStatements() {
+        final List<StatementInfo> list = new ArrayList<StatementInfo>();
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            for (Execution execution : executions.values()) {
+                list.add(execution.toInfo(now));
+            }
+        }
+        // Ask running statements for their row counts. Do this without
+        // holding the lock; see class comment.
+        for (int i = 0; i < list.size(); i++) {
+            final StatementInfo info = list.get(i);
+            if (info.state == StatementInfo.State.RUNNING) {
+                list.set(
+                    i,
+                    new StatementInfo(
+                        info.statement, info.user, info.sql, info.state,
+                        info.elapsedMillis, info.queuedMillis,
+                        info.statement.getRowCount()));
+            }
+        }
+        return list;
+    }
+
+    /** Returns whether the fraction of the heap in use exceeds the
+     * threshold. */
+    protected boolean isHeapExhausted() {
+        if (heapThreshold <= 0) {
+            return false;
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        return used > heapThreshold * runtime.maxMemory();
+    }
+
+    private void enqueue(Execution execution) {
+        LinkedList<Execution> queue = queues.get(execution.user);
+        if (queue == null) {
+            queue = new LinkedList<Execution>();
+            queues.put(execution.user, queue);
+        }
+        queue.add(execution);
+    }
+
+    private void dequeue(Execution execution) {
+        final LinkedList<Execution> queue = queues.get(execution.user);
+        if (queue != null) {
+            queue.remove(execution);
+            if (queue.isEmpty()) {
+                queues.remove(execution.user);
+            }
+        }
+    }
+
+    private void reject(Execution execution, String reason) {
+        executions.remove(execution.statement);
+        execution.state = null;
+        execution.rejectReason = reason;
+        notifyAll();
+    }
+
+    /** Admits waiting statements, taking one from each user's queue in turn,
+     * while there are free slots. */
+    private void admit() {
+        boolean changed = false;
+        while (!queues.isEmpty()
+            && (maxConcurrentStatements == 0
+                || runningCount < maxConcurrentStatements))
+        {
+            final Iterator<Map.Entry<String, LinkedList<Execution>>> iterator =
+                queues.entrySet().iterator();
+            final Map.Entry<String, LinkedList<Execution>> entry =
+                iterator.next();
+            final LinkedList<Execution> queue = entry.getValue();
+            final Execution execution = queue.removeFirst();
+            iterator.remove();
+            if (!queue.isEmpty()) {
+                // Move this user to the back of the line.
+                queues.put(entry.getKey(), queue);
+            }
+            if (isHeapExhausted()) {
+                reject(
+                    execution,
+                    "Statement rejected: heap usage exceeds threshold "
+                    + heapThreshold);
+                continue;
+            }
+            execution.state = StatementInfo.State.RUNNING;
+            execution.startMillis = System.currentTimeMillis();
+            ++runningCount;
+            changed = true;
+        }
+        if (changed) {
+            notifyAll();
+        }
+    }
+
+    /** Execution of a statement. */
+    private static class Execution {
+        final OptiqServerStatement statement;
+        final String user;
+        final String sql;
+        final long submitMillis;
+        long startMillis;
+        StatementInfo.State state = StatementInfo.State.QUEUED;
+        String rejectReason;
+
+        Execution(OptiqServerStatement statement, String user, String sql) {
+            this.statement = statement;
+            this.user = user;
+            this.sql = sql;
+            this.submitMillis = System.currentTimeMillis();
+        }
+
+        /** Creates a running execution that replaces this one. */
+        Execution restart(String user, String sql) {
+            final Execution execution = new Execution(statement, user, sql);
+            execution.state = StatementInfo.State.RUNNING;
+            execution.startMillis = execution.submitMillis;
+            return execution;
+        }
+
+        StatementInfo toInfo(long now) {
+            final long elapsedMillis = now - submitMillis;
+            return new StatementInfo(
+                statement, user, sql, state, elapsedMillis,
+                state == StatementInfo.State.RUNNING
+                    ? startMillis - submitMillis
+                    : elapsedMillis,
+                0);
+        }
+    }
+}
+
+// End OptiqServerImpl.java
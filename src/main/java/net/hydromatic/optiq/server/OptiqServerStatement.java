@@ -21,6 +21,17 @@ package net.hydromatic.optiq.server;
  * Statement within an Optiq server.
  */
 public interface OptiqServerStatement {
+    /**
+     * Returns the number of rows that the current execution of this statement
+     * has returned so far.
+     *
+     * <p>May be called from a thread other than the one executing the
+     * statement, for monitoring purposes, so the value may be slightly out of
+     * date.</p>
+     *
+     * @return Number of rows returned
+     */
+    long getRowCount();
 }
 
 // End OptiqServerStatement.java
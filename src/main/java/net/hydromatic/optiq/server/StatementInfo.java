@@ -0,0 +1,81 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.server;
+
+/**
+ * Description of a statement that is executing, or waiting to execute, in an
+ * {@link OptiqServer}.
+ *
+ * <p>Each instance is a snapshot, taken when
+ * {@link OptiqServer#getStatements()} was called.</p>
+ */
+public class StatementInfo {
+    public final OptiqServerStatement statement;
+    public final String user;
+    public final String sql;
+    public final State state;
+
+    /** Milliseconds since the statement was submitted for execution. */
+    public final long elapsedMillis;
+
+    /** Milliseconds that the statement waited before it started executing.
+     * If the statement is still waiting, equals {@link #elapsedMillis}. */
+    public final long queuedMillis;
+
+    /** Number of rows the statement has returned so far. */
+    public final long rowCount;
+
+    public StatementInfo(
+        OptiqServerStatement statement,
+        String user,
+        String sql,
+        State state,
+        long elapsedMillis,
+        long queuedMillis,
+        long rowCount)
+    {
+        this.statement = statement;
+        this.user = user;
+        this.sql = sql;
+        this.state = state;
+        this.elapsedMillis = elapsedMillis;
+        this.queuedMillis = queuedMillis;
+        this.rowCount = rowCount;
+    }
+
+    @Override
+    public String toString() {
+        return "{user=" + user
+            + ", state=" + state
+            + ", elapsedMillis=" + elapsedMillis
+            + ", queuedMillis=" + queuedMillis
+            + ", rowCount=" + rowCount
+            + ", sql=" + sql + "}";
+    }
+
+    /** State of a statement. */
+    public enum State {
+        /** Statement is waiting for the server to admit it. */
+        QUEUED,
+
+        /** Statement is executing. */
+        RUNNING
+    }
+}
+
+// End StatementInfo.java
@@ -72,7 +72,7 @@ public final class CollectRel
     //~ Methods ----------------------------------------------------------------
 
     public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
-        assert traitSet.comprises(Convention.NONE);
+        assert traitSet.contains(Convention.NONE);
         return new CollectRel(
             getCluster(),
             sole(inputs),
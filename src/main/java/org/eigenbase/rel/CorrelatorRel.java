@@ -111,7 +111,7 @@ public final class CorrelatorRel
         RelNode left,
         RelNode right)
     {
-        assert traitSet.comprises(Convention.NONE);
+        assert traitSet.contains(Convention.NONE);
         return new CorrelatorRel(
             getCluster(),
             left,
@@ -68,7 +68,7 @@ public class EmptyRel
 
     public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs)
     {
-        assert traitSet.comprises(Convention.NONE);
+        assert traitSet.contains(Convention.NONE);
         assert inputs.isEmpty();
         // immutable with no children
         return this;
@@ -50,7 +50,7 @@ public final class OneRowRel
 
     public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs)
     {
-        assert traitSet.comprises(Convention.NONE);
+        assert traitSet.contains(Convention.NONE);
         assert inputs.isEmpty();
         return this;
     }
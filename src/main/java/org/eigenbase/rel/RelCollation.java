@@ -19,6 +19,8 @@ package org.eigenbase.rel;
 
 import java.util.*;
 
+import org.eigenbase.relopt.*;
+
 
 /**
  * Description of the physical ordering of a relational expression.
@@ -26,11 +28,17 @@ import java.util.*;
  * <p>An ordering consists of a list of one or more column ordinals and the
  * direction of the ordering.
  *
+ * <p>A collation is a {@link RelTrait} of the
+ * {@link RelCollationTraitDef collation trait definition}. The empty
+ * collation, {@link RelCollationImpl#EMPTY}, means that rows are in no
+ * particular order.</p>
+ *
  * @author jhyde
  * @version $Id$
  * @since March 6, 2006
  */
 public interface RelCollation
+    extends RelTrait
 {
     //~ Methods ----------------------------------------------------------------
 
@@ -19,6 +19,7 @@ package org.eigenbase.rel;
 
 import java.util.*;
 
+import org.eigenbase.relopt.*;
 import org.eigenbase.reltype.*;
 
 
@@ -39,6 +40,12 @@ public class RelCollationImpl
      */
     public static final List<RelCollation> Singleton0 = createSingleton(0);
 
+    /**
+     * The collation of rows that are in no particular order.
+     */
+    public static final RelCollation EMPTY =
+        new RelCollationImpl(Collections.<RelFieldCollation>emptyList());
+
     //~ Instance fields --------------------------------------------------------
 
     private final List<RelFieldCollation> fieldCollations;
@@ -57,6 +64,11 @@ public class RelCollationImpl
         return fieldCollations;
     }
 
+    public RelTraitDef getTraitDef()
+    {
+        return RelCollationTraitDef.INSTANCE;
+    }
+
     public int hashCode()
     {
         return fieldCollations.hashCode();
@@ -65,8 +77,13 @@ public class RelCollationImpl
     public boolean equals(Object obj)
     {
         if (obj instanceof RelCollationImpl) {
+            // As a trait, a collation must also distinguish null directions,
+            // which RelFieldCollation.equals ignores.
             RelCollationImpl that = (RelCollationImpl) obj;
-            return this.fieldCollations.equals(that.fieldCollations);
+            return this.fieldCollations.size() == that.fieldCollations.size()
+                && satisfies(
+                    Collections.<RelCollation>singletonList(this),
+                    that.fieldCollations);
         }
         return false;
     }
@@ -120,6 +137,43 @@ public class RelCollationImpl
         return true;
     }
 
+    /**
+     * Returns whether rows ordered by any of a list of collations are also
+     * ordered by a given list of sort keys; that is, whether the sort keys
+     * are a prefix of one of the collations.
+     *
+     * @param collationList Collations that hold for some rows
+     * @param fieldCollations Required sort keys
+     *
+     * @return Whether the rows are already sorted on the keys
+     */
+    public static boolean satisfies(
+        List<RelCollation> collationList,
+        List<RelFieldCollation> fieldCollations)
+    {
+    loop:
+        for (RelCollation collation : collationList) {
+            final List<RelFieldCollation> list =
+                collation.getFieldCollations();
+            if (list.size() < fieldCollations.size()) {
+                continue;
+            }
+            for (int i = 0; i < fieldCollations.size(); i++) {
+                final RelFieldCollation required = fieldCollations.get(i);
+                final RelFieldCollation actual = list.get(i);
+                // RelFieldCollation.equals ignores the null direction; here
+                // it matters.
+                if (!actual.equals(required)
+                    || actual.nullDirection != required.nullDirection)
+                {
+                    continue loop;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
     public static boolean equal(
         List<RelCollation> collationList1,
         List<RelCollation> collationList2)
@@ -0,0 +1,135 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.rel;
+
+import java.util.*;
+
+import org.eigenbase.relopt.*;
+
+
+/**
+ * Definition of the ordering trait.
+ *
+ * <p>A relational expression's {@link RelCollation} trait says how its rows
+ * are sorted. If the planner needs rows in an order that no relational
+ * expression delivers, it converts by creating a {@link SortRel}, which
+ * calling-convention rules then implement; so a sort is an enforcer of this
+ * trait. Rows that are sorted on some keys satisfy any requirement for a
+ * prefix of those keys, including the requirement for no particular
+ * order.</p>
+ */
+public class RelCollationTraitDef
+    extends RelTraitDef<RelCollation>
+{
+    //~ Static fields/initializers ---------------------------------------------
+
+    public static final RelCollationTraitDef INSTANCE =
+        new RelCollationTraitDef();
+
+    //~ Constructors -----------------------------------------------------------
+
+    private RelCollationTraitDef()
+    {
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    public Class<RelCollation> getTraitClass()
+    {
+        return RelCollation.class;
+    }
+
+    public String getSimpleName()
+    {
+        return "sort";
+    }
+
+    public RelCollation getDefault()
+    {
+        return RelCollationImpl.EMPTY;
+    }
+
+    public boolean satisfies(RelTrait trait, RelTrait required)
+    {
+        return RelCollationImpl.satisfies(
+            Collections.singletonList((RelCollation) trait),
+            ((RelCollation) required).getFieldCollations());
+    }
+
+    public RelNode convert(
+        RelOptPlanner planner,
+        RelNode rel,
+        RelTrait toTrait,
+        boolean allowInfiniteCostConverters)
+    {
+        final RelCollation collation = (RelCollation) toTrait;
+        if (collation.getFieldCollations().isEmpty()
+            || rel.getConvention() == Convention.NONE)
+        {
+            // Any order satisfies "no particular order". Logical expressions
+            // have no order to enforce.
+            return null;
+        }
+        final RelOptCluster cluster = rel.getCluster();
+        final SortRel sort =
+            new SortRel(
+                cluster,
+                cluster.traitSetOf(Convention.NONE, collation),
+                rel,
+                collation.getFieldCollations());
+
+        // The sort is equivalent to its input; calling-convention rules will
+        // implement it. Return the subset that has the required traits.
+        final RelNode registered = planner.register(sort, rel);
+        final RelTraitSet traitSet = rel.getTraitSet().replace(collation);
+        if (registered.getTraitSet().equals(traitSet)) {
+            return registered;
+        }
+        return planner.changeTraits(registered, traitSet);
+    }
+
+    public boolean canConvert(
+        RelOptPlanner planner,
+        RelTrait fromTrait,
+        RelTrait toTrait)
+    {
+        return true;
+    }
+
+    /**
+     * Returns a trait set with a given collation, if the trait set has a
+     * collation trait; that is, if the planner that created it tracks
+     * collations. Otherwise returns the trait set unchanged.
+     *
+     * @param traitSet Trait set
+     * @param collation Collation
+     *
+     * @return Trait set with the collation, if applicable
+     */
+    public static RelTraitSet plus(
+        RelTraitSet traitSet,
+        RelCollation collation)
+    {
+        if (traitSet.getTrait(INSTANCE) == null) {
+            return traitSet;
+        }
+        return traitSet.replace(collation);
+    }
+}
+
+// End RelCollationTraitDef.java
@@ -52,7 +52,7 @@ public class SamplingRel
     //~ Methods ----------------------------------------------------------------
 
     public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
-        assert traitSet.comprises(Convention.NONE);
+        assert traitSet.contains(Convention.NONE);
         return new SamplingRel(
             getCluster(),
             sole(inputs),
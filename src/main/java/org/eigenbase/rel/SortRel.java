@@ -17,6 +17,7 @@
 */
 package org.eigenbase.rel;
 
+import java.util.Collections;
 import java.util.List;
 
 import org.eigenbase.relopt.*;
@@ -37,6 +38,8 @@ public class SortRel
 
     protected final List<RelFieldCollation> collations;
     protected final RexNode [] fieldExps;
+    public final RexNode offset;
+    public final RexNode fetch;
 
     //~ Constructors -----------------------------------------------------------
 
@@ -54,8 +57,37 @@ public class SortRel
         RelNode child,
         List<RelFieldCollation> collations)
     {
-        super(cluster, traits, child);
+        this(cluster, traits, child, collations, null, null);
+    }
+
+    /**
+     * Creates a sorter that returns a range of its sorted input.
+     *
+     * @param cluster Cluster this relational expression belongs to
+     * @param traits Traits
+     * @param child input relational expression
+     * @param collations array of sort specifications; may be empty, if the
+     * sorter only limits the number of rows
+     * @param offset Expression for number of rows to discard before returning
+     * first row, or null
+     * @param fetch Expression for number of rows to fetch, or null
+     */
+    public SortRel(
+        RelOptCluster cluster,
+        RelTraitSet traits,
+        RelNode child,
+        List<RelFieldCollation> collations,
+        RexNode offset,
+        RexNode fetch)
+    {
+        super(
+            cluster,
+            RelCollationTraitDef.plus(
+                traits, new RelCollationImpl(collations)),
+            child);
         this.collations = collations;
+        this.offset = offset;
+        this.fetch = fetch;
 
         fieldExps = new RexNode[collations.size()];
         final RelDataTypeField [] fields = getRowType().getFields();
@@ -79,12 +111,24 @@ public class SortRel
         RelNode newInput,
         List<RelFieldCollation> newCollations)
     {
-        assert traitSet.comprises(Convention.NONE);
+        return copy(traitSet, newInput, newCollations, offset, fetch);
+    }
+
+    public SortRel copy(
+        RelTraitSet traitSet,
+        RelNode newInput,
+        List<RelFieldCollation> newCollations,
+        RexNode offset,
+        RexNode fetch)
+    {
+        assert traitSet.contains(Convention.NONE);
         return new SortRel(
             getCluster(),
             getCluster().traitSetOf(Convention.NONE),
             newInput,
-            newCollations);
+            newCollations,
+            offset,
+            fetch);
     }
 
     public RexNode [] getChildExps()
@@ -101,6 +145,15 @@ public class SortRel
         return collations;
     }
 
+    public List<RelCollation> getCollationList()
+    {
+        if (collations.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.<RelCollation>singletonList(
+            new RelCollationImpl(collations));
+    }
+
     public RelOptPlanWriter explainTerms(RelOptPlanWriter pw) {
         super.explainTerms(pw);
         assert fieldExps.length == collations.size();
@@ -110,6 +163,8 @@ public class SortRel
         for (Ord<RelFieldCollation> ord : Ord.zip(collations)) {
             pw.item("dir" + ord.i, ord.e.shortString());
         }
+        pw.itemIf("offset", offset, offset != null);
+        pw.itemIf("fetch", fetch, fetch != null);
         return pw;
     }
 }
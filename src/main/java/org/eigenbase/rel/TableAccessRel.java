@@ -73,7 +73,7 @@ public final class TableAccessRel
     }
 
     public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
-        assert traitSet.comprises(Convention.NONE);
+        assert traitSet.contains(Convention.NONE);
         assert inputs.isEmpty();
         return this;
     }
@@ -63,7 +63,7 @@ public final class UncollectRel
     //~ Methods ----------------------------------------------------------------
 
     public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
-        assert traitSet.comprises(Convention.NONE);
+        assert traitSet.contains(Convention.NONE);
         return new UncollectRel(
             getCluster(),
             sole(inputs));
@@ -60,7 +60,7 @@ public class ValuesRel
     }
 
     public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
-        assert traitSet.comprises(Convention.NONE);
+        assert traitSet.contains(Convention.NONE);
         assert inputs.isEmpty();
         return new ValuesRel(
             getCluster(),
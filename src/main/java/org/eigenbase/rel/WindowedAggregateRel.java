@@ -30,9 +30,9 @@ import org.eigenbase.rex.*;
  * <p>Rules:
  *
  * <ul>
- * <li>Created by {@code
- * net.sf.farrago.fennel.rel.WindowedAggSplitterRule}.
- * <li>Triggers {@code net.sf.farrago.fennel.rel.FennelWindowRule}.
+ * <li>Created by {@link org.eigenbase.rel.rules.WindowedAggSplitterRule}.
+ * <li>Triggers {@code
+ * net.hydromatic.optiq.rules.java.JavaRules.EnumerableWindowRule}.
  */
 public final class WindowedAggregateRel
     extends SingleRel
@@ -52,7 +52,7 @@ public class NoneConverterRel
 
 
     public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
-        assert traitSet.comprises(Convention.NONE);
+        assert traitSet.contains(Convention.NONE);
         return new NoneConverterRel(
             getCluster(),
             sole(inputs));
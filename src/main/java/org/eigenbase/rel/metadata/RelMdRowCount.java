@@ -67,7 +67,19 @@ public class RelMdRowCount
 
     public Double getRowCount(SortRel rel)
     {
-        return RelMetadataQuery.getRowCount(rel.getChild());
+        Double rowCount = RelMetadataQuery.getRowCount(rel.getChild());
+        if (rowCount == null) {
+            return null;
+        }
+        if (rel.offset instanceof RexLiteral) {
+            final long offset = RexLiteral.longValue(rel.offset);
+            rowCount = Math.max(rowCount - offset, 0D);
+        }
+        if (rel.fetch instanceof RexLiteral) {
+            final long fetch = RexLiteral.longValue(rel.fetch);
+            rowCount = Math.min(rowCount, (double) fetch);
+        }
+        return rowCount;
     }
 
     public Double getRowCount(SemiJoinRel rel)
@@ -0,0 +1,131 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.rel.rules;
+
+import java.util.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.*;
+import org.eigenbase.rex.*;
+
+
+/**
+ * An AntiJoinRel represents two relational expressions joined according to
+ * some condition, where the output contains those rows of the left input
+ * that match no row of the right input. It is the complement of a {@link
+ * SemiJoinRel}, and arises from NOT IN and NOT EXISTS subqueries.
+ *
+ * @version $Id$
+ */
+public final class AntiJoinRel
+    extends JoinRelBase
+{
+    //~ Instance fields --------------------------------------------------------
+
+    private final List<Integer> leftKeys;
+    private final List<Integer> rightKeys;
+
+    //~ Constructors -----------------------------------------------------------
+
+    /**
+     * @param cluster cluster that join belongs to
+     * @param left left join input
+     * @param right right join input
+     * @param condition join condition
+     * @param leftKeys left keys of the antijoin
+     * @param rightKeys right keys of the antijoin
+     */
+    public AntiJoinRel(
+        RelOptCluster cluster,
+        RelNode left,
+        RelNode right,
+        RexNode condition,
+        List<Integer> leftKeys,
+        List<Integer> rightKeys)
+    {
+        super(
+            cluster,
+            cluster.traitSetOf(Convention.NONE),
+            left,
+            right,
+            condition,
+            JoinRelType.INNER,
+            Collections.<String>emptySet());
+        this.leftKeys = leftKeys;
+        this.rightKeys = rightKeys;
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    @Override
+    public AntiJoinRel copy(
+        RelTraitSet traitSet,
+        RexNode conditionExpr,
+        RelNode left,
+        RelNode right)
+    {
+        return new AntiJoinRel(
+            getCluster(),
+            left,
+            right,
+            conditionExpr,
+            new ArrayList<Integer>(getLeftKeys()),
+            new ArrayList<Integer>(getRightKeys()));
+    }
+
+    // implement RelNode
+    public RelOptCost computeSelfCost(RelOptPlanner planner)
+    {
+        return planner.makeTinyCost();
+    }
+
+    // implement RelNode
+    public double getRows()
+    {
+        return RelMetadataQuery.getRowCount(left)
+            * (1d - RexUtil.getSelectivity(condition));
+    }
+
+    /**
+     * @return returns rowtype representing only the left join input
+     */
+    public RelDataType deriveRowType()
+    {
+        return deriveJoinRowType(
+            left.getRowType(),
+            null,
+            JoinRelType.INNER,
+            getCluster().getTypeFactory(),
+            null,
+            Collections.<RelDataTypeField>emptyList());
+    }
+
+    public List<Integer> getLeftKeys()
+    {
+        return leftKeys;
+    }
+
+    public List<Integer> getRightKeys()
+    {
+        return rightKeys;
+    }
+}
+
+// End AntiJoinRel.java
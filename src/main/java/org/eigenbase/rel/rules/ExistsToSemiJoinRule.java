@@ -0,0 +1,192 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.rel.rules;
+
+import java.util.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.*;
+import org.eigenbase.sql.fun.*;
+
+
+/**
+ * ExistsToSemiJoinRule converts the plans that {@link
+ * org.eigenbase.sql2rel.SqlToRelConverter} (and {@link
+ * org.eigenbase.sql2rel.RelDecorrelator}) create for EXISTS, NOT EXISTS and
+ * NOT IN subqueries into a {@link SemiJoinRel} or {@link AntiJoinRel}.
+ *
+ * <p>Such a subquery becomes a left outer join to an aggregate that groups
+ * by the join keys and computes an indicator, <code>MIN(TRUE)</code>. The
+ * indicator is TRUE if the left row has a match and null if not, and a
+ * filter above the join tests it:</p>
+ *
+ * <ul>
+ * <li>FilterRel(IS TRUE(i) AND c, JoinRel[left](X, AggregateRel(Y))) becomes
+ * FilterRel(c, ProjectRel(SemiJoinRel(X, Y)));</li>
+ * <li>FilterRel(NOT(IS TRUE(i)) AND c, ...) or FilterRel(IS NULL(i) AND c,
+ * ...) becomes FilterRel(c, ProjectRel(AntiJoinRel(X, Y))).</li>
+ * </ul>
+ *
+ * <p>The projection recreates the right columns: the left keys and TRUE
+ * for a semi-join, and nulls for an anti-join.</p>
+ *
+ * @version $Id$
+ */
+public class ExistsToSemiJoinRule
+    extends RelOptRule
+{
+    public static final ExistsToSemiJoinRule instance =
+        new ExistsToSemiJoinRule();
+
+    //~ Constructors -----------------------------------------------------------
+
+    /**
+     * Creates an ExistsToSemiJoinRule.
+     */
+    private ExistsToSemiJoinRule()
+    {
+        super(
+            new RelOptRuleOperand(
+                FilterRel.class,
+                new RelOptRuleOperand(
+                    JoinRel.class,
+                    new RelOptRuleOperand(RelNode.class, ANY),
+                    new RelOptRuleOperand(
+                        AggregateRel.class,
+                        new RelOptRuleOperand(ProjectRel.class, ANY)))));
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    // implement RelOptRule
+    public void onMatch(RelOptRuleCall call)
+    {
+        FilterRel filter = (FilterRel) call.rels[0];
+        JoinRel join = (JoinRel) call.rels[1];
+        RelNode left = call.rels[2];
+        AggregateRel aggregate = (AggregateRel) call.rels[3];
+        ProjectRel project = (ProjectRel) call.rels[4];
+        if (join.getJoinType() != JoinRelType.LEFT
+            || !isIndicator(aggregate, project))
+        {
+            return;
+        }
+        final List<Integer> leftKeys = new ArrayList<Integer>();
+        final List<Integer> rightKeys = new ArrayList<Integer>();
+        if (!SemiJoinRule.isKeyedOnGroup(
+                join, left, aggregate, leftKeys, rightKeys))
+        {
+            return;
+        }
+
+        // Find the test of the indicator among the conjunctions of the
+        // filter condition.
+        final int indicator =
+            left.getRowType().getFieldCount() + aggregate.getGroupCount();
+        final List<RexNode> conditions =
+            new ArrayList<RexNode>(
+                RelOptUtil.conjunctions(filter.getCondition()));
+        Boolean anti = null;
+        for (Iterator<RexNode> iterator = conditions.iterator();
+            iterator.hasNext();)
+        {
+            final RexNode condition = iterator.next();
+            if (isCall(condition, SqlStdOperatorTable.isTrueOperator)
+                && isInputRef(operand(condition), indicator))
+            {
+                anti = false;
+            } else if (isCall(condition, SqlStdOperatorTable.isNullOperator)
+                && isInputRef(operand(condition), indicator))
+            {
+                anti = true;
+            } else if (isCall(condition, SqlStdOperatorTable.notOperator)
+                && isCall(
+                    operand(condition), SqlStdOperatorTable.isTrueOperator)
+                && isInputRef(operand(operand(condition)), indicator))
+            {
+                anti = true;
+            } else {
+                continue;
+            }
+            iterator.remove();
+            break;
+        }
+        if (anti == null) {
+            return;
+        }
+
+        final RelNode semiJoin =
+            SemiJoinRule.createSemiJoin(
+                left, project, aggregate, leftKeys, rightKeys, anti);
+        RelNode rel =
+            SemiJoinRule.createProject(
+                join, semiJoin, leftKeys, rightKeys, !anti);
+        if (!conditions.isEmpty()) {
+            rel =
+                CalcRel.createFilter(
+                    rel,
+                    RexUtil.andRexNodeList(
+                        join.getCluster().getRexBuilder(), conditions));
+        }
+        call.transformTo(rel);
+    }
+
+    /**
+     * Returns whether an aggregate computes just one value, MIN(TRUE), and
+     * therefore returns TRUE for every group.
+     */
+    private static boolean isIndicator(
+        AggregateRel aggregate,
+        ProjectRel project)
+    {
+        if (aggregate.getAggCallList().size() != 1) {
+            return false;
+        }
+        final AggregateCall aggCall = aggregate.getAggCallList().get(0);
+        if (!(aggCall.getAggregation() instanceof SqlMinMaxAggFunction)
+            || !((SqlMinMaxAggFunction) aggCall.getAggregation()).isMin()
+            || aggCall.getArgList().size() != 1)
+        {
+            return false;
+        }
+        final RexNode arg =
+            project.getProjectExps()[aggCall.getArgList().get(0)];
+        return arg.isAlwaysTrue() && arg instanceof RexLiteral;
+    }
+
+    private static boolean isCall(RexNode node, SqlOperator operator)
+    {
+        return node instanceof RexCall
+            && ((RexCall) node).getOperator() == operator;
+    }
+
+    private static RexNode operand(RexNode node)
+    {
+        return ((RexCall) node).getOperands()[0];
+    }
+
+    private static boolean isInputRef(RexNode node, int index)
+    {
+        return node instanceof RexInputRef
+            && ((RexInputRef) node).getIndex() == index;
+    }
+}
+
+// End ExistsToSemiJoinRule.java
@@ -0,0 +1,435 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.rel.rules;
+
+import java.util.*;
+
+import org.eigenbase.rel.CalcRel;
+import org.eigenbase.rel.JoinRel;
+import org.eigenbase.rel.JoinRelType;
+import org.eigenbase.rel.RelNode;
+import org.eigenbase.rel.metadata.RelMdUtil;
+import org.eigenbase.rel.metadata.RelMetadataQuery;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataTypeField;
+import org.eigenbase.rex.*;
+import org.eigenbase.util.mapping.MappingType;
+import org.eigenbase.util.mapping.Mappings;
+
+/**
+ * Rule that converts a {@link MultiJoinRel} into a tree of {@link JoinRel}s,
+ * choosing the join order using row-count and selectivity metadata.
+ *
+ * <p>The algorithm is greedy: starting with one vertex per input, it
+ * repeatedly joins the pair of vertices whose join is estimated to produce
+ * the fewest rows, until one vertex remains. It prefers pairs connected by a
+ * join condition, and resorts to a cartesian product only if no such pair
+ * exists. The result may be left-deep or bushy. The cost is cubic in the
+ * number of inputs, so a join of a dozen tables is ordered in milliseconds,
+ * whereas exhaustive search by a
+ * {@link org.eigenbase.relopt.volcano.VolcanoPlanner} may take seconds.</p>
+ *
+ * <p>An input that is null-generating in a left or right outer join is
+ * joined, on its outer join condition and as the right input of a left outer
+ * join, to a vertex that contains every other input referenced by that
+ * condition. Conditions of inner joins that reference it are applied after
+ * it has been joined. A full outer join is converted back to a single
+ * {@link JoinRel}.</p>
+ *
+ * <p>A projection on top of the tree restores the field order of the
+ * {@link MultiJoinRel}.</p>
+ */
+public class OptimizeMultiJoinRule extends RelOptRule {
+    public static final OptimizeMultiJoinRule instance =
+        new OptimizeMultiJoinRule();
+
+    private OptimizeMultiJoinRule() {
+        super(new RelOptRuleOperand(MultiJoinRel.class, ANY));
+    }
+
+    public void onMatch(RelOptRuleCall call) {
+        final MultiJoinRel multiJoin = (MultiJoinRel) call.rels[0];
+        final RelOptCluster cluster = multiJoin.getCluster();
+        final RexBuilder rexBuilder = cluster.getRexBuilder();
+        final List<RelNode> inputs = multiJoin.getInputs();
+
+        if (multiJoin.isFullOuterJoin()) {
+            assert inputs.size() == 2;
+            RelNode rel =
+                new JoinRel(
+                    cluster,
+                    inputs.get(0),
+                    inputs.get(1),
+                    multiJoin.getJoinFilter(),
+                    JoinRelType.FULL,
+                    Collections.<String>emptySet());
+            if (multiJoin.getPostJoinFilter() != null) {
+                rel = CalcRel.createFilter(rel, multiJoin.getPostJoinFilter());
+            }
+            call.transformTo(rel);
+            return;
+        }
+
+        // Which input each field of the multi-join comes from.
+        final int fieldCount = multiJoin.getRowType().getFieldCount();
+        final int[] fieldInputs = new int[fieldCount];
+        final List<Vertex> vertices = new ArrayList<Vertex>();
+        int offset = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            final RelNode input = inputs.get(i);
+            final int inputFieldCount = input.getRowType().getFieldCount();
+            final List<Integer> fields = new ArrayList<Integer>();
+            for (int j = 0; j < inputFieldCount; j++) {
+                fieldInputs[offset + j] = i;
+                fields.add(offset + j);
+            }
+            final BitSet inputBits = new BitSet();
+            inputBits.set(i);
+            vertices.add(
+                new Vertex(
+                    inputBits, fields, input,
+                    RelMdUtil.capInfinity(
+                        RelMetadataQuery.getRowCount(input))));
+            offset += inputFieldCount;
+        }
+
+        // Conditions of inner joins, and filters above the joins. Each may be
+        // applied as soon as all of the inputs it references have been
+        // joined.
+        final List<Condition> conditions = new ArrayList<Condition>();
+        for (RexNode node
+            : RelOptUtil.conjunctions(multiJoin.getJoinFilter()))
+        {
+            conditions.add(new Condition(node, fieldInputs));
+        }
+        if (multiJoin.getPostJoinFilter() != null) {
+            for (RexNode node
+                : RelOptUtil.conjunctions(multiJoin.getPostJoinFilter()))
+            {
+                conditions.add(new Condition(node, fieldInputs));
+            }
+        }
+
+        // Conditions of outer joins, indexed by the null-generating input.
+        final Condition[] outerConditions = new Condition[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            if (multiJoin.getJoinTypes()[i] != JoinRelType.INNER) {
+                outerConditions[i] =
+                    new Condition(
+                        multiJoin.getOuterJoinConditions()[i], fieldInputs);
+            }
+        }
+
+        while (vertices.size() > 1) {
+            Vertex bestLeft = null;
+            Vertex bestRight = null;
+            boolean bestConnected = false;
+            double bestRowCount = Double.MAX_VALUE;
+            for (Vertex left : vertices) {
+                if (left.isNullGenerating(outerConditions)) {
+                    continue;
+                }
+                for (Vertex right : vertices) {
+                    if (right == left) {
+                        continue;
+                    }
+                    final double rowCount;
+                    final boolean connected;
+                    if (right.isNullGenerating(outerConditions)) {
+                        final Condition outerCondition =
+                            outerConditions[right.inputs.nextSetBit(0)];
+                        if (!outerCondition.isAvailable(
+                                left.inputs, right.inputs))
+                        {
+                            continue;
+                        }
+                        rowCount =
+                            Math.max(
+                                left.rowCount,
+                                left.rowCount * right.rowCount
+                                * selectivity(outerCondition, inputs));
+                        connected = true;
+                    } else {
+                        if (right.rowCount > left.rowCount
+                            || right.rowCount == left.rowCount
+                            && right.inputs.nextSetBit(0)
+                            < left.inputs.nextSetBit(0))
+                        {
+                            // Consider each pair of inner vertices once, with
+                            // the larger on the left.
+                            continue;
+                        }
+                        double selectivity = 1d;
+                        boolean connected2 = false;
+                        for (Condition condition : conditions) {
+                            if (condition.isAvailable(
+                                    left.inputs, right.inputs))
+                            {
+                                selectivity *= selectivity(condition, inputs);
+                                connected2 |= condition.connects(
+                                    left.inputs, right.inputs);
+                            }
+                        }
+                        rowCount =
+                            left.rowCount * right.rowCount * selectivity;
+                        connected = connected2;
+                    }
+                    if (bestLeft == null
+                        || connected && !bestConnected
+                        || connected == bestConnected
+                        && rowCount < bestRowCount)
+                    {
+                        bestLeft = left;
+                        bestRight = right;
+                        bestConnected = connected;
+                        bestRowCount = rowCount;
+                    }
+                }
+            }
+            assert bestLeft != null : "no joinable pair in " + multiJoin;
+            vertices.remove(bestLeft);
+            vertices.remove(bestRight);
+            vertices.add(
+                join(
+                    cluster, bestLeft, bestRight, bestRowCount, conditions,
+                    outerConditions, fieldCount));
+        }
+
+        // Restore the order, and types, of the fields of the multi-join.
+        final Vertex vertex = vertices.get(0);
+        assert conditions.isEmpty();
+        final List<RelDataTypeField> fields =
+            vertex.rel.getRowType().getFieldList();
+        final List<RexNode> exprs = new ArrayList<RexNode>();
+        final List<String> names = new ArrayList<String>();
+        for (RelDataTypeField field : multiJoin.getRowType().getFieldList()) {
+            final int source = vertex.fields.indexOf(field.getIndex());
+            RexNode expr =
+                new RexInputRef(source, fields.get(source).getType());
+            if (!expr.getType().equals(field.getType())) {
+                expr = rexBuilder.makeCast(field.getType(), expr);
+            }
+            exprs.add(expr);
+            names.add(field.getName());
+        }
+        call.transformTo(
+            CalcRel.createProject(vertex.rel, exprs, names, true));
+    }
+
+    /** Joins two vertices, applying all conditions that become available,
+     * and removes those conditions from the list. */
+    private Vertex join(
+        RelOptCluster cluster,
+        Vertex left,
+        Vertex right,
+        double rowCount,
+        List<Condition> conditions,
+        Condition[] outerConditions,
+        int fieldCount)
+    {
+        final RexBuilder rexBuilder = cluster.getRexBuilder();
+        final List<Integer> fields = new ArrayList<Integer>(left.fields);
+        fields.addAll(right.fields);
+        final BitSet inputs = (BitSet) left.inputs.clone();
+        inputs.or(right.inputs);
+
+        // Maps fields of the multi-join to fields of the new join.
+        final Mappings.TargetMapping mapping =
+            Mappings.create(
+                MappingType.InverseSurjection, fieldCount, fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            mapping.set(fields.get(i), i);
+        }
+
+        final List<RexNode> available = new ArrayList<RexNode>();
+        for (Iterator<Condition> iterator = conditions.iterator();
+             iterator.hasNext();)
+        {
+            final Condition condition = iterator.next();
+            if (condition.isAvailable(left.inputs, right.inputs)) {
+                available.add(condition.node);
+                iterator.remove();
+            }
+        }
+        final RelNode join;
+        if (right.isNullGenerating(outerConditions)) {
+            final RexNode outerCondition =
+                outerConditions[right.inputs.nextSetBit(0)].node;
+            final RelNode outerJoin =
+                new JoinRel(
+                    cluster,
+                    left.rel,
+                    right.rel,
+                    outerCondition.accept(
+                        new RexPermuteInputsShuttle(
+                            mapping, left.rel, right.rel)),
+                    JoinRelType.LEFT,
+                    Collections.<String>emptySet());
+            if (available.isEmpty()) {
+                join = outerJoin;
+            } else {
+                // Filters that reference the null-generating input must not
+                // become part of the outer join condition.
+                join =
+                    CalcRel.createFilter(
+                        outerJoin,
+                        RelOptUtil.composeConjunction(rexBuilder, available)
+                            .accept(
+                                new RexPermuteInputsShuttle(
+                                    mapping, outerJoin)));
+            }
+        } else {
+            join =
+                new JoinRel(
+                    cluster,
+                    left.rel,
+                    right.rel,
+                    RelOptUtil.composeConjunction(rexBuilder, available)
+                        .accept(
+                            new RexPermuteInputsShuttle(
+                                mapping, left.rel, right.rel)),
+                    JoinRelType.INNER,
+                    Collections.<String>emptySet());
+        }
+        return new Vertex(inputs, fields, join, rowCount);
+    }
+
+    /** Estimates the selectivity of a condition. An equality between fields
+     * of two inputs selects one row in the larger number of distinct values
+     * of those fields; other conditions use the default guess. */
+    private static double selectivity(
+        Condition condition,
+        List<RelNode> inputs)
+    {
+        final RexNode node = condition.node;
+        if (node.isA(RexKind.Equals)
+            && condition.inputs.cardinality() == 2)
+        {
+            final RexNode[] operands = ((RexCall) node).getOperands();
+            if (operands[0] instanceof RexInputRef
+                && operands[1] instanceof RexInputRef)
+            {
+                double distinct = 1d;
+                for (RexNode operand : operands) {
+                    final int field = ((RexInputRef) operand).getIndex();
+                    final int input = condition.fieldInputs[field];
+                    distinct =
+                        Math.max(
+                            distinct,
+                            distinctRowCount(
+                                inputs.get(input),
+                                field - condition.offset(input)));
+                }
+                return 1d / distinct;
+            }
+        }
+        return RelMdUtil.guessSelectivity(node);
+    }
+
+    private static double distinctRowCount(RelNode input, int field) {
+        final BitSet keys = new BitSet();
+        keys.set(field);
+        final Double rowCount = RelMetadataQuery.getRowCount(input);
+        final Double distinct =
+            RelMetadataQuery.getDistinctRowCount(input, keys, null);
+        if (distinct == null) {
+            return rowCount == null ? 1d : RelMdUtil.capInfinity(rowCount);
+        }
+        return rowCount == null
+            ? distinct
+            : Math.min(distinct, rowCount);
+    }
+
+    /** Set of inputs that have been joined. */
+    private static class Vertex {
+        /** Ordinals of the inputs of the multi-join. */
+        final BitSet inputs;
+        /** For each field of {@link #rel}, the ordinal of the corresponding
+         * field of the multi-join. */
+        final List<Integer> fields;
+        final RelNode rel;
+        final double rowCount;
+
+        Vertex(
+            BitSet inputs,
+            List<Integer> fields,
+            RelNode rel,
+            double rowCount)
+        {
+            this.inputs = inputs;
+            this.fields = fields;
+            this.rel = rel;
+            this.rowCount = rowCount;
+        }
+
+        /** Returns whether this vertex is a single input that is the
+         * null-generating side of an outer join that has not yet been
+         * made. */
+        boolean isNullGenerating(Condition[] outerConditions) {
+            return inputs.cardinality() == 1
+                && outerConditions[inputs.nextSetBit(0)] != null;
+        }
+    }
+
+    /** Conjunct of a join condition or filter, and the inputs it
+     * references. */
+    private static class Condition {
+        final RexNode node;
+        final BitSet inputs = new BitSet();
+        final int[] fieldInputs;
+
+        Condition(RexNode node, int[] fieldInputs) {
+            this.node = node;
+            this.fieldInputs = fieldInputs;
+            final BitSet fields = RelOptUtil.InputFinder.bits(node);
+            for (int field = fields.nextSetBit(0);
+                 field >= 0;
+                 field = fields.nextSetBit(field + 1))
+            {
+                inputs.set(fieldInputs[field]);
+            }
+        }
+
+        /** Returns the ordinal of the first field of an input. */
+        int offset(int input) {
+            for (int i = 0; i < fieldInputs.length; i++) {
+                if (fieldInputs[i] == input) {
+                    return i;
+                }
+            }
+            throw new AssertionError(input);
+        }
+
+        /** Returns whether this condition references only inputs in two
+         * vertices. */
+        boolean isAvailable(BitSet left, BitSet right) {
+            final BitSet bits = (BitSet) inputs.clone();
+            bits.andNot(left);
+            bits.andNot(right);
+            return bits.isEmpty();
+        }
+
+        /** Returns whether this condition references inputs in both of two
+         * vertices. */
+        boolean connects(BitSet left, BitSet right) {
+            return inputs.intersects(left) && inputs.intersects(right);
+        }
+    }
+}
+
+// End OptimizeMultiJoinRule.java
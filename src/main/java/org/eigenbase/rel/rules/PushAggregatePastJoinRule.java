@@ -0,0 +1,318 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.rel.rules;
+
+import java.util.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.*;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.fun.*;
+import org.eigenbase.util.Util;
+import org.eigenbase.util.mapping.MappingType;
+import org.eigenbase.util.mapping.Mappings;
+
+/**
+ * Rule that pushes an {@link AggregateRel} past an inner equi-join, splitting
+ * it into a partial aggregate on one input of the join and a final aggregate
+ * on top.
+ *
+ * <p>For example,</p>
+ *
+ * <pre>{@code
+ * select d.name, sum(s.amount)
+ * from sales as s join dept as d on s.deptno = d.deptno
+ * group by d.name}</pre>
+ *
+ * <p>becomes</p>
+ *
+ * <pre>{@code
+ * select d.name, sum(s.amount)
+ * from (select deptno, sum(amount) as amount
+ *       from sales group by deptno) as s
+ * join dept as d on s.deptno = d.deptno
+ * group by d.name}</pre>
+ *
+ * <p>The partial aggregate is grouped by the join keys of its input and the
+ * grouping fields that come from that input. Every argument of every
+ * aggregate function must come from that input, and the functions must be
+ * SUM, COUNT, MIN or MAX, without DISTINCT. A partial row joined to several
+ * rows of the other input contributes to the final aggregate once for each,
+ * just as each of the rows it summarizes would have done.</p>
+ *
+ * <p>The planner chooses between the old and new expressions on cost; the
+ * new expression is cheaper when the partial aggregate is much smaller than
+ * its input, as it is when a fact table is joined to a dimension table on a
+ * key with few distinct values.</p>
+ */
+public class PushAggregatePastJoinRule extends RelOptRule
+{
+    /** Instance that matches an aggregate directly on a join. */
+    public static final PushAggregatePastJoinRule instance =
+        new PushAggregatePastJoinRule(
+            new RelOptRuleOperand(
+                AggregateRel.class,
+                new RelOptRuleOperand(JoinRel.class, RelOptRule.ANY)),
+            "PushAggregatePastJoinRule: join");
+
+    /** Instance that matches an aggregate on a projection, whose expressions
+     * are all field references, on a join. */
+    public static final PushAggregatePastJoinRule instanceProject =
+        new PushAggregatePastJoinRule(
+            new RelOptRuleOperand(
+                AggregateRel.class,
+                new RelOptRuleOperand(
+                    ProjectRel.class,
+                    new RelOptRuleOperand(JoinRel.class, RelOptRule.ANY))),
+            "PushAggregatePastJoinRule: project");
+
+    private PushAggregatePastJoinRule(
+        RelOptRuleOperand operand,
+        String description)
+    {
+        super(operand, description);
+    }
+
+    public void onMatch(RelOptRuleCall call)
+    {
+        final AggregateRel aggRel = (AggregateRel) call.rels[0];
+        final JoinRel joinRel = (JoinRel) call.rels[call.rels.length - 1];
+        if (aggRel.getGroupSet().isEmpty()) {
+            // Without GROUP BY, the final aggregate of an empty join would
+            // return SUM of no partial counts, null, not a count of 0.
+            return;
+        }
+        if (joinRel.getJoinType() != JoinRelType.INNER
+            || !joinRel.getVariablesStopped().isEmpty()
+            || !joinRel.getSystemFieldList().isEmpty())
+        {
+            return;
+        }
+
+        // Map each field of the aggregate's input to a field of the join.
+        final int[] fieldMap;
+        if (call.rels.length == 3) {
+            final RexNode[] exps = ((ProjectRel) call.rels[1]).getProjectExps();
+            fieldMap = new int[exps.length];
+            for (int i = 0; i < exps.length; i++) {
+                if (!(exps[i] instanceof RexInputRef)) {
+                    return;
+                }
+                fieldMap[i] = ((RexInputRef) exps[i]).getIndex();
+            }
+        } else {
+            fieldMap = new int[joinRel.getRowType().getFieldCount()];
+            for (int i = 0; i < fieldMap.length; i++) {
+                fieldMap[i] = i;
+            }
+        }
+
+        final List<Integer> leftKeys = new ArrayList<Integer>();
+        final List<Integer> rightKeys = new ArrayList<Integer>();
+        final RexNode remaining =
+            RelOptUtil.splitJoinCondition(
+                joinRel.getLeft(),
+                joinRel.getRight(),
+                joinRel.getCondition(),
+                leftKeys,
+                rightKeys);
+        if (!remaining.isAlwaysTrue() || leftKeys.isEmpty()) {
+            return;
+        }
+
+        for (AggregateCall aggCall : aggRel.getAggCallList()) {
+            if (aggCall.isDistinct()) {
+                return;
+            }
+            final Aggregation aggregation = aggCall.getAggregation();
+            if (!(aggregation instanceof SqlSumAggFunction)
+                && !(aggregation instanceof SqlCountAggFunction)
+                && !(aggregation instanceof SqlMinMaxAggFunction))
+            {
+                return;
+            }
+        }
+
+        final int leftCount = joinRel.getLeft().getRowType().getFieldCount();
+        for (int side = 0; side < 2; side++) {
+            final int start = side == 0 ? 0 : leftCount;
+            final int end =
+                side == 0 ? leftCount : joinRel.getRowType().getFieldCount();
+            boolean argsOnSide = true;
+            for (AggregateCall aggCall : aggRel.getAggCallList()) {
+                for (int arg : aggCall.getArgList()) {
+                    argsOnSide &=
+                        fieldMap[arg] >= start && fieldMap[arg] < end;
+                }
+            }
+            if (argsOnSide) {
+                push(
+                    call, aggRel, joinRel, fieldMap, side, start, end,
+                    side == 0 ? leftKeys : rightKeys);
+            }
+        }
+    }
+
+    /** Creates a partial aggregate on one input of the join, and a final
+     * aggregate on a new join. */
+    private void push(
+        RelOptRuleCall call,
+        AggregateRel aggRel,
+        JoinRel joinRel,
+        int[] fieldMap,
+        int side,
+        int start,
+        int end,
+        List<Integer> keys)
+    {
+        final RelOptCluster cluster = aggRel.getCluster();
+        final RelNode input = joinRel.getInputs().get(side);
+
+        // Group the input by its join keys, and by the grouping fields that
+        // come from it.
+        final BitSet partialGroupSet = new BitSet();
+        for (int key : keys) {
+            partialGroupSet.set(key);
+        }
+        for (int group : Util.toIter(aggRel.getGroupSet())) {
+            if (fieldMap[group] >= start && fieldMap[group] < end) {
+                partialGroupSet.set(fieldMap[group] - start);
+            }
+        }
+        if (RelMdUtil.areColumnsDefinitelyUnique(input, partialGroupSet)) {
+            // Each group would have one row; the partial aggregate would not
+            // make the input smaller. This also prevents the rule from
+            // firing again on the result.
+            return;
+        }
+        final List<AggregateCall> partialCalls = new ArrayList<AggregateCall>();
+        for (AggregateCall aggCall : aggRel.getAggCallList()) {
+            final List<Integer> args = new ArrayList<Integer>();
+            for (int arg : aggCall.getArgList()) {
+                args.add(fieldMap[arg] - start);
+            }
+            partialCalls.add(
+                new AggregateCall(
+                    aggCall.getAggregation(),
+                    false,
+                    args,
+                    aggCall.getType(),
+                    aggCall.getName()));
+        }
+        final AggregateRel partialAggRel =
+            new AggregateRel(cluster, input, partialGroupSet, partialCalls);
+        final Double partialRowCount =
+            RelMetadataQuery.getRowCount(partialAggRel);
+        final Double inputRowCount = RelMetadataQuery.getRowCount(input);
+        if (partialRowCount != null
+            && inputRowCount != null
+            && partialRowCount >= inputRowCount)
+        {
+            return;
+        }
+
+        // Map fields of the old join to fields of the new join.
+        final List<Integer> partialGroupList = Util.toList(partialGroupSet);
+        final int oldCount = joinRel.getRowType().getFieldCount();
+        final int newStart =
+            side == 0 ? 0 : joinRel.getLeft().getRowType().getFieldCount();
+        final int shift =
+            partialAggRel.getRowType().getFieldCount() - (end - start);
+        final int newCount = oldCount + shift;
+        final Mappings.TargetMapping mapping =
+            Mappings.create(MappingType.PartialFunction, oldCount, newCount);
+        for (int i = 0; i < oldCount; i++) {
+            if (i < start) {
+                mapping.set(i, i);
+            } else if (i >= end) {
+                mapping.set(i, i + shift);
+            } else if (partialGroupSet.get(i - start)) {
+                mapping.set(i, newStart + partialGroupList.indexOf(i - start));
+            }
+        }
+        final RelNode left = side == 0 ? partialAggRel : joinRel.getLeft();
+        final RelNode right = side == 0 ? joinRel.getRight() : partialAggRel;
+        final JoinRel newJoinRel =
+            new JoinRel(
+                cluster,
+                left,
+                right,
+                joinRel.getCondition().accept(
+                    new RexPermuteInputsShuttle(mapping, left, right)),
+                JoinRelType.INNER,
+                Collections.<String>emptySet());
+
+        // Final aggregate. COUNT becomes SUM of the partial counts.
+        final BitSet groupSet = new BitSet();
+        for (int group : Util.toIter(aggRel.getGroupSet())) {
+            groupSet.set(mapping.getTarget(fieldMap[group]));
+        }
+        final List<AggregateCall> calls = new ArrayList<AggregateCall>();
+        final RelDataTypeFactory typeFactory = cluster.getTypeFactory();
+        int arg = newStart + partialGroupList.size();
+        for (AggregateCall aggCall : aggRel.getAggCallList()) {
+            final Aggregation aggregation;
+            final RelDataType type;
+            if (aggCall.getAggregation() instanceof SqlCountAggFunction) {
+                type =
+                    typeFactory.createTypeWithNullability(
+                        aggCall.getType(), true);
+                aggregation = new SqlSumAggFunction(type);
+            } else {
+                aggregation = aggCall.getAggregation();
+                type = aggCall.getType();
+            }
+            calls.add(
+                new AggregateCall(
+                    aggregation,
+                    false,
+                    Collections.singletonList(arg++),
+                    type,
+                    aggCall.getName()));
+        }
+        final AggregateRel newAggRel =
+            new AggregateRel(cluster, newJoinRel, groupSet, calls);
+
+        // Restore the order of the grouping fields, and cast COUNT, which is
+        // NOT NULL, from SUM, which is nullable.
+        final List<Integer> groupList = Util.toList(groupSet);
+        final List<RelDataTypeField> fields =
+            newAggRel.getRowType().getFieldList();
+        final List<RexNode> exprs = new ArrayList<RexNode>();
+        for (int group : Util.toIter(aggRel.getGroupSet())) {
+            final int i = groupList.indexOf(mapping.getTarget(fieldMap[group]));
+            exprs.add(new RexInputRef(i, fields.get(i).getType()));
+        }
+        for (int i = 0; i < calls.size(); i++) {
+            final int j = groupList.size() + i;
+            exprs.add(new RexInputRef(j, fields.get(j).getType()));
+        }
+        final RelNode project =
+            CalcRel.createProject(
+                newAggRel,
+                exprs,
+                RelOptUtil.getFieldNameList(aggRel.getRowType()),
+                true);
+        call.transformTo(
+            RelOptUtil.createCastRel(project, aggRel.getRowType(), false));
+    }
+}
+
+// End PushAggregatePastJoinRule.java
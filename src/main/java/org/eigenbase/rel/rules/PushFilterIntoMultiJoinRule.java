@@ -66,7 +66,10 @@ public class PushFilterIntoMultiJoinRule
                 multiJoinRel.getJoinTypes(),
                 multiJoinRel.getProjFields(),
                 multiJoinRel.getJoinFieldRefCountsMap(),
-                filterRel.getCondition());
+                RelOptUtil.andJoinFilters(
+                    multiJoinRel.getCluster().getRexBuilder(),
+                    multiJoinRel.getPostJoinFilter(),
+                    filterRel.getCondition()));
 
         call.transformTo(newMultiJoinRel);
     }
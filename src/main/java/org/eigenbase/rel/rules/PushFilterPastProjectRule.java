@@ -56,6 +56,14 @@ public class PushFilterPastProjectRule
         FilterRel filterRel = (FilterRel) call.rels[0];
         ProjectRel projRel = (ProjectRel) call.rels[1];
 
+        // Filtering rows before a windowed aggregate would change the
+        // aggregate's result.
+        for (RexNode exp : projRel.getProjectExps()) {
+            if (RexOver.containsOver(exp)) {
+                return;
+            }
+        }
+
         // convert the filter to one that references the child of the project
         RexNode newCondition =
             RelOptUtil.pushFilterPastProject(filterRel.getCondition(), projRel);
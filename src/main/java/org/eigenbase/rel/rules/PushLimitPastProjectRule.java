@@ -0,0 +1,122 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.rel.rules;
+
+import java.util.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.rex.*;
+
+
+/**
+ * PushLimitPastProjectRule implements the rule for pushing a {@link SortRel}
+ * that has a FETCH limit past a {@link ProjectRel} or a {@link CalcRel} that
+ * has no condition.
+ *
+ * <p>A projection returns one row for each input row, so limiting its input
+ * gives the same result, but the input stops earlier. Each sort key must be a
+ * field of the projection's input.</p>
+ */
+public class PushLimitPastProjectRule
+    extends RelOptRule
+{
+    public static final PushLimitPastProjectRule instance =
+        new PushLimitPastProjectRule(
+            new RelOptRuleOperand(
+                SortRel.class,
+                Convention.NONE,
+                new RelOptRuleOperand(ProjectRel.class, ANY)),
+            "project");
+
+    public static final PushLimitPastProjectRule instanceCalc =
+        new PushLimitPastProjectRule(
+            new RelOptRuleOperand(
+                SortRel.class,
+                Convention.NONE,
+                new RelOptRuleOperand(CalcRel.class, ANY)),
+            "calc");
+
+    //~ Constructors -----------------------------------------------------------
+
+    /**
+     * Creates a PushLimitPastProjectRule.
+     */
+    private PushLimitPastProjectRule(RelOptRuleOperand operand, String id)
+    {
+        super(operand, "PushLimitPastProjectRule: " + id);
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    // implement RelOptRule
+    public void onMatch(RelOptRuleCall call)
+    {
+        final SortRel sort = (SortRel) call.rels[0];
+        if (sort.fetch == null) {
+            return;
+        }
+        final RelNode project = call.rels[1];
+        final List<RexNode> exps = new ArrayList<RexNode>();
+        if (project instanceof ProjectRel) {
+            exps.addAll(Arrays.asList(((ProjectRel) project).getProjectExps()));
+        } else {
+            final RexProgram program = ((CalcRel) project).getProgram();
+            if (program.getCondition() != null) {
+                // A filter may discard rows, so cannot be limited.
+                return;
+            }
+            for (RexLocalRef ref : program.getProjectList()) {
+                exps.add(program.expandLocalRef(ref));
+            }
+        }
+        for (RexNode exp : exps) {
+            if (RexOver.containsOver(exp)) {
+                // A windowed aggregate needs to see all rows.
+                return;
+            }
+        }
+
+        // Convert the sort keys to fields of the project's input.
+        final List<RelFieldCollation> newCollations =
+            new ArrayList<RelFieldCollation>();
+        for (RelFieldCollation collation : sort.getCollations()) {
+            final RexNode exp = exps.get(collation.getFieldIndex());
+            if (!(exp instanceof RexInputRef)) {
+                return;
+            }
+            newCollations.add(
+                collation.copy(((RexInputRef) exp).getIndex()));
+        }
+
+        final RelNode child = project.getInputs().get(0);
+        final SortRel newSort =
+            sort.copy(
+                sort.getTraitSet(),
+                child,
+                newCollations,
+                sort.offset,
+                sort.fetch);
+        call.transformTo(
+            project.copy(
+                project.getTraitSet(),
+                Collections.<RelNode>singletonList(newSort)));
+    }
+}
+
+// End PushLimitPastProjectRule.java
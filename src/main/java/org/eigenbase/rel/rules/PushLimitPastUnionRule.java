@@ -0,0 +1,113 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.rel.rules;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.rex.*;
+
+
+/**
+ * PushLimitPastUnionRule implements the rule for pushing a {@link SortRel}
+ * that has a FETCH limit into each input of a non-distinct {@link UnionRel}.
+ *
+ * <p>If the sort returns rows OFFSET .. OFFSET + FETCH of the union, each
+ * input needs to return at most OFFSET + FETCH rows, sorted in the same way.
+ * The original sort remains on top of the union, to merge the inputs and
+ * apply the offset.</p>
+ *
+ * <p>The rule does not fire if an input is estimated to return no more rows
+ * than are needed; in particular, it does not fire again on a union whose
+ * inputs it has already limited.</p>
+ */
+public class PushLimitPastUnionRule
+    extends RelOptRule
+{
+    public static final PushLimitPastUnionRule instance =
+        new PushLimitPastUnionRule();
+
+    //~ Constructors -----------------------------------------------------------
+
+    /**
+     * Creates a PushLimitPastUnionRule.
+     */
+    private PushLimitPastUnionRule()
+    {
+        super(
+            new RelOptRuleOperand(
+                SortRel.class,
+                Convention.NONE,
+                new RelOptRuleOperand(UnionRel.class, ANY)));
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    // implement RelOptRule
+    public void onMatch(RelOptRuleCall call)
+    {
+        final SortRel sort = (SortRel) call.rels[0];
+        final UnionRel union = (UnionRel) call.rels[1];
+        if (!union.all
+            || !(sort.fetch instanceof RexLiteral)
+            || sort.offset != null && !(sort.offset instanceof RexLiteral))
+        {
+            return;
+        }
+        final long limit =
+            RexLiteral.longValue(sort.fetch)
+            + (sort.offset == null ? 0 : RexLiteral.longValue(sort.offset));
+        if (limit > Integer.MAX_VALUE) {
+            return;
+        }
+        final RexNode fetch =
+            sort.getCluster().getRexBuilder().makeExactLiteral(
+                BigDecimal.valueOf(limit));
+        final List<RelNode> newInputs = new ArrayList<RelNode>();
+        boolean changed = false;
+        for (RelNode input : union.getInputs()) {
+            final Double rowCount = RelMetadataQuery.getRowCount(input);
+            if (rowCount != null && rowCount <= limit) {
+                newInputs.add(input);
+            } else {
+                newInputs.add(
+                    new SortRel(
+                        sort.getCluster(),
+                        sort.getTraitSet(),
+                        input,
+                        sort.getCollations(),
+                        null,
+                        fetch));
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        call.transformTo(
+            sort.copy(
+                sort.getTraitSet(),
+                union.copy(union.getTraitSet(), newInputs),
+                sort.getCollations()));
+    }
+}
+
+// End PushLimitPastUnionRule.java
@@ -0,0 +1,215 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.rel.rules;
+
+import java.util.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.*;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.fun.*;
+import org.eigenbase.util.*;
+
+
+/**
+ * SemiJoinRule converts an inner join whose right input is a duplicate-free
+ * aggregate, keyed on all of its columns, into a {@link SemiJoinRel}. This
+ * is how {@link org.eigenbase.sql2rel.SqlToRelConverter} translates
+ * <code>x IN (SELECT y FROM t)</code>.
+ *
+ * <p>JoinRel(X, AggregateRel[group=all, calls=none](Y)) becomes
+ * ProjectRel(SemiJoinRel(X, Y)). Each left row matches at most one row of
+ * the aggregate, so the join returns each left row at most once; the
+ * projection recreates the aggregate's columns from the left keys they are
+ * equal to.</p>
+ *
+ * @version $Id$
+ */
+public class SemiJoinRule
+    extends RelOptRule
+{
+    public static final SemiJoinRule instance = new SemiJoinRule();
+
+    //~ Constructors -----------------------------------------------------------
+
+    /**
+     * Creates a SemiJoinRule.
+     */
+    private SemiJoinRule()
+    {
+        super(
+            new RelOptRuleOperand(
+                JoinRel.class,
+                new RelOptRuleOperand(RelNode.class, ANY),
+                new RelOptRuleOperand(AggregateRel.class, ANY)));
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    // implement RelOptRule
+    public void onMatch(RelOptRuleCall call)
+    {
+        JoinRel join = (JoinRel) call.rels[0];
+        RelNode left = call.rels[1];
+        AggregateRel aggregate = (AggregateRel) call.rels[2];
+        if (join.getJoinType() != JoinRelType.INNER
+            || !aggregate.getAggCallList().isEmpty())
+        {
+            return;
+        }
+        final List<Integer> leftKeys = new ArrayList<Integer>();
+        final List<Integer> rightKeys = new ArrayList<Integer>();
+        if (!isKeyedOnGroup(
+                join, left, aggregate, leftKeys, rightKeys))
+        {
+            return;
+        }
+        final RelNode semiJoin =
+            createSemiJoin(
+                left, aggregate.getChild(), aggregate, leftKeys, rightKeys,
+                false);
+        call.transformTo(
+            createProject(join, semiJoin, leftKeys, rightKeys, true));
+    }
+
+    /**
+     * Returns whether a join's condition consists only of equalities between
+     * left columns and the grouping columns of the aggregate on its right,
+     * covering every grouping column. If so, populates the lists of keys,
+     * and each left row matches at most one row of the aggregate.
+     */
+    static boolean isKeyedOnGroup(
+        JoinRelBase join,
+        RelNode left,
+        AggregateRelBase aggregate,
+        List<Integer> leftKeys,
+        List<Integer> rightKeys)
+    {
+        final RexNode remaining =
+            RelOptUtil.splitJoinCondition(
+                left, aggregate, join.getCondition(), leftKeys, rightKeys);
+        if (!remaining.isAlwaysTrue()) {
+            return false;
+        }
+        final BitSet keySet = Util.bitSetOf(rightKeys);
+        return keySet.equals(
+            Util.bitSetBetween(0, aggregate.getGroupCount()));
+    }
+
+    /**
+     * Creates a semi-join or anti-join of a relational expression with the
+     * input to an aggregate, on the columns that the aggregate groups by.
+     *
+     * @param left Left input
+     * @param right Input to the aggregate
+     * @param aggregate Aggregate
+     * @param leftKeys Keys in the left input
+     * @param rightKeys Keys in the aggregate; grouping columns
+     * @param anti Whether to create an anti-join
+     * @return Semi-join or anti-join
+     */
+    static RelNode createSemiJoin(
+        RelNode left,
+        RelNode right,
+        AggregateRelBase aggregate,
+        List<Integer> leftKeys,
+        List<Integer> rightKeys,
+        boolean anti)
+    {
+        final RexBuilder rexBuilder = left.getCluster().getRexBuilder();
+        final List<Integer> groupList = new ArrayList<Integer>();
+        for (int i : Util.toIter(aggregate.getGroupSet())) {
+            groupList.add(i);
+        }
+        final int leftCount = left.getRowType().getFieldCount();
+        final List<RelDataTypeField> leftFields =
+            left.getRowType().getFieldList();
+        final List<RelDataTypeField> rightFields =
+            right.getRowType().getFieldList();
+        final List<Integer> newRightKeys = new ArrayList<Integer>();
+        final List<RexNode> conditions = new ArrayList<RexNode>();
+        for (Pair<Integer, Integer> pair : Pair.zip(leftKeys, rightKeys)) {
+            final int rightKey = groupList.get(pair.right);
+            newRightKeys.add(rightKey);
+            conditions.add(
+                rexBuilder.makeCall(
+                    SqlStdOperatorTable.equalsOperator,
+                    rexBuilder.makeInputRef(
+                        leftFields.get(pair.left).getType(), pair.left),
+                    rexBuilder.makeInputRef(
+                        rightFields.get(rightKey).getType(),
+                        leftCount + rightKey)));
+        }
+        final RexNode condition =
+            conditions.isEmpty()
+                ? rexBuilder.makeLiteral(true)
+                : RexUtil.andRexNodeList(rexBuilder, conditions);
+        if (anti) {
+            return new AntiJoinRel(
+                left.getCluster(), left, right, condition, leftKeys,
+                newRightKeys);
+        }
+        return new SemiJoinRel(
+            left.getCluster(), left, right, condition, leftKeys,
+            newRightKeys);
+    }
+
+    /**
+     * Creates a projection on a semi-join or anti-join that has the same
+     * row type as the join it replaces. The left columns are passed
+     * through. If {@code matched}, each grouping column of the aggregate is
+     * the left key it is equal to, and any further column (the indicator of
+     * a subquery) is TRUE; otherwise the right columns are all null.
+     */
+    static RelNode createProject(
+        JoinRelBase join,
+        RelNode semiJoin,
+        List<Integer> leftKeys,
+        List<Integer> rightKeys,
+        boolean matched)
+    {
+        final RexBuilder rexBuilder = join.getCluster().getRexBuilder();
+        final List<RelDataTypeField> fields = join.getRowType().getFieldList();
+        final int leftCount = semiJoin.getRowType().getFieldCount();
+        final List<RexNode> exprs = new ArrayList<RexNode>();
+        for (int i = 0; i < fields.size(); i++) {
+            final RelDataType type = fields.get(i).getType();
+            final RexNode expr;
+            if (i < leftCount) {
+                expr = rexBuilder.makeInputRef(type, i);
+            } else if (!matched) {
+                expr = rexBuilder.makeCast(type, rexBuilder.constantNull());
+            } else {
+                final int leftKey = rightKeys.indexOf(i - leftCount);
+                expr =
+                    leftKey < 0
+                        ? rexBuilder.makeLiteral(true)
+                        : rexBuilder.makeInputRef(
+                            semiJoin.getRowType().getFieldList()
+                                .get(leftKeys.get(leftKey)).getType(),
+                            leftKeys.get(leftKey));
+            }
+            exprs.add(rexBuilder.ensureType(type, expr, false));
+        }
+        return CalcRel.createProject(
+            semiJoin, exprs, RelOptUtil.getFieldNameList(join.getRowType()));
+    }
+}
+
+// End SemiJoinRule.java
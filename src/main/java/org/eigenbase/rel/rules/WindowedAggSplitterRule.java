@@ -0,0 +1,333 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.rel.rules;
+
+import java.util.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.*;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.*;
+import org.eigenbase.sql.fun.*;
+
+
+/**
+ * Planner rule which splits a {@link CalcRel} that contains windowed
+ * aggregates ({@link RexOver}) into a {@link WindowedAggregateRel} and the
+ * calculations before and after it.
+ *
+ * <p>The result has three parts:
+ *
+ * <ul>
+ * <li>a {@link ProjectRel} that computes the fields of the input, followed by
+ * any arguments and partitioning or ordering keys of the windowed aggregates
+ * that are not simple fields (omitted if there are none);</li>
+ * <li>a {@link WindowedAggregateRel} that passes those fields through and
+ * computes each distinct windowed aggregate; aggregates that share a window
+ * are adjacent;</li>
+ * <li>a {@link CalcRel} that computes the original expressions and
+ * condition, with each windowed aggregate replaced by a reference to a field
+ * of the {@link WindowedAggregateRel}.</li>
+ * </ul>
+ *
+ * <p>The SQL-to-rel converter represents MIN, MAX, FIRST_VALUE and
+ * LAST_VALUE over a bounded window as a histogram function applied to a
+ * windowed $HISTOGRAM aggregate. This rule converts those back to the
+ * original aggregate functions, which a windowed aggregate can evaluate
+ * incrementally without a histogram.
+ */
+public class WindowedAggSplitterRule
+    extends RelOptRule
+{
+    //~ Static fields/initializers ---------------------------------------------
+
+    public static final WindowedAggSplitterRule instance =
+        new WindowedAggSplitterRule();
+
+    //~ Constructors -----------------------------------------------------------
+
+    private WindowedAggSplitterRule()
+    {
+        super(new RelOptRuleOperand(CalcRel.class, ANY));
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    public void onMatch(RelOptRuleCall call)
+    {
+        final CalcRel calc = (CalcRel) call.rels[0];
+        final RexProgram program = calc.getProgram();
+        if (!RexOver.containsOver(program)) {
+            return;
+        }
+        final RelOptCluster cluster = calc.getCluster();
+        final RexBuilder rexBuilder = cluster.getRexBuilder();
+        final RelNode child = calc.getChild();
+        final RelDataTypeField [] inputFields = child.getRowType().getFields();
+
+        // Expand the program into expressions, replacing histogram
+        // functions with the equivalent windowed aggregates.
+        final HistogramShuttle histogramShuttle =
+            new HistogramShuttle(rexBuilder);
+        final List<RexNode> projects = new ArrayList<RexNode>();
+        for (RexLocalRef ref : program.getProjectList()) {
+            projects.add(
+                program.expandLocalRef(ref).accept(histogramShuttle));
+        }
+        final RexNode condition =
+            program.getCondition() == null
+            ? null
+            : program.expandLocalRef(program.getCondition()).accept(
+                histogramShuttle);
+
+        // Gather the distinct windowed aggregates, grouped by window, so
+        // that the rows need to be sorted only once per window. Arguments
+        // and keys that are not fields of the input are computed by a
+        // project below the windowed aggregate.
+        final Map<RexWindow, List<RexOver>> overMap =
+            new LinkedHashMap<RexWindow, List<RexOver>>();
+        final Set<String> overDigests = new HashSet<String>();
+        final List<RexNode> bottomExprs = new ArrayList<RexNode>();
+        for (int i = 0; i < inputFields.length; i++) {
+            bottomExprs.add(
+                rexBuilder.makeInputRef(inputFields[i].getType(), i));
+        }
+        final InputShuttle inputShuttle = new InputShuttle(bottomExprs);
+        final RexShuttle overFinder =
+            new RexShuttle() {
+                public RexNode visitOver(RexOver over)
+                {
+                    if (overDigests.add(over.toString())) {
+                        final RexOver over2 =
+                            (RexOver) over.accept(inputShuttle);
+                        List<RexOver> overs = overMap.get(over2.getWindow());
+                        if (overs == null) {
+                            overs = new ArrayList<RexOver>();
+                            overMap.put(over2.getWindow(), overs);
+                        }
+                        overs.add(over2);
+                    }
+                    return over;
+                }
+            };
+        for (RexNode project : projects) {
+            project.accept(overFinder);
+        }
+        if (condition != null) {
+            condition.accept(overFinder);
+        }
+
+        final RelNode bottom;
+        if (bottomExprs.size() == inputFields.length) {
+            bottom = child;
+        } else {
+            bottom = CalcRel.createProject(child, bottomExprs, null);
+        }
+
+        // The windowed aggregate passes through the input fields and
+        // appends the aggregates. Remember where each aggregate is, by the
+        // digest of the original aggregate.
+        final RexProgramBuilder builder =
+            new RexProgramBuilder(bottom.getRowType(), rexBuilder);
+        for (int i = 0; i < inputFields.length; i++) {
+            builder.addProject(i, inputFields[i].getName());
+        }
+        final List<RexOver> overList = new ArrayList<RexOver>();
+        for (List<RexOver> overs : overMap.values()) {
+            for (RexOver over : overs) {
+                builder.addProject(over, null);
+                overList.add(over);
+            }
+        }
+        final RexProgram windowProgram = builder.getProgram(false);
+        final WindowedAggregateRel window =
+            new WindowedAggregateRel(
+                cluster,
+                calc.getTraitSet(),
+                bottom,
+                windowProgram,
+                windowProgram.getOutputRowType());
+
+        // Replace each aggregate with a reference to its field.
+        final Map<String, Integer> overOrdinals =
+            new HashMap<String, Integer>();
+        for (int i = 0; i < overList.size(); i++) {
+            overOrdinals.put(
+                overList.get(i).toString(), inputFields.length + i);
+        }
+        final RexShuttle overReplacer =
+            new RexShuttle() {
+                public RexNode visitOver(RexOver over)
+                {
+                    final RexOver over2 = (RexOver) over.accept(inputShuttle);
+                    final Integer ordinal =
+                        overOrdinals.get(over2.toString());
+                    assert ordinal != null : over2;
+                    return new RexInputRef(ordinal, over.getType());
+                }
+            };
+        final RexNode [] topProjects = new RexNode[projects.size()];
+        for (int i = 0; i < topProjects.length; i++) {
+            topProjects[i] = projects.get(i).accept(overReplacer);
+        }
+        final RexProgram topProgram =
+            RexProgram.create(
+                window.getRowType(),
+                topProjects,
+                condition == null ? null : condition.accept(overReplacer),
+                calc.getRowType(),
+                rexBuilder);
+        call.transformTo(
+            new CalcRel(
+                cluster,
+                calc.getTraitSet(),
+                window,
+                calc.getRowType(),
+                topProgram,
+                Collections.<RelCollation>emptyList()));
+    }
+
+    //~ Inner Classes ----------------------------------------------------------
+
+    /**
+     * Shuttle which converts a histogram function applied to a windowed
+     * $HISTOGRAM aggregate, such as "$HISTOGRAM_MIN($HISTOGRAM(x) OVER w)",
+     * into the plain windowed aggregate, "MIN(x) OVER w".
+     */
+    private static class HistogramShuttle
+        extends RexShuttle
+    {
+        private final RexBuilder rexBuilder;
+
+        HistogramShuttle(RexBuilder rexBuilder)
+        {
+            this.rexBuilder = rexBuilder;
+        }
+
+        public RexNode visitCall(RexCall call)
+        {
+            final SqlAggFunction aggFunction =
+                getAggFunction(call.getOperator());
+            if (aggFunction != null
+                && call.operands.length == 1
+                && call.operands[0] instanceof RexOver)
+            {
+                final RexOver over = (RexOver) call.operands[0];
+                if (over.getAggOperator()
+                    == SqlStdOperatorTable.histogramAggFunction)
+                {
+                    final RexWindow window = over.getWindow();
+                    return rexBuilder.makeOver(
+                        call.getType(),
+                        aggFunction,
+                        over.getOperands(),
+                        window.partitionKeys,
+                        window.orderKeys,
+                        window.getLowerBound(),
+                        window.getUpperBound(),
+                        window.isRows(),
+                        true,
+                        false);
+                }
+            }
+            return super.visitCall(call);
+        }
+
+        private static SqlAggFunction getAggFunction(SqlOperator op)
+        {
+            if (op == SqlStdOperatorTable.histogramMinFunction) {
+                return SqlStdOperatorTable.minOperator;
+            } else if (op == SqlStdOperatorTable.histogramMaxFunction) {
+                return SqlStdOperatorTable.maxOperator;
+            } else if (op == SqlStdOperatorTable.histogramFirstValueFunction) {
+                return SqlStdOperatorTable.firstValueOperator;
+            } else if (op == SqlStdOperatorTable.histogramLastValueFunction) {
+                return SqlStdOperatorTable.lastValueOperator;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Shuttle which, applied to a windowed aggregate, replaces each argument
+     * and key that is not a field reference with a reference to a new field
+     * that computes it.
+     */
+    private static class InputShuttle
+        extends RexShuttle
+    {
+        private final List<RexNode> exprs;
+        private final Map<String, Integer> ordinals =
+            new HashMap<String, Integer>();
+
+        InputShuttle(List<RexNode> exprs)
+        {
+            this.exprs = exprs;
+        }
+
+        public RexNode visitCall(RexCall call)
+        {
+            // Keep the direction of a sort key, such as "DESC(x)", in the
+            // window; only its operand is computed below.
+            final SqlOperator op = call.getOperator();
+            if (op == SqlStdOperatorTable.descendingOperator
+                || op == SqlStdOperatorTable.nullsFirstOperator
+                || op == SqlStdOperatorTable.nullsLastOperator)
+            {
+                return super.visitCall(call);
+            }
+            return register(call);
+        }
+
+        public RexNode visitLiteral(RexLiteral literal)
+        {
+            return register(literal);
+        }
+
+        public RexNode visitFieldAccess(RexFieldAccess fieldAccess)
+        {
+            return register(fieldAccess);
+        }
+
+        public RexNode visitDynamicParam(RexDynamicParam dynamicParam)
+        {
+            return register(dynamicParam);
+        }
+
+        public RexNode visitCorrelVariable(RexCorrelVariable variable)
+        {
+            return register(variable);
+        }
+
+        private RexNode register(RexNode expr)
+        {
+            final String digest = expr.toString();
+            Integer ordinal = ordinals.get(digest);
+            if (ordinal == null) {
+                ordinal = exprs.size();
+                exprs.add(expr);
+                ordinals.put(digest, ordinal);
+            }
+            return new RexInputRef(ordinal, expr.getType());
+        }
+    }
+}
+
+// End WindowedAggSplitterRule.java
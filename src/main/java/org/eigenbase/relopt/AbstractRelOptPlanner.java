@@ -260,6 +260,12 @@ public abstract class AbstractRelOptPlanner
         return false;
     }
 
+    // implement RelOptPlanner
+    public RelTraitSet emptyTraitSet()
+    {
+        return RelTraitSet.createEmpty();
+    }
+
     /**
      * Fires a rule, taking care of tracing and listener notification.
      *
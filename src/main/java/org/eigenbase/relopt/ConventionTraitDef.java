@@ -75,6 +75,11 @@ public class ConventionTraitDef
         return "convention";
     }
 
+    public Convention getDefault()
+    {
+        return Convention.NONE;
+    }
+
     public void registerConverterRule(
         RelOptPlanner planner,
         ConverterRule converterRule)
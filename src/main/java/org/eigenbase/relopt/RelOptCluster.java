@@ -68,7 +68,7 @@ public class RelOptCluster
         // set up a default rel metadata provider,
         // giving the planner first crack at everything
         metadataProvider = new DefaultRelMetadataProvider();
-        emptyTraitSet = RelTraitSet.createEmpty();
+        emptyTraitSet = planner.emptyTraitSet();
     }
 
     //~ Methods ----------------------------------------------------------------
@@ -62,6 +62,16 @@ public interface RelOptPlanner
      */
     public boolean addRelTraitDef(RelTraitDef relTraitDef);
 
+    /**
+     * Creates an empty trait set. It contains the
+     * {@link RelTraitDef#getDefault() default} trait of each registered
+     * {@link RelTraitDef}, so that relational expressions have a trait of
+     * every kind that the planner tracks.
+     *
+     * @return Trait set
+     */
+    public RelTraitSet emptyTraitSet();
+
     /**
      * Registers a rule. If the rule has already been registered, does nothing.
      * This method should determine if the given rule is a {@link
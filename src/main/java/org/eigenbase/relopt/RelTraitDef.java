@@ -79,6 +79,36 @@ public abstract class RelTraitDef<T extends RelTrait>
      */
     public abstract String getSimpleName();
 
+    /**
+     * Returns the trait that a relational expression has if it does not say
+     * otherwise, or null if there is no such trait. The planner's empty trait
+     * set contains the default trait of each registered RelTraitDef.
+     *
+     * @return default trait, or null
+     */
+    public T getDefault()
+    {
+        return null;
+    }
+
+    /**
+     * Returns whether a relational expression that has a given trait may be
+     * used where a relational expression with another trait is required.
+     * The default implementation returns whether the traits are the same.
+     *
+     * <p>For example, rows sorted on (a, b) may be used where rows sorted on
+     * (a) or in no particular order are required.</p>
+     *
+     * @param trait Trait of a relational expression
+     * @param required Required trait
+     *
+     * @return whether trait satisfies required
+     */
+    public boolean satisfies(RelTrait trait, RelTrait required)
+    {
+        return trait == required;
+    }
+
     /**
      * Takes an arbitrary RelTrait and returns the canonical representation of
      * that RelTrait. Canonized RelTrait objects may always be compared using
@@ -230,6 +230,36 @@ public final class RelTraitSet extends AbstractList<RelTrait> {
         return true;
     }
 
+    /**
+     * Returns whether a relational expression with this trait set may be used
+     * where a relational expression with a given trait set is required; that
+     * is, whether each trait {@link RelTraitDef#satisfies satisfies} the
+     * corresponding trait of the other set. A null trait in the other set
+     * is satisfied by any trait.
+     *
+     * @param that Required trait set
+     *
+     * @return whether this trait set satisfies the other
+     */
+    public boolean satisfies(RelTraitSet that)
+    {
+        if (this.size() != that.size()) {
+            return false;
+        }
+        for (int i = 0; i < traits.length; i++) {
+            final RelTrait thisTrait = this.traits[i];
+            final RelTrait thatTrait = that.traits[i];
+            if ((thatTrait != null)
+                && ((thisTrait == null)
+                    || !thisTrait.getTraitDef().satisfies(
+                        thisTrait, thatTrait)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns whether this trait set contains a given trait.
      *
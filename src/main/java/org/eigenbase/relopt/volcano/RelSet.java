@@ -159,6 +159,19 @@ class RelSet
         if (subset == null) {
             subset = new RelSubset(cluster, this, traits);
 
+            // The best expression of an existing subset whose traits satisfy
+            // the new subset's traits is also an implementation of the new
+            // subset.
+            for (RelSubset subset1 : subsets) {
+                if (subset1.best != null
+                    && subset1.getTraitSet().satisfies(traits)
+                    && subset1.bestCost.isLt(subset.bestCost))
+                {
+                    subset.best = subset1.best;
+                    subset.bestCost = subset1.bestCost;
+                }
+            }
+
             final VolcanoPlanner planner =
                 (VolcanoPlanner) cluster.getPlanner();
 
@@ -307,6 +307,19 @@ public class RelSubset
                     parentSubset.propagateCostImprovements(
                         planner, parent, activeSet);
                 }
+
+                // The expression also implements subsets whose traits this
+                // subset's traits satisfy; for example, rows sorted on (a, b)
+                // are acceptable where rows in no particular order are
+                // required.
+                for (RelSubset subset : set.subsets) {
+                    if (subset != this
+                        && traitSet.satisfies(subset.traitSet))
+                    {
+                        subset.propagateCostImprovements(
+                            planner, rel, activeSet);
+                    }
+                }
                 planner.checkForSatisfiedConverters(set, rel);
             }
         } finally {
@@ -250,6 +250,18 @@ public class VolcanoPlanner
         return !traitDefs.contains(relTraitDef) && traitDefs.add(relTraitDef);
     }
 
+    public RelTraitSet emptyTraitSet()
+    {
+        RelTraitSet traitSet = super.emptyTraitSet();
+        for (RelTraitDef traitDef : traitDefs) {
+            final RelTrait trait = traitDef.getDefault();
+            if (trait != null) {
+                traitSet = traitSet.plus(trait);
+            }
+        }
+        return traitSet;
+    }
+
     public boolean addRule(RelOptRule rule)
     {
         if (locked) {
@@ -398,6 +410,7 @@ public class VolcanoPlanner
             int giveUpTick = Integer.MAX_VALUE;
 
             while (true) {
+                checkCancel();
                 ++tick;
                 ++cumulativeTicks;
                 if (root.bestCost.isLe(targetCost)) {
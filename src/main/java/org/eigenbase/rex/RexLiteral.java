@@ -572,6 +572,12 @@ public class RexLiteral
         return ((Number) value).intValue();
     }
 
+    public static long longValue(RexNode node)
+    {
+        final Comparable value = findValue(node);
+        return ((Number) value).longValue();
+    }
+
     public static String stringValue(RexNode node)
     {
         final Comparable value = findValue(node);
@@ -410,6 +410,46 @@ public class SqlDialect
         return databaseProduct;
     }
 
+    /**
+     * Returns whether this dialect supports the clause "LIMIT n" at the end
+     * of a query to limit the number of rows it returns.
+     *
+     * @return whether LIMIT is supported
+     */
+    public boolean supportsLimit()
+    {
+        switch (databaseProduct) {
+        case MYSQL:
+        case POSTGRESQL:
+        case HSQLDB:
+        case INFOBRIGHT:
+        case NETEZZA:
+        case VERTICA:
+        case PARACCEL:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether this dialect supports the SQL:2008 clause "FETCH FIRST n
+     * ROWS ONLY" at the end of a query to limit the number of rows it
+     * returns.
+     *
+     * @return whether FETCH FIRST is supported
+     */
+    public boolean supportsFetchFirst()
+    {
+        switch (databaseProduct) {
+        case DB2:
+        case DERBY:
+            return true;
+        default:
+            return false;
+        }
+    }
+
     /**
      * A few utility functions copied from org.eigenbase.util.Util. We have
      * copied them because we wish to keep SqlDialect's dependencies to a
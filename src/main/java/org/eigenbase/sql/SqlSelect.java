@@ -42,7 +42,9 @@ public class SqlSelect
     public static final int HAVING_OPERAND = 5;
     public static final int WINDOW_OPERAND = 6;
     public static final int ORDER_OPERAND = 7;
-    public static final int OPERAND_COUNT = 8;
+    public static final int OFFSET_OPERAND = 8;
+    public static final int FETCH_OPERAND = 9;
+    public static final int OPERAND_COUNT = 10;
 
     //~ Constructors -----------------------------------------------------------
 
@@ -126,6 +128,23 @@ public class SqlSelect
         return (SqlNodeList) operands[SqlSelect.ORDER_OPERAND];
     }
 
+    /**
+     * Returns the number of rows to skip (the OFFSET clause), or null.
+     */
+    public final SqlNode getOffset()
+    {
+        return operands[SqlSelect.OFFSET_OPERAND];
+    }
+
+    /**
+     * Returns the maximum number of rows to return (the FETCH clause), or
+     * null.
+     */
+    public final SqlNode getFetch()
+    {
+        return operands[SqlSelect.FETCH_OPERAND];
+    }
+
     public void addFrom(SqlIdentifier tableId)
     {
         SqlNode fromClause = getFrom();
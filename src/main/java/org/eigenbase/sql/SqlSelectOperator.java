@@ -101,6 +101,52 @@ public class SqlSelectOperator
         SqlNodeList windowDecls,
         SqlNode orderBy,
         SqlParserPos pos)
+    {
+        return createCall(
+            keywordList,
+            selectList,
+            fromClause,
+            whereClause,
+            groupBy,
+            having,
+            windowDecls,
+            orderBy,
+            null,
+            null,
+            pos);
+    }
+
+    /**
+     * Creates a call to the <code>SELECT</code> operator with OFFSET and
+     * FETCH clauses.
+     *
+     * @param keywordList List of keywords such DISTINCT and ALL, or null
+     * @param selectList The SELECT clause, or null if empty
+     * @param fromClause The FROM clause
+     * @param whereClause The WHERE clause, or null if not present
+     * @param groupBy The GROUP BY clause, or null if not present
+     * @param having The HAVING clause, or null if not present
+     * @param windowDecls The WINDOW clause, or null if not present
+     * @param orderBy The ORDER BY clause, or null if not present
+     * @param offset The OFFSET clause, or null if not present
+     * @param fetch The FETCH clause, or null if not present
+     * @param pos The parser position, or {@link SqlParserPos#ZERO} if not
+     * specified; must not be null.
+     *
+     * @return A {@link SqlSelect}, never null
+     */
+    public SqlSelect createCall(
+        SqlNodeList keywordList,
+        SqlNodeList selectList,
+        SqlNode fromClause,
+        SqlNode whereClause,
+        SqlNode groupBy,
+        SqlNode having,
+        SqlNodeList windowDecls,
+        SqlNode orderBy,
+        SqlNode offset,
+        SqlNode fetch,
+        SqlParserPos pos)
     {
         if (keywordList == null) {
             keywordList = new SqlNodeList(pos);
@@ -117,7 +163,9 @@ public class SqlSelectOperator
             groupBy,
             having,
             windowDecls,
-            orderBy);
+            orderBy,
+            offset,
+            fetch);
     }
 
     public <R> void acceptCall(
@@ -257,9 +305,33 @@ public class SqlSelectOperator
             unparseListClause(writer, orderClause);
             writer.endList(orderFrame);
         }
+        unparseOffsetFetch(
+            writer,
+            operands[SqlSelect.OFFSET_OPERAND],
+            operands[SqlSelect.FETCH_OPERAND]);
         writer.endList(selectFrame);
     }
 
+    /**
+     * Unparses the OFFSET and FETCH clauses of a query, if present.
+     */
+    static void unparseOffsetFetch(
+        SqlWriter writer,
+        SqlNode offset,
+        SqlNode fetch)
+    {
+        if (offset != null) {
+            writer.sep("OFFSET");
+            offset.unparse(writer, 0, 0);
+            writer.keyword("ROWS");
+        }
+        if (fetch != null) {
+            writer.sep("FETCH NEXT");
+            fetch.unparse(writer, 0, 0);
+            writer.keyword("ROWS ONLY");
+        }
+    }
+
     public boolean argumentMustBeScalar(int ordinal)
     {
         return ordinal == SqlSelect.WHERE_OPERAND;
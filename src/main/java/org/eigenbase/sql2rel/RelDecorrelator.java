@@ -293,7 +293,9 @@ public class RelDecorrelator
                 rel.getCluster(),
                 rel.getCluster().traitSetOf(Convention.NONE),
                 newChildRel,
-                newCollations);
+                newCollations,
+                rel.offset,
+                rel.fetch);
 
         mapOldToNewRel.put(rel, newRel);
 
@@ -352,7 +352,9 @@ public class RelStructuredTypeFlattener
                 rel.getCluster(),
                 rel.getCluster().traitSetOf(Convention.NONE),
                 getNewForOldRel(rel.getChild()),
-                newCollations);
+                newCollations,
+                rel.offset,
+                rel.fetch);
         setNewForOldRel(rel, newRel);
     }
 
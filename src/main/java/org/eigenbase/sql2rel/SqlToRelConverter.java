@@ -679,7 +679,7 @@ public class SqlToRelConverter
     }
 
     /**
-     * Converts a query's ORDER BY clause, if any.
+     * Converts a query's ORDER BY, OFFSET and FETCH clauses, if any.
      *
      * @param select Query
      * @param bb Blackboard
@@ -693,7 +693,10 @@ public class SqlToRelConverter
         List<RelFieldCollation> collationList,
         List<SqlNode> orderExprList)
     {
-        if (select.getOrderList() == null) {
+        if (select.getOrderList() == null
+            && select.getOffset() == null
+            && select.getFetch() == null)
+        {
             assert collationList.isEmpty();
             return;
         }
@@ -704,7 +707,9 @@ public class SqlToRelConverter
                 cluster,
                 cluster.traitSetOf(Convention.NONE),
                 bb.root,
-                collationList),
+                collationList,
+                convertLimit(select.getOffset()),
+                convertLimit(select.getFetch())),
             false);
 
         // If extra expressions were added to the project list for sorting,
@@ -724,6 +729,19 @@ public class SqlToRelConverter
         }
     }
 
+    /**
+     * Converts the value of an OFFSET or FETCH clause to a literal, or
+     * returns null if the clause is not present.
+     */
+    private RexNode convertLimit(SqlNode node)
+    {
+        if (node == null) {
+            return null;
+        }
+        return rexBuilder.makeExactLiteral(
+            ((SqlLiteral) node).bigDecimalValue());
+    }
+
     /**
      * Returns whether a given node contains a {@link SqlInOperator}.
      *
@@ -27,7 +27,9 @@ public class CancelFlag
 {
     //~ Instance fields --------------------------------------------------------
 
-    private boolean cancelRequested;
+    /** Whether a cancellation has been requested. Volatile because the flag
+     * is typically set by one thread (say a timer) and checked by another. */
+    private volatile boolean cancelRequested;
 
     //~ Methods ----------------------------------------------------------------
 
@@ -17,10 +17,11 @@
 */
 package net.hydromatic.optiq.impl.generate;
 
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
 import net.hydromatic.linq4j.Enumerator;
 
-import net.hydromatic.optiq.Schema;
-import net.hydromatic.optiq.TableFactory;
+import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.impl.AbstractTable;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
 
@@ -28,14 +29,23 @@ import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeFactory;
 import org.eigenbase.sql.type.SqlTypeName;
 
+import java.io.Closeable;
 import java.lang.reflect.Type;
-import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Table that returns a range of integers.
  */
-public class RangeTable extends AbstractTable<Integer> {
+public class RangeTable
+    extends AbstractTable<Integer>
+    implements PartitionableTable<Integer>
+{
+    /** Number of enumerators that have been created and not closed. Tests
+     * use it to check that closing a result set closes its sources. */
+    public static final AtomicInteger OPEN_ENUMERATOR_COUNT =
+        new AtomicInteger();
+
     private final int start;
     private final int end;
 
@@ -67,26 +77,71 @@ public class RangeTable extends AbstractTable<Integer> {
             schema, Object[].class, rowType, tableName, start, end);
     }
 
+    @Override
+    public Statistic getStatistic() {
+        return Statistics.of(end - start, Collections.<BitSet>emptyList());
+    }
+
     public Enumerator<Integer> enumerator() {
-        return new Enumerator<Integer>() {
-            int current = start - 1;
-
-            public Integer current() {
-                if (current >= end) {
-                    throw new NoSuchElementException();
-                }
-                return current;
+        return enumerator(start, end);
+    }
+
+    public Enumerable<Integer> partition(int partition, int partitionCount) {
+        final int size = end - start;
+        final int partitionStart =
+            start + (int) ((long) size * partition / partitionCount);
+        final int partitionEnd =
+            start + (int) ((long) size * (partition + 1) / partitionCount);
+        return new AbstractEnumerable<Integer>() {
+            public Enumerator<Integer> enumerator() {
+                return RangeTable.enumerator(partitionStart, partitionEnd);
             }
+        };
+    }
+
+    private static Enumerator<Integer> enumerator(int start, int end) {
+        return new RangeEnumerator(start, end);
+    }
+
+    /** Enumerator that returns the integers in a range. Counts itself in
+     * {@link #OPEN_ENUMERATOR_COUNT} until it is closed. */
+    private static class RangeEnumerator
+        implements Enumerator<Integer>, Closeable
+    {
+        private final int start;
+        private final int end;
+        private int current;
+        private boolean closed;
+
+        RangeEnumerator(int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.current = start - 1;
+            OPEN_ENUMERATOR_COUNT.incrementAndGet();
+        }
 
-            public boolean moveNext() {
-                ++current;
-                return current < end;
+        public Integer current() {
+            if (current >= end) {
+                throw new NoSuchElementException();
             }
+            return current;
+        }
+
+        public boolean moveNext() {
+            ++current;
+            return current < end;
+        }
+
+        public void reset() {
+            current = start - 1;
+        }
 
-            public void reset() {
-                current = start - 1;
+        public void close() {
+            if (!closed) {
+                closed = true;
+                OPEN_ENUMERATOR_COUNT.decrementAndGet();
             }
-        };
+        }
     }
 
     /** Implementation of {@link net.hydromatic.optiq.TableFactory} that allows
@@ -17,8 +17,15 @@
 */
 package net.hydromatic.optiq.test;
 
+import net.hydromatic.linq4j.function.Function1;
+
+import net.hydromatic.optiq.runtime.Hook;
+
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static net.hydromatic.optiq.test.OptiqAssert.assertThat;
 
 /**
@@ -249,6 +256,27 @@ public class JdbcFrontJdbcBackLinqMiddleTest extends TestCase {
                 + "          }\n");
     }
 
+    /** Tests that a FETCH is pushed through a projection and into the scan
+     * of a JDBC table, so that the back-end database returns only the rows
+     * that are needed. */
+    public void testPlanFetch() {
+        assertThat()
+            .with(OptiqAssert.Config.JDBC_FOODMART)
+            .query(
+                "select upper(c.\"state_province\") as s\n"
+                + "from \"foodmart\".\"customer\" as c\n"
+                + "fetch first 3 rows only")
+            .planContains(
+                "getTable(\"customer\", java.lang.Object.class)).limit(3)")
+            .returns(
+                new Function1<String, Void>() {
+                    public Void apply(String s) {
+                        assertEquals(3, s.split("\n").length);
+                        return null;
+                    }
+                });
+    }
+
     public void testPlan3() {
         // Plan should contain 'join'. If it doesn't, maybe int-vs-Integer
         // data type incompatibility has caused it to use a cartesian product
@@ -258,7 +286,105 @@ public class JdbcFrontJdbcBackLinqMiddleTest extends TestCase {
             .query(
                 "select \"store\".\"store_country\" as \"c0\", sum(\"inventory_fact_1997\".\"supply_time\") as \"m0\" from \"store\" as \"store\", \"inventory_fact_1997\" as \"inventory_fact_1997\" where \"inventory_fact_1997\".\"store_id\" = \"store\".\"store_id\" group by \"store\".\"store_country\"")
             .planContains(
-                "  final net.hydromatic.linq4j.Enumerable _inputEnumerable = root.getSubSchema(\"foodmart2\").getTable(\"store\", java.lang.Object.class).join(root.getSubSchema(\"foodmart2\").getTable(\"inventory_fact_1997\", java.lang.Object.class), new net.hydromatic.linq4j.function.Function1() {\n");
+                "net.hydromatic.optiq.runtime.SpillingEnumerables.join(root, net.hydromatic.optiq.runtime.Utilities.cancellable(root, root.getSubSchema(\"foodmart2\").getTable(\"store\", java.lang.Object.class)), net.hydromatic.optiq.runtime.Utilities.cancellable(root, root.getSubSchema(\"foodmart2\").getTable(\"inventory_fact_1997\", java.lang.Object.class)), new net.hydromatic.linq4j.function.Function1() {\n");
+    }
+
+    /** Tests that generating the code that reads rows from a JDBC result set
+     * does not call {@link Hook#JAVA_PLAN}; the hook should see only the
+     * plan, whether or not a reader for the row type has been generated
+     * before. */
+    public void testRowReaderIsNotPlan() {
+        final List<String> plans = new ArrayList<String>();
+        final Hook.Closeable hook = Hook.JAVA_PLAN.add(
+            new Function1<Object, Object>() {
+                public Object apply(Object a0) {
+                    plans.add((String) a0);
+                    return null;
+                }
+            });
+        try {
+            assertThat()
+                .with(OptiqAssert.Config.JDBC_FOODMART)
+                .query("select * from \"foodmart\".\"warehouse_class\"")
+                .runs();
+        } finally {
+            hook.close();
+        }
+        assertFalse(plans.isEmpty());
+        for (String plan : plans) {
+            assertFalse(plan, plan.contains("ResultSetGetters"));
+        }
+    }
+
+    /** Tests that a hash join's filter is pushed into the query sent to the
+     * database for its probe side. The build side, days filtered to Monday
+     * and Tuesday, has keys 2 and 3, so the database is asked only for
+     * stores whose id is between 2 and 3. */
+    public void testJoinFilterRange() {
+        final List<String> sqls = new ArrayList<String>();
+        final Hook.Closeable hook = Hook.JDBC_SQL.add(
+            new Function1<Object, Object>() {
+                public Object apply(Object a0) {
+                    sqls.add((String) a0);
+                    return null;
+                }
+            });
+        try {
+            assertThat()
+                .with(OptiqAssert.Config.JDBC_FOODMART)
+                .query(
+                    "select s.\"store_id\"\n"
+                    + "from \"foodmart\".\"store\" as s\n"
+                    + "join \"foodmart\".\"days\" as d\n"
+                    + "on s.\"store_id\" = d.\"day\"\n"
+                    + "where d.\"week_day\" in ('Monday', 'Tuesday')\n"
+                    + "order by 1")
+                .planContains(".range(")
+                .returns(
+                    "store_id=2\n"
+                    + "store_id=3\n");
+        } finally {
+            hook.close();
+        }
+        int count = 0;
+        for (String sql : sqls) {
+            if (sql.contains("store")) {
+                assertTrue(sql, sql.contains("BETWEEN 2 AND 3"));
+                ++count;
+            }
+        }
+        assertTrue(sqls.toString(), count > 0);
+    }
+
+    /** Tests that a hash join's filter is applied to a cloned table, which
+     * finds the range of its sort field by binary search. */
+    public void testJoinFilterRangeClone() {
+        assertThat()
+            .with(OptiqAssert.Config.FOODMART_CLONE)
+            .query(
+                "select s.\"store_id\"\n"
+                + "from \"store\" as s\n"
+                + "join \"days\" as d\n"
+                + "on s.\"store_id\" = d.\"day\"\n"
+                + "where d.\"week_day\" in ('Monday', 'Tuesday')\n"
+                + "order by 1")
+            .planContains(".range(")
+            .returns(
+                "store_id=2\n"
+                + "store_id=3\n");
+    }
+
+    /** Tests that nullable DATE and TIMESTAMP columns read from JDBC keep
+     * their values, and null stays null. */
+    public void testNullableDatetime() {
+        assertThat()
+            .with(OptiqAssert.Config.FOODMART_CLONE)
+            .query(
+                "select \"hire_date\", \"end_date\", \"birth_date\"\n"
+                + "from \"employee\" where \"employee_id\" = 1")
+            .returns(
+                "hire_date=1994-12-01T08:00:00Z; end_date=null;"
+                + " birth_date=1961-08-26\n");
     }
 }
 
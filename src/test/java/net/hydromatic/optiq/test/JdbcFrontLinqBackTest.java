@@ -79,8 +79,40 @@ public class JdbcFrontLinqBackTest extends TestCase {
                 + "from \"hr\".\"emps\" as e\n"
                 + "group by \"deptno\"")
             .returns(
-                "deptno=20; S=200; C=1\n"
-                + "deptno=10; S=250; C=2\n");
+                "deptno=10; S=250; C=2\n"
+                + "deptno=20; S=200; C=1\n");
+    }
+
+    /**
+     * GROUP BY on two int keys, which are packed into a long.
+     */
+    public void testGroupByTwoIntKeys() {
+        assertThat()
+            .query(
+                "select \"deptno\", \"empid\" / 100 as h, count(*) as c\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "group by \"deptno\", \"empid\" / 100")
+            .returns(
+                "deptno=10; H=1; C=2\n"
+                + "deptno=20; H=2; C=1\n");
+    }
+
+    /**
+     * Aggregates of a nullable column, including a group that has only
+     * nulls.
+     */
+    public void testGroupByNullableAggregates() {
+        assertThat()
+            .query(
+                "select \"empid\", min(\"commission\") as mi,\n"
+                + " max(\"commission\") as ma, sum(\"commission\") as s,\n"
+                + " count(\"commission\") as c\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "group by \"empid\"")
+            .returns(
+                "empid=100; MI=1000; MA=1000; S=1000; C=1\n"
+                + "empid=200; MI=500; MA=500; S=500; C=1\n"
+                + "empid=150; MI=null; MA=null; S=null; C=0\n");
     }
 
     /**
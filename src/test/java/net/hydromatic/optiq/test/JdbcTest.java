@@ -21,6 +21,9 @@ import net.hydromatic.linq4j.*;
 import net.hydromatic.linq4j.expressions.*;
 import net.hydromatic.linq4j.expressions.Types;
 import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Function2;
+import net.hydromatic.linq4j.function.Functions;
+import net.hydromatic.linq4j.function.Predicate2;
 
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.impl.*;
@@ -32,6 +35,13 @@ import net.hydromatic.optiq.impl.java.ReflectiveSchema;
 import net.hydromatic.optiq.impl.jdbc.JdbcSchema;
 import net.hydromatic.optiq.jdbc.*;
 import net.hydromatic.optiq.prepare.Prepare;
+import net.hydromatic.optiq.runtime.AsyncEnumerator;
+import net.hydromatic.optiq.runtime.Hook;
+import net.hydromatic.optiq.runtime.JoinEnumerables;
+import net.hydromatic.optiq.runtime.WindowEnumerables;
+import net.hydromatic.optiq.server.OptiqServer;
+import net.hydromatic.optiq.server.OptiqServerImpl;
+import net.hydromatic.optiq.server.StatementInfo;
 
 import junit.framework.TestCase;
 
@@ -43,11 +53,15 @@ import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.sql.SqlDialect;
 import org.eigenbase.util.Bug;
 
+import java.io.Closeable;
+import java.io.File;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.sql.*;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import javax.sql.DataSource;
 
 /**
@@ -366,25 +380,157 @@ public class JdbcTest extends TestCase {
                 + "c0=1997; c1=Q1; c2=Non-Consumable; m0=12506.0000\n");
     }
 
-    /** Tests plan for a query with 4 tables, 3 joins. */
+    /** Tests plan for a query with 4 tables, 3 joins. The join order is
+     * chosen by {@link org.eigenbase.rel.rules.OptimizeMultiJoinRule}, which
+     * joins each table to one it has a condition with, so there is no
+     * cartesian product. The aggregate may be split around a join by
+     * {@link org.eigenbase.rel.rules.PushAggregatePastJoinRule}. */
     public void testCloneGroupBy2Plan() {
-        // NOTE: Plan is nowhere near optimal yet.
         OptiqAssert.assertThat()
             .with(OptiqAssert.Config.FOODMART_CLONE)
             .query(
                 "explain plan for select \"time_by_day\".\"the_year\" as \"c0\", \"time_by_day\".\"quarter\" as \"c1\", \"product_class\".\"product_family\" as \"c2\", sum(\"sales_fact_1997\".\"unit_sales\") as \"m0\" from \"time_by_day\" as \"time_by_day\", \"sales_fact_1997\" as \"sales_fact_1997\", \"product_class\" as \"product_class\", \"product\" as \"product\" where \"sales_fact_1997\".\"time_id\" = \"time_by_day\".\"time_id\" and \"time_by_day\".\"the_year\" = 1997 and \"sales_fact_1997\".\"product_id\" = \"product\".\"product_id\" and \"product\".\"product_class_id\" = \"product_class\".\"product_class_id\" group by \"time_by_day\".\"the_year\", \"time_by_day\".\"quarter\", \"product_class\".\"product_family\"")
             .returns(
-                "PLAN=EnumerableAggregateRel(group=[{0, 1, 2}], m0=[SUM($3)])\n"
-                + "  EnumerableCalcRel(expr#0..37=[{inputs}], c0=[$t4], c1=[$t8], c2=[$t22], unit_sales=[$t17])\n"
-                + "    EnumerableJoinRel(condition=[AND(=($10, $24), =($23, $18))], joinType=[inner])\n"
-                + "      EnumerableJoinRel(condition=[true], joinType=[inner])\n"
-                + "        EnumerableJoinRel(condition=[=($11, $0)], joinType=[inner])\n"
-                + "          EnumerableCalcRel(expr#0..9=[{inputs}], expr#10=[CAST($t4):INTEGER], expr#11=[1997], expr#12=[=($t10, $t11)], proj#0..9=[{exprs}], $condition=[$t12])\n"
-                + "            EnumerableTableAccessRel(table=[[foodmart2, time_by_day]])\n"
-                + "          EnumerableTableAccessRel(table=[[foodmart2, sales_fact_1997]])\n"
-                + "        EnumerableTableAccessRel(table=[[foodmart2, product_class]])\n"
-                + "      EnumerableTableAccessRel(table=[[foodmart2, product]])\n"
-                + "\n");
+                new Function1<String, Void>() {
+                    public Void apply(String plan) {
+                        final String[] lines = plan.split("\n");
+                        assertTrue(
+                            plan,
+                            lines[0].startsWith(
+                                "PLAN=EnumerableAggregateRel("
+                                + "group=[{0, 1, 2}], m0=[SUM($"));
+
+                        // Joins sales to time first, because the filter on
+                        // time makes that join the smallest; then product;
+                        // then product_class.
+                        assertEquals(
+                            plan,
+                            "{product_class, {product,"
+                            + " {sales_fact_1997, time_by_day}}}",
+                            joinTree(plan));
+
+                        // Each join is an inner equi-join on a single key;
+                        // none is a cartesian product.
+                        int joinCount = 0;
+                        int aggregateCount = 0;
+                        final Map<String, Integer> scanCounts =
+                            new TreeMap<String, Integer>();
+                        for (int i = 0; i < lines.length; i++) {
+                            final String line = lines[i];
+                            if (line.contains("JoinRel(")) {
+                                ++joinCount;
+                                assertTrue(
+                                    plan, line.contains("condition=[=($"));
+                                assertTrue(
+                                    plan, line.contains("joinType=[inner]"));
+                            }
+                            if (line.contains("AggregateRel(")) {
+                                ++aggregateCount;
+                            }
+                            final int table = line.indexOf("table=[[");
+                            if (table >= 0) {
+                                final String name = line.substring(table);
+                                final Integer count = scanCounts.get(name);
+                                scanCounts.put(
+                                    name, count == null ? 1 : count + 1);
+                            }
+                            // The filter on the year is applied directly to
+                            // the scan of time_by_day.
+                            if (line.contains("time_by_day]]")) {
+                                assertTrue(
+                                    plan, lines[i - 1].contains("1997"));
+                                assertTrue(
+                                    plan, lines[i - 1].contains("$condition"));
+                            }
+                        }
+                        assertEquals(plan, 3, joinCount);
+
+                        // The aggregate is at the top, and at most one
+                        // partial aggregate is pushed below a join.
+                        assertTrue(
+                            plan, aggregateCount == 1 || aggregateCount == 2);
+
+                        // Each table is scanned exactly once.
+                        assertEquals(
+                            plan,
+                            "{table=[[foodmart2, product]])=1,"
+                            + " table=[[foodmart2, product_class]])=1,"
+                            + " table=[[foodmart2, sales_fact_1997]])=1,"
+                            + " table=[[foodmart2, time_by_day]])=1}",
+                            scanCounts.toString());
+                        assertFalse(plan, plan.contains("SortRel"));
+                        return null;
+                    }
+                });
+    }
+
+    /** Returns a checker that the join tree of a plan is as expected.
+     *
+     * @see #joinTree(String) */
+    static Function1<String, Void> checkJoinTree(final String expected) {
+        return new Function1<String, Void>() {
+            public Void apply(String plan) {
+                assertEquals(plan, expected, joinTree(plan));
+                return null;
+            }
+        };
+    }
+
+    /** Returns the tree of joins in a plan; for example,
+     * "{depts, {emps, emps}}". Shows the table of each scan, and the inputs
+     * of each join, omitting other relational expressions. The inputs of a
+     * join are sorted, because the planner may swap them. */
+    static String joinTree(String plan) {
+        final List<String> lines = new ArrayList<String>();
+        for (String line : plan.split("\n")) {
+            if (line.startsWith("PLAN=")) {
+                line = line.substring("PLAN=".length());
+            }
+            if (line.trim().length() > 0) {
+                lines.add(line);
+            }
+        }
+        return joinTree(lines, 0);
+    }
+
+    private static String joinTree(List<String> lines, int i) {
+        final String line = lines.get(i);
+        final int indent = indent(line);
+        final List<String> inputs = new ArrayList<String>();
+        for (int j = i + 1; j < lines.size(); j++) {
+            final int inputIndent = indent(lines.get(j));
+            if (inputIndent <= indent) {
+                break;
+            }
+            if (inputIndent == indent + 2) {
+                inputs.add(joinTree(lines, j));
+            }
+        }
+        final int table = line.indexOf("table=[[");
+        if (table >= 0) {
+            final String names = line.substring(table, line.indexOf("]]"));
+            return names.substring(names.lastIndexOf(", ") + 2);
+        }
+        if (inputs.size() == 1) {
+            return inputs.get(0);
+        }
+        Collections.sort(inputs);
+        final StringBuilder buf = new StringBuilder("{");
+        for (String input : inputs) {
+            if (buf.length() > 1) {
+                buf.append(", ");
+            }
+            buf.append(input);
+        }
+        return buf.append("}").toString();
+    }
+
+    private static int indent(String line) {
+        int i = 0;
+        while (i < line.length() && line.charAt(i) == ' ') {
+            ++i;
+        }
+        return i;
     }
 
     private static final String[] queries = {
@@ -775,6 +921,661 @@ public class JdbcTest extends TestCase {
                 + "store_id=0; grocery_sqft=null\n");
     }
 
+    /** Tests that ORDER BY does not sort if the input is already sorted.
+     * A cloned table is stored in order of its first unique column. */
+    public void testOrderByPresorted() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.FOODMART_CLONE)
+            .query(
+                "select \"store_id\", \"grocery_sqft\" from \"store\"\n"
+                + "where \"store_id\" < 3 order by 1")
+            .planDoesNotContain("orderBy(")
+            .returns(
+                "store_id=0; grocery_sqft=null\n"
+                + "store_id=1; grocery_sqft=17475\n"
+                + "store_id=2; grocery_sqft=22271\n");
+    }
+
+    /** Tests a join of two tables that are stored in order of the join key,
+     * which therefore uses a merge join. The output is in key order, so the
+     * ORDER BY does not sort. */
+    public void testMergeJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.FOODMART_CLONE)
+            .query(
+                "select s.\"store_id\", w.\"warehouse_id\"\n"
+                + "from \"store\" as s\n"
+                + "left join \"warehouse\" as w\n"
+                + "on s.\"store_id\" = w.\"warehouse_id\"\n"
+                + "order by 1 fetch next 3 rows only")
+            .planContains("SortedEnumerables.mergeJoin(")
+            .planDoesNotContain("TopN.orderBy(")
+            .returns(
+                "store_id=0; warehouse_id=null\n"
+                + "store_id=1; warehouse_id=1\n"
+                + "store_id=2; warehouse_id=2\n");
+    }
+
+    /** Tests a join whose condition is an inequality, which is evaluated by
+     * sorting one input and searching it for each row of the other. */
+    public void testBandJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select e.\"empid\", d.\"deptno\"\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "join \"hr\".\"depts\" as d\n"
+                + "on e.\"deptno\" < d.\"deptno\"\n"
+                + "order by 1, 2")
+            .planContains("JoinEnumerables.bandJoin(")
+            .returns(
+                "empid=100; deptno=30\n"
+                + "empid=100; deptno=40\n"
+                + "empid=150; deptno=30\n"
+                + "empid=150; deptno=40\n"
+                + "empid=200; deptno=30\n"
+                + "empid=200; deptno=40\n");
+    }
+
+    /** Tests an outer join whose condition is not an equality, which is
+     * evaluated by a nested-loop join. */
+    public void testNestedLoopLeftJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select e.\"empid\", d.\"deptno\"\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "left join \"hr\".\"depts\" as d\n"
+                + "on e.\"deptno\" > d.\"deptno\"\n"
+                + "order by 1")
+            .planContains("JoinEnumerables.nestedLoopJoin(")
+            .returns(
+                "empid=100; deptno=null\n"
+                + "empid=150; deptno=null\n"
+                + "empid=200; deptno=10\n");
+    }
+
+    /** Tests the nested-loop join with a chunk size smaller than the inner
+     * input, so that the outer input is read once per chunk, and the last
+     * chunk is not full. */
+    public void testNestedLoopJoinChunks() {
+        final List<Integer> outerList = Arrays.asList(1, 2, 3, 4, 5);
+        final List<Integer> innerList = Arrays.asList(2, 3, 4, 6, 8, 10, 12);
+        final int[] outerCount = {0};
+        final Enumerable<Integer> outer =
+            new AbstractEnumerable<Integer>() {
+                public Enumerator<Integer> enumerator() {
+                    ++outerCount[0];
+                    return Linq4j.enumerator(outerList);
+                }
+            };
+        final Enumerable<String> join =
+            JoinEnumerables.nestedLoopJoin(
+                outer,
+                Linq4j.asEnumerable(innerList),
+                new Predicate2<Integer, Integer>() {
+                    public boolean apply(Integer v0, Integer v1) {
+                        return v0 * 2 == v1;
+                    }
+                },
+                new Function2<Integer, Integer, String>() {
+                    public String apply(Integer v0, Integer v1) {
+                        return v0 + "-" + v1;
+                    }
+                },
+                true,
+                true,
+                2);
+        // Unmatched inner rows are returned after each chunk.
+        assertEquals(
+            "[1-2, null-3, 2-4, 3-6, 4-8, 5-10, null-12]",
+            join.toList().toString());
+        assertEquals(4, outerCount[0]);
+    }
+
+    /** Tests a left outer equi-join, which the hash join implements
+     * directly. */
+    public void testHashLeftJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select e.\"empid\", d.\"name\"\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "left join \"hr\".\"depts\" as d\n"
+                + "on e.\"deptno\" = d.\"deptno\"\n"
+                + "order by 1")
+            .returns(
+                "empid=100; name=Sales\n"
+                + "empid=150; name=Sales\n"
+                + "empid=200; name=null\n");
+    }
+
+    /** Tests a right outer equi-join; the rows of the right input that match
+     * nothing are returned after the matching rows. */
+    public void testHashRightJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select d.\"deptno\", e.\"empid\"\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "right join \"hr\".\"depts\" as d\n"
+                + "on e.\"deptno\" = d.\"deptno\"\n"
+                + "order by 1, 2")
+            .returns(
+                "deptno=10; empid=100\n"
+                + "deptno=10; empid=150\n"
+                + "deptno=30; empid=null\n"
+                + "deptno=40; empid=null\n");
+    }
+
+    /** Tests an aggregate on a join whose arguments all come from one input,
+     * which {@link org.eigenbase.rel.rules.PushAggregatePastJoinRule} can
+     * split into a partial aggregate below the join and a final aggregate
+     * above it. */
+    public void testAggregateOnJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select d.\"name\", count(*) as c, sum(e.\"empid\") as s,\n"
+                + "  min(e.\"commission\") as m\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "join \"hr\".\"depts\" as d\n"
+                + "on e.\"deptno\" = d.\"deptno\"\n"
+                + "group by d.\"name\"")
+            .explainMatches(
+                new Function1<String, Void>() {
+                    public Void apply(String plan) {
+                        assertTrue(plan, hasAggregateBelowJoin(plan));
+                        return null;
+                    }
+                })
+            .returns("name=Sales; C=2; S=250; M=1000\n");
+    }
+
+    /** Returns whether a plan has an aggregate among the inputs of a join;
+     * that is, whether
+     * {@link org.eigenbase.rel.rules.PushAggregatePastJoinRule} has pushed a
+     * partial aggregate into the join. */
+    static boolean hasAggregateBelowJoin(String plan) {
+        final String[] lines = plan.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (!lines[i].contains("JoinRel(")) {
+                continue;
+            }
+            final int indent = indent(lines[i]);
+            for (int j = i + 1; j < lines.length; j++) {
+                if (indent(lines[j]) <= indent) {
+                    break;
+                }
+                if (lines[j].contains("AggregateRel(")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Tests a join of three inputs, whose order is chosen by
+     * {@link org.eigenbase.rel.rules.OptimizeMultiJoinRule}. */
+    public void testThreeWayJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select e.\"empid\", d.\"name\", e2.\"empid\" as \"e2\"\n"
+                + "from \"hr\".\"emps\" as e,\n"
+                + "  \"hr\".\"depts\" as d,\n"
+                + "  \"hr\".\"emps\" as e2\n"
+                + "where e.\"deptno\" = d.\"deptno\"\n"
+                + "and e2.\"deptno\" = d.\"deptno\"\n"
+                + "and e2.\"empid\" <> e.\"empid\"\n"
+                + "order by 1")
+            .explainMatches(checkJoinTree("{emps, {depts, emps}}"))
+            .returns(
+                "empid=100; name=Sales; e2=150\n"
+                + "empid=150; name=Sales; e2=100\n");
+    }
+
+    /** Tests a join of three inputs, one of which is the null-generating
+     * input of an outer join. */
+    public void testThreeWayJoinWithOuterJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select e.\"empid\", d.\"name\", e2.\"name\" as \"e2\"\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "left join \"hr\".\"depts\" as d\n"
+                + "on e.\"deptno\" = d.\"deptno\"\n"
+                + "join \"hr\".\"emps\" as e2\n"
+                + "on e.\"empid\" = e2.\"empid\"\n"
+                + "order by 1")
+            .explainMatches(checkJoinTree("{emps, {depts, emps}}"))
+            .returns(
+                "empid=100; name=Sales; e2=Bill\n"
+                + "empid=150; name=Sales; e2=Sebastian\n"
+                + "empid=200; name=null; e2=Eric\n");
+    }
+
+    /** Tests that a hash join whose build side is the smaller input applies
+     * a join filter, built from the build side's keys, to its probe side. */
+    public void testHashJoinFilter() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select e.\"empid\"\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "join \"hr\".\"depts\" as d\n"
+                + "on e.\"deptno\" = d.\"deptno\"\n"
+                + "where d.\"name\" = 'Sales'\n"
+                + "order by 1")
+            .planContains("new net.hydromatic.optiq.runtime.JoinFilter()")
+            .planContains(".probe(")
+            .returns(
+                "empid=100\n"
+                + "empid=150\n");
+    }
+
+    /** Tests a join filter whose probe input is a self-join. Both sides of
+     * the self-join read the same scan, so the filter, which applies to
+     * e2, must not be applied to the scan, or it would discard rows of
+     * e1. */
+    public void testHashJoinFilterSelfJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select e1.\"empid\" as \"e1\", e2.\"empid\" as \"e2\"\n"
+                + "from \"hr\".\"emps\" as e1\n"
+                + "join \"hr\".\"emps\" as e2\n"
+                + "on e1.\"empid\" = e2.\"empid\" + 50\n"
+                + "join \"hr\".\"depts\" as d\n"
+                + "on e2.\"deptno\" = d.\"deptno\"\n"
+                + "where d.\"name\" = 'Sales'\n"
+                + "order by 1")
+            .returns(
+                "e1=150; e2=100\n"
+                + "e1=200; e2=150\n");
+    }
+
+    /** Tests an IN subquery, which becomes a semi-join. */
+    public void testInSubquerySemiJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "where \"deptno\" in (\n"
+                + "  select \"deptno\" from \"hr\".\"depts\")\n"
+                + "order by 1")
+            .planContains("JoinEnumerables.semiJoin(")
+            .returns(
+                "empid=100\n"
+                + "empid=150\n");
+    }
+
+    /** Tests a NOT IN subquery, which becomes an anti-join. */
+    public void testNotInSubqueryAntiJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "where \"deptno\" not in (\n"
+                + "  select \"deptno\" from \"hr\".\"depts\")")
+            .planContains("JoinEnumerables.semiJoin(")
+            .returns("empid=200\n");
+    }
+
+    /** Tests an EXISTS subquery, which becomes a semi-join on no keys. */
+    public void testExistsSemiJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "where exists (\n"
+                + "  select 1 from \"hr\".\"depts\" where \"deptno\" = 40)\n"
+                + "order by 1")
+            .planContains("JoinEnumerables.semiJoin(")
+            .returns(
+                "empid=100\n"
+                + "empid=150\n"
+                + "empid=200\n");
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "where exists (\n"
+                + "  select 1 from \"hr\".\"depts\" where \"deptno\" = 20)")
+            .planContains("JoinEnumerables.semiJoin(")
+            .returns("");
+    }
+
+    /** Tests a NOT EXISTS subquery, which becomes an anti-join on no
+     * keys. */
+    public void testNotExistsAntiJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "where not exists (\n"
+                + "  select 1 from \"hr\".\"depts\" where \"deptno\" = 20)\n"
+                + "order by 1")
+            .planContains("JoinEnumerables.semiJoin(")
+            .returns(
+                "empid=100\n"
+                + "empid=150\n"
+                + "empid=200\n");
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "where not exists (\n"
+                + "  select 1 from \"hr\".\"depts\" where \"deptno\" = 40)")
+            .planContains("JoinEnumerables.semiJoin(")
+            .returns("");
+    }
+
+    /** Tests NOT IN where the key of the outer query, or of the subquery,
+     * is nullable.
+     *
+     * <p>An outer row whose key is null is not returned; the IS NOT NULL
+     * test that SqlToRelConverter adds for NOT IN stays above the
+     * anti-join.</p>
+     *
+     * <p>A null key in the subquery matches nothing, as in the left join
+     * that SqlToRelConverter generates for NOT IN, so the anti-join returns
+     * the rows that match no other key. (Standard SQL would return no rows
+     * if the subquery returns a null; that is up to the conversion, not the
+     * anti-join.)</p> */
+    public void testNotInNullableKey() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "where \"commission\" not in (\n"
+                + "  select \"deptno\" * 50 from \"hr\".\"depts\")")
+            .planContains("JoinEnumerables.semiJoin(")
+            .returns("empid=100\n");
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"deptno\" from \"hr\".\"depts\"\n"
+                + "where \"deptno\" not in (\n"
+                + "  select \"commission\" - 990 from \"hr\".\"emps\")\n"
+                + "order by 1")
+            .planContains("JoinEnumerables.semiJoin(")
+            .returns(
+                "deptno=30\n"
+                + "deptno=40\n");
+    }
+
+    /** Tests a full outer equi-join; unmatched rows of both inputs are
+     * returned. */
+    public void testHashFullJoin() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select e.\"empid\", d.\"deptno\"\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "full join \"hr\".\"depts\" as d\n"
+                + "on e.\"deptno\" = d.\"deptno\"\n"
+                + "order by 2 nulls first, 1")
+            .returns(
+                "empid=200; deptno=null\n"
+                + "empid=100; deptno=10\n"
+                + "empid=150; deptno=10\n"
+                + "empid=null; deptno=30\n"
+                + "empid=null; deptno=40\n");
+    }
+
+    /** Tests a left outer equi-join whose left input is the smaller, so the
+     * hash table is built on the left input, and rows of the left input
+     * that match nothing are returned once the right input is exhausted. */
+    public void testHashLeftJoinBuildLeft() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select d.\"deptno\", e.\"empid\"\n"
+                + "from (\n"
+                + "  select \"deptno\", \"name\" from \"hr\".\"depts\"\n"
+                + "  where \"deptno\" <> 30) as d\n"
+                + "left join \"hr\".\"emps\" as e\n"
+                + "on d.\"deptno\" = e.\"deptno\"\n"
+                + "order by 1, 2")
+            .planMatches(
+                new Function1<String, Void>() {
+                    public Void apply(String plan) {
+                        // The inputs are swapped, so the row selector takes
+                        // the right (emps) row first.
+                        assertTrue(
+                            plan,
+                            plan.matches(
+                                "(?s).*apply\\([^)]* right, [^)]* left\\).*"));
+                        return null;
+                    }
+                })
+            .returns(
+                "deptno=10; empid=100\n"
+                + "deptno=10; empid=150\n"
+                + "deptno=40; empid=null\n");
+    }
+
+    /** Tests an equi-join that has a further condition, which is applied to
+     * the rows returned by the hash join. */
+    public void testJoinWithResidualCondition() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select e.\"empid\", d.\"name\"\n"
+                + "from \"hr\".\"emps\" as e\n"
+                + "join \"hr\".\"depts\" as d\n"
+                + "on e.\"deptno\" = d.\"deptno\"\n"
+                + "and e.\"empid\" > d.\"deptno\" * 12")
+            .returns("empid=150; name=Sales\n");
+    }
+
+    /** Tests ORDER BY ... OFFSET ... FETCH. */
+    public void testOrderByOffsetFetch() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.FOODMART_CLONE)
+            .query(
+                "select \"store_id\" from \"store\"\n"
+                + "where \"store_id\" < 10\n"
+                + "order by 1 desc offset 2 rows fetch next 3 rows only")
+            .returns(
+                "store_id=7\n"
+                + "store_id=6\n"
+                + "store_id=5\n");
+    }
+
+    /** Tests FETCH with no ORDER BY, and Postgres-style LIMIT. */
+    public void testFetch() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "fetch first 2 rows only")
+            .returns(
+                "empid=100\n"
+                + "empid=200\n");
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "order by \"empid\" desc limit 2 offset 1")
+            .returns(
+                "empid=150\n"
+                + "empid=100\n");
+    }
+
+    /** Tests that an OFFSET or FETCH value too large for the runtime is
+     * rejected, rather than truncated. */
+    public void testFetchOutOfRange() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "fetch first 4294967297 rows only")
+            .throws_("OFFSET or FETCH value out of range: 4294967297");
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" from \"hr\".\"emps\"\n"
+                + "order by \"empid\" offset 4294967297 rows")
+            .throws_("OFFSET or FETCH value out of range: 4294967297");
+    }
+
+    /** Tests that a FETCH is pushed through UNION ALL and projections. */
+    public void testFetchUnionAll() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" + 1 as e from \"hr\".\"emps\"\n"
+                + "union all\n"
+                + "select \"deptno\" from \"hr\".\"depts\"\n"
+                + "fetch first 4 rows only")
+            .returns(
+                "E=101\n"
+                + "E=201\n"
+                + "E=151\n"
+                + "E=10\n");
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\" as e from \"hr\".\"emps\"\n"
+                + "union all\n"
+                + "select \"deptno\" from \"hr\".\"depts\"\n"
+                + "order by 1 desc offset 1 rows fetch next 2 rows only")
+            .returns(
+                "E=150\n"
+                + "E=100\n");
+    }
+
+    /** Tests an aggregate whose input is sorted on the group key. Groups
+     * are returned as they are read, in the order of the input, without a
+     * hash table. */
+    public void testGroupBySorted() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"deptno\", count(*) as c, sum(\"empid\") as s\n"
+                + "from (\n"
+                + "  select \"deptno\", \"empid\" from \"hr\".\"emps\"\n"
+                + "  order by \"deptno\" desc)\n"
+                + "group by \"deptno\"")
+            .planContains("SortedEnumerables.groupBy(")
+            .returns(
+                "deptno=20; C=1; S=200\n"
+                + "deptno=10; C=2; S=250\n");
+    }
+
+    /** Tests windowed aggregates over a running (RANGE) window. */
+    public void testWindowRunning() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\", \"deptno\",\n"
+                + " count(*) over (partition by \"deptno\"\n"
+                + "   order by \"empid\") as c,\n"
+                + " sum(\"empid\") over (partition by \"deptno\"\n"
+                + "   order by \"empid\") as s\n"
+                + "from \"hr\".\"emps\"\n"
+                + "order by \"empid\"")
+            .returns(
+                "empid=100; deptno=10; C=1; S=100\n"
+                + "empid=150; deptno=10; C=2; S=250\n"
+                + "empid=200; deptno=20; C=1; S=200\n");
+    }
+
+    /** Tests MIN and MAX over sliding (ROWS) windows. They are evaluated
+     * incrementally, not by re-scanning the frame for each row. */
+    public void testWindowSliding() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\",\n"
+                + " min(\"empid\") over (order by \"empid\"\n"
+                + "   rows 1 preceding) as mi,\n"
+                + " max(\"commission\") over (order by \"empid\"\n"
+                + "   rows between 1 preceding and 1 following) as ma,\n"
+                + " count(\"commission\") over (order by \"empid\"\n"
+                + "   rows 1 preceding) as c\n"
+                + "from \"hr\".\"emps\"\n"
+                + "order by \"empid\"")
+            .returns(
+                "empid=100; MI=100; MA=1000; C=1\n"
+                + "empid=150; MI=100; MA=1000; C=1\n"
+                + "empid=200; MI=150; MA=500; C=1\n");
+    }
+
+    /** Tests ROW_NUMBER and RANK, ordered ascending and descending. */
+    public void testWindowRank() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\",\n"
+                + " rank() over (order by \"deptno\" desc) as r,\n"
+                + " row_number() over (order by \"deptno\" desc,\n"
+                + "   \"empid\") as rn,\n"
+                + " rank() over (order by \"deptno\") as ra\n"
+                + "from \"hr\".\"emps\"\n"
+                + "order by \"empid\"")
+            .returns(
+                "empid=100; R=2; RN=2; RA=1\n"
+                + "empid=150; R=2; RN=3; RA=1\n"
+                + "empid=200; R=1; RN=1; RA=3\n");
+    }
+
+    /** Tests RANGE windows with offsets, ascending and descending, and
+     * AVG. */
+    public void testWindowRangeOffset() {
+        OptiqAssert.assertThat()
+            .with(OptiqAssert.Config.REGULAR)
+            .query(
+                "select \"empid\",\n"
+                + " count(*) over (order by \"empid\"\n"
+                + "   range 60 preceding) as c,\n"
+                + " sum(\"empid\") over (order by \"empid\" desc\n"
+                + "   range 60 preceding) as s,\n"
+                + " count(*) over (order by \"empid\" desc\n"
+                + "   range between current row and 50 following) as f,\n"
+                + " avg(\"empid\") over (order by \"empid\"\n"
+                + "   rows between 1 preceding and 1 following) as a\n"
+                + "from \"hr\".\"emps\"\n"
+                + "order by \"empid\"")
+            .returns(
+                "empid=100; C=1; S=250; F=1; A=125\n"
+                + "empid=150; C=2; S=350; F=2; A=150\n"
+                + "empid=200; C=2; S=200; F=2; A=175\n");
+    }
+
+    /** Tests that a frame whose lower bound is above its upper bound is
+     * empty. SQL validation rejects such frames, but the runtime must not
+     * remove rows from the aggregates that it never added. */
+    public void testWindowInvertedFrame() {
+        final List<Object[]> list = new ArrayList<Object[]>();
+        for (int i = 1; i <= 5; i++) {
+            list.add(new Object[] {i});
+        }
+        // ROWS BETWEEN 3 FOLLOWING AND 1 FOLLOWING
+        final Enumerable<Object[]> window =
+            WindowEnumerables.window(
+                Linq4j.asEnumerable(list),
+                Functions.<Object[]>identitySelector(),
+                new int[0],
+                new int[] {0},
+                new boolean[] {false},
+                true,
+                3,
+                1,
+                new String[] {"COUNT", "SUM"},
+                new int[] {-1, 0},
+                new String[] {"LONG", "INT"});
+        int n = 0;
+        for (Object[] row : window) {
+            assertEquals(++n, row[0]);
+            assertEquals(0L, row[1]);
+            assertNull(row[2]);
+        }
+        assertEquals(5, n);
+    }
+
     /** Tests WHERE comparing a nullable integer with an integer literal. */
     public void testWhereNullable() {
         OptiqAssert.assertThat()
@@ -852,6 +1653,18 @@ public class JdbcTest extends TestCase {
                             assertTrue(resultSet.next());
                             assertFalse(resultSet.next());
                             resultSet.close();
+
+                            // The limit is pushed into the sort, which
+                            // returns the top 2 rows.
+                            final ResultSet resultSet2 = statement.executeQuery(
+                                "select \"empid\" from \"hr\".\"emps\"\n"
+                                + "order by \"empid\" desc");
+                            assertTrue(resultSet2.next());
+                            assertEquals(200, resultSet2.getInt(1));
+                            assertTrue(resultSet2.next());
+                            assertEquals(150, resultSet2.getInt(1));
+                            assertFalse(resultSet2.next());
+                            resultSet2.close();
                             statement.close();
                             return null;
                         } catch (SQLException e) {
@@ -861,13 +1674,823 @@ public class JdbcTest extends TestCase {
                 });
     }
 
-    /** Tests a JDBC connection that provides a model (a single schema based on
-     * a JDBC database). */
-    public void testModel() {
+    /** Tests that {@link java.sql.Statement#setQueryTimeout(int)} cancels a
+     * long-running query. */
+    public void testQueryTimeout() throws Exception {
         OptiqAssert.assertThat()
             .withModel(
-                "{\n" + "  version: '1.0',\n" + "   schemas: [\n" + "     {\n"
-                + "       type: 'jdbc',\n" + "       name: 'foodmart',\n"
+                "{\n"
+                + "  version: '1.0',\n"
+                + "   schemas: [\n"
+                + "     {\n"
+                + "       name: 'MATH',\n"
+                + "       tables: [\n"
+                + "         {\n"
+                + "           name: 'INTEGERS',\n"
+                + "           type: 'custom',\n"
+                + "           factory: '"
+                + RangeTable.Factory.class.getName() + "',\n"
+                + "           operand: {'column': 'N', 'start': 0, 'end': "
+                + Integer.MAX_VALUE + " }\n"
+                + "         }\n"
+                + "       ]\n"
+                + "     }\n"
+                + "   ]\n"
+                + "}")
+            .doWithConnection(
+                new Function1<OptiqConnection, Object>() {
+                    public Object apply(OptiqConnection a0) {
+                        try {
+                            final Statement statement = a0.createStatement();
+                            statement.setQueryTimeout(1);
+                            try {
+                                final ResultSet resultSet =
+                                    statement.executeQuery(
+                                        "select * from math.integers\n"
+                                        + "where n < 0");
+                                resultSet.next();
+                                fail("expected timeout");
+                            } catch (SqlTimeoutException e) {
+                                // ok
+                            }
+
+                            // Statement is usable after a timeout.
+                            statement.setQueryTimeout(0);
+                            final ResultSet resultSet = statement.executeQuery(
+                                "select * from math.integers where n < 2");
+                            assertTrue(resultSet.next());
+                            assertTrue(resultSet.next());
+                            resultSet.close();
+                            statement.close();
+                            return null;
+                        } catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+    }
+
+    /** Tests the "asyncFetch" connection property, which computes rows in a
+     * separate thread. */
+    public void testAsyncFetch() throws Exception {
+        final Properties info = new Properties();
+        info.setProperty("asyncFetch", "true");
+        final Connection connection =
+            getMathConnection(
+                info, rangeTable("INTEGERS", 0, Integer.MAX_VALUE));
+        final Statement statement = connection.createStatement();
+        statement.setFetchSize(7);
+
+        // Read every row; more than one batch, and last batch is not full.
+        ResultSet resultSet = statement.executeQuery(
+            "select * from math.integers where n < 100");
+        int n = 0;
+        while (resultSet.next()) {
+            assertEquals(n++, resultSet.getInt(1));
+        }
+        assertEquals(100, n);
+        resultSet.close();
+
+        // Close a result set whose producer is blocked on a full buffer.
+        resultSet = statement.executeQuery("select * from math.integers");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(resultSet.next());
+            assertEquals(i, resultSet.getInt(1));
+        }
+        resultSet.close();
+
+        // Errors in the producer thread are thrown to the consumer.
+        resultSet = statement.executeQuery(
+            "select 10 / (n - 3) from math.integers where n < 10");
+        try {
+            while (resultSet.next()) {
+                // ignore
+            }
+            fail("expected error");
+        } catch (RuntimeException e) {
+            assertTrue(e instanceof ArithmeticException);
+        }
+        resultSet.close();
+        statement.close();
+        connection.close();
+    }
+
+    /** Tests that closing an {@link AsyncEnumerator} before reading any rows
+     * closes the underlying enumerator, even though the producer task never
+     * started. */
+    public void testAsyncEnumeratorCloseBeforeRead() {
+        final boolean[] closed = {false};
+        final Enumerator<Integer> source = new CloseableEnumerator() {
+            public Integer current() {
+                throw new NoSuchElementException();
+            }
+
+            public boolean moveNext() {
+                return false;
+            }
+
+            public void reset() {
+            }
+
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        final AsyncEnumerator<Integer> enumerator =
+            new AsyncEnumerator<Integer>(
+                source,
+                new Executor() {
+                    public void execute(Runnable command) {
+                        fail("producer should not start");
+                    }
+                },
+                10,
+                2);
+        enumerator.close();
+        assertTrue(closed[0]);
+        assertFalse(enumerator.moveNext());
+    }
+
+    /** Returns a connection to a schema called "MATH" whose tables are
+     * given as elements of a JSON model, such as those returned by
+     * {@link #rangeTable(String, int, int)}. If {@code parallelism} is
+     * positive, sets the "parallelism" connection property. */
+    static Connection getMathConnection(int parallelism, String... tables)
+        throws ClassNotFoundException, SQLException
+    {
+        final Properties info = new Properties();
+        if (parallelism > 0) {
+            info.setProperty("parallelism", Integer.toString(parallelism));
+        }
+        return getMathConnection(info, tables);
+    }
+
+    /** Returns a connection to a schema called "MATH" whose tables are
+     * given as elements of a JSON model, with other connection properties
+     * as given. */
+    static Connection getMathConnection(Properties info, String... tables)
+        throws ClassNotFoundException, SQLException
+    {
+        Class.forName("net.hydromatic.optiq.jdbc.Driver");
+        final StringBuilder buf = new StringBuilder();
+        for (String table : tables) {
+            if (buf.length() > 0) {
+                buf.append(",\n");
+            }
+            buf.append(table);
+        }
+        info.setProperty(
+            "model",
+            "inline:{\n"
+            + "  version: '1.0',\n"
+            + "   schemas: [\n"
+            + "     {\n"
+            + "       name: 'MATH',\n"
+            + "       tables: [\n"
+            + buf + "\n"
+            + "       ]\n"
+            + "     }\n"
+            + "   ]\n"
+            + "}");
+        return DriverManager.getConnection("jdbc:optiq:", info);
+    }
+
+    /** Returns the element of a JSON model for a {@link RangeTable} with a
+     * column N whose values are at least {@code start} and less than
+     * {@code end}. */
+    static String rangeTable(String name, int start, int end) {
+        return "         {\n"
+            + "           name: '" + name + "',\n"
+            + "           type: 'custom',\n"
+            + "           factory: '"
+            + RangeTable.Factory.class.getName() + "',\n"
+            + "           operand: {'column': 'N', 'start': " + start
+            + ", 'end': " + end + "}\n"
+            + "         }";
+    }
+
+    /** Tests that an aggregation and a filter over a large table are read
+     * in parallel partitions if the "parallelism" connection property is
+     * greater than 1, and give the same results as a serial plan. */
+    public void testParallelism() throws Exception {
+        final Connection connection =
+            getMathConnection(4, rangeTable("INTEGERS", 0, 100000));
+        final Statement statement = connection.createStatement();
+
+        // Partial aggregates in each partition; final aggregate adds the
+        // counts.
+        final String sql =
+            "select count(*) as c, max(n) as m, min(n) as mi\n"
+            + "from math.integers where mod(n, 3) = 0";
+        ResultSet resultSet = statement.executeQuery("explain plan for " + sql);
+        assertTrue(resultSet.next());
+        final String plan = resultSet.getString(1);
+        assertTrue(plan, plan.contains("EnumerableGatherRel(partitions=[4])"));
+        resultSet.close();
+        resultSet = statement.executeQuery(sql);
+        assertTrue(resultSet.next());
+        assertEquals(33334, resultSet.getInt(1));
+        assertEquals(99999, resultSet.getInt(2));
+        assertEquals(0, resultSet.getInt(3));
+        assertFalse(resultSet.next());
+        resultSet.close();
+
+        // Filter in each partition; rows are returned in scan order.
+        resultSet = statement.executeQuery(
+            "select n from math.integers where mod(n, 1000) = 7");
+        int expected = 7;
+        while (resultSet.next()) {
+            assertEquals(expected, resultSet.getInt(1));
+            expected += 1000;
+        }
+        assertEquals(100007, expected);
+        resultSet.close();
+
+        // The consumer stops early; partitions stream rows rather than
+        // reading all of them first.
+        resultSet = statement.executeQuery(
+            "select n from math.integers where n >= 0 limit 3");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(resultSet.next());
+            assertEquals(i, resultSet.getInt(1));
+        }
+        assertFalse(resultSet.next());
+        resultSet.close();
+        statement.close();
+        connection.close();
+    }
+
+    /** Tests a hash join whose hash table is built, and probed, in several
+     * threads, because the "parallelism" connection property is greater
+     * than 1 and the inputs are large. */
+    public void testParallelHashJoin() throws Exception {
+        final List<List<Integer>> partitionSizes =
+            new CopyOnWriteArrayList<List<Integer>>();
+        final Hook.Closeable hook = Hook.PARALLEL_JOIN.add(
+            new Function1<Object, Object>() {
+                @SuppressWarnings("unchecked")
+                public Object apply(Object a0) {
+                    partitionSizes.add((List<Integer>) a0);
+                    return null;
+                }
+            });
+        final Connection connection =
+            getMathConnection(4, rangeTable("INTEGERS", 0, 100000));
+        final Statement statement = connection.createStatement();
+        ResultSet resultSet;
+        try {
+            resultSet = statement.executeQuery(
+                "select count(*) as c, max(a.n) as m\n"
+                + "from math.integers as a\n"
+                + "join math.integers as b on a.n = b.n * 2");
+            assertTrue(resultSet.next());
+            assertEquals(50000, resultSet.getInt(1));
+            assertEquals(99998, resultSet.getInt(2));
+            assertFalse(resultSet.next());
+            resultSet.close();
+        } finally {
+            hook.close();
+        }
+
+        // The hash table was built in 4 partitions, each holding some of
+        // the 100,000 inner rows.
+        assertEquals(1, partitionSizes.size());
+        final List<Integer> sizes = partitionSizes.get(0);
+        assertEquals(4, sizes.size());
+        int total = 0;
+        for (int size : sizes) {
+            assertTrue(sizes.toString(), size > 0);
+            total += size;
+        }
+        assertEquals(100000, total);
+
+        // Every joined row is returned exactly once.
+        resultSet = statement.executeQuery(
+            "select a.n from math.integers as a\n"
+            + "join math.integers as b on a.n = b.n + 1");
+        int count = 0;
+        long sum = 0;
+        while (resultSet.next()) {
+            ++count;
+            sum += resultSet.getInt(1);
+        }
+        assertEquals(99999, count);
+        assertEquals(4999950000L, sum);
+        resultSet.close();
+        statement.close();
+        connection.close();
+    }
+
+    /** Tests that the inputs of a UNION ALL are read concurrently if the
+     * "parallelism" connection property is greater than 1, that every row is
+     * returned, and that closing the result set early stops the inputs. */
+    public void testConcurrentUnionAll() throws Exception {
+        final Connection connection =
+            getMathConnection(3, rangeTable("INTEGERS", 0, 100000));
+        final Statement statement = connection.createStatement();
+        final String sql =
+            "select n from math.integers where n < 1000\n"
+            + "union all\n"
+            + "select n from math.integers where n >= 99000\n"
+            + "union all\n"
+            + "select n from math.integers where n between 5000 and 5999";
+        ResultSet resultSet = statement.executeQuery(sql);
+        int count = 0;
+        long sum = 0;
+        while (resultSet.next()) {
+            ++count;
+            sum += resultSet.getInt(1);
+        }
+        assertEquals(3000, count);
+        assertEquals(105498500L, sum);
+        resultSet.close();
+
+        // Close after a few rows. Each input has more rows than its
+        // producer may read ahead, so the producers are still running; they
+        // stop, and close their inputs.
+        final int openCount = RangeTable.OPEN_ENUMERATOR_COUNT.get();
+        resultSet = statement.executeQuery(
+            "select n from math.integers\n"
+            + "union all\n"
+            + "select n from math.integers where n >= 50000");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(resultSet.next());
+        }
+        assertTrue(RangeTable.OPEN_ENUMERATOR_COUNT.get() > openCount);
+        resultSet.close();
+        for (int i = 0; i < 100; i++) {
+            if (RangeTable.OPEN_ENUMERATOR_COUNT.get() <= openCount) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        assertTrue(RangeTable.OPEN_ENUMERATOR_COUNT.get() <= openCount);
+        statement.close();
+        connection.close();
+    }
+
+    /** Tests a partitioned table, and that the planner reads only the
+     * partitions that may contain rows that satisfy the filter. */
+    public void testPartitionedTable() throws Exception {
+        final Connection connection =
+            getMathConnection(
+                0,
+                rangeTable("P0", 0, 1000),
+                rangeTable("P1", 1000, 2000),
+                rangeTable("P2", 2000, 3000),
+                "         {\n"
+                + "           name: 'INTEGERS',\n"
+                + "           type: 'custom',\n"
+                + "           factory: '"
+                + PartitionedTable.Factory.class.getName() + "',\n"
+                + "           operand: {\n"
+                + "             column: 'N',\n"
+                + "             partitions: [\n"
+                + "               {table: 'P0', upper: 1000},\n"
+                + "               {table: 'P1', lower: 1000, upper: 2000},\n"
+                + "               {table: 'P2', lower: 2000}\n"
+                + "             ]\n"
+                + "           }\n"
+                + "         }");
+        final Statement statement = connection.createStatement();
+
+        String sql = "select count(*) from math.integers where n >= 1500";
+        ResultSet resultSet = statement.executeQuery("explain plan for " + sql);
+        assertTrue(resultSet.next());
+        String plan = resultSet.getString(1);
+        assertFalse(plan, plan.contains("[MATH, P0]"));
+        assertTrue(plan, plan.contains("[MATH, P1]"));
+        assertTrue(plan, plan.contains("[MATH, P2]"));
+        resultSet.close();
+        resultSet = statement.executeQuery(sql);
+        assertTrue(resultSet.next());
+        assertEquals(1500, resultSet.getInt(1));
+        resultSet.close();
+
+        sql = "select count(*) from math.integers where n = 5 or n = 2500";
+        resultSet = statement.executeQuery("explain plan for " + sql);
+        assertTrue(resultSet.next());
+        plan = resultSet.getString(1);
+        assertTrue(plan, plan.contains("[MATH, P0]"));
+        assertFalse(plan, plan.contains("[MATH, P1]"));
+        assertTrue(plan, plan.contains("[MATH, P2]"));
+        resultSet.close();
+        resultSet = statement.executeQuery(sql);
+        assertTrue(resultSet.next());
+        assertEquals(2, resultSet.getInt(1));
+        resultSet.close();
+
+        // Without a filter, reads every partition.
+        resultSet =
+            statement.executeQuery("select count(*) from math.integers");
+        assertTrue(resultSet.next());
+        assertEquals(3000, resultSet.getInt(1));
+        resultSet.close();
+        statement.close();
+        connection.close();
+    }
+
+    /** Tests a partitioned table one of whose partitions is a view. The
+     * planner expands the view when it converts the partitioned table to a
+     * union of its partitions. */
+    public void testPartitionedTableWithView() throws Exception {
+        final Connection connection =
+            getMathConnection(
+                0,
+                rangeTable("P0", 0, 1000),
+                rangeTable("R", 0, 2000),
+                "         {\n"
+                + "           name: 'V1',\n"
+                + "           type: 'view',\n"
+                + "           sql: 'select * from r where n >= 1000'\n"
+                + "         }",
+                "         {\n"
+                + "           name: 'INTEGERS',\n"
+                + "           type: 'custom',\n"
+                + "           factory: '"
+                + PartitionedTable.Factory.class.getName() + "',\n"
+                + "           operand: {\n"
+                + "             column: 'N',\n"
+                + "             partitions: [\n"
+                + "               {table: 'P0', upper: 1000},\n"
+                + "               {table: 'V1', lower: 1000}\n"
+                + "             ]\n"
+                + "           }\n"
+                + "         }");
+        final Statement statement = connection.createStatement();
+
+        ResultSet resultSet =
+            statement.executeQuery("select count(*) from math.integers");
+        assertTrue(resultSet.next());
+        assertEquals(2000, resultSet.getInt(1));
+        resultSet.close();
+
+        // Reads only the view, which reads table R.
+        final String sql =
+            "select count(*) from math.integers where n >= 1500";
+        resultSet = statement.executeQuery("explain plan for " + sql);
+        assertTrue(resultSet.next());
+        final String plan = resultSet.getString(1);
+        assertFalse(plan, plan.contains("[MATH, P0]"));
+        assertTrue(plan, plan.contains("[MATH, R]"));
+        resultSet.close();
+        resultSet = statement.executeQuery(sql);
+        assertTrue(resultSet.next());
+        assertEquals(500, resultSet.getInt(1));
+        resultSet.close();
+        statement.close();
+        connection.close();
+    }
+
+    /** Tests that a join, an aggregation and a sort whose state does not fit
+     * into the "memoryBudget" connection property spill to disk and still
+     * return the right results. */
+    public void testMemoryBudget() throws Exception {
+        final Properties info = new Properties();
+        info.setProperty("memoryBudget", "20000");
+        final List<File> spillFiles = new ArrayList<File>();
+        final Hook.Closeable hook = Hook.SPILL.add(
+            new Function1<Object, Object>() {
+                public Object apply(Object a0) {
+                    spillFiles.add((File) a0);
+                    return null;
+                }
+            });
+        final Connection connection =
+            getMathConnection(info, rangeTable("INTEGERS", 0, 10000));
+        final Statement statement = connection.createStatement();
+
+        ResultSet resultSet = statement.executeQuery(
+            "select n / 2 as g, count(*) as c, sum(n) as s\n"
+            + "from math.integers group by n / 2");
+        int groupCount = 0;
+        long total = 0;
+        while (resultSet.next()) {
+            assertEquals(2, resultSet.getInt(2));
+            total += resultSet.getLong(3);
+            ++groupCount;
+        }
+        assertEquals(5000, groupCount);
+        assertEquals(10000L * 9999L / 2L, total);
+        resultSet.close();
+        assertSpilled(spillFiles);
+
+        resultSet = statement.executeQuery(
+            "select a.n, b.n from math.integers as a\n"
+            + "join math.integers as b on a.n = b.n");
+        final BitSet seen = new BitSet();
+        while (resultSet.next()) {
+            assertEquals(resultSet.getInt(1), resultSet.getInt(2));
+            assertFalse(seen.get(resultSet.getInt(1)));
+            seen.set(resultSet.getInt(1));
+        }
+        assertEquals(10000, seen.cardinality());
+        resultSet.close();
+        assertSpilled(spillFiles);
+
+        // Stop reading a spilling join early; its files are deleted when the
+        // result set is closed.
+        resultSet = statement.executeQuery(
+            "select * from math.integers as a\n"
+            + "join math.integers as b on a.n = b.n limit 5");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(resultSet.next());
+        }
+        assertFalse(spillFiles.isEmpty());
+        resultSet.close();
+        assertSpilled(spillFiles);
+
+        resultSet = statement.executeQuery(
+            "select n from math.integers order by n desc");
+        int expected = 10000;
+        while (resultSet.next()) {
+            assertEquals(--expected, resultSet.getInt(1));
+        }
+        assertEquals(0, expected);
+        resultSet.close();
+        assertSpilled(spillFiles);
+        statement.close();
+        connection.close();
+        hook.close();
+    }
+
+    /** Asserts that an operator spilled rows to at least one file, and that
+     * all spill files have been deleted; then clears the list. */
+    private static void assertSpilled(List<File> spillFiles) {
+        assertFalse(spillFiles.isEmpty());
+        for (File file : spillFiles) {
+            assertFalse(file.toString(), file.exists());
+        }
+        spillFiles.clear();
+    }
+
+    /** Tests sorting enough rows that the sort is done in parallel chunks,
+     * including rows whose leading sort keys are equal. */
+    public void testOrderByLarge() throws Exception {
+        OptiqAssert.assertThat()
+            .withModel(
+                "{\n"
+                + "  version: '1.0',\n"
+                + "   schemas: [\n"
+                + "     {\n"
+                + "       name: 'MATH',\n"
+                + "       tables: [\n"
+                + "         {\n"
+                + "           name: 'INTEGERS',\n"
+                + "           type: 'custom',\n"
+                + "           factory: '"
+                + RangeTable.Factory.class.getName() + "',\n"
+                + "           operand: {'column': 'N', 'start': 0, 'end': 100000 }\n"
+                + "         }\n"
+                + "       ]\n"
+                + "     }\n"
+                + "   ]\n"
+                + "}")
+            .doWithConnection(
+                new Function1<OptiqConnection, Object>() {
+                    public Object apply(OptiqConnection a0) {
+                        try {
+                            final Statement statement = a0.createStatement();
+                            ResultSet resultSet = statement.executeQuery(
+                                "select n from math.integers order by n desc");
+                            int expected = 100000;
+                            while (resultSet.next()) {
+                                assertEquals(--expected, resultSet.getInt(1));
+                            }
+                            assertEquals(0, expected);
+                            resultSet.close();
+
+                            resultSet = statement.executeQuery(
+                                "select n / 10 as g, n from math.integers\n"
+                                + "order by 1 desc, 2");
+                            int previous = Integer.MAX_VALUE;
+                            int count = 0;
+                            while (resultSet.next()) {
+                                final int n = resultSet.getInt(2);
+                                if (count++ > 0) {
+                                    assertTrue(
+                                        n / 10 < previous / 10
+                                        || n / 10 == previous / 10
+                                           && n > previous);
+                                }
+                                previous = n;
+                            }
+                            assertEquals(100000, count);
+                            resultSet.close();
+                            statement.close();
+                            return null;
+                        } catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+    }
+
+    /** Tests that the server limits the number of statements executing at a
+     * time, and lists the statements that are executing and waiting. */
+    public void testServerAdmission() throws Exception {
+        final SingleStatementDriver driver = new SingleStatementDriver();
+        final OptiqServerImpl server = (OptiqServerImpl) driver.getServer();
+        assertEquals(1, server.getMaxConcurrentStatements());
+        final OptiqConnection connection =
+            driver.connect("jdbc:optiq:", new Properties())
+                .unwrap(OptiqConnection.class);
+        try {
+            ReflectiveSchema.create(
+                connection.getRootSchema(), "hr", new HrSchema());
+            final Statement statement1 = connection.createStatement();
+            final ResultSet resultSet1 =
+                statement1.executeQuery("select * from \"hr\".\"emps\"");
+            assertTrue(resultSet1.next());
+
+            // Second statement waits until the first has finished.
+            final Statement statement2 = connection.createStatement();
+            final int[] rowCount = {-1};
+            final Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        final ResultSet resultSet2 = statement2.executeQuery(
+                            "select * from \"hr\".\"depts\"");
+                        int n = 0;
+                        while (resultSet2.next()) {
+                            ++n;
+                        }
+                        rowCount[0] = n;
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            thread.start();
+            List<StatementInfo> infoList;
+            do {
+                Thread.sleep(10);
+                infoList = server.getStatements();
+            } while (infoList.size() < 2);
+            assertEquals(2, infoList.size());
+            assertSame(statement1, infoList.get(0).statement);
+            assertEquals(StatementInfo.State.RUNNING, infoList.get(0).state);
+            assertEquals(1, infoList.get(0).rowCount);
+            assertEquals(StatementInfo.State.QUEUED, infoList.get(1).state);
+            assertEquals(-1, rowCount[0]);
+
+            resultSet1.close();
+            thread.join();
+            assertEquals(3, rowCount[0]);
+            assertEquals(0, server.getStatements().size());
+            statement1.close();
+            statement2.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    /** Tests that canceling a statement that is waiting to execute removes it
+     * from the queue, and that canceling a running statement does not free
+     * its slot until its execution ends. */
+    public void testServerCancel() throws Exception {
+        final SingleStatementDriver driver = new SingleStatementDriver();
+        final OptiqServerImpl server = (OptiqServerImpl) driver.getServer();
+        final OptiqConnection connection =
+            driver.connect("jdbc:optiq:", new Properties())
+                .unwrap(OptiqConnection.class);
+        try {
+            ReflectiveSchema.create(
+                connection.getRootSchema(), "hr", new HrSchema());
+            final Statement statement1 = connection.createStatement();
+            final ResultSet resultSet1 =
+                statement1.executeQuery("select * from \"hr\".\"emps\"");
+            assertTrue(resultSet1.next());
+
+            final Statement statement2 = connection.createStatement();
+            final SQLException[] exceptions = {null};
+            final Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        statement2.executeQuery(
+                            "select * from \"hr\".\"depts\"");
+                    } catch (SQLException e) {
+                        exceptions[0] = e;
+                    }
+                }
+            };
+            thread.start();
+            while (server.getStatements().size() < 2) {
+                Thread.sleep(10);
+            }
+
+            // Canceling the waiting statement removes it from the queue.
+            statement2.cancel();
+            thread.join();
+            assertNotNull(exceptions[0]);
+            assertEquals(1, server.getStatements().size());
+
+            // Canceling the running statement does not release its slot
+            // until its result set is closed.
+            statement1.cancel();
+            assertEquals(1, server.getStatements().size());
+            assertEquals(
+                StatementInfo.State.RUNNING,
+                server.getStatements().get(0).state);
+            resultSet1.close();
+            assertEquals(0, server.getStatements().size());
+            statement1.close();
+            statement2.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    /** Tests that when statements of several users are waiting to execute,
+     * the server admits them round-robin by user, rather than in the order
+     * they arrived. */
+    public void testServerFairQueuing() throws Exception {
+        final SingleStatementDriver driver = new SingleStatementDriver();
+        final OptiqServerImpl server = (OptiqServerImpl) driver.getServer();
+        final Properties info = new Properties();
+        info.setProperty("user", "a");
+        final OptiqConnection connectionA =
+            driver.connect("jdbc:optiq:", info)
+                .unwrap(OptiqConnection.class);
+        final Properties infoB = new Properties();
+        infoB.setProperty("user", "b");
+        final OptiqConnection connectionB =
+            driver.connect("jdbc:optiq:", infoB)
+                .unwrap(OptiqConnection.class);
+        try {
+            ReflectiveSchema.create(
+                connectionA.getRootSchema(), "hr", new HrSchema());
+            ReflectiveSchema.create(
+                connectionB.getRootSchema(), "hr", new HrSchema());
+            final Statement statement0 = connectionA.createStatement();
+            final ResultSet resultSet0 =
+                statement0.executeQuery("select * from \"hr\".\"emps\"");
+            assertTrue(resultSet0.next());
+
+            // User "a" queues two statements, then user "b" queues one.
+            final List<String> admitted =
+                Collections.synchronizedList(new ArrayList<String>());
+            final List<Thread> threads = new ArrayList<Thread>();
+            final String[] names = {"a1", "a2", "b1"};
+            for (final String name : names) {
+                final Statement statement =
+                    (name.startsWith("a") ? connectionA : connectionB)
+                        .createStatement();
+                final Thread thread = new Thread() {
+                    public void run() {
+                        try {
+                            final ResultSet resultSet = statement.executeQuery(
+                                "select * from \"hr\".\"depts\"");
+                            admitted.add(name);
+                            while (resultSet.next()) {
+                                // consume
+                            }
+                            resultSet.close();
+                            statement.close();
+                        } catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                final int expectedCount = server.getStatements().size() + 1;
+                thread.start();
+                threads.add(thread);
+                while (server.getStatements().size() < expectedCount) {
+                    Thread.sleep(10);
+                }
+            }
+            assertTrue(admitted.isEmpty());
+
+            resultSet0.close();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(Arrays.asList("a1", "b1", "a2"), admitted);
+            assertEquals(0, server.getStatements().size());
+            statement0.close();
+        } finally {
+            connectionA.close();
+            connectionB.close();
+        }
+    }
+
+    /** Driver whose server executes one statement at a time. It is not
+     * registered with {@link DriverManager}, and each instance has its own
+     * server, so tests that use it do not affect other connections. */
+    private static class SingleStatementDriver extends Driver {
+        @Override
+        protected OptiqServer createServer() {
+            return new OptiqServerImpl(1, 0);
+        }
+    }
+
+    /** Tests a JDBC connection that provides a model (a single schema based on
+     * a JDBC database). */
+    public void testModel() {
+        OptiqAssert.assertThat()
+            .withModel(
+                "{\n" + "  version: '1.0',\n" + "   schemas: [\n" + "     {\n"
+                + "       type: 'jdbc',\n" + "       name: 'foodmart',\n"
                 + "       jdbcUser: 'foodmart',\n"
                 + "       jdbcPassword: 'foodmart',\n"
                 + "       jdbcUrl: 'jdbc:mysql://localhost',\n"
@@ -1146,6 +2769,12 @@ public class JdbcTest extends TestCase {
         connection.close();
     }
 
+    /** Enumerator that can be closed. */
+    private abstract static class CloseableEnumerator
+        implements Enumerator<Integer>, Closeable
+    {
+    }
+
     public static class HrSchema {
         @Override
         public String toString() {
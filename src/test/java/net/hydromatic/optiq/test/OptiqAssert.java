@@ -411,6 +411,19 @@ public class OptiqAssert {
             }
         }
 
+        /** Checks the output of EXPLAIN PLAN for the query. */
+        public AssertQuery explainMatches(Function1<String, Void> checker) {
+            try {
+                assertQuery(
+                    createConnection(), "explain plan for " + sql, checker,
+                    null);
+                return this;
+            } catch (Exception e) {
+                throw new RuntimeException(
+                    "exception while executing [" + sql + "]", e);
+            }
+        }
+
         public AssertQuery planContains(String expected) {
             ensurePlan();
             Assert.assertTrue(
@@ -419,6 +432,21 @@ public class OptiqAssert {
             return this;
         }
 
+        public AssertQuery planDoesNotContain(String unexpected) {
+            ensurePlan();
+            Assert.assertFalse(
+                "Plan [" + plan + "] does not contain [" + unexpected + "]",
+                plan.contains(unexpected));
+            return this;
+        }
+
+        /** Checks the generated Java code of the query. */
+        public AssertQuery planMatches(Function1<String, Void> checker) {
+            ensurePlan();
+            checker.apply(plan);
+            return this;
+        }
+
         private void ensurePlan() {
             if (plan != null) {
                 return;
@@ -17,7 +17,7 @@
 */
 package org.eigenbase.relopt.volcano;
 
-import java.util.List;
+import java.util.*;
 
 import junit.framework.*;
 
@@ -26,6 +26,7 @@ import org.eigenbase.rel.*;
 import org.eigenbase.rel.convert.*;
 import org.eigenbase.relopt.*;
 import org.eigenbase.reltype.*;
+import org.eigenbase.rex.*;
 import org.eigenbase.util.*;
 
 
@@ -65,6 +66,13 @@ public class VolcanoPlannerTraitTest
     private static final AltTrait ALT_TRAIT2 =
         new AltTrait(ALT_TRAIT_DEF, "ALT2");
 
+    /**
+     * Collation of rows sorted on field 0.
+     */
+    private static final RelCollation SORTED_0 =
+        new RelCollationImpl(
+            Collections.singletonList(new RelFieldCollation(0)));
+
     /**
      * Ordinal count for alternate traits (so they can implement equals() and
      * avoid being canonized into the same trait).
@@ -205,6 +213,196 @@ public class VolcanoPlannerTraitTest
         assertTrue(child instanceof PhysLeafRel);
     }
 
+    /**
+     * Tests that a trait set whose rows are sorted on (0, 1) satisfies
+     * requirements for rows sorted on (0) and for rows in no particular
+     * order, but not for rows sorted on (1).
+     */
+    public void testCollationSatisfies()
+    {
+        VolcanoPlanner planner = new VolcanoPlanner();
+
+        planner.addRelTraitDef(ConventionTraitDef.instance);
+        planner.addRelTraitDef(RelCollationTraitDef.INSTANCE);
+
+        RelOptCluster cluster = VolcanoPlannerTest.newCluster(planner);
+        final RelTraitSet empty = cluster.traitSetOf(Convention.NONE);
+        assertEquals(
+            RelCollationImpl.EMPTY,
+            empty.getTrait(RelCollationTraitDef.INSTANCE));
+
+        final RelTraitSet sorted01 =
+            empty.replace(
+                new RelCollationImpl(
+                    Arrays.asList(
+                        new RelFieldCollation(0),
+                        new RelFieldCollation(1))));
+        final RelTraitSet sorted0 =
+            empty.replace(
+                new RelCollationImpl(
+                    Collections.singletonList(new RelFieldCollation(0))));
+        final RelTraitSet sorted1 =
+            empty.replace(
+                new RelCollationImpl(
+                    Collections.singletonList(new RelFieldCollation(1))));
+        assertTrue(sorted01.satisfies(sorted0));
+        assertTrue(sorted01.satisfies(empty));
+        assertTrue(sorted0.satisfies(empty));
+        assertFalse(sorted01.satisfies(sorted1));
+        assertFalse(sorted0.satisfies(sorted01));
+        assertFalse(empty.satisfies(sorted0));
+        assertFalse(
+            sorted0.satisfies(sorted0.replace(EnumerableConvention.ARRAY)));
+    }
+
+    /**
+     * Tests that collations that differ only in null direction are different
+     * traits, and that neither satisfies the other.
+     */
+    public void testCollationNullDirection()
+    {
+        final RelCollation nullsFirst =
+            new RelCollationImpl(
+                Collections.singletonList(
+                    new RelFieldCollation(
+                        0,
+                        RelFieldCollation.Direction.Ascending,
+                        RelFieldCollation.NullDirection.FIRST)));
+        final RelCollation nullsLast =
+            new RelCollationImpl(
+                Collections.singletonList(
+                    new RelFieldCollation(
+                        0,
+                        RelFieldCollation.Direction.Ascending,
+                        RelFieldCollation.NullDirection.LAST)));
+        final RelCollation nullsFirst2 =
+            new RelCollationImpl(
+                Collections.singletonList(
+                    new RelFieldCollation(
+                        0,
+                        RelFieldCollation.Direction.Ascending,
+                        RelFieldCollation.NullDirection.FIRST)));
+        assertFalse(nullsFirst.equals(nullsLast));
+        assertEquals(nullsFirst, nullsFirst2);
+        assertEquals(nullsFirst.hashCode(), nullsFirst2.hashCode());
+
+        final RelCollationTraitDef traitDef = RelCollationTraitDef.INSTANCE;
+        assertNotSame(
+            traitDef.canonize(nullsFirst),
+            traitDef.canonize(nullsLast));
+        assertSame(
+            traitDef.canonize(nullsFirst),
+            traitDef.canonize(nullsFirst2));
+        assertFalse(traitDef.satisfies(nullsFirst, nullsLast));
+        assertFalse(traitDef.satisfies(nullsLast, nullsFirst));
+        assertTrue(traitDef.satisfies(nullsFirst, nullsFirst2));
+    }
+
+    /**
+     * Tests that when the planner finds an expression whose rows are sorted,
+     * the expression also becomes the best expression of the subset that
+     * requires rows in no particular order.
+     */
+    public void testCollationCostPropagation()
+    {
+        VolcanoPlanner planner = new VolcanoPlanner();
+
+        planner.addRelTraitDef(ConventionTraitDef.instance);
+        planner.addRelTraitDef(RelCollationTraitDef.INSTANCE);
+
+        planner.addRule(new SortedLeafRule());
+
+        RelOptCluster cluster = VolcanoPlannerTest.newCluster(planner);
+
+        NoneLeafRel noneLeafRel = new NoneLeafRel(cluster, "noneLeafRel");
+
+        // The only physical expression is sorted; nothing is registered in
+        // the unsorted subset.
+        RelNode convertedRel =
+            planner.changeTraits(
+                noneLeafRel,
+                cluster.traitSetOf(PHYS_CALLING_CONVENTION));
+
+        planner.setRoot(convertedRel);
+        RelNode result = planner.chooseDelegate().findBestExp();
+
+        assertTrue(result instanceof SortedLeafRel);
+        assertEquals(
+            SORTED_0,
+            result.getTraitSet().getTrait(RelCollationTraitDef.INSTANCE));
+    }
+
+    /**
+     * Tests that a subset that is created after a sorted expression has been
+     * registered starts with that expression as its best, if the sorted
+     * expression's traits satisfy the subset's traits.
+     */
+    public void testCollationNewSubset()
+    {
+        VolcanoPlanner planner = new VolcanoPlanner();
+
+        planner.addRelTraitDef(ConventionTraitDef.instance);
+        planner.addRelTraitDef(RelCollationTraitDef.INSTANCE);
+
+        RelOptCluster cluster = VolcanoPlannerTest.newCluster(planner);
+
+        RelNode sortedRel =
+            planner.ensureRegistered(
+                new SortedLeafRel(cluster, "sortedLeafRel", SORTED_0),
+                null);
+
+        // Neither the subset with no particular order, nor the subset sorted
+        // on a prefix of the expression's sort keys, exists yet.
+        RelNode convertedRel =
+            planner.changeTraits(
+                sortedRel,
+                cluster.traitSetOf(PHYS_CALLING_CONVENTION));
+        assertTrue(convertedRel instanceof RelSubset);
+        assertTrue(((RelSubset) convertedRel).best instanceof SortedLeafRel);
+
+        planner.setRoot(convertedRel);
+        RelNode result = planner.chooseDelegate().findBestExp();
+        assertTrue(result instanceof SortedLeafRel);
+    }
+
+    /**
+     * Tests that if no expression delivers a required order, the planner
+     * enforces it by adding a sort.
+     */
+    public void testCollationSortEnforcer()
+    {
+        VolcanoPlanner planner = new VolcanoPlanner();
+
+        planner.addRelTraitDef(ConventionTraitDef.instance);
+        planner.addRelTraitDef(RelCollationTraitDef.INSTANCE);
+
+        planner.addRule(AbstractConverter.ExpandConversionRule.instance);
+        planner.addRule(new PhysLeafRule());
+        planner.addRule(new PhysSortRule());
+
+        RelOptCluster cluster = VolcanoPlannerTest.newCluster(planner);
+
+        NoneLeafRel noneLeafRel = new NoneLeafRel(cluster, "noneLeafRel");
+
+        RelNode convertedRel =
+            planner.changeTraits(
+                noneLeafRel,
+                cluster.traitSetOf(PHYS_CALLING_CONVENTION, SORTED_0));
+
+        planner.setRoot(convertedRel);
+        RelNode result = planner.chooseDelegate().findBestExp();
+
+        assertTrue(result instanceof PhysSortRel);
+        assertEquals(
+            SORTED_0,
+            result.getTraitSet().getTrait(RelCollationTraitDef.INSTANCE));
+        RelNode child = result.getInputs().get(0);
+        assertTrue(child instanceof PhysLeafRel);
+        assertEquals(
+            RelCollationImpl.EMPTY,
+            child.getTraitSet().getTrait(RelCollationTraitDef.INSTANCE));
+    }
+
     //~ Inner Classes ----------------------------------------------------------
 
     private static class AltTrait
@@ -415,6 +613,65 @@ public class VolcanoPlannerTraitTest
         // TODO: SWZ Implement clone?
     }
 
+    private static class SortedLeafRel
+        extends TestLeafRel
+    {
+        SortedLeafRel(
+            RelOptCluster cluster,
+            String label,
+            RelCollation collation)
+        {
+            super(
+                cluster,
+                cluster.traitSetOf(PHYS_CALLING_CONVENTION).replace(collation),
+                label);
+        }
+
+        // implement RelNode
+        public RelOptCost computeSelfCost(RelOptPlanner planner)
+        {
+            return planner.makeTinyCost();
+        }
+
+        public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+            assert inputs.isEmpty();
+            return this;
+        }
+    }
+
+    private static class PhysSortRel
+        extends SortRel
+    {
+        PhysSortRel(
+            RelOptCluster cluster,
+            RelNode child,
+            List<RelFieldCollation> collations)
+        {
+            super(
+                cluster,
+                cluster.traitSetOf(PHYS_CALLING_CONVENTION),
+                child,
+                collations);
+        }
+
+        // implement RelNode
+        public RelOptCost computeSelfCost(RelOptPlanner planner)
+        {
+            return planner.makeTinyCost();
+        }
+
+        public PhysSortRel copy(
+            RelTraitSet traitSet,
+            RelNode newInput,
+            List<RelFieldCollation> newCollations,
+            RexNode offset,
+            RexNode fetch)
+        {
+            assert offset == null && fetch == null;
+            return new PhysSortRel(getCluster(), newInput, newCollations);
+        }
+    }
+
     private static abstract class TestSingleRel
         extends SingleRel
     {
@@ -532,6 +789,64 @@ public class VolcanoPlannerTraitTest
         }
     }
 
+    private static class SortedLeafRule
+        extends RelOptRule
+    {
+        SortedLeafRule()
+        {
+            super(new RelOptRuleOperand(NoneLeafRel.class, ANY));
+        }
+
+        // implement RelOptRule
+        public Convention getOutConvention()
+        {
+            return PHYS_CALLING_CONVENTION;
+        }
+
+        // implement RelOptRule
+        public void onMatch(RelOptRuleCall call)
+        {
+            NoneLeafRel leafRel = (NoneLeafRel) call.rels[0];
+            call.transformTo(
+                new SortedLeafRel(
+                    leafRel.getCluster(),
+                    leafRel.getLabel(),
+                    SORTED_0));
+        }
+    }
+
+    private static class PhysSortRule
+        extends RelOptRule
+    {
+        PhysSortRule()
+        {
+            super(new RelOptRuleOperand(SortRel.class, ANY));
+        }
+
+        // implement RelOptRule
+        public Convention getOutConvention()
+        {
+            return PHYS_CALLING_CONVENTION;
+        }
+
+        // implement RelOptRule
+        public void onMatch(RelOptRuleCall call)
+        {
+            SortRel sort = (SortRel) call.rels[0];
+            if (sort.getConvention() != Convention.NONE) {
+                return;
+            }
+            call.transformTo(
+                new PhysSortRel(
+                    sort.getCluster(),
+                    convert(
+                        sort.getChild(),
+                        sort.getChild().getTraitSet().replace(
+                            PHYS_CALLING_CONVENTION)),
+                    sort.getCollations()));
+        }
+    }
+
     private static class IterSingleRule
         extends RelOptRule
     {
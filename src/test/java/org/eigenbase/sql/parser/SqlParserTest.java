@@ -1226,6 +1226,52 @@ public class SqlParserTest
             "ORDER BY unexpected");
     }
 
+    public void testOrderOffsetFetch() {
+        check(
+            "select a from foo order by b, c offset 1 row fetch first 2 row only",
+            "SELECT `A`\n"
+            + "FROM `FOO`\n"
+            + "ORDER BY `B`, `C`\n"
+            + "OFFSET 1 ROWS\n"
+            + "FETCH NEXT 2 ROWS ONLY");
+        // as above, but ROWS rather than ROW
+        check(
+            "select a from foo order by b, c offset 1 rows fetch first 2 rows only",
+            "SELECT `A`\n"
+            + "FROM `FOO`\n"
+            + "ORDER BY `B`, `C`\n"
+            + "OFFSET 1 ROWS\n"
+            + "FETCH NEXT 2 ROWS ONLY");
+        // FETCH without OFFSET, and without ORDER BY
+        check(
+            "select a from foo fetch next 3 rows only",
+            "SELECT `A`\n"
+            + "FROM `FOO`\n"
+            + "FETCH NEXT 3 ROWS ONLY");
+        // OFFSET without FETCH
+        check(
+            "select a from foo order by b offset 5 rows",
+            "SELECT `A`\n"
+            + "FROM `FOO`\n"
+            + "ORDER BY `B`\n"
+            + "OFFSET 5 ROWS");
+        // Postgres-style LIMIT and OFFSET
+        check(
+            "select a from foo order by b limit 2 offset 1",
+            "SELECT `A`\n"
+            + "FROM `FOO`\n"
+            + "ORDER BY `B`\n"
+            + "OFFSET 1 ROWS\n"
+            + "FETCH NEXT 2 ROWS ONLY");
+        check(
+            "select a from foo limit all",
+            "SELECT `A`\n"
+            + "FROM `FOO`");
+        checkFails(
+            "select a from foo fetch first 2 rows ^offset^ 1 rows",
+            "(?s).*Encountered \"offset.*");
+    }
+
     public void testSqlInlineComment() {
         check(
             "select 1 from t --this is a comment\n",
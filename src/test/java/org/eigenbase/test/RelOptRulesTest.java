@@ -17,8 +17,13 @@
 */
 package org.eigenbase.test;
 
+import java.util.*;
+
 import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.*;
 import org.eigenbase.rel.rules.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.relopt.hep.*;
 
 
 /**
@@ -142,6 +147,62 @@ public class RelOptRulesTest
             + "emp r1, "
             + "(select * from emp e1 union all select * from emp e2) r2");
     }
+
+    /**
+     * Tests that {@link OptimizeMultiJoinRule} joins inputs that have a
+     * condition between them. In the FROM clause, DEPT and BONUS come first
+     * but have no condition between them; the rule joins DEPT to EMP, then
+     * the result to BONUS, so there is no cartesian product.
+     */
+    public void testOptimizeMultiJoinRule()
+    {
+        final RelNode rel =
+            tester.convertSqlToRel(
+                "select d.name, b.comm\n"
+                + "from sales.dept d, sales.bonus b, sales.emp e\n"
+                + "where d.deptno = e.deptno and b.ename = e.ename");
+        final HepProgramBuilder programBuilder = new HepProgramBuilder();
+        programBuilder.addMatchOrder(HepMatchOrder.BOTTOM_UP);
+        programBuilder.addRuleCollection(
+            Arrays.<RelOptRule>asList(
+                ConvertMultiJoinRule.instance,
+                PushFilterIntoMultiJoinRule.instance));
+        programBuilder.addRuleInstance(OptimizeMultiJoinRule.instance);
+        final HepPlanner planner =
+            new HepPlanner(programBuilder.createProgram());
+        final ChainedRelMetadataProvider plannerChain =
+            new ChainedRelMetadataProvider();
+        plannerChain.addProvider(new DefaultRelMetadataProvider());
+        planner.registerMetadataProviders(plannerChain);
+        rel.getCluster().setMetadataProvider(plannerChain);
+        planner.setRoot(rel);
+        final String plan = RelOptUtil.toString(planner.findBestExp());
+
+        assertFalse(plan, plan.contains("MultiJoinRel"));
+        assertFalse(plan, plan.contains("condition=[true]"));
+        int joinCount = 0;
+        int deptIndent = -1;
+        int empIndent = -1;
+        int bonusIndent = -1;
+        for (String line : plan.split("\n")) {
+            final String trimmed = line.trim();
+            final int indent = line.indexOf(trimmed);
+            if (trimmed.startsWith("JoinRel(")) {
+                ++joinCount;
+            } else if (trimmed.contains("SALES, DEPT]]")) {
+                deptIndent = indent;
+            } else if (trimmed.contains("SALES, EMP]]")) {
+                empIndent = indent;
+            } else if (trimmed.contains("SALES, BONUS]]")) {
+                bonusIndent = indent;
+            }
+        }
+        assertEquals(plan, 2, joinCount);
+
+        // DEPT and EMP are inputs of the lower join, BONUS of the upper.
+        assertEquals(plan, deptIndent, empIndent);
+        assertEquals(plan, deptIndent - 2, bonusIndent);
+    }
 }
 
 // End RelOptRulesTest.java